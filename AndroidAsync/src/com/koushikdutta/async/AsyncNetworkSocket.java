@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
@@ -129,6 +130,34 @@ public class AsyncNetworkSocket implements AsyncSocket {
         }
     }
 
+    /**
+     * Sends count bytes of file, from position, with FileChannel.transferTo,
+     * so the kernel copies them from the file to the socket without them
+     * passing through the heap. Returns the number of bytes sent. If that is
+     * less than count, the writeable callback is called once more can be sent.
+     * Only TCP sockets support this, and anything else returns -1, so the file
+     * has to be written some other way. It must be called on the server thread.
+     */
+    public long transferFrom(FileChannel file, long position, long count) {
+        assert mServer.getAffinity() == Thread.currentThread();
+        if (!(mChannel instanceof SocketChannelWrapper))
+            return -1;
+        if (!mChannel.isConnected())
+            return 0;
+
+        try {
+            long sent = file.transferTo(position, count, ((SocketChannelWrapper)mChannel).mChannel);
+            handleRemaining(sent < count ? 1 : 0);
+            return sent;
+        }
+        catch (IOException ex) {
+            closeInternal();
+            reportEndPending(ex);
+            reportClose(ex);
+            return 0;
+        }
+    }
+
     private ByteBufferList pending = new ByteBufferList();
 //    private ByteBuffer[] buffers = new ByteBuffer[8];
 
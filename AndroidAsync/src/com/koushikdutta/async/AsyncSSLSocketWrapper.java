@@ -249,6 +249,10 @@ public class AsyncSSLSocketWrapper implements AsyncSocketWrapper, AsyncSSLSocket
                             throw e;
                     }
                 }
+                CompletedCallback handshakeCallback = mHandshakeCallback;
+                mHandshakeCallback = null;
+                if (handshakeCallback != null)
+                    handshakeCallback.onCompleted(null);
                 if (mWriteableCallback != null)
                     mWriteableCallback.onWriteable();
                 mEmitter.onDataAvailable();
@@ -465,4 +469,49 @@ public class AsyncSSLSocketWrapper implements AsyncSocketWrapper, AsyncSSLSocket
     public X509Certificate[] getPeerCertificates() {
         return peerCertificates;
     }
+
+    public boolean isHandshakeComplete() {
+        return finishedHandshake;
+    }
+
+    CompletedCallback mHandshakeCallback;
+    /**
+     * Called once the handshake completes and the peer is trusted.
+     */
+    public void setHandshakeCallback(CompletedCallback callback) {
+        mHandshakeCallback = callback;
+    }
+
+    /**
+     * Offer protocols to the server with ALPN. This must be called before anything
+     * is written. Returns false if the platform does not support ALPN.
+     */
+    public boolean setApplicationProtocols(String[] protocols) {
+        // SSLParameters.setApplicationProtocols is only available on newer platforms
+        try {
+            Class<?> paramsClass = Class.forName("javax.net.ssl.SSLParameters");
+            Object params = SSLEngine.class.getMethod("getSSLParameters").invoke(engine);
+            paramsClass.getMethod("setApplicationProtocols", String[].class).invoke(params, (Object)protocols);
+            SSLEngine.class.getMethod("setSSLParameters", paramsClass).invoke(engine, params);
+            return true;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * The protocol the server picked with ALPN, or null if none was negotiated.
+     */
+    public String getApplicationProtocol() {
+        try {
+            String protocol = (String)SSLEngine.class.getMethod("getApplicationProtocol").invoke(engine);
+            if (protocol == null || protocol.length() == 0)
+                return null;
+            return protocol;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
 }
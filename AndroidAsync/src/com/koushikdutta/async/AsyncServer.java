@@ -255,6 +255,8 @@ public class AsyncServer {
             mSelector = null;
             mAffinity = null;
         }
+        // the loop may be blocked in select until a far off timer, like idle socket eviction
+        wakeup(currentSelector);
         try {
             semaphore.acquire();
         }
@@ -4,6 +4,7 @@ import android.os.Looper;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.LinkedList;
@@ -43,7 +44,7 @@ public class ByteBufferList {
     public byte[] getAllByteArray() {
         // fast path to return the contents of the first and only byte buffer,
         // if that's what we're looking for. avoids allocation.
-        if (mBuffers.size() == 1 && mBuffers.peek().capacity() == remaining()) {
+        if (mBuffers.size() == 1 && mBuffers.peek().hasArray() && mBuffers.peek().capacity() == remaining()) {
             remaining = 0;
             return mBuffers.remove().array();
         }
@@ -212,7 +213,7 @@ public class ByteBufferList {
             if (allocSize >= count)
                 break;
             // see if this fits...
-            if ((ret == null || b.capacity() > ret.capacity()) && b.capacity() >= count) {
+            if ((ret == null || b.capacity() > ret.capacity()) && b.capacity() >= count && b.hasArray()) {
                 ret = b;
                 retOffset = allocSize;
             }
@@ -326,14 +327,28 @@ public class ByteBufferList {
     }
 
     public String readString() {
-        StringBuilder builder = new StringBuilder();
-        while (mBuffers.size() > 0) {
-            ByteBuffer bb = mBuffers.remove();
-            builder.append(new String(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining()));
-            reclaim(bb);
+        return readString(null);
+    }
+
+    /**
+     * Decodes everything remaining, with the platform charset if charset is null.
+     */
+    public String readString(Charset charset) {
+        if (charset == null)
+            charset = Charset.defaultCharset();
+        // decode in one piece, so characters that straddle buffers survive
+        String ret;
+        ByteBuffer bb = mBuffers.peek();
+        if (mBuffers.size() == 1 && bb.hasArray()) {
+            ret = new String(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining(), charset);
         }
-        remaining = 0;
-        return builder.toString();
+        else {
+            byte[] bytes = new byte[remaining()];
+            get(bytes);
+            ret = new String(bytes, charset);
+        }
+        recycle();
+        return ret;
     }
 
     static class Reclaimer implements Comparator<ByteBuffer> {
@@ -378,7 +393,8 @@ public class ByteBufferList {
     }
 
     public static void reclaim(ByteBuffer b) {
-        if (b == null || b.isDirect())
+        // read only buffers are shared, see wrapShared
+        if (b == null || b.isDirect() || b.isReadOnly())
             return;
         if (b.arrayOffset() != 0 || b.array().length != b.capacity())
             return;
@@ -418,6 +434,15 @@ public class ByteBufferList {
 
     private static final Object LOCK = new Object();
 
+    /**
+     * Wrap bytes that are written to many sinks at once, such as a broadcast.
+     * The returned buffer is read only, which keeps it out of the pool once a
+     * sink is done with it. Every sink must be handed its own duplicate().
+     */
+    public static ByteBuffer wrapShared(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
     public static ByteBuffer obtain(int size) {
         if (size <= maxItem) {
             PriorityQueue<ByteBuffer> r = getReclaimed();
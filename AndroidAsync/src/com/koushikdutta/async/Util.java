@@ -5,12 +5,15 @@ import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.callback.WritableCallback;
 import com.koushikdutta.async.wrapper.AsyncSocketWrapper;
 import com.koushikdutta.async.wrapper.DataEmitterWrapper;
+import com.koushikdutta.async.wrapper.DataSinkWrapper;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 
 public class Util {
     public static void emitAllData(DataEmitter emitter, ByteBufferList list) {
@@ -153,12 +156,29 @@ public class Util {
         pump(s2, s1, callback);
     }
     
+    // how much of a file is mapped at a time when it's encrypted from memory
+    static final int MAP_SIZE = 4 * 1024 * 1024;
+    // the TLS socket encrypts into a buffer half again the size of what it's
+    // given, so it's given the mapping a piece at a time that fits the buffer pool
+    static final int WINDOW_SIZE = 128 * 1024;
+
+    /**
+     * Writes the file to the sink. If the sink is a plain TCP socket, the file is
+     * sent with FileChannel.transferTo and never copied into the heap. If it is
+     * a TLS socket, the file is mapped into memory and encrypted from there.
+     * Any other sink is written from buffers read from the file.
+     */
     public static void pump(final File file, final DataSink ds, final CompletedCallback callback) {
         try {
             if (file == null || ds == null) {
                 callback.onCompleted(null);
                 return;
             }
+            final AsyncNetworkSocket socket = getWrappedDataSink(ds, AsyncNetworkSocket.class);
+            if (socket != null || getWrappedDataSink(ds, AsyncSSLSocketWrapper.class) != null) {
+                pump(new FileInputStream(file).getChannel(), socket, ds, callback);
+                return;
+            }
             final InputStream is = new FileInputStream(file);
             pump(is, ds, new CompletedCallback() {
                 @Override
@@ -178,6 +198,98 @@ public class Util {
         }
     }
 
+    private static void pump(final FileChannel channel, final AsyncNetworkSocket socket, final DataSink ds, final CompletedCallback callback) throws IOException {
+        final long length = channel.size();
+        final CompletedCallback wrapper = new CompletedCallback() {
+            boolean reported;
+            @Override
+            public void onCompleted(Exception ex) {
+                if (reported)
+                    return;
+                reported = true;
+                ds.setClosedCallback(null);
+                ds.setWriteableCallback(null);
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    if (ex == null)
+                        ex = e;
+                }
+                callback.onCompleted(ex);
+            }
+        };
+
+        final WritableCallback cb = new WritableCallback() {
+            long position;
+            ByteBuffer mapped;
+            ByteBuffer window;
+
+            @Override
+            public void onWriteable() {
+                try {
+                    while (true) {
+                        if (socket != null) {
+                            if (position == length)
+                                break;
+                            long sent = socket.transferFrom(channel, position, length - position);
+                            if (sent < 0) {
+                                // not a TCP socket, so the rest is copied through the heap
+                                ds.setWriteableCallback(null);
+                                channel.position(position);
+                                pump(Channels.newInputStream(channel), ds, wrapper);
+                                return;
+                            }
+                            if (sent == 0) {
+                                // the socket is full, or closed, or the file shrank
+                                if (channel.size() < length)
+                                    throw new IOException("file was truncated while being sent");
+                                return;
+                            }
+                            position += sent;
+                            continue;
+                        }
+
+                        if (window == null || !window.hasRemaining()) {
+                            if (mapped == null || !mapped.hasRemaining()) {
+                                if (position == length)
+                                    break;
+                                long size = Math.min(MAP_SIZE, length - position);
+                                mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                                position += size;
+                            }
+                            window = mapped.slice();
+                            window.limit(Math.min(window.remaining(), WINDOW_SIZE));
+                            mapped.position(mapped.position() + window.limit());
+                        }
+                        ds.write(window);
+                        if (window.hasRemaining())
+                            return;
+                    }
+                    wrapper.onCompleted(null);
+                }
+                catch (Exception e) {
+                    wrapper.onCompleted(e);
+                }
+            }
+        };
+        ds.setWriteableCallback(cb);
+        ds.setClosedCallback(wrapper);
+
+        // transferTo must be called on the socket's thread
+        AsyncServer server = ds.getServer();
+        if (server.getAffinity() == Thread.currentThread()) {
+            cb.onWriteable();
+            return;
+        }
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                cb.onWriteable();
+            }
+        });
+    }
+
     public static void writeAll(final DataSink sink, final ByteBufferList bb, final CompletedCallback callback) {
         WritableCallback wc;
         sink.setWriteableCallback(wc = new WritableCallback() {
@@ -212,6 +324,17 @@ public class Util {
         return null;
     }
 
+    public static <T extends DataSink> T getWrappedDataSink(DataSink sink, Class<T> wrappedClass) {
+        if (wrappedClass.isInstance(sink))
+            return (T)sink;
+        while (sink instanceof DataSinkWrapper) {
+            sink = ((DataSinkWrapper)sink).getDataSink();
+            if (wrappedClass.isInstance(sink))
+                return (T)sink;
+        }
+        return null;
+    }
+
     public static DataEmitter getWrappedDataEmitter(DataEmitter emitter, Class wrappedClass) {
         if (wrappedClass.isInstance(emitter))
             return emitter;
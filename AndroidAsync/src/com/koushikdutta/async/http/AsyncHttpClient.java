@@ -5,6 +5,7 @@ import android.os.Handler;
 import android.text.TextUtils;
 
 import com.koushikdutta.async.AsyncSSLException;
+import com.koushikdutta.async.AsyncSSLSocketWrapper;
 import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.ByteBufferList;
@@ -12,6 +13,7 @@ import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.NullDataCallback;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.future.Cancellable;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
@@ -19,28 +21,27 @@ import com.koushikdutta.async.future.SimpleFuture;
 import com.koushikdutta.async.http.AsyncHttpClientMiddleware.OnRequestCompleteData;
 import com.koushikdutta.async.http.callback.HttpConnectCallback;
 import com.koushikdutta.async.http.callback.RequestCallback;
+import com.koushikdutta.async.http.http2.Http2Middleware;
+import com.koushikdutta.async.http.libcore.HttpDate;
 import com.koushikdutta.async.http.libcore.RawHeaders;
+import com.koushikdutta.async.http.libcore.ResponseHeaders;
 import com.koushikdutta.async.parser.AsyncParser;
 import com.koushikdutta.async.parser.ByteBufferListParser;
 import com.koushikdutta.async.parser.JSONArrayParser;
 import com.koushikdutta.async.parser.JSONObjectParser;
 import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.async.stream.OutputStreamDataCallback;
+import com.koushikdutta.async.stream.FileChannelDataCallback;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.concurrent.TimeoutException;
+import java.util.Date;
+import java.util.concurrent.CancellationException;
 
 public class AsyncHttpClient {
     private static AsyncHttpClient mDefaultInstance;
@@ -61,11 +62,27 @@ public class AsyncHttpClient {
 
     AsyncSSLSocketMiddleware sslSocketMiddleware;
     AsyncSocketMiddleware socketMiddleware;
+    Http2Middleware http2Middleware;
     AsyncServer mServer;
     public AsyncHttpClient(AsyncServer server) {
         mServer = server;
         insertMiddleware(socketMiddleware = new AsyncSocketMiddleware(this));
         insertMiddleware(sslSocketMiddleware = new AsyncSSLSocketMiddleware(this));
+        insertMiddleware(http2Middleware = new Http2Middleware(this));
+    }
+
+    RetryPolicy retryPolicy = new RetryPolicy();
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set the policy for sending failed requests again, or null to never retry.
+     * The default only retries connect failures and requests lost on stale
+     * keep-alive sockets.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
     }
 
     public AsyncSocketMiddleware getSocketMiddleware() {
@@ -76,6 +93,20 @@ public class AsyncHttpClient {
         return sslSocketMiddleware;
     }
 
+    public Http2Middleware getHttp2Middleware() {
+        return http2Middleware;
+    }
+
+    /**
+     * Open and set up count keep-alive sockets to the uri's host ahead of the
+     * requests that will use them. See {@link AsyncSocketMiddleware#preconnect(URI, int)}.
+     */
+    public Future<Integer> preconnect(URI uri, int count) {
+        if ("https".equals(uri.getScheme()))
+            return sslSocketMiddleware.preconnect(uri, count);
+        return socketMiddleware.preconnect(uri, count);
+    }
+
     public Future<AsyncHttpResponse> execute(final AsyncHttpRequest request, final HttpConnectCallback callback) {
         FutureAsyncHttpResponse ret;
         execute(request, 0, ret = new FutureAsyncHttpResponse(), callback);
@@ -85,8 +116,31 @@ public class AsyncHttpClient {
     private static final String LOGTAG = "AsyncHttp";
     private class FutureAsyncHttpResponse extends SimpleFuture<AsyncHttpResponse> {
         public AsyncSocket socket;
+        // the timeout of the current phase: connect, handshake, headers or body reads
         public Object scheduled;
-        public Runnable timeoutRunnable;
+        // the total timeout, which runs across redirects
+        public Object deadline;
+        public OnRequestCompleteData data;
+        public AsyncHttpResponseImpl response;
+        public long lastRead;
+
+        void scheduleTimeout(Runnable timeout, long delay) {
+            clearTimeout();
+            if (delay > 0)
+                scheduled = mServer.postDelayed(timeout, delay);
+        }
+
+        void clearTimeout() {
+            if (scheduled != null)
+                mServer.removeAllCallbacks(scheduled);
+            scheduled = null;
+        }
+
+        void clearDeadline() {
+            if (deadline != null)
+                mServer.removeAllCallbacks(deadline);
+            deadline = null;
+        }
 
         @Override
         public boolean cancel() {
@@ -96,8 +150,19 @@ public class AsyncHttpClient {
             if (socket != null)
                 socket.close();
 
-            if (scheduled != null)
-                mServer.removeAllCallbacks(scheduled);
+            clearTimeout();
+            clearDeadline();
+
+            final OnRequestCompleteData data = this.data;
+            if (data != null) {
+                // neither the connect callback nor the response may ever report back
+                mServer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        abandonSocket(data, new CancellationException());
+                    }
+                });
+            }
 
             return true;
         }
@@ -108,6 +173,8 @@ public class AsyncHttpClient {
         boolean complete;
         if (ex != null) {
             request.loge("Connection error", ex);
+            cancel.clearTimeout();
+            cancel.clearDeadline();
             complete = cancel.setComplete(ex);
         }
         else {
@@ -141,14 +208,63 @@ public class AsyncHttpClient {
         }
     }
 
-    private static long getTimeoutRemaining(AsyncHttpRequest request) {
-        // need a better way to calculate this.
-        // a timer of sorts that stops/resumes.
-        return request.getTimeout();
+    private boolean retry(final AsyncHttpRequest request, final int redirectCount, final FutureAsyncHttpResponse cancel, final HttpConnectCallback callback, long delay) {
+        if (cancel.isDone() || cancel.isCancelled())
+            return false;
+        if (!retryPolicy.acquireRetry(request)) {
+            request.logd("Retry budget for host exhausted, not retrying");
+            return false;
+        }
+        request.retryCount++;
+        cancel.clearTimeout();
+        request.logd("Retrying request in " + delay + " ms");
+        if (delay <= 0) {
+            execute(request, redirectCount, cancel, callback);
+            return true;
+        }
+        cancel.scheduled = mServer.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                cancel.scheduled = null;
+                executeAffinity(request, redirectCount, cancel, callback);
+            }
+        }, delay);
+        return true;
+    }
+
+    // a timeout before the response headers: give up on the socket and fail the request
+    private void onConnectTimeout(FutureAsyncHttpResponse cancel, HttpConnectCallback callback, Exception ex) {
+        OnRequestCompleteData data = cancel.data;
+        cancel.scheduled = null;
+        if (data.socketCancellable != null)
+            data.socketCancellable.cancel();
+        reportConnectedCompleted(cancel, ex, null, data.request, callback);
+        // closing the socket doesn't report back, and requests pipelined behind this one are waiting on it
+        if (data.socket != null)
+            data.socket.close();
+        abandonSocket(data, ex);
     }
 
+    // let the middleware release whatever it holds for a request that never got a socket to respond on
+    private void abandonSocket(OnRequestCompleteData data, Exception ex) {
+        if (data.complete)
+            return;
+        data.complete = true;
+        data.exception = ex;
+        synchronized (mMiddleware) {
+            for (AsyncHttpClientMiddleware middleware: mMiddleware) {
+                middleware.onRequestComplete(data);
+            }
+        }
+    }
+
+    private static final String[] RANGE_HEADERS = new String[] { "Range", "If-Range", "If-Match", "Accept-Encoding" };
+
     private void executeAffinity(final AsyncHttpRequest request, final int redirectCount, final FutureAsyncHttpResponse cancel, final HttpConnectCallback callback) {
         assert mServer.isAffinityThread();
+        // cancelled before it got here, there's nothing to cancel the socket through
+        if (cancel.isCancelled())
+            return;
         if (redirectCount > 15) {
             reportConnectedCompleted(cancel, new Exception("too many redirects"), null, request, callback);
             return;
@@ -157,50 +273,71 @@ public class AsyncHttpClient {
         final OnRequestCompleteData data = new OnRequestCompleteData();
         request.executionTime = System.currentTimeMillis();
         data.request = request;
+        cancel.data = data;
 
         request.logd("Executing request.");
+        if (retryPolicy != null)
+            retryPolicy.onRequest(request);
 
         // flow:
-        // 1) set a connect timeout
+        // 1) set a connect timeout, and a total timeout on the first attempt
         // 2) wait for connect
-        // 3) on connect, cancel timeout
+        // 3) on connect, cancel timeout, and set a handshake timeout on new SSL sockets
         // 4) wait for request to be sent fully
         // 5) after request is sent, set a header timeout
         // 6) wait for headers
-        // 7) on headers, cancel timeout
-        // 8) TODO: response can take as long as it wants to arrive?
+        // 7) on headers, cancel timeout, and set a read timeout for the body
+        // 8) on every read, push the read timeout back
 
-        if (request.getTimeout() > 0) {
-            // set connect timeout
-            cancel.timeoutRunnable = new Runnable() {
+        if (cancel.deadline == null && !cancel.isDone() && request.getTotalTimeout() > 0) {
+            cancel.deadline = mServer.postDelayed(new Runnable() {
                 @Override
                 public void run() {
-                    // we've timed out, kill the connections
-                    if (data.socketCancellable != null) {
-                        data.socketCancellable.cancel();
-                        if (data.socket != null)
-                            data.socket.close();
-                    }
-                    reportConnectedCompleted(cancel, new TimeoutException(), null, request, callback);
+                    cancel.deadline = null;
+                    if (cancel.response != null)
+                        cancel.response.report(new HttpTimeoutException.TotalTimeoutException());
+                    else
+                        onConnectTimeout(cancel, callback, new HttpTimeoutException.TotalTimeoutException());
                 }
-            };
-            cancel.scheduled = mServer.postDelayed(cancel.timeoutRunnable, getTimeoutRemaining(request));
+            }, request.getTotalTimeout());
         }
 
+        cancel.scheduleTimeout(new Runnable() {
+            @Override
+            public void run() {
+                onConnectTimeout(cancel, callback, new HttpTimeoutException.ConnectTimeoutException());
+            }
+        }, request.getConnectTimeout());
+
         // 2) wait for a connect
         data.connectCallback = new ConnectCallback() {
             @Override
             public void onConnectCompleted(Exception ex, AsyncSocket socket) {
                 request.logv("socket connected");
                 if (cancel.isCancelled()) {
+                    data.socket = socket;
+                    abandonSocket(data, new CancellationException());
                     if (socket != null)
                         socket.close();
                     return;
                 }
 
                 // 3) on connect, cancel timeout
-                if (cancel.timeoutRunnable != null)
-                    mServer.removeAllCallbacks(cancel.scheduled);
+                cancel.clearTimeout();
+                if (socket instanceof AsyncSSLSocketWrapper && !((AsyncSSLSocketWrapper)socket).isHandshakeComplete()) {
+                    cancel.scheduleTimeout(new Runnable() {
+                        @Override
+                        public void run() {
+                            onConnectTimeout(cancel, callback, new HttpTimeoutException.HandshakeTimeoutException());
+                        }
+                    }, request.getHandshakeTimeout());
+                    ((AsyncSSLSocketWrapper)socket).setHandshakeCallback(new CompletedCallback() {
+                        @Override
+                        public void onCompleted(Exception ex) {
+                            cancel.clearTimeout();
+                        }
+                    });
+                }
 
                 data.socket = socket;
                 synchronized (mMiddleware) {
@@ -212,6 +349,10 @@ public class AsyncHttpClient {
                 cancel.socket = socket;
 
                 if (ex != null) {
+                    abandonSocket(data, ex);
+                    if (retryPolicy != null && retryPolicy.shouldRetryConnect(request, ex, request.retryCount)
+                    && retry(request, redirectCount, cancel, callback, 0))
+                        return;
                     reportConnectedCompleted(cancel, ex, null, request, callback);
                     return;
                 }
@@ -226,12 +367,41 @@ public class AsyncHttpClient {
                         if (cancel.isCancelled())
                             return;
                         // 5) after request is sent, set a header timeout
-                        if (cancel.timeoutRunnable != null && data.headers == null) {
-                            mServer.removeAllCallbacks(cancel.scheduled);
-                            cancel.scheduled = mServer.postDelayed(cancel.timeoutRunnable, getTimeoutRemaining(request));
+                        if (data.headers == null) {
+                            cancel.scheduleTimeout(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onConnectTimeout(cancel, callback, new HttpTimeoutException.HeaderTimeoutException());
+                                }
+                            }, request.getHeaderTimeout());
                         }
                     }
 
+                    Runnable readTimeout = new Runnable() {
+                        @Override
+                        public void run() {
+                            cancel.scheduled = null;
+                            long idle = System.currentTimeMillis() - cancel.lastRead;
+                            if (isPaused()) {
+                                // the reader isn't keeping up, which isn't the server's fault
+                                cancel.lastRead = System.currentTimeMillis();
+                                idle = 0;
+                            }
+                            if (idle < request.getReadTimeout()) {
+                                cancel.scheduled = mServer.postDelayed(this, request.getReadTimeout() - idle);
+                                return;
+                            }
+                            report(new HttpTimeoutException.ReadTimeoutException());
+                        }
+                    };
+
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        // 8) on every read, push the read timeout back
+                        cancel.lastRead = System.currentTimeMillis();
+                        super.onDataAvailable(emitter, bb);
+                    }
+
                     @Override
                     public void setDataEmitter(DataEmitter emitter) {
                         data.bodyEmitter = emitter;
@@ -264,9 +434,22 @@ public class AsyncHttpClient {
                             newReq.LOGTAG = request.LOGTAG;
                             newReq.proxyHost = request.proxyHost;
                             newReq.proxyPort = request.proxyPort;
+                            newReq.mPriority = request.mPriority;
+                            newReq.mTimeout = request.mTimeout;
+                            newReq.mConnectTimeout = request.mConnectTimeout;
+                            newReq.mHandshakeTimeout = request.mHandshakeTimeout;
+                            newReq.mHeaderTimeout = request.mHeaderTimeout;
+                            newReq.mReadTimeout = request.mReadTimeout;
+                            newReq.mTotalTimeout = request.mTotalTimeout;
                             String userAgent = request.getHeaders().getHeaders().get("User-Agent");
                             if (!TextUtils.isEmpty(userAgent))
                                 newReq.getHeaders().getHeaders().set("User-Agent", userAgent);
+                            // a range of the resource is wanted wherever it moved to
+                            for (String header: RANGE_HEADERS) {
+                                String value = request.getHeaders().getHeaders().get(header);
+                                if (value != null)
+                                    newReq.getHeaders().getHeaders().set(header, value);
+                            }
                             request.logi("Redirecting");
                             newReq.logi("Redirected");
                             execute(newReq, redirectCount + 1, cancel, callback);
@@ -275,9 +458,20 @@ public class AsyncHttpClient {
                             return;
                         }
 
+                        if (retryPolicy != null) {
+                            long delay = retryPolicy.getRetryDelay(request, mHeaders, request.retryCount);
+                            if (delay >= 0 && retry(request, redirectCount, cancel, callback, delay)) {
+                                setDataCallback(new NullDataCallback());
+                                return;
+                            }
+                        }
+
                         request.logv("Final (post cache response) headers:\n" + mHeaders.getHeaders().toHeaderString());
 
                         // at this point the headers are done being modified
+                        cancel.response = this;
+                        cancel.lastRead = System.currentTimeMillis();
+                        cancel.scheduleTimeout(readTimeout, request.getReadTimeout());
                         reportConnectedCompleted(cancel, null, this, request, callback);
                     }
 
@@ -287,8 +481,7 @@ public class AsyncHttpClient {
                                 return;
 
                             // 7) on headers, cancel timeout
-                            if (cancel.timeoutRunnable != null)
-                                mServer.removeAllCallbacks(cancel.scheduled);
+                            cancel.clearTimeout();
 
                             // allow the middleware to massage the headers before the body is decoded
                             request.logv("Received headers:\n" + mHeaders.getHeaders().toHeaderString());
@@ -313,8 +506,16 @@ public class AsyncHttpClient {
                     protected void report(Exception ex) {
                         if (ex != null)
                             request.loge("exception during response", ex);
-                        if (cancel.isCancelled())
+                        if (cancel.isCancelled()) {
+                            // the socket is done for, but the middleware still needs to hear about it
+                            if (getSocket() != null)
+                                abandonSocket(data, ex != null ? ex : new CancellationException());
                             return;
+                        }
+                        if (cancel.response == this) {
+                            cancel.clearTimeout();
+                            cancel.clearDeadline();
+                        }
                         if (ex instanceof AsyncSSLException) {
                             request.loge("SSL Exception", ex);
                             AsyncSSLException ase = (AsyncSSLException)ex;
@@ -326,17 +527,38 @@ public class AsyncHttpClient {
                         if (socket == null)
                             return;
                         super.report(ex);
-                        if (!socket.isOpen() || ex != null) {
+                        // a pipelined connection that closed before this response started
+                        boolean retry = ex != null && getHeaders() == null && data.pipeline != null;
+                        // or a keep-alive connection the server closed while it was idle
+                        boolean stale = !retry && ex != null && getHeaders() == null && !cancel.isDone()
+                        && retryPolicy != null && retryPolicy.shouldRetryStale(request, ex, data.reused, request.retryCount);
+                        if (!retry && !stale && (!socket.isOpen() || ex != null)) {
                             if (getHeaders() == null && ex != null)
                                 reportConnectedCompleted(cancel, ex, null, request, callback);
                         }
 
                         data.exception = ex;
+                        data.complete = true;
                         synchronized (mMiddleware) {
                             for (AsyncHttpClientMiddleware middleware: mMiddleware) {
                                 middleware.onRequestComplete(data);
                             }
                         }
+
+                        if (retry)
+                            onPipelineFailed();
+                        else if (stale && !retry(request, redirectCount, cancel, callback, 0))
+                            reportConnectedCompleted(cancel, ex, null, request, callback);
+                    }
+
+                    @Override
+                    protected void onPipelineFailed() {
+                        if (cancel.isDone() || cancel.isCancelled())
+                            return;
+                        request.logd("Pipelined connection closed, retrying on a new connection");
+                        cancel.clearTimeout();
+                        request.noPipelining = true;
+                        execute(request, redirectCount, cancel, callback);
                     }
 
 
@@ -355,6 +577,7 @@ public class AsyncHttpClient {
                     }
                 };
 
+                ret.mPipeline = data.pipeline;
                 ret.setSocket(socket);
             }
         };
@@ -489,6 +712,14 @@ public class AsyncHttpClient {
         return execute(req, new JSONArrayParser(), callback);
     }
 
+    /**
+     * Hands each element of the response's array to elements as soon as it has
+     * been read, on the server thread. The array given to callback is empty.
+     */
+    public Future<JSONArray> executeJSONArray(AsyncHttpRequest req, JSONArrayParser.ElementCallback elements, final JSONArrayCallback callback) {
+        return execute(req, new JSONArrayParser(elements), callback);
+    }
+
     private <T> void invokeWithAffinity(final RequestCallback<T> callback, SimpleFuture<T> future, final AsyncHttpResponse response, final Exception e, final T result) {
         boolean complete;
         if (e != null)
@@ -501,7 +732,7 @@ public class AsyncHttpClient {
             callback.onCompleted(e, response, result);
     }
 
-    private <T> void invoke(Handler handler, final RequestCallback<T> callback, final SimpleFuture<T> future, final AsyncHttpResponse response, final Exception e, final T result) {
+    <T> void invoke(Handler handler, final RequestCallback<T> callback, final SimpleFuture<T> future, final AsyncHttpResponse response, final Exception e, final T result) {
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
@@ -514,12 +745,19 @@ public class AsyncHttpClient {
             AsyncServer.post(handler, runnable);
     }
 
-    private void invokeProgress(final RequestCallback callback, final AsyncHttpResponse response, final int downloaded, final int total) {
-        if (callback != null)
-            callback.onProgress(response, downloaded, total);
+    // the callback takes ints, so past 2GB both counts are halved until they
+    // fit, which keeps the fraction done right. an unknown total stays -1.
+    void invokeProgress(final RequestCallback callback, final AsyncHttpResponse response, long downloaded, long total) {
+        if (callback == null)
+            return;
+        while (downloaded > Integer.MAX_VALUE || total > Integer.MAX_VALUE) {
+            downloaded >>= 1;
+            total >>= 1;
+        }
+        callback.onProgress(response, (int)downloaded, (int)total);
     }
 
-    private void invokeConnect(final RequestCallback callback, final AsyncHttpResponse response) {
+    void invokeConnect(final RequestCallback callback, final AsyncHttpResponse response) {
         if (callback != null)
             callback.onConnect(response);
     }
@@ -544,80 +782,185 @@ public class AsyncHttpClient {
         return executeFile(req, filename, null);
     }
     public Future<File> executeFile(AsyncHttpRequest req, final String filename, final FileCallback callback) {
+        return executeFile(req, filename, false, callback);
+    }
+
+    // the first byte of a 206 response's Content-Range, or the total length of a 416's
+    private static long parseContentRange(ResponseHeaders headers, boolean total) {
+        String range = headers.getHeaders().get("Content-Range");
+        if (range == null || !range.startsWith("bytes "))
+            return -1;
+        try {
+            range = range.substring(6).trim();
+            int slash = range.indexOf('/');
+            if (total)
+                return Long.parseLong(range.substring(slash + 1).trim());
+            return Long.parseLong(range.substring(0, range.indexOf('-')).trim());
+        }
+        catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private class FileDownload extends FileChannelDataCallback {
+        AsyncHttpResponse response;
+        File file;
+        boolean resume;
+        Date lastModified;
+        Handler handler;
+        FileCallback callback;
+        SimpleFuture<File> ret;
+        long downloaded;
+        long total;
+        boolean finished;
+
+        FileDownload(File file, long position) {
+            super(mServer, file, position);
+            this.file = file;
+            downloaded = position;
+        }
+
+        @Override
+        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+            downloaded += bb.remaining();
+            super.onDataAvailable(emitter, bb);
+            invokeProgress(callback, response, downloaded, total);
+        }
+
+        void finish(final Exception ex) {
+            if (finished)
+                return;
+            finished = true;
+            close(new CompletedCallback() {
+                @Override
+                public void onCompleted(Exception closeEx) {
+                    Exception e = ex != null ? ex : closeEx;
+                    // the server's Last-Modified is the If-Range validator for resuming
+                    if (resume && lastModified != null)
+                        file.setLastModified(lastModified.getTime());
+                    else if (e != null && !resume)
+                        file.delete();
+                    invoke(handler, callback, ret, response, e, e == null ? file : null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Downloads to filename over as many as connections connections at once,
+     * each fetching a byte range of the file. This needs a server that supports
+     * ranges and gives the file a strong ETag; otherwise it is a normal download.
+     * A failed download deletes the file.
+     */
+    public Future<File> executeSegmentedFile(AsyncHttpRequest req, String filename, int connections, FileCallback callback) {
+        File file = new File(filename);
+        file.getParentFile().mkdirs();
+        return new SegmentedDownload(this, req, file, connections, callback).start();
+    }
+
+    /**
+     * Downloads to filename. With resume, a file left by an earlier download
+     * of the same URL is continued with a Range request, if the server still
+     * has the same version, and an interrupted download leaves the partial file
+     * behind for the next attempt. A response other than 200 or 206 fails the
+     * download without touching the file. Otherwise the file is replaced, and
+     * deleted if the download fails.
+     */
+    public Future<File> executeFile(AsyncHttpRequest req, final String filename, final boolean resume, final FileCallback callback) {
         final Handler handler = req.getHandler();
         final File file = new File(filename);
         file.getParentFile().mkdirs();
-        final OutputStream fout;
-        try {
-            fout = new BufferedOutputStream(new FileOutputStream(file), 8192);
-        }
-        catch (FileNotFoundException e) {
-            SimpleFuture<File> ret = new SimpleFuture<File>();
-            ret.setComplete(e);
-            return ret;
+        final long existing = resume ? file.length() : 0;
+        if (resume) {
+            RawHeaders headers = req.getHeaders().getHeaders();
+            // ranges are of the encoded body, not of what's on disk
+            headers.set("Accept-Encoding", "identity");
+            if (existing > 0) {
+                headers.set("Range", "bytes=" + existing + "-");
+                headers.set("If-Range", HttpDate.format(new Date(file.lastModified())));
+            }
         }
+
         final FutureAsyncHttpResponse cancel = new FutureAsyncHttpResponse();
         final SimpleFuture<File> ret = new SimpleFuture<File>() {
             @Override
             public void cancelCleanup() {
                 try {
-                    cancel.get().setDataCallback(new NullDataCallback());
-                    cancel.get().close();
-                }
-                catch (Exception e) {
-                }
-                try {
-                    fout.close();
+                    AsyncHttpResponse response = cancel.get();
+                    DataCallback download = response.getDataCallback();
+                    response.setDataCallback(new NullDataCallback());
+                    response.close();
+                    if (download instanceof FileDownload)
+                        ((FileDownload)download).finish(new CancellationException());
                 }
                 catch (Exception e) {
                 }
-                file.delete();
             }
         };
         ret.setParent(cancel);
         execute(req, 0, cancel, new HttpConnectCallback() {
-            int mDownloaded = 0;
-
             @Override
             public void onConnectCompleted(Exception ex, final AsyncHttpResponse response) {
                 if (ex != null) {
-                    try {
-                        fout.close();
-                    }
-                    catch (IOException e) {
-                    }
-                    file.delete();
                     invoke(handler, callback, ret, response, ex, null);
                     return;
                 }
                 invokeConnect(callback, response);
 
-                final int contentLength = response.getHeaders().getContentLength();
+                ResponseHeaders headers = response.getHeaders();
+                int code = headers.getHeaders().getResponseCode();
+                long position = 0;
+                if (existing > 0 && code == 206) {
+                    position = parseContentRange(headers, false);
+                    if (position != existing) {
+                        response.setDataCallback(new NullDataCallback());
+                        response.close();
+                        invoke(handler, callback, ret, response, new Exception("unexpected Content-Range"), null);
+                        return;
+                    }
+                }
+                else if (existing > 0 && code == 416) {
+                    // nothing left to download, if the file is already complete
+                    response.setDataCallback(new NullDataCallback());
+                    response.close();
+                    if (parseContentRange(headers, true) == existing)
+                        invoke(handler, callback, ret, response, null, file);
+                    else
+                        invoke(handler, callback, ret, response, new Exception("requested range not satisfiable"), null);
+                    return;
+                }
+                else if (resume && code != 200 && code != 206) {
+                    // an error page isn't the file, and what's already there is kept for the next attempt
+                    response.setDataCallback(new NullDataCallback());
+                    response.close();
+                    invoke(handler, callback, ret, response, new Exception("unexpected response code " + code), null);
+                    return;
+                }
 
-                response.setDataCallback(new OutputStreamDataCallback(fout) {
+                final FileDownload download = new FileDownload(file, position);
+                download.response = response;
+                download.resume = resume;
+                download.lastModified = headers.getLastModified();
+                download.handler = handler;
+                download.callback = callback;
+                download.ret = ret;
+                int contentLength = headers.getContentLength();
+                download.total = contentLength < 0 ? -1 : position + contentLength;
+                if (contentLength > 0)
+                    download.preallocate(contentLength);
+                download.setErrorCallback(new CompletedCallback() {
                     @Override
-                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
-                        mDownloaded += bb.remaining();
-                        super.onDataAvailable(emitter, bb);
-                        invokeProgress(callback, response, mDownloaded, contentLength);
+                    public void onCompleted(Exception ex) {
+                        response.setDataCallback(new NullDataCallback());
+                        response.close();
+                        download.finish(ex);
                     }
                 });
+                response.setDataCallback(download);
                 response.setEndCallback(new CompletedCallback() {
                     @Override
                     public void onCompleted(Exception ex) {
-                        try {
-                            fout.close();
-                        }
-                        catch (IOException e) {
-                            ex = e;
-                        }
-                        if (ex != null) {
-                            file.delete();
-                            invoke(handler, callback, ret, response, ex, null);
-                        }
-                        else {
-                            invoke(handler, callback, ret, response, null, file);
-                        }
+                        download.finish(ex);
                     }
                 });
             }
@@ -660,8 +1003,22 @@ public class AsyncHttpClient {
         public void onCompleted(Exception ex, WebSocket webSocket);
     }
 
+    PerMessageDeflate mWebSocketDeflate;
+    /**
+     * The permessage-deflate parameters offered on websocket connections,
+     * or null to not offer compression. Compression is off by default.
+     */
+    public void setWebSocketDeflate(PerMessageDeflate deflate) {
+        mWebSocketDeflate = deflate;
+    }
+
+    public PerMessageDeflate getWebSocketDeflate() {
+        return mWebSocketDeflate;
+    }
+
     public Future<WebSocket> websocket(final AsyncHttpRequest req, String protocol, final WebSocketConnectCallback callback) {
-        WebSocketImpl.addWebSocketUpgradeHeaders(req, protocol);
+        final PerMessageDeflate deflate = mWebSocketDeflate;
+        WebSocketImpl.addWebSocketUpgradeHeaders(req, protocol, deflate);
         final SimpleFuture<WebSocket> ret = new SimpleFuture<WebSocket>();
         Cancellable connect = execute(req, new HttpConnectCallback() {
             @Override
@@ -673,7 +1030,7 @@ public class AsyncHttpClient {
                     }
                     return;
                 }
-                WebSocket ws = WebSocketImpl.finishHandshake(req.getHeaders().getHeaders(), response);
+                WebSocket ws = WebSocketImpl.finishHandshake(req.getHeaders().getHeaders(), response, deflate);
                 if (ws == null) {
                     if (!ret.setComplete(new Exception("Unable to complete websocket handshake")))
                         return;
@@ -14,6 +14,19 @@ public interface AsyncHttpClientMiddleware {
         public AsyncHttpRequest request;
         public ConnectCallback connectCallback;
         public Cancellable socketCancellable;
+        // set when the socket is shared with other requests
+        HttpPipeline pipeline;
+        // set when the socket was used by earlier requests
+        boolean reused;
+        // set once the middleware has been told the request is complete
+        boolean complete;
+
+        /**
+         * Whether the socket was used by earlier requests.
+         */
+        public boolean isReused() {
+            return reused;
+        }
     }
     
     public static class OnSocketData extends GetSocketData {
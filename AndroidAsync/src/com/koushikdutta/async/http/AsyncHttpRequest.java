@@ -126,8 +126,8 @@ public class AsyncHttpRequest {
     private RawHeaders mRawHeaders = new RawHeaders();
     private RequestHeaders mHeaders;
 
-    @Deprecated
-    private Handler mHandler = Looper.myLooper() == null ? null : new Handler();
+    // package-private so the client's own classes can copy it without the deprecated getter
+    Handler mHandler = Looper.myLooper() == null ? null : new Handler();
     @Deprecated
     public Handler getHandler() {
         return mHandler;
@@ -177,6 +177,95 @@ public class AsyncHttpRequest {
         mTimeout = timeout;
         return this;
     }
+
+    int mPriority;
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Requests waiting on a free connection are sent highest priority first.
+     * The default is 0. Changing the priority of a waiting request moves it in line.
+     */
+    public AsyncHttpRequest setPriority(int priority) {
+        mPriority = priority;
+        AsyncSocketMiddleware.QueuedRequest queued = this.queued;
+        if (queued != null)
+            queued.reprioritize();
+        return this;
+    }
+    // set while waiting on a free connection
+    AsyncSocketMiddleware.QueuedRequest queued;
+
+    int mConnectTimeout = -1;
+    public int getConnectTimeout() {
+        return mConnectTimeout < 0 ? mTimeout : mConnectTimeout;
+    }
+
+    /**
+     * How long to wait for a socket, including resolving the host and waiting
+     * for a free connection. Defaults to {@link #getTimeout()}.
+     */
+    public AsyncHttpRequest setConnectTimeout(int timeout) {
+        mConnectTimeout = timeout;
+        return this;
+    }
+
+    int mHandshakeTimeout = -1;
+    public int getHandshakeTimeout() {
+        return mHandshakeTimeout < 0 ? mTimeout : mHandshakeTimeout;
+    }
+
+    /**
+     * How long the SSL handshake on a new connection may take.
+     * Defaults to {@link #getTimeout()}.
+     */
+    public AsyncHttpRequest setHandshakeTimeout(int timeout) {
+        mHandshakeTimeout = timeout;
+        return this;
+    }
+
+    int mHeaderTimeout = -1;
+    public int getHeaderTimeout() {
+        return mHeaderTimeout < 0 ? mTimeout : mHeaderTimeout;
+    }
+
+    /**
+     * How long to wait for the response headers once the request is sent.
+     * Defaults to {@link #getTimeout()}.
+     */
+    public AsyncHttpRequest setHeaderTimeout(int timeout) {
+        mHeaderTimeout = timeout;
+        return this;
+    }
+
+    int mReadTimeout;
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * How long the response body may go without new data. Time spent paused
+     * doesn't count. 0, the default, waits forever.
+     */
+    public AsyncHttpRequest setReadTimeout(int timeout) {
+        mReadTimeout = timeout;
+        return this;
+    }
+
+    int mTotalTimeout;
+    public int getTotalTimeout() {
+        return mTotalTimeout;
+    }
+
+    /**
+     * How long the whole request may take, from connecting through redirects
+     * to the end of the response body. 0, the default, waits forever.
+     */
+    public AsyncHttpRequest setTotalTimeout(int timeout) {
+        mTotalTimeout = timeout;
+        return this;
+    }
     
     public static AsyncHttpRequest create(HttpRequest request) {
         AsyncHttpRequest ret = new AsyncHttpRequest(URI.create(request.getRequestLine().getUri()), request.getRequestLine().getMethod());
@@ -346,7 +435,13 @@ public class AsyncHttpRequest {
         LOGTAG = tag;
         logLevel = level;
     }
+    // set once a pipelined attempt failed, so the retry gets a connection of its own
+    boolean noPipelining;
+    // the number of times this request has been sent again
+    int retryCount;
+
     // request level logging
+
     String LOGTAG;
     int logLevel;
     public int getLogLevel() {
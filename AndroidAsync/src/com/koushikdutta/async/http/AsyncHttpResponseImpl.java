@@ -2,6 +2,7 @@ package com.koushikdutta.async.http;
 
 import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.BufferedDataSink;
 import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.DataSink;
@@ -15,10 +16,11 @@ import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
 import com.koushikdutta.async.http.filter.ChunkedOutputFilter;
 import com.koushikdutta.async.http.libcore.RawHeaders;
 import com.koushikdutta.async.http.libcore.ResponseHeaders;
+import com.koushikdutta.async.wrapper.DataSinkWrapper;
 
 import java.nio.ByteBuffer;
 
-abstract class AsyncHttpResponseImpl extends FilteredDataEmitter implements AsyncHttpResponse {
+abstract class AsyncHttpResponseImpl extends FilteredDataEmitter implements AsyncHttpResponse, DataSinkWrapper {
     private AsyncHttpRequestBody mWriter;
     
     public AsyncSocket getSocket() {
@@ -53,45 +55,77 @@ abstract class AsyncHttpResponseImpl extends FilteredDataEmitter implements Asyn
             mSink = mSocket;
         }
 
-        mSocket.setEndCallback(mReporter);
-        mSocket.setClosedCallback(new CompletedCallback() {
-            @Override
-            public void onCompleted(Exception ex) {
-                // TODO: do we care? throw if socket is still writing or something?
-            }
-        });
+        if (mPipeline != null) {
+            mPipeline.write(this);
+            mPipeline.read(this);
+        }
+        else {
+            writeRequest();
+            readResponse();
+        }
+    }
+
+    HttpPipeline mPipeline;
 
+    void writeRequest() {
         String rs = mRequest.getRequestString();
         mRequest.logv("\n" + rs);
-        com.koushikdutta.async.Util.writeAll(exchange, rs.getBytes(), new CompletedCallback() {
+        com.koushikdutta.async.Util.writeAll(mSocket, rs.getBytes(), new CompletedCallback() {
             @Override
             public void onCompleted(Exception ex) {
                 if (mWriter != null) {
+                    // writing the head took over the socket's writable callback
+                    if (mSink instanceof BufferedDataSink)
+                        ((BufferedDataSink)mSink).setDataSink(mSocket);
                     mWriter.write(mRequest, AsyncHttpResponseImpl.this, new CompletedCallback() {
                         @Override
                         public void onCompleted(Exception ex) {
+                            // a chunked body ends with an empty chunk
+                            if (ex == null && mSink instanceof ChunkedOutputFilter)
+                                end();
                             onRequestCompleted(ex);
                         }
                     });
                 }
                 else {
                     onRequestCompleted(null);
+                    // pipelined requests never have a body
+                    if (mPipeline != null)
+                        mPipeline.onRequestWritten();
                 }
             }
         });
+    }
+
+    // the socket is ours to read from; with pipelining that's once the previous response is done
+    void readResponse() {
+        mSocket.setEndCallback(mReporter);
+        mSocket.setClosedCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                // TODO: do we care? throw if socket is still writing or something?
+            }
+        });
 
         LineEmitter liner = new LineEmitter();
-        exchange.setDataCallback(liner);
+        mSocket.setDataCallback(liner);
         liner.setLineCallback(mHeaderCallback);
     }
 
+    /**
+     * The pipelined connection closed before this response was started.
+     */
+    protected void onPipelineFailed() {
+    }
+
     protected void onRequestCompleted(Exception ex) {
     }
     
     private CompletedCallback mReporter = new CompletedCallback() {
         @Override
         public void onCompleted(Exception error) {
-            if (error != null && !mCompleted) {
+            // a connection that ends before the headers is an error too, likely a stale keep-alive socket
+            if ((error != null || mHeaders == null) && !mCompleted) {
                 report(new Exception("connection closed before response completed."));
             }
             else {
@@ -182,6 +216,12 @@ abstract class AsyncHttpResponseImpl extends FilteredDataEmitter implements Asyn
 
     DataSink mSink;
 
+    // the socket itself when the body is written as is, rather than chunked
+    @Override
+    public DataSink getDataSink() {
+        return mSink;
+    }
+
     @Override
     public void write(ByteBuffer bb) {
         assertContent();
@@ -196,7 +236,12 @@ abstract class AsyncHttpResponseImpl extends FilteredDataEmitter implements Asyn
 
     @Override
     public void end() {
-
+        if (mSink instanceof ChunkedOutputFilter) {
+            // the last chunk is queued behind anything still buffered
+            ((ChunkedOutputFilter)mSink).setMaxBuffer(Integer.MAX_VALUE);
+            mSink.write(new ByteBufferList());
+            return;
+        }
         write(ByteBuffer.wrap(new byte[0]));
     }
 
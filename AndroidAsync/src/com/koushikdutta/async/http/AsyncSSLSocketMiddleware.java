@@ -2,7 +2,10 @@ package com.koushikdutta.async.http;
 
 import com.koushikdutta.async.AsyncSSLSocketWrapper;
 import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.WritableCallback;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -20,18 +23,31 @@ public class AsyncSSLSocketMiddleware extends AsyncSocketMiddleware {
         this.sslContext = sslContext;
     }
 
+    @Override
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
     TrustManager[] trustManagers;
 
     public void setTrustManagers(TrustManager[] trustManagers) {
         this.trustManagers = trustManagers;
     }
 
+    public TrustManager[] getTrustManagers() {
+        return trustManagers;
+    }
+
     HostnameVerifier hostnameVerifier;
 
     public void setHostnameVerifier(HostnameVerifier hostnameVerifier) {
         this.hostnameVerifier = hostnameVerifier;
     }
 
+    public HostnameVerifier getHostnameVerifier() {
+        return hostnameVerifier;
+    }
+
     @Override
     protected ConnectCallback wrapCallback(final ConnectCallback callback, final URI uri, final int port) {
         return new ConnectCallback() {
@@ -46,4 +62,33 @@ public class AsyncSSLSocketMiddleware extends AsyncSocketMiddleware {
             }
         };
     }
+
+    @Override
+    protected void warmUp(AsyncSocket socket, final CompletedCallback callback) {
+        if (!(socket instanceof AsyncSSLSocketWrapper)) {
+            callback.onCompleted(null);
+            return;
+        }
+        final AsyncSSLSocketWrapper wrapper = (AsyncSSLSocketWrapper)socket;
+        wrapper.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                wrapper.setEndCallback(null);
+                wrapper.setWriteableCallback(null);
+                callback.onCompleted(ex != null ? ex : new Exception("connection closed during handshake"));
+            }
+        });
+        wrapper.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                if (!wrapper.isHandshakeComplete())
+                    return;
+                wrapper.setEndCallback(null);
+                wrapper.setWriteableCallback(null);
+                callback.onCompleted(null);
+            }
+        });
+        // writing nothing starts the handshake
+        wrapper.write(ByteBufferList.EMPTY_BYTEBUFFER);
+    }
 }
@@ -7,18 +7,23 @@ import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.NullDataCallback;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.ConnectCallback;
-import com.koushikdutta.async.callback.ContinuationCallback;
 import com.koushikdutta.async.future.Cancellable;
-import com.koushikdutta.async.future.Continuation;
+import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.SimpleCancellable;
+import com.koushikdutta.async.future.SimpleFuture;
 import com.koushikdutta.async.future.TransformFuture;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import javax.net.ssl.SSLContext;
 
 public class AsyncSocketMiddleware extends SimpleMiddleware {
     String scheme;
@@ -45,7 +50,48 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
     }
 
     AsyncHttpClient mClient;
-    private Hashtable<String, HashSet<AsyncSocket>> mSockets = new Hashtable<String, HashSet<AsyncSocket>>();
+    // idle keep-alive sockets by route, most recently used last
+    private Hashtable<Route, ArrayDeque<IdleSocket>> mSockets = new Hashtable<Route, ArrayDeque<IdleSocket>>();
+    private int mIdleCount;
+
+    static class IdleSocket {
+        AsyncSocket socket;
+        long idleSince;
+    }
+
+    int maxIdleConnectionsPerRoute = 5;
+    public int getMaxIdleConnectionsPerRoute() {
+        return maxIdleConnectionsPerRoute;
+    }
+
+    public void setMaxIdleConnectionsPerRoute(int maxIdleConnectionsPerRoute) {
+        this.maxIdleConnectionsPerRoute = maxIdleConnectionsPerRoute;
+    }
+
+    int maxIdleConnections = 32;
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * The most keep-alive sockets held across all routes. Past this,
+     * the socket that has been idle the longest is closed.
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    long idleTimeout = 300000;
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * How long a keep-alive socket may sit unused before it is closed.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
 
     protected ConnectCallback wrapCallback(ConnectCallback callback, URI uri, int port) {
         return callback;
@@ -56,10 +102,29 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         return connectAllAddresses;
     }
 
+    /**
+     * Race connections to every resolved address of the host rather than only
+     * the first. Addresses are tried alternating between IPv6 and IPv4, and the
+     * first to connect is used.
+     */
     public void setConnectAllAddresses(boolean connectAllAddresses) {
         this.connectAllAddresses = connectAllAddresses;
     }
 
+    long connectionAttemptDelay = 250;
+    public long getConnectionAttemptDelay() {
+        return connectionAttemptDelay;
+    }
+
+    /**
+     * When connecting to all addresses, how long to wait on an attempt before
+     * starting one to the next address. An attempt that fails starts the next
+     * one right away.
+     */
+    public void setConnectionAttemptDelay(long connectionAttemptDelay) {
+        this.connectionAttemptDelay = connectionAttemptDelay;
+    }
+
     String proxyHost;
     int proxyPort;
     InetSocketAddress proxyAddress;
@@ -76,47 +141,237 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         proxyAddress = null;
     }
 
-    String computeLookup(URI uri, int port, AsyncHttpRequest request) {
-        String proxy;
-        if (proxyHost != null)
-            proxy = proxyHost + ":" + proxyPort;
-        else
-            proxy = "";
+    public String getProxyHost() {
+        return proxyHost;
+    }
 
-        if (request.proxyHost != null)
-            proxy = request.getProxyHost() + ":" + request.proxyPort;
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public SSLContext getSSLContext() {
+        return null;
+    }
 
-        return uri.getScheme() + "//" + uri.getHost() + ":" + port + "?proxy=" + proxy;
+    Route getRoute(URI uri, int port, AsyncHttpRequest request) {
+        if (request.proxyHost != null)
+            return new Route(uri.getScheme(), uri.getHost(), port, request.proxyHost, request.proxyPort, getSSLContext());
+        return new Route(uri.getScheme(), uri.getHost(), port, proxyHost, proxyPort, getSSLContext());
     }
 
     static class ConnectionInfo {
         int openCount;
-        ArrayDeque<GetSocketData> queue = new ArrayDeque<GetSocketData>();
+        // preconnects still dialing, guarded by the middleware
+        int preconnecting;
+        // requests waiting on a free connection, in the order they will be sent
+        TreeSet<QueuedRequest> queue = new TreeSet<QueuedRequest>();
     }
-    Hashtable<String, ConnectionInfo> connectionInfo = new Hashtable<String, ConnectionInfo>();
 
-    private static String getConnectionKey(String scheme, String host, int port) {
-        return scheme + "://" + host + ":" + port;
+    long queueSequence;
+    class QueuedRequest extends SimpleCancellable implements Comparable<QueuedRequest> {
+        ConnectionInfo info;
+        GetSocketData data;
+        long enqueued;
+        long sequence;
+        // a higher priority counts as having waited longer, so a request
+        // waiting long enough gets ahead of newer, higher priority ones
+        long rank;
+
+        void updateRank() {
+            rank = enqueued - data.request.getPriority() * priorityAging;
+        }
+
+        @Override
+        public int compareTo(QueuedRequest another) {
+            if (rank != another.rank)
+                return rank < another.rank ? -1 : 1;
+            return sequence < another.sequence ? -1 : sequence == another.sequence ? 0 : 1;
+        }
+
+        void reprioritize() {
+            synchronized (info) {
+                if (!info.queue.remove(this))
+                    return;
+                updateRank();
+                info.queue.add(this);
+            }
+        }
+
+        @Override
+        protected void cancelCleanup() {
+            super.cancelCleanup();
+            synchronized (info) {
+                info.queue.remove(this);
+            }
+            data.request.queued = null;
+        }
+    }
+
+    long priorityAging = 1000;
+    public long getPriorityAging() {
+        return priorityAging;
+    }
+
+    /**
+     * Requests waiting on a free connection are sent highest priority first.
+     * Every this many milliseconds a request waits counts as one more priority,
+     * so low priority requests aren't put off forever.
+     */
+    public void setPriorityAging(long priorityAging) {
+        this.priorityAging = priorityAging;
     }
+    Hashtable<Route, ConnectionInfo> connectionInfo = new Hashtable<Route, ConnectionInfo>();
 
     public int getOpenConnectionCount(String scheme, String host, int port) {
-        String key = getConnectionKey(scheme, host, port);
-        ConnectionInfo info = connectionInfo.get(key);
-        if (info == null)
-            return 0;
-        return info.openCount;
+        int ret = 0;
+        synchronized (connectionInfo) {
+            for (Route route: connectionInfo.keySet()) {
+                if (route.isOrigin(scheme, host, port))
+                    ret += connectionInfo.get(route).openCount;
+            }
+        }
+        return ret;
     }
 
-    private ConnectionInfo getConnectionInfo(String scheme, String host, int port) {
-        String key = getConnectionKey(scheme, host, port);
-        ConnectionInfo info = connectionInfo.get(key);
+    private ConnectionInfo getConnectionInfo(Route route) {
+        ConnectionInfo info = connectionInfo.get(route);
         if (info == null) {
             info = new ConnectionInfo();
-            connectionInfo.put(key, info);
+            connectionInfo.put(route, info);
         }
         return info;
     }
 
+    static class CachedAddresses {
+        InetAddress[] addresses;
+        long expires;
+    }
+    Hashtable<String, CachedAddresses> addressCache = new Hashtable<String, CachedAddresses>();
+
+    long addressCacheTimeout = 0;
+    public long getAddressCacheTimeout() {
+        return addressCacheTimeout;
+    }
+
+    /**
+     * How long resolved addresses are reused for new connections, so bursts of
+     * connects and reconnects to a host don't each wait on a lookup.
+     * Addresses are forgotten as soon as connecting to them fails.
+     * Off (0) by default, which leaves caching to the system resolver and
+     * honors its TTLs.
+     */
+    public void setAddressCacheTimeout(long addressCacheTimeout) {
+        this.addressCacheTimeout = addressCacheTimeout;
+        if (addressCacheTimeout <= 0)
+            addressCache.clear();
+    }
+
+    private Future<InetAddress[]> resolve(final String host) {
+        CachedAddresses cached = addressCache.get(host);
+        if (cached != null && cached.expires > System.currentTimeMillis()) {
+            SimpleFuture<InetAddress[]> ret = new SimpleFuture<InetAddress[]>();
+            ret.setComplete(cached.addresses);
+            return ret;
+        }
+
+        return mClient.getServer().getAllByName(host)
+        .then(new TransformFuture<InetAddress[], InetAddress[]>() {
+            @Override
+            protected void transform(InetAddress[] result) throws Exception {
+                if (addressCacheTimeout > 0) {
+                    CachedAddresses cached = new CachedAddresses();
+                    cached.addresses = result;
+                    cached.expires = System.currentTimeMillis() + addressCacheTimeout;
+                    addressCache.put(host, cached);
+                }
+                setComplete(result);
+            }
+        });
+    }
+
+    private ConnectCallback forgetAddressesOnError(final ConnectCallback callback, final String host) {
+        return new ConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                if (ex != null)
+                    addressCache.remove(host);
+                callback.onConnectCompleted(ex, socket);
+            }
+        };
+    }
+
+    boolean pipelining;
+    public boolean getPipelining() {
+        return pipelining;
+    }
+
+    /**
+     * Send GET and HEAD requests on keep-alive connections that are still
+     * waiting on earlier responses. Only connections that have already
+     * completed a keep-alive response are pipelined. If one closes with requests
+     * still queued on it, those requests are retried on connections of their own.
+     */
+    public void setPipelining(boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    int maxPipelineDepth = 4;
+    public int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    /**
+     * The most requests in flight on one pipelined connection.
+     */
+    public void setMaxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth;
+    }
+
+    Hashtable<Route, ArrayList<HttpPipeline>> mPipelines = new Hashtable<Route, ArrayList<HttpPipeline>>();
+
+    private boolean canPipeline(AsyncHttpRequest request) {
+        if (!pipelining || request.noPipelining || request.getBody() != null)
+            return false;
+        if (request.getHeaders().getHeaders().get("Upgrade") != null)
+            return false;
+        String method = request.getMethod();
+        return AsyncHttpGet.METHOD.equals(method) || AsyncHttpHead.METHOD.equals(method);
+    }
+
+    private HttpPipeline joinPipeline(Route route) {
+        ArrayList<HttpPipeline> pipelines = mPipelines.get(route);
+        if (pipelines == null)
+            return null;
+        for (HttpPipeline pipeline: pipelines) {
+            if (!pipeline.broken && pipeline.socket.isOpen() && pipeline.outstanding < maxPipelineDepth) {
+                pipeline.outstanding++;
+                return pipeline;
+            }
+        }
+        return null;
+    }
+
+    private HttpPipeline startPipeline(Route route, AsyncSocket socket) {
+        HttpPipeline pipeline = new HttpPipeline(socket, route);
+        pipeline.outstanding = 1;
+        ArrayList<HttpPipeline> pipelines = mPipelines.get(route);
+        if (pipelines == null) {
+            pipelines = new ArrayList<HttpPipeline>();
+            mPipelines.put(route, pipelines);
+        }
+        pipelines.add(pipeline);
+        return pipeline;
+    }
+
+    private void endPipeline(HttpPipeline pipeline) {
+        ArrayList<HttpPipeline> pipelines = mPipelines.get(pipeline.route);
+        if (pipelines == null)
+            return;
+        pipelines.remove(pipeline);
+        if (pipelines.isEmpty())
+            mPipelines.remove(pipeline.route);
+    }
+
     int maxConnectionCount = Integer.MAX_VALUE;
 
     public int getMaxConnectionCount() {
@@ -135,166 +390,517 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
             return null;
         }
 
-        ConnectionInfo info = getConnectionInfo(uri.getScheme(), uri.getHost(), port);
+        final Route route = getRoute(uri, port, data.request);
+        // proxies are sent the absolute uri, on new and reused sockets alike
+        if (route.getProxyHost() != null)
+            data.request.getHeaders().getHeaders().setStatusLine(data.request.getProxyRequestLine().toString());
+        final boolean canPipeline = canPipeline(data.request);
+        if (canPipeline) {
+            final HttpPipeline pipeline = joinPipeline(route);
+            if (pipeline != null) {
+                data.pipeline = pipeline;
+                data.reused = true;
+                data.state.putBoolean(getClass().getCanonicalName() + ".owned", true);
+                mClient.getServer().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        data.request.logd("Pipelining on keep-alive socket");
+                        data.connectCallback.onConnectCompleted(null, pipeline.socket);
+                    }
+                });
+                return new SimpleCancellable();
+            }
+        }
+
+        ConnectionInfo info = getConnectionInfo(route);
         if (info.openCount >= maxConnectionCount) {
             // wait for a connection queue to free up
-            SimpleCancellable queueCancel = new SimpleCancellable();
-            info.queue.add(data);
-            return queueCancel;
+            QueuedRequest queued = new QueuedRequest();
+            queued.info = info;
+            queued.data = data;
+            queued.enqueued = System.currentTimeMillis();
+            synchronized (info) {
+                queued.sequence = queueSequence++;
+                queued.updateRank();
+                info.queue.add(queued);
+            }
+            data.request.queued = queued;
+            return queued;
         }
 
         info.openCount++;
 
-        final String lookup = computeLookup(uri, port, data.request);
-        
         data.state.putBoolean(getClass().getCanonicalName() + ".owned", true);
 
-        synchronized (this) {
-            final HashSet<AsyncSocket> sockets = mSockets.get(lookup);
-            if (sockets != null) {
-                for (final AsyncSocket socket: sockets) {
-                    if (socket.isOpen()) {
-                        sockets.remove(socket);
-                        socket.setClosedCallback(null);
-                        mClient.getServer().post(new Runnable() {
-                            @Override
-                            public void run() {
-                                data.request.logd("Reusing keep-alive socket");
-                                data.connectCallback.onConnectCompleted(null, socket);
-                            }
-                        });
-                        // just a noop/dummy, as this can't actually be cancelled.
-                        return new SimpleCancellable();
-                    }
+        final AsyncSocket socket = takeIdleSocket(route);
+        if (socket != null) {
+            data.reused = true;
+            if (canPipeline)
+                data.pipeline = startPipeline(route, socket);
+            mClient.getServer().post(new Runnable() {
+                @Override
+                public void run() {
+                    data.request.logd("Reusing keep-alive socket");
+                    data.connectCallback.onConnectCompleted(null, socket);
                 }
-            }
+            });
+            // just a noop/dummy, as this can't actually be cancelled.
+            return new SimpleCancellable();
         }
 
-        if (!connectAllAddresses || proxyHost != null || data.request.getProxyHost() != null) {
-            // just default to connecting to a single address
+        if (data.request.getProxyHost() != null || proxyHost != null) {
             data.request.logd("Connecting socket");
             String unresolvedHost;
             int unresolvedPort;
             if (data.request.getProxyHost() != null) {
                 unresolvedHost = data.request.getProxyHost();
                 unresolvedPort = data.request.getProxyPort();
-                // set the host and port explicitly for proxied connections
-                data.request.getHeaders().getHeaders().setStatusLine(data.request.getProxyRequestLine().toString());
             }
-            else if (proxyHost != null) {
+            else {
                 unresolvedHost = proxyHost;
                 unresolvedPort = proxyPort;
-                // set the host and port explicitly for proxied connections
-                data.request.getHeaders().getHeaders().setStatusLine(data.request.getProxyRequestLine().toString());
-            }
-            else {
-                unresolvedHost = uri.getHost();
-                unresolvedPort = port;
             }
             return mClient.getServer().connectSocket(unresolvedHost, unresolvedPort, wrapCallback(data.connectCallback, uri, port));
         }
 
-        // try to connect to everything...
-        data.request.logv("Resolving domain and connecting to all available addresses");
-        return mClient.getServer().getAllByName(uri.getHost())
+        return connectAddresses(uri, port, data.request, data.connectCallback);
+    }
+
+    // connect to the uri's host, either its first address or, with
+    // connectAllAddresses, whichever of them connects first
+    private Cancellable connectAddresses(final URI uri, final int port, final AsyncHttpRequest request, final ConnectCallback connectCallback) {
+        if (!connectAllAddresses) {
+            // just default to connecting to a single address
+            request.logd("Connecting socket");
+            return resolve(uri.getHost())
+            .then(new TransformFuture<AsyncSocket, InetAddress[]>() {
+                @Override
+                protected void error(Exception e) {
+                    super.error(e);
+                    connectCallback.onConnectCompleted(e, null);
+                }
+
+                @Override
+                protected void transform(InetAddress[] result) throws Exception {
+                    ConnectCallback callback = forgetAddressesOnError(connectCallback, uri.getHost());
+                    // retries of failed connects move on to the next address
+                    InetAddress address = result[request.retryCount % result.length];
+                    setParent(mClient.getServer().connectSocket(new InetSocketAddress(address, port), wrapCallback(callback, uri, port)));
+                }
+            });
+        }
+
+        // race the addresses, starting a new attempt every connectionAttemptDelay ms
+        request.logv("Resolving domain and connecting to all available addresses");
+        return resolve(uri.getHost())
         .then(new TransformFuture<AsyncSocket, InetAddress[]>() {
             Exception lastException;
+            InetAddress[] addresses;
+            int nextAddress;
+            int attempting;
+            ArrayList<Cancellable> attempts = new ArrayList<Cancellable>();
+            Object scheduled;
+
+            Runnable attemptNext = new Runnable() {
+                @Override
+                public void run() {
+                    scheduled = null;
+                    if (isDone() || isCancelled() || nextAddress >= addresses.length)
+                        return;
+                    InetAddress address = addresses[nextAddress++];
+                    attempting++;
+                    if (nextAddress < addresses.length)
+                        scheduled = mClient.getServer().postDelayed(this, connectionAttemptDelay);
+                    attempts.add(mClient.getServer().connectSocket(new InetSocketAddress(address, port), wrapCallback(new ConnectCallback() {
+                        @Override
+                        public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                            attempting--;
+                            if (ex != null) {
+                                lastException = ex;
+                                if (isDone() || isCancelled())
+                                    return;
+                                if (nextAddress < addresses.length) {
+                                    // no need to wait on the delay, go straight to the next address
+                                    stopAttempts();
+                                    run();
+                                }
+                                else if (attempting == 0) {
+                                    addressCache.remove(uri.getHost());
+                                    // through error, so the request hears about it
+                                    error(lastException);
+                                }
+                                return;
+                            }
+
+                            // if the socket is no longer needed, just hang onto it...
+                            if (isDone() || isCancelled()) {
+                                request.logd("Recycling extra socket leftover from cancelled operation");
+                                idleSocket(socket);
+                                recycleSocket(socket, request);
+                                return;
+                            }
+
+                            if (setComplete(null, socket)) {
+                                stopAttempts();
+                                connectCallback.onConnectCompleted(ex, socket);
+                            }
+                        }
+                    }, uri, port)));
+                }
+            };
+
+            private void stopAttempts() {
+                if (scheduled != null)
+                    mClient.getServer().removeAllCallbacks(scheduled);
+                scheduled = null;
+                if (!isDone() && !isCancelled())
+                    return;
+                // attempts that already connected finish their setup and are pooled
+                for (Cancellable attempt: attempts) {
+                    attempt.cancel();
+                }
+                attempts.clear();
+            }
+
+            @Override
+            protected void cancelCleanup() {
+                super.cancelCleanup();
+                stopAttempts();
+            }
 
             @Override
             protected void error(Exception e) {
                 super.error(e);
-                data.connectCallback.onConnectCompleted(e, null);
+                connectCallback.onConnectCompleted(e, null);
             }
 
             @Override
             protected void transform(final InetAddress[] result) throws Exception {
-                Continuation keepTrying = new Continuation(new CompletedCallback() {
+                if (result.length == 0)
+                    throw new Exception("Unable to connect to remote address");
+                addresses = interleaveAddressFamilies(result);
+                attemptNext.run();
+            }
+        });
+    }
+
+    // alternate IPv6 and IPv4, starting with the family the resolver listed first
+    static InetAddress[] interleaveAddressFamilies(InetAddress[] addresses) {
+        ArrayList<InetAddress> first = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> second = new ArrayList<InetAddress>();
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address: addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6)
+                first.add(address);
+            else
+                second.add(address);
+        }
+        InetAddress[] ret = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(first.size(), second.size()); j++) {
+            if (j < first.size())
+                ret[i++] = first.get(j);
+            if (j < second.size())
+                ret[i++] = second.get(j);
+        }
+        return ret;
+    }
+
+    int maxPreconnections = 8;
+    public int getMaxPreconnections() {
+        return maxPreconnections;
+    }
+
+    /**
+     * The most preconnected sockets that may sit in the pool unused, across all routes.
+     * Preconnecting past this opens nothing.
+     */
+    public void setMaxPreconnections(int maxPreconnections) {
+        this.maxPreconnections = maxPreconnections;
+    }
+
+    // preconnected sockets no request has used yet
+    HashSet<AsyncSocket> preconnected = new HashSet<AsyncSocket>();
+    // preconnects still dialing, across all routes
+    int preconnecting;
+    int preconnectCount;
+    int preconnectHitCount;
+
+    /**
+     * The number of sockets opened by preconnect.
+     */
+    public int getPreconnectCount() {
+        return preconnectCount;
+    }
+
+    /**
+     * The number of preconnected sockets that were later used by a request.
+     */
+    public int getPreconnectHitCount() {
+        return preconnectHitCount;
+    }
+
+    private int getUnusedPreconnectCount() {
+        for (Iterator<AsyncSocket> iter = preconnected.iterator(); iter.hasNext();) {
+            // evicted or closed by the peer
+            if (!iter.next().isOpen())
+                iter.remove();
+        }
+        return preconnected.size();
+    }
+
+    /**
+     * Open sockets to the host ahead of time and put them in the keep-alive pool,
+     * until the pool has count sockets for the uri's route. Sockets are ready to use,
+     * so for https they have finished the handshake.
+     * Proxied routes are not preconnected. Preconnected sockets don't negotiate
+     * HTTP/2, so requests that are handed one use HTTP/1.1 on it.
+     * Cancelling the future closes its sockets as they finish connecting.
+     * @return A future for the number of sockets opened.
+     */
+    public Future<Integer> preconnect(final URI uri, int count) {
+        final SimpleFuture<Integer> ret = new SimpleFuture<Integer>();
+        final int port = getSchemePort(uri);
+        if (port == -1 || proxyHost != null) {
+            ret.setComplete(0);
+            return ret;
+        }
+
+        final AsyncHttpRequest request = new AsyncHttpRequest(uri, AsyncHttpGet.METHOD);
+        final Route route = getRoute(uri, port, request);
+        final ConnectionInfo info;
+        final int open;
+        synchronized (this) {
+            info = getConnectionInfo(route);
+            ArrayDeque<IdleSocket> sockets = mSockets.get(route);
+            // sockets still dialing count against both limits, so concurrent
+            // calls don't overshoot them
+            int wanted = Math.min(count, maxIdleConnectionsPerRoute) - (sockets == null ? 0 : sockets.size()) - info.preconnecting;
+            open = Math.max(0, Math.min(wanted, maxPreconnections - getUnusedPreconnectCount() - preconnecting));
+            info.preconnecting += open;
+            preconnecting += open;
+        }
+        if (open == 0) {
+            ret.setComplete(0);
+            return ret;
+        }
+
+        request.logv("Preconnecting " + open + " socket(s)");
+        final ConnectCallback callback = new ConnectCallback() {
+            int remaining = open;
+            int opened;
+            Exception lastException;
+
+            private void onAttemptCompleted(Exception ex, AsyncSocket socket) {
+                synchronized (AsyncSocketMiddleware.this) {
+                    info.preconnecting--;
+                    preconnecting--;
+                    if (ex == null && !ret.isCancelled()) {
+                        preconnectCount++;
+                        preconnected.add(socket);
+                    }
+                }
+                if (ex != null) {
+                    lastException = ex;
+                }
+                else if (ret.isCancelled()) {
+                    socket.close();
+                }
+                else {
+                    opened++;
+                    idleSocket(socket);
+                    recycleSocket(socket, request);
+                }
+                if (--remaining > 0)
+                    return;
+                if (opened == 0 && lastException != null)
+                    ret.setComplete(lastException);
+                else
+                    ret.setComplete(opened);
+            }
+
+            @Override
+            public void onConnectCompleted(Exception ex, final AsyncSocket socket) {
+                if (ex != null) {
+                    onAttemptCompleted(ex, null);
+                    return;
+                }
+                warmUp(socket, new CompletedCallback() {
                     @Override
                     public void onCompleted(Exception ex) {
-                        // if it completed, that means that the connection failed
-                        if (lastException == null)
-                            lastException = new Exception("Unable to connect to remote address");
-                        setComplete(lastException);
+                        if (ex != null)
+                            socket.close();
+                        onAttemptCompleted(ex, socket);
                     }
                 });
-
-                for (final InetAddress address: result) {
-                    keepTrying.add(new ContinuationCallback() {
-                        @Override
-                        public void onContinue(Continuation continuation, final CompletedCallback next) throws Exception {
-                            mClient.getServer().connectSocket(new InetSocketAddress(address, port), wrapCallback(new ConnectCallback() {
-                                @Override
-                                public void onConnectCompleted(Exception ex, AsyncSocket socket) {
-                                    assert !isDone();
-
-                                    // try the next address
-                                    if (ex != null) {
-                                        lastException = ex;
-                                        next.onCompleted(null);
-                                        return;
-                                    }
-
-                                    // if the socket is no longer needed, just hang onto it...
-                                    if (isDone() || isCancelled()) {
-                                        data.request.logd("Recycling extra socket leftover from cancelled operation");
-                                        idleSocket(socket);
-                                        recycleSocket(socket, data.request);
-                                        return;
-                                    }
-
-                                    if (setComplete(null, socket)) {
-                                        data.connectCallback.onConnectCompleted(ex, socket);
-                                    }
-                                }
-                            }, uri, port));
-                        }
-                    });
-                }
-
-                keepTrying.start();
             }
-        });
+        };
+        // every attempt finishes through the callback, cancelled or not,
+        // so the sockets it claimed are given back
+        for (int i = 0; i < open; i++) {
+            connectAddresses(uri, port, request, callback);
+        }
+        return ret;
+    }
+
+    /**
+     * Finish setting up a preconnected socket, so the first request on it
+     * doesn't pay for anything but the request itself.
+     */
+    protected void warmUp(AsyncSocket socket, CompletedCallback callback) {
+        callback.onCompleted(null);
     }
 
     public int getConnectionPoolCount() {
-        int ret = 0;
         synchronized (this) {
-            for (HashSet<AsyncSocket> sockets: mSockets.values()) {
-                ret += sockets.size();
+            return mIdleCount;
+        }
+    }
+
+    // the most recently used live socket for the route, if any
+    private AsyncSocket takeIdleSocket(Route route) {
+        ArrayList<AsyncSocket> stale = new ArrayList<AsyncSocket>();
+        AsyncSocket ret = null;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            ArrayDeque<IdleSocket> sockets = mSockets.get(route);
+            while (sockets != null && !sockets.isEmpty()) {
+                IdleSocket idle = sockets.removeLast();
+                mIdleCount--;
+                idle.socket.setClosedCallback(null);
+                // sockets the peer closed are usually gone already, via the closed callback
+                if (idle.socket.isOpen() && now - idle.idleSince < idleTimeout) {
+                    ret = idle.socket;
+                    if (preconnected.remove(ret))
+                        preconnectHitCount++;
+                    break;
+                }
+                stale.add(idle.socket);
             }
+            if (sockets != null && sockets.isEmpty())
+                mSockets.remove(route);
+        }
+        for (AsyncSocket socket: stale) {
+            socket.close();
         }
         return ret;
     }
 
+    private boolean removeIdleSocket(Route route, AsyncSocket socket) {
+        ArrayDeque<IdleSocket> sockets = mSockets.get(route);
+        if (sockets == null)
+            return false;
+        for (Iterator<IdleSocket> iter = sockets.iterator(); iter.hasNext();) {
+            if (iter.next().socket == socket) {
+                iter.remove();
+                mIdleCount--;
+                if (sockets.isEmpty())
+                    mSockets.remove(route);
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void recycleSocket(final AsyncSocket socket, AsyncHttpRequest request) {
         if (socket == null)
             return;
         URI uri = request.getUri();
         int port = getSchemePort(uri);
-        String lookup = computeLookup(uri, port, request);
+        final Route route = getRoute(uri, port, request);
+        ArrayList<AsyncSocket> evicted = new ArrayList<AsyncSocket>();
+        boolean scheduleEviction;
         // nothing here will block...
         synchronized (this) {
-            HashSet<AsyncSocket> sockets = mSockets.get(lookup);
+            ArrayDeque<IdleSocket> sockets = mSockets.get(route);
             if (sockets == null) {
-                sockets = new HashSet<AsyncSocket>();
-                mSockets.put(lookup, sockets);
+                sockets = new ArrayDeque<IdleSocket>();
+                mSockets.put(route, sockets);
             }
-            final HashSet<AsyncSocket> ss = sockets;
-            sockets.add(socket);
+            IdleSocket idle = new IdleSocket();
+            idle.socket = socket;
+            idle.idleSince = System.currentTimeMillis();
+            sockets.addLast(idle);
+            mIdleCount++;
             // should not get any data after this point...
             // if so, eat it and disconnect.
             socket.setClosedCallback(new CompletedCallback() {
                 @Override
                 public void onCompleted(Exception ex) {
                     synchronized (AsyncSocketMiddleware.this) {
-                        ss.remove(socket);
+                        removeIdleSocket(route, socket);
                     }
                     socket.setClosedCallback(null);
                 }
             });
+
+            while (sockets.size() > maxIdleConnectionsPerRoute) {
+                evicted.add(sockets.removeFirst().socket);
+                mIdleCount--;
+            }
+            while (mIdleCount > maxIdleConnections) {
+                evicted.add(removeOldestIdleSocket());
+            }
+            scheduleEviction = !mEvictionScheduled;
+            mEvictionScheduled = true;
+        }
+        for (AsyncSocket s: evicted) {
+            s.setClosedCallback(null);
+            s.close();
+        }
+        if (scheduleEviction)
+            mClient.getServer().postDelayed(mEvictIdleSockets, idleTimeout);
+    }
+
+    private AsyncSocket removeOldestIdleSocket() {
+        Route oldest = null;
+        long oldestSince = Long.MAX_VALUE;
+        for (Route route: mSockets.keySet()) {
+            IdleSocket idle = mSockets.get(route).peekFirst();
+            if (idle != null && idle.idleSince < oldestSince) {
+                oldest = route;
+                oldestSince = idle.idleSince;
+            }
         }
+        ArrayDeque<IdleSocket> sockets = mSockets.get(oldest);
+        AsyncSocket ret = sockets.removeFirst().socket;
+        mIdleCount--;
+        if (sockets.isEmpty())
+            mSockets.remove(oldest);
+        return ret;
     }
 
+    // a single timer for the whole pool, rescheduled for the next socket to expire
+    boolean mEvictionScheduled;
+    Runnable mEvictIdleSockets = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<AsyncSocket> evicted = new ArrayList<AsyncSocket>();
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            synchronized (AsyncSocketMiddleware.this) {
+                for (Iterator<ArrayDeque<IdleSocket>> iter = mSockets.values().iterator(); iter.hasNext();) {
+                    ArrayDeque<IdleSocket> sockets = iter.next();
+                    while (!sockets.isEmpty() && now - sockets.peekFirst().idleSince >= idleTimeout) {
+                        evicted.add(sockets.removeFirst().socket);
+                        mIdleCount--;
+                    }
+                    if (sockets.isEmpty())
+                        iter.remove();
+                    else
+                        next = Math.min(next, sockets.peekFirst().idleSince + idleTimeout - now);
+                }
+                mEvictionScheduled = next != Long.MAX_VALUE;
+            }
+            for (AsyncSocket socket: evicted) {
+                socket.setClosedCallback(null);
+                socket.close();
+            }
+            if (next != Long.MAX_VALUE)
+                mClient.getServer().postDelayed(this, next);
+        }
+    };
+
     private void idleSocket(final AsyncSocket socket) {
         socket.setEndCallback(null);
         socket.setWriteableCallback(null);
@@ -308,25 +914,81 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         });
     }
 
-    private void nextConnection(URI uri) {
+    private void nextConnection(AsyncHttpRequest request) {
+        URI uri = request.getUri();
         final int port = getSchemePort(uri);
-        ConnectionInfo info = getConnectionInfo(uri.getScheme(), uri.getHost(), port);
+        ConnectionInfo info = getConnectionInfo(getRoute(uri, port, request));
         --info.openCount;
-        while (info.openCount < maxConnectionCount && info.queue.size() > 0) {
-            GetSocketData gsd = info.queue.remove();
-            SimpleCancellable socketCancellable = (SimpleCancellable)gsd.socketCancellable;
-            if (socketCancellable.isCancelled())
+        while (info.openCount < maxConnectionCount) {
+            QueuedRequest queued;
+            synchronized (info) {
+                queued = info.queue.pollFirst();
+            }
+            if (queued == null)
+                break;
+            queued.data.request.queued = null;
+            if (queued.isCancelled())
                 continue;
-            Cancellable connect = getSocket(gsd);
-            socketCancellable.setParent(connect);
+            Cancellable connect = getSocket(queued.data);
+            queued.setParent(connect);
         }
     }
 
+    /**
+     * Take a socket this middleware connected for a request out of its hands, for
+     * another protocol to use, like HTTP/2. The socket is never pooled, but it
+     * counts against the route's connection limit until {@link #releaseSocket(AsyncHttpRequest)}.
+     * @return Whether the middleware held a connection for the request.
+     */
+    public boolean detachSocket(GetSocketData data) {
+        String owned = getClass().getCanonicalName() + ".owned";
+        if (!data.state.getBoolean(owned, false))
+            return false;
+        data.state.remove(owned);
+        return true;
+    }
+
+    /**
+     * A socket taken with {@link #detachSocket(GetSocketData)} was closed.
+     */
+    public void releaseSocket(AsyncHttpRequest request) {
+        nextConnection(request);
+    }
+
     @Override
     public void onRequestComplete(final OnRequestCompleteData data) {
-        if (!data.state.getBoolean(getClass().getCanonicalName() + ".owned", false)) {
+        String owned = getClass().getCanonicalName() + ".owned";
+        if (!data.state.getBoolean(owned, false)) {
             return;
         }
+        data.state.remove(owned);
+
+        if (data.socket == null) {
+            // the connect failed or was abandoned
+            nextConnection(data.request);
+            return;
+        }
+
+        HttpPipeline pipeline = data.pipeline;
+        if (pipeline != null) {
+            pipeline.outstanding--;
+            if (pipeline.outstanding > 0 && !pipeline.broken && data.exception == null
+            && data.socket.isOpen() && HttpUtil.isKeepAlive(data.headers.getHeaders())) {
+                // hand the socket to the next response in line
+                pipeline.onResponseRead();
+                return;
+            }
+            endPipeline(pipeline);
+            if (pipeline.outstanding > 0) {
+                // responses to the queued requests may still arrive, so the socket can't be reused
+                data.request.logv("closing out socket (pipeline broken)");
+                idleSocket(data.socket);
+                data.socket.close();
+                nextConnection(data.request);
+                pipeline.fail();
+                return;
+            }
+        }
 
         try {
             idleSocket(data.socket);
@@ -345,7 +1007,7 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
             recycleSocket(data.socket, data.request);
         }
         finally {
-            nextConnection(data.request.getUri());
+            nextConnection(data.request);
         }
     }
 }
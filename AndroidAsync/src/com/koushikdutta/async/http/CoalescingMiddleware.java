@@ -0,0 +1,440 @@
+package com.koushikdutta.async.http;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.DataEmitterBase;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleCancellable;
+import com.koushikdutta.async.http.callback.HttpConnectCallback;
+import com.koushikdutta.async.http.libcore.RawHeaders;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+
+/**
+ * Attaches concurrent identical GET requests to a single upstream request.
+ * A request is identical if it has the same URI, request headers and proxy.
+ * The upstream response is tee'd to every waiting request as it arrives, so
+ * each of them parses the body as if it had the connection to itself.
+ * Cancelling a waiting request only detaches it; the upstream request is
+ * cancelled once nobody is waiting on it.
+ */
+public class CoalescingMiddleware extends SimpleMiddleware {
+    AsyncHttpClient mClient;
+
+    private CoalescingMiddleware(AsyncHttpClient client) {
+        mClient = client;
+    }
+
+    public static CoalescingMiddleware addCoalescing(AsyncHttpClient client) {
+        for (AsyncHttpClientMiddleware middleware: client.getMiddleware()) {
+            if (middleware instanceof CoalescingMiddleware)
+                return (CoalescingMiddleware)middleware;
+        }
+        CoalescingMiddleware ret = new CoalescingMiddleware(client);
+        client.insertMiddleware(ret);
+        return ret;
+    }
+
+    boolean coalescing = true;
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public boolean getCoalescing() {
+        return coalescing;
+    }
+
+    int maxBuffer = 1024 * 1024;
+    public int getMaxBuffer() {
+        return maxBuffer;
+    }
+
+    /**
+     * Requests can join an exchange that has already started receiving its body,
+     * as long as no more than this many bytes of it have arrived.
+     */
+    public void setMaxBuffer(int maxBuffer) {
+        this.maxBuffer = maxBuffer;
+    }
+
+    int upstreamCount;
+    int coalescedCount;
+    public int getUpstreamCount() {
+        return upstreamCount;
+    }
+    public int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    Hashtable<String, Exchange> exchanges = new Hashtable<String, Exchange>();
+    // the requests this middleware sends itself, which go straight to the network
+    HashSet<AsyncHttpRequest> upstream = new HashSet<AsyncHttpRequest>();
+
+    private static boolean canCoalesce(AsyncHttpRequest request) {
+        if (!AsyncHttpGet.METHOD.equals(request.getMethod()) || request.getBody() != null)
+            return false;
+        return !request.getHeaders().isNoCache();
+    }
+
+    private static String getKey(AsyncHttpRequest request) {
+        return request.getUri() + "\n" + request.getProxyHost() + ":" + request.getProxyPort() + "\n" + request.getHeaders().getHeaders().toHeaderString();
+    }
+
+    @Override
+    public Cancellable getSocket(GetSocketData data) {
+        if (!coalescing || upstream.contains(data.request) || !canCoalesce(data.request))
+            return null;
+
+        String key = getKey(data.request);
+        Exchange exchange = exchanges.get(key);
+        if (exchange != null) {
+            coalescedCount++;
+            data.request.logd("Coalescing with in-flight request");
+            return exchange.add(data);
+        }
+
+        exchange = new Exchange(key, data.request);
+        exchanges.put(key, exchange);
+        Waiter ret = exchange.add(data);
+        exchange.start();
+        return ret;
+    }
+
+    private class Waiter extends SimpleCancellable {
+        Exchange exchange;
+        GetSocketData data;
+
+        @Override
+        protected void cancelCleanup() {
+            super.cancelCleanup();
+            exchange.remove(this);
+        }
+    }
+
+    private class Exchange implements DataCallback, CompletedCallback {
+        String key;
+        AsyncHttpRequest request;
+        Future<AsyncHttpResponse> future;
+
+        // requests waiting on the response headers
+        ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+        ArrayList<CoalescedSocket> sockets = new ArrayList<CoalescedSocket>();
+
+        byte[] head;
+        // everything received so far, for requests that join late
+        ByteBufferList received = new ByteBufferList();
+        boolean joinable = true;
+        boolean ended;
+
+        Exchange(String key, AsyncHttpRequest original) {
+            this.key = key;
+            request = new AsyncHttpRequest(original.getUri(), original.getMethod(), new RawHeaders(original.getHeaders().getHeaders()));
+            request.setTimeout(original.getTimeout());
+            request.setConnectTimeout(original.getConnectTimeout());
+            request.setHandshakeTimeout(original.getHandshakeTimeout());
+            request.setHeaderTimeout(original.getHeaderTimeout());
+            request.setReadTimeout(original.getReadTimeout());
+            request.setPriority(original.getPriority());
+            request.setFollowRedirect(original.getFollowRedirect());
+            request.setLogging(original.getLogTag(), original.getLogLevel());
+            request.proxyHost = original.proxyHost;
+            request.proxyPort = original.proxyPort;
+        }
+
+        void start() {
+            upstreamCount++;
+            upstream.add(request);
+            future = mClient.execute(request, new HttpConnectCallback() {
+                @Override
+                public void onConnectCompleted(Exception ex, AsyncHttpResponse response) {
+                    if (ex != null) {
+                        finish();
+                        for (Waiter waiter: new ArrayList<Waiter>(waiters)) {
+                            if (waiter.setComplete())
+                                waiter.data.connectCallback.onConnectCompleted(ex, null);
+                        }
+                        waiters.clear();
+                        return;
+                    }
+                    onHeaders(response);
+                }
+            });
+        }
+
+        Waiter add(final GetSocketData data) {
+            final Waiter waiter = new Waiter();
+            waiter.exchange = this;
+            waiter.data = data;
+            if (head == null) {
+                waiters.add(waiter);
+                return waiter;
+            }
+            mClient.getServer().post(new Runnable() {
+                @Override
+                public void run() {
+                    connect(waiter);
+                }
+            });
+            return waiter;
+        }
+
+        void remove(Waiter waiter) {
+            waiters.remove(waiter);
+            abandonIfUnused();
+        }
+
+        void remove(CoalescedSocket socket) {
+            sockets.remove(socket);
+            abandonIfUnused();
+        }
+
+        private void abandonIfUnused() {
+            if (ended || !waiters.isEmpty() || !sockets.isEmpty())
+                return;
+            request.logd("No requests waiting, cancelling coalesced request");
+            finish();
+            if (future != null)
+                future.cancel();
+        }
+
+        private void finish() {
+            ended = true;
+            upstream.remove(request);
+            stopJoining();
+        }
+
+        private void stopJoining() {
+            joinable = false;
+            if (exchanges.get(key) == this)
+                exchanges.remove(key);
+            received.recycle();
+        }
+
+        private void onHeaders(AsyncHttpResponse response) {
+            // the body is passed on decoded, so it is re-framed as chunked
+            RawHeaders headers = new RawHeaders(response.getHeaders().getHeaders());
+            headers.removeAll("Content-Encoding");
+            headers.removeAll("Content-Length");
+            headers.set("Transfer-Encoding", "chunked");
+            head = headers.toHeaderString().getBytes();
+
+            response.setDataCallback(this);
+            response.setEndCallback(this);
+
+            for (Waiter waiter: waiters.toArray(new Waiter[waiters.size()])) {
+                connect(waiter);
+            }
+        }
+
+        private void connect(Waiter waiter) {
+            if (waiter.isCancelled())
+                return;
+            if (!joinable) {
+                // the start of the body is gone, so this one needs a request of its own
+                waiter.data.request.logd("Coalesced response can't be joined anymore, sending request");
+                waiters.remove(waiter);
+                retry(waiter.data);
+                return;
+            }
+            waiter.setComplete();
+            CoalescedSocket socket = new CoalescedSocket(this);
+            socket.pending.add(ByteBuffer.wrap(head));
+            for (ByteBuffer b: received.getAllArray()) {
+                socket.onChunk(copy(b));
+                received.add(b);
+            }
+            // the waiter becomes a socket before the exchange can look unused
+            sockets.add(socket);
+            waiters.remove(waiter);
+            waiter.data.connectCallback.onConnectCompleted(null, socket);
+            socket.deliver();
+        }
+
+        private void retry(GetSocketData data) {
+            // pick up where the middleware chain left off
+            boolean after = false;
+            synchronized (mClient.getMiddleware()) {
+                for (AsyncHttpClientMiddleware middleware: mClient.getMiddleware()) {
+                    Cancellable connect;
+                    if (after && (connect = middleware.getSocket(data)) != null) {
+                        ((SimpleCancellable)data.socketCancellable).setParent(connect);
+                        return;
+                    }
+                    after |= middleware == CoalescingMiddleware.this;
+                }
+            }
+        }
+
+        @Override
+        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+            ByteBuffer data = bb.getAll();
+            if (data.remaining() == 0)
+                return;
+
+            if (joinable) {
+                // too big to hold on to, so later requests go to the network
+                if (received.remaining() + data.remaining() > maxBuffer)
+                    stopJoining();
+                else
+                    received.add(copy(data));
+            }
+            for (CoalescedSocket socket: sockets.toArray(new CoalescedSocket[sockets.size()])) {
+                socket.onChunk(copy(data));
+            }
+            ByteBufferList.reclaim(data);
+        }
+
+        @Override
+        public void onCompleted(Exception ex) {
+            if (ended)
+                return;
+            finish();
+            for (CoalescedSocket socket: sockets.toArray(new CoalescedSocket[sockets.size()])) {
+                socket.onEnd(ex);
+            }
+            sockets.clear();
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer b) {
+        ByteBuffer ret = ByteBufferList.obtain(b.remaining());
+        ret.put(b.duplicate());
+        ret.flip();
+        return ret;
+    }
+
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    /**
+     * A socket that plays back the coalesced response. Anything written to it,
+     * like the request, is dropped.
+     */
+    private class CoalescedSocket extends DataEmitterBase implements AsyncSocket {
+        Exchange exchange;
+        ByteBufferList pending = new ByteBufferList();
+        boolean paused;
+        boolean closed;
+        boolean ended;
+        Exception endException;
+
+        CoalescedSocket(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void onChunk(ByteBuffer b) {
+            if (closed) {
+                ByteBufferList.reclaim(b);
+                return;
+            }
+            pending.add(ByteBuffer.wrap(Integer.toString(b.remaining(), 16).getBytes()));
+            pending.add(ByteBuffer.wrap(CRLF));
+            pending.add(b);
+            pending.add(ByteBuffer.wrap(CRLF));
+            deliver();
+        }
+
+        void onEnd(Exception e) {
+            ended = true;
+            endException = e;
+            if (e == null)
+                pending.add(ByteBuffer.wrap(LAST_CHUNK));
+            deliver();
+        }
+
+        void deliver() {
+            if (paused || closed || getDataCallback() == null)
+                return;
+            if (pending.hasRemaining())
+                Util.emitAllData(this, pending);
+            if (ended && endException != null && !pending.hasRemaining())
+                report(endException);
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+            deliver();
+        }
+
+        @Override
+        public boolean isPaused() {
+            return paused;
+        }
+
+        @Override
+        public void write(ByteBuffer bb) {
+            bb.position(bb.limit());
+        }
+
+        @Override
+        public void write(ByteBufferList bb) {
+            bb.recycle();
+        }
+
+        @Override
+        public void setWriteableCallback(WritableCallback handler) {
+        }
+
+        @Override
+        public WritableCallback getWriteableCallback() {
+            return null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            pending.recycle();
+            exchange.remove(this);
+            if (closedCallback != null)
+                closedCallback.onCompleted(null);
+        }
+
+        CompletedCallback closedCallback;
+        @Override
+        public void setClosedCallback(CompletedCallback handler) {
+            closedCallback = handler;
+        }
+
+        @Override
+        public CompletedCallback getClosedCallback() {
+            return closedCallback;
+        }
+
+        @Override
+        public AsyncServer getServer() {
+            return mClient.getServer();
+        }
+    }
+}
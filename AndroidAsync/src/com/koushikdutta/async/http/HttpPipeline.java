@@ -0,0 +1,80 @@
+package com.koushikdutta.async.http;
+
+import com.koushikdutta.async.ArrayDeque;
+import com.koushikdutta.async.AsyncSocket;
+
+/**
+ * A keep-alive connection with several requests in flight. Requests are written
+ * one after the other, and responses are read in the same order: each response
+ * takes over the socket once the one before it is complete.
+ */
+class HttpPipeline {
+    AsyncSocket socket;
+    Route route;
+    int outstanding;
+    boolean broken;
+
+    private boolean writing;
+    private boolean reading;
+    private ArrayDeque<AsyncHttpResponseImpl> writes = new ArrayDeque<AsyncHttpResponseImpl>();
+    private ArrayDeque<AsyncHttpResponseImpl> reads = new ArrayDeque<AsyncHttpResponseImpl>();
+
+    HttpPipeline(AsyncSocket socket, Route route) {
+        this.socket = socket;
+        this.route = route;
+    }
+
+    void write(AsyncHttpResponseImpl response) {
+        if (broken)
+            return;
+        if (writing) {
+            writes.add(response);
+            return;
+        }
+        writing = true;
+        response.writeRequest();
+    }
+
+    void onRequestWritten() {
+        writing = false;
+        AsyncHttpResponseImpl next = writes.poll();
+        if (next == null)
+            return;
+        writing = true;
+        next.writeRequest();
+    }
+
+    void read(AsyncHttpResponseImpl response) {
+        if (broken) {
+            response.onPipelineFailed();
+            return;
+        }
+        if (reading) {
+            reads.add(response);
+            return;
+        }
+        reading = true;
+        response.readResponse();
+    }
+
+    void onResponseRead() {
+        reading = false;
+        AsyncHttpResponseImpl next = reads.poll();
+        if (next == null)
+            return;
+        reading = true;
+        next.readResponse();
+    }
+
+    /**
+     * The connection can't carry any more responses. Requests that are still
+     * waiting for their turn are handed back to be sent elsewhere.
+     */
+    void fail() {
+        broken = true;
+        writes.clear();
+        while (!reads.isEmpty()) {
+            reads.remove().onPipelineFailed();
+        }
+    }
+}
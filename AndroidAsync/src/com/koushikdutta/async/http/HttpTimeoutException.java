@@ -0,0 +1,43 @@
+package com.koushikdutta.async.http;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request ran out of time. The subclasses say which of the request's
+ * timeouts expired.
+ */
+public class HttpTimeoutException extends TimeoutException {
+    public HttpTimeoutException(String message) {
+        super(message);
+    }
+
+    public static class ConnectTimeoutException extends HttpTimeoutException {
+        public ConnectTimeoutException() {
+            super("timed out connecting");
+        }
+    }
+
+    public static class HandshakeTimeoutException extends HttpTimeoutException {
+        public HandshakeTimeoutException() {
+            super("timed out during the SSL handshake");
+        }
+    }
+
+    public static class HeaderTimeoutException extends HttpTimeoutException {
+        public HeaderTimeoutException() {
+            super("timed out waiting for the response headers");
+        }
+    }
+
+    public static class ReadTimeoutException extends HttpTimeoutException {
+        public ReadTimeoutException() {
+            super("timed out waiting for more of the response body");
+        }
+    }
+
+    public static class TotalTimeoutException extends HttpTimeoutException {
+        public TotalTimeoutException() {
+            super("request did not complete in time");
+        }
+    }
+}
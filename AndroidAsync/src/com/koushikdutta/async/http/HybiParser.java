@@ -38,16 +38,28 @@ import com.koushikdutta.async.callback.DataCallback;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 abstract class HybiParser {
     private static final String TAG = "HybiParser";
 
     private boolean mMasking = true;
-    private boolean mDeflate = false;
+    private boolean mInflate = false;
+    private boolean mInflateReset = false;
+    private Deflater mDeflater;
+    private boolean mDeflateReset = false;
+    private int mDeflateThreshold;
 
     private int     mStage;
 
@@ -67,6 +79,7 @@ abstract class HybiParser {
     private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
     private Inflater mInflater = new Inflater(true);
     private byte[] mInflateBuffer = new byte[4096];
+    private Random mRandom = new Random();
 
     private static final int BYTE   = 255;
     private static final int FIN    = 128;
@@ -113,30 +126,130 @@ abstract class HybiParser {
         return payload;
     }
 
-    private byte[] inflate(byte[] payload) throws DataFormatException {
+    private static final byte[] DEFLATE_TAIL = new byte[] { 0, 0, -1, -1 };
+
+    private byte[] inflate(byte[] payload, boolean last) throws DataFormatException {
         ByteArrayOutputStream inflated = new ByteArrayOutputStream();
 
         mInflater.setInput(payload);
-        while (!mInflater.needsInput()) {
-            int chunkSize = mInflater.inflate(mInflateBuffer);
-            inflated.write(mInflateBuffer, 0, chunkSize);
+        inflateInto(inflated);
+
+        // the sender strips the empty stored block that ends every message
+        if (last) {
+            mInflater.setInput(DEFLATE_TAIL);
+            inflateInto(inflated);
+            // a peer that can't sync flush finishes the stream on every message
+            if (mInflateReset || mInflater.finished())
+                mInflater.reset();
         }
 
-        mInflater.setInput(new byte[] { 0, 0, -1, -1 });
-        while (!mInflater.needsInput()) {
+        return inflated.toByteArray();
+    }
+
+    private void inflateInto(ByteArrayOutputStream inflated) throws DataFormatException {
+        while (!mInflater.needsInput() && !mInflater.finished()) {
             int chunkSize = mInflater.inflate(mInflateBuffer);
             inflated.write(mInflateBuffer, 0, chunkSize);
         }
+    }
 
-        return inflated.toByteArray();
+    // Deflater.deflate(byte[], int, int, int) and SYNC_FLUSH are only available on API 19+
+    private static final int SYNC_FLUSH = 2;
+    private static Method sDeflateFlush;
+    static {
+        try {
+            sDeflateFlush = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        }
+        catch (Exception e) {
+        }
+    }
+
+    // only reclaims the input buffers if they are owned by the parser, see frame()
+    private ByteBufferList deflate(ByteBufferList data, boolean owned) {
+        ByteBuffer out = ByteBufferList.obtain(data.remaining() / 2);
+        while (data.size() > 0) {
+            ByteBuffer b = data.remove();
+            if (b.hasArray()) {
+                mDeflater.setInput(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            }
+            else {
+                byte[] bytes = new byte[b.remaining()];
+                b.get(bytes);
+                mDeflater.setInput(bytes);
+            }
+            while (!mDeflater.needsInput()) {
+                out = ensureSpace(out);
+                out.position(out.position() + mDeflater.deflate(out.array(), out.arrayOffset() + out.position(), out.remaining()));
+            }
+            if (owned)
+                ByteBufferList.reclaim(b);
+        }
+
+        if (sDeflateFlush != null) {
+            try {
+                int written;
+                do {
+                    out = ensureSpace(out);
+                    int space = out.remaining();
+                    written = (Integer)sDeflateFlush.invoke(mDeflater, out.array(), out.arrayOffset() + out.position(), space, SYNC_FLUSH);
+                    out.position(out.position() + written);
+                    if (written < space)
+                        break;
+                }
+                while (true);
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            // strip the empty stored block, the receiver appends it back
+            out.position(out.position() - DEFLATE_TAIL.length);
+            if (mDeflateReset)
+                mDeflater.reset();
+        }
+        else {
+            // no sync flush, so every message gets its own stream, ending in
+            // a BFINAL block. see RFC 7692 7.2.3.3.
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                out = ensureSpace(out);
+                out.position(out.position() + mDeflater.deflate(out.array(), out.arrayOffset() + out.position(), out.remaining()));
+            }
+            mDeflater.reset();
+        }
+
+        out.flip();
+        return new ByteBufferList(out);
+    }
+
+    private static ByteBuffer ensureSpace(ByteBuffer out) {
+        if (out.remaining() >= 64)
+            return out;
+        ByteBuffer bigger = ByteBufferList.obtain(out.capacity() * 2);
+        out.flip();
+        bigger.put(out);
+        ByteBufferList.reclaim(out);
+        return bigger;
     }
 
     public void setMasking(boolean masking) {
         mMasking = masking;
     }
 
-    public void setDeflate(boolean deflate) {
-        mDeflate = deflate;
+    public void setDeflate(PerMessageDeflate deflate, boolean server) {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        mInflate = deflate != null;
+        if (deflate == null)
+            return;
+
+        mInflateReset = server ? deflate.clientNoContextTakeover : deflate.serverNoContextTakeover;
+        if (deflate.canDeflate(server)) {
+            mDeflater = new Deflater(deflate.compressionLevel, true);
+            mDeflateReset = server ? deflate.serverNoContextTakeover : deflate.clientNoContextTakeover;
+            mDeflateThreshold = deflate.threshold;
+        }
     }
 
     DataCallback mStage0 = new DataCallback() {
@@ -191,10 +304,16 @@ abstract class HybiParser {
         @Override
         public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
             assert bb.remaining() == mLength;
-            mPayload = new byte[mLength];
-            bb.get(mPayload);
             try {
-                emitFrame();
+                // uncompressed text is unmasked and decoded in place, without copying it out
+                if (!mDeflated && (mOpcode == OP_TEXT || (mOpcode == OP_CONTINUATION && mMode == MODE_TEXT))) {
+                    emitText(bb);
+                }
+                else {
+                    mPayload = new byte[mLength];
+                    bb.get(mPayload);
+                    emitFrame();
+                }
             }
             catch (IOException e) {
                 report(e);
@@ -236,13 +355,19 @@ abstract class HybiParser {
         boolean rsv2 = (data & RSV2) == RSV2;
         boolean rsv3 = (data & RSV3) == RSV3;
 
-        if ((!mDeflate && rsv1) || rsv2 || rsv3) {
+        if ((!mInflate && rsv1) || rsv2 || rsv3) {
             throw new ProtocolError("RSV not zero");
         }
 
         mFinal   = (data & FIN) == FIN;
         mOpcode  = (data & OPCODE);
-        mDeflated = rsv1;
+        // permessage-deflate only flags the first frame of a message
+        if (mOpcode == OP_TEXT || mOpcode == OP_BINARY) {
+            mDeflated = rsv1;
+        }
+        else if (rsv1) {
+            throw new ProtocolError("RSV1 set on continuation or control frame");
+        }
         mMask    = new byte[0];
         mPayload = new byte[0];
 
@@ -274,88 +399,288 @@ abstract class HybiParser {
         mStage  = mMasked ? 3 : 4;
     }
 
-    public byte[] frame(String data) {
-        return frame(data, OP_TEXT, -1);
-    }
-
-    public byte[] frame(byte[] data) {
-        return frame(data, OP_BINARY, -1);
+    public ByteBufferList frame(String data) {
+        return frame(OP_TEXT, new ByteBufferList(decode(data)), -1, true);
     }
 
-    private byte[] frame(byte[] data, int opcode, int errorCode)  {
-        return frame((Object)data, opcode, errorCode);
+    public ByteBufferList frame(byte[] data) {
+        return frame(OP_BINARY, new ByteBufferList(data), -1, false);
     }
 
-    private byte[] frame(String data, int opcode, int errorCode) {
-        return frame((Object)data, opcode, errorCode);
+    public ByteBufferList frame(ByteBufferList data) {
+        return frame(OP_BINARY, data, -1, false);
     }
 
-    private byte[] frame(Object data, int opcode, int errorCode) {
+    /**
+     * owned is true when the payload buffers were allocated by the parser itself,
+     * and may be returned to the pool once they have been copied. Buffers handed in
+     * by the caller may wrap the caller's own arrays, and are never reclaimed.
+     */
+    private ByteBufferList frame(int opcode, ByteBufferList data, int errorCode, boolean owned) {
         if (mClosed) return null;
 
 //        Log.d(TAG, "Creating frame for: " + data + " op: " + opcode + " err: " + errorCode);
 
-        byte[] buffer = (data instanceof String) ? decode((String) data) : (byte[]) data;
+        boolean deflate = mDeflater != null && (opcode == OP_TEXT || opcode == OP_BINARY) && data.remaining() >= mDeflateThreshold;
+        if (deflate) {
+            data = deflate(data, owned);
+            owned = true;
+        }
+
         int insert = (errorCode > 0) ? 2 : 0;
-        int length = buffer.length + insert;
-        int header = (length <= 125) ? 2 : (length <= 65535 ? 4 : 10);
+        int length = data.remaining() + insert;
+        int header = headerLength(length);
         int offset = header + (mMasking ? 4 : 0);
         int masked = mMasking ? MASK : 0;
-        byte[] frame = new byte[length + offset];
 
-        frame[0] = (byte) ((byte)FIN | (byte)opcode);
+        // unmasked frames only need the header in a pooled buffer, the payload
+        // buffers are sent as is via a gathering write. masked frames need a copy
+        // anyways, so the payload is masked while being copied in after the header.
+        ByteBuffer frame = ByteBufferList.obtain(offset + (mMasking ? length : insert));
 
-        if (length <= 125) {
-            frame[1] = (byte) (masked | length);
-        } else if (length <= 65535) {
-            frame[1] = (byte) (masked | 126);
-            frame[2] = (byte) Math.floor(length / 256);
-            frame[3] = (byte) (length & BYTE);
-        } else {
-            frame[1] = (byte) (masked | 127);
-            frame[2] = (byte) (((int) Math.floor(length / Math.pow(2, 56))) & BYTE);
-            frame[3] = (byte) (((int) Math.floor(length / Math.pow(2, 48))) & BYTE);
-            frame[4] = (byte) (((int) Math.floor(length / Math.pow(2, 40))) & BYTE);
-            frame[5] = (byte) (((int) Math.floor(length / Math.pow(2, 32))) & BYTE);
-            frame[6] = (byte) (((int) Math.floor(length / Math.pow(2, 24))) & BYTE);
-            frame[7] = (byte) (((int) Math.floor(length / Math.pow(2, 16))) & BYTE);
-            frame[8] = (byte) (((int) Math.floor(length / Math.pow(2, 8)))  & BYTE);
-            frame[9] = (byte) (length & BYTE);
+        putHeader(frame, (deflate ? RSV1 : 0) | opcode, masked, length);
+
+        byte[] mask = null;
+        if (mMasking) {
+            mask = new byte[4];
+            mRandom.nextBytes(mask);
+            frame.put(mask);
         }
 
         if (errorCode > 0) {
-            frame[offset] = (byte) (((int) Math.floor(errorCode / 256)) & BYTE);
-            frame[offset+1] = (byte) (errorCode & BYTE);
+            frame.put(maskByte((byte) ((errorCode >> 8) & BYTE), mask, 0));
+            frame.put(maskByte((byte) (errorCode & BYTE), mask, 1));
         }
-        System.arraycopy(buffer, 0, frame, offset + insert, buffer.length);
 
+        ByteBufferList ret = new ByteBufferList();
         if (mMasking) {
-            byte[] mask = {
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256),
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256)
-            };
-            System.arraycopy(mask, 0, frame, header, mask.length);
-            mask(frame, mask, offset);
+            int index = insert;
+            while (data.size() > 0) {
+                ByteBuffer b = data.remove();
+                index = maskInto(b, frame, mask, index);
+                if (owned)
+                    ByteBufferList.reclaim(b);
+            }
+            frame.flip();
+            ret.add(frame);
+        }
+        else {
+            frame.flip();
+            ret.add(frame);
+            data.get(ret);
+        }
+
+        return ret;
+    }
+
+    private static int headerLength(int length) {
+        return (length <= 125) ? 2 : (length <= 65535 ? 4 : 10);
+    }
+
+    private static void putHeader(ByteBuffer frame, int flags, int masked, int length) {
+        frame.put((byte) (FIN | flags));
+
+        if (length <= 125) {
+            frame.put((byte) (masked | length));
+        } else if (length <= 65535) {
+            frame.put((byte) (masked | 126));
+            frame.put((byte) ((length >> 8) & BYTE));
+            frame.put((byte) (length & BYTE));
+        } else {
+            frame.put((byte) (masked | 127));
+            // length is an int, so the upper 4 bytes are always 0
+            frame.put((byte) 0);
+            frame.put((byte) 0);
+            frame.put((byte) 0);
+            frame.put((byte) 0);
+            frame.put((byte) ((length >> 24) & BYTE));
+            frame.put((byte) ((length >> 16) & BYTE));
+            frame.put((byte) ((length >> 8) & BYTE));
+            frame.put((byte) (length & BYTE));
         }
+    }
 
-        return frame;
+    static ByteBuffer frameShared(String data) {
+        return frameShared(OP_TEXT, decode(data));
+    }
+
+    static ByteBuffer frameShared(byte[] data) {
+        return frameShared(OP_BINARY, data);
+    }
+
+    /**
+     * Encode an unmasked and uncompressed frame once, so it can be written to
+     * many server side sockets. Every socket must be handed its own duplicate().
+     */
+    private static ByteBuffer frameShared(int opcode, byte[] data) {
+        int header = headerLength(data.length);
+        ByteBuffer frame = ByteBuffer.wrap(new byte[header + data.length]);
+        putHeader(frame, opcode, 0, data.length);
+        frame.put(data);
+        return ByteBufferList.wrapShared(frame.array());
+    }
+
+    private static byte maskByte(byte b, byte[] mask, int index) {
+        if (mask == null)
+            return b;
+        return (byte) (b ^ mask[index % 4]);
+    }
+
+    private static int maskInto(ByteBuffer src, ByteBuffer dst, byte[] mask, int index) {
+        if (src.hasArray()) {
+            byte[] in = src.array();
+            byte[] out = dst.array();
+            int inOffset = src.arrayOffset() + src.position();
+            int outOffset = dst.arrayOffset() + dst.position();
+            int count = src.remaining();
+            for (int i = 0; i < count; i++) {
+                out[outOffset + i] = (byte) (in[inOffset + i] ^ mask[(index + i) % 4]);
+            }
+            src.position(src.limit());
+            dst.position(dst.position() + count);
+            return index + count;
+        }
+        while (src.hasRemaining()) {
+            dst.put((byte) (src.get() ^ mask[index++ % 4]));
+        }
+        return index;
     }
 
     public void ping(String message) {
-//        send(frame(message, OP_PING, -1));
+        ByteBufferList frame = frame(OP_PING, new ByteBufferList(decode(message)), -1, true);
+        if (frame != null)
+            sendFrame(frame);
+    }
+
+    boolean isClosed() {
+        return mClosed;
     }
 
     public void close(int code, String reason) {
         if (mClosed) return;
-        sendFrame(frame(reason, OP_CLOSE, code));
+        sendFrame(frame(OP_CLOSE, new ByteBufferList(decode(reason)), code, true));
         mClosed = true;
     }
 
+    private void emitText(ByteBufferList bb) throws IOException {
+        if (mOpcode == OP_TEXT)
+            mMode = MODE_TEXT;
+        ByteBuffer[] buffers = bb.getAllArray();
+        int index = 0;
+        for (ByteBuffer b: buffers) {
+            index = unmask(b, mMask, index);
+            decodeText(b, false);
+            ByteBufferList.reclaim(b);
+        }
+        if (mFinal)
+            finishText();
+    }
+
+    private static int unmask(ByteBuffer b, byte[] mask, int index) {
+        if (mask.length == 0)
+            return index;
+        if (b.hasArray()) {
+            byte[] array = b.array();
+            int offset = b.arrayOffset() + b.position();
+            int count = b.remaining();
+            for (int i = 0; i < count; i++) {
+                array[offset + i] ^= mask[(index + i) % 4];
+            }
+            return index + count;
+        }
+        for (int i = b.position(); i < b.limit(); i++) {
+            b.put(i, (byte) (b.get(i) ^ mask[index++ % 4]));
+        }
+        return index;
+    }
+
+    private static final int TEXT_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_TEXT_BUFFER = 64 * 1024;
+    private CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder();
+    private CharBuffer mText = CharBuffer.allocate(TEXT_BUFFER_SIZE);
+    // holds a partial UTF-8 sequence that straddles buffers or fragments
+    private ByteBuffer mTextCarry = ByteBuffer.allocate(4);
+
+    private void decodeText(ByteBuffer in, boolean last) throws ProtocolError {
+        if (mTextCarry.position() > 0) {
+            int carried = mTextCarry.position();
+            int start = in.position();
+            int take = Math.min(in.remaining(), mTextCarry.remaining());
+            for (int i = 0; i < take; i++) {
+                mTextCarry.put(in.get(start + i));
+            }
+            mTextCarry.flip();
+            decodeInto(mTextCarry, last && take == in.remaining());
+            int used = mTextCarry.position() - carried;
+            if (used > 0) {
+                in.position(start + used);
+                mTextCarry.clear();
+            }
+            else {
+                // still not a full character, keep everything
+                in.position(start + take);
+                mTextCarry.position(mTextCarry.limit());
+                mTextCarry.limit(mTextCarry.capacity());
+            }
+        }
+        decodeInto(in, last);
+        if (in.hasRemaining())
+            mTextCarry.put(in);
+    }
+
+    private void decodeInto(ByteBuffer in, boolean last) throws ProtocolError {
+        while (true) {
+            CoderResult result = mDecoder.decode(in, mText, last);
+            if (result.isOverflow()) {
+                CharBuffer bigger = CharBuffer.allocate(mText.capacity() * 2);
+                mText.flip();
+                bigger.put(mText);
+                mText = bigger;
+                continue;
+            }
+            if (result.isError()) {
+                resetText();
+                // RFC 6455 8.1: invalid UTF-8 fails the connection right away
+                close(1007, "Invalid UTF-8");
+                throw new ProtocolError("Invalid UTF-8");
+            }
+            return;
+        }
+    }
+
+    private void finishText() throws ProtocolError {
+        if (mTextCarry.position() > 0) {
+            resetText();
+            close(1007, "Invalid UTF-8");
+            throw new ProtocolError("Invalid UTF-8");
+        }
+        decodeInto(ByteBufferList.EMPTY_BYTEBUFFER, true);
+        while (mDecoder.flush(mText).isOverflow()) {
+            CharBuffer bigger = CharBuffer.allocate(mText.capacity() * 2);
+            mText.flip();
+            bigger.put(mText);
+            mText = bigger;
+        }
+        mText.flip();
+        onMessage(mText);
+        resetText();
+        reset();
+    }
+
+    private void resetText() {
+        mDecoder.reset();
+        mTextCarry.clear();
+        if (mText.capacity() > MAX_RETAINED_TEXT_BUFFER)
+            mText = CharBuffer.allocate(TEXT_BUFFER_SIZE);
+        else
+            mText.clear();
+    }
+
     private void emitFrame() throws IOException {
         byte[] payload = mask(mPayload, mMask, 0);
-        if (mDeflated) {
+        if (mDeflated && FRAGMENTED_OPCODES.contains(mOpcode)) {
             try {
-                payload = inflate(payload);
+                payload = inflate(payload, mFinal);
             } catch (DataFormatException e) {
                 throw new IOException("Invalid deflated data");
             }
@@ -366,25 +691,23 @@ abstract class HybiParser {
             if (mMode == 0) {
                 throw new ProtocolError("Mode was not set.");
             }
+            if (mMode == MODE_TEXT) {
+                decodeText(ByteBuffer.wrap(payload), false);
+                if (mFinal)
+                    finishText();
+                return;
+            }
             mBuffer.write(payload);
             if (mFinal) {
-                byte[] message = mBuffer.toByteArray();
-                if (mMode == MODE_TEXT) {
-                    onMessage(encode(message));
-                } else {
-                    onMessage(message);
-                }
+                onMessage(mBuffer.toByteArray());
                 reset();
             }
 
         } else if (opcode == OP_TEXT) {
-            if (mFinal) {
-                String messageText = encode(payload);
-                onMessage(messageText);
-            } else {
-                mMode = MODE_TEXT;
-                mBuffer.write(payload);
-            }
+            mMode = MODE_TEXT;
+            decodeText(ByteBuffer.wrap(payload), false);
+            if (mFinal)
+                finishText();
 
         } else if (opcode == OP_BINARY) {
             if (mFinal) {
@@ -395,7 +718,7 @@ abstract class HybiParser {
             }
 
         } else if (opcode == OP_CLOSE) {
-            int    code   = (payload.length >= 2) ? 256 * payload[0] + payload[1] : 0;
+            int    code   = (payload.length >= 2) ? 256 * (payload[0] & BYTE) + (payload[1] & BYTE) : 0;
             String reason = (payload.length >  2) ? encode(slice(payload, 2))     : null;
 //            Log.d(TAG, "Got close op! " + code + " " + reason);
             onDisconnect(code, reason);
@@ -403,28 +726,32 @@ abstract class HybiParser {
         } else if (opcode == OP_PING) {
             if (payload.length > 125) { throw new ProtocolError("Ping payload too large"); }
 //            Log.d(TAG, "Sending pong!!");
-            sendFrame(frame(payload, OP_PONG, -1));
+            sendFrame(frame(OP_PONG, new ByteBufferList(payload), -1, true));
 
         } else if (opcode == OP_PONG) {
             String message = encode(payload);
-            // FIXME: Fire callback...
 //            Log.d(TAG, "Got pong! " + message);
+            onPong(message);
         }
     }
     
     protected abstract void onMessage(byte[] payload);
-    protected abstract void onMessage(String payload);
+    /**
+     * payload is only valid for the duration of the call, the buffer is reused.
+     */
+    protected abstract void onMessage(CharSequence payload);
     protected abstract void onDisconnect(int code, String reason);
+    protected abstract void onPong(String payload);
     protected abstract void report(Exception ex);
 
-    protected abstract void sendFrame(byte[] frame);
+    protected abstract void sendFrame(ByteBufferList frame);
 
     private void reset() {
         mMode = 0;
         mBuffer.reset();
     }
 
-    private String encode(byte[] buffer) {
+    private static String encode(byte[] buffer) {
         try {
             return new String(buffer, "UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -432,7 +759,7 @@ abstract class HybiParser {
         }
     }
 
-    private byte[] decode(String string) {
+    static byte[] decode(String string) {
         try {
             return (string).getBytes("UTF-8");
         } catch (UnsupportedEncodingException e) {
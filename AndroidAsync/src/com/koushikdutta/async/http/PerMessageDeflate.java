@@ -0,0 +1,245 @@
+package com.koushikdutta.async.http;
+
+import java.util.Hashtable;
+import java.util.zip.Deflater;
+
+/**
+ * Configuration and negotiation of the permessage-deflate websocket extension (RFC 7692).
+ *
+ * java.util.zip always deflates with a 15 bit window, so the window bits settings only
+ * constrain the peer. If the peer requires a smaller window from us, the extension is
+ * still accepted, but outgoing messages are sent uncompressed.
+ */
+public class PerMessageDeflate {
+    public static final String EXTENSION = "permessage-deflate";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+    static final int MAX_WINDOW_BITS = 15;
+    static final int MIN_WINDOW_BITS = 8;
+
+    boolean clientNoContextTakeover;
+    boolean serverNoContextTakeover;
+    int clientMaxWindowBits = MAX_WINDOW_BITS;
+    int serverMaxWindowBits = MAX_WINDOW_BITS;
+    int threshold = 128;
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    // set on negotiated instances when the respective window bits param was in the offer
+    private boolean offeredClientMaxWindowBits;
+    private boolean offeredServerMaxWindowBits;
+
+    public PerMessageDeflate setClientNoContextTakeover(boolean noContextTakeover) {
+        clientNoContextTakeover = noContextTakeover;
+        return this;
+    }
+
+    public boolean getClientNoContextTakeover() {
+        return clientNoContextTakeover;
+    }
+
+    public PerMessageDeflate setServerNoContextTakeover(boolean noContextTakeover) {
+        serverNoContextTakeover = noContextTakeover;
+        return this;
+    }
+
+    public boolean getServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    /**
+     * The LZ77 window a client may compress with. Only sent by servers, and only
+     * if the client's offer allows it.
+     */
+    public PerMessageDeflate setClientMaxWindowBits(int windowBits) {
+        clientMaxWindowBits = checkWindowBits(windowBits);
+        return this;
+    }
+
+    public int getClientMaxWindowBits() {
+        return clientMaxWindowBits;
+    }
+
+    /**
+     * The LZ77 window a server may compress with. Only sent by clients.
+     */
+    public PerMessageDeflate setServerMaxWindowBits(int windowBits) {
+        serverMaxWindowBits = checkWindowBits(windowBits);
+        return this;
+    }
+
+    public int getServerMaxWindowBits() {
+        return serverMaxWindowBits;
+    }
+
+    /**
+     * Messages smaller than this many bytes are sent uncompressed.
+     */
+    public PerMessageDeflate setThreshold(int threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public PerMessageDeflate setCompressionLevel(int level) {
+        compressionLevel = level;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    private static int checkWindowBits(int windowBits) {
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS)
+            throw new IllegalArgumentException("window bits must be between " + MIN_WINDOW_BITS + " and " + MAX_WINDOW_BITS);
+        return windowBits;
+    }
+
+    private PerMessageDeflate copySettings() {
+        PerMessageDeflate ret = new PerMessageDeflate();
+        ret.threshold = threshold;
+        ret.compressionLevel = compressionLevel;
+        return ret;
+    }
+
+    /**
+     * The Sec-WebSocket-Extensions value a client sends with its upgrade request.
+     */
+    public String getOffer() {
+        StringBuilder builder = new StringBuilder(EXTENSION);
+        if (clientNoContextTakeover)
+            builder.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        if (serverNoContextTakeover)
+            builder.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        if (serverMaxWindowBits < MAX_WINDOW_BITS)
+            builder.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(serverMaxWindowBits);
+        return builder.toString();
+    }
+
+    /**
+     * The Sec-WebSocket-Extensions value a server sends for a negotiated instance.
+     */
+    public String getResponse() {
+        StringBuilder builder = new StringBuilder(EXTENSION);
+        if (clientNoContextTakeover)
+            builder.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        if (serverNoContextTakeover)
+            builder.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        if (offeredServerMaxWindowBits)
+            builder.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(serverMaxWindowBits);
+        if (offeredClientMaxWindowBits && clientMaxWindowBits < MAX_WINDOW_BITS)
+            builder.append("; ").append(CLIENT_MAX_WINDOW_BITS).append('=').append(clientMaxWindowBits);
+        return builder.toString();
+    }
+
+    /**
+     * Whether the local endpoint may compress with the negotiated window.
+     */
+    boolean canDeflate(boolean server) {
+        return (server ? serverMaxWindowBits : clientMaxWindowBits) == MAX_WINDOW_BITS;
+    }
+
+    /**
+     * Server side negotiation. Returns the negotiated parameters for the first acceptable
+     * offer in the client's Sec-WebSocket-Extensions header, or null if there is none.
+     */
+    public PerMessageDeflate negotiate(String extensions) {
+        if (extensions == null)
+            return null;
+        for (String extension: extensions.split(",")) {
+            Hashtable<String, String> params = parseParameters(extension);
+            if (params == null)
+                continue;
+            try {
+                PerMessageDeflate ret = copySettings();
+                ret.clientNoContextTakeover = clientNoContextTakeover || params.remove(CLIENT_NO_CONTEXT_TAKEOVER) != null;
+                ret.serverNoContextTakeover = serverNoContextTakeover || params.remove(SERVER_NO_CONTEXT_TAKEOVER) != null;
+                if (params.containsKey(SERVER_MAX_WINDOW_BITS)) {
+                    ret.offeredServerMaxWindowBits = true;
+                    ret.serverMaxWindowBits = parseWindowBits(params.remove(SERVER_MAX_WINDOW_BITS));
+                }
+                if (params.containsKey(CLIENT_MAX_WINDOW_BITS)) {
+                    ret.offeredClientMaxWindowBits = true;
+                    String value = params.remove(CLIENT_MAX_WINDOW_BITS);
+                    int offered = value.length() == 0 ? MAX_WINDOW_BITS : parseWindowBits(value);
+                    ret.clientMaxWindowBits = Math.min(offered, clientMaxWindowBits);
+                }
+                // unknown parameters decline the offer
+                if (params.size() == 0)
+                    return ret;
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Client side negotiation. Returns the parameters the server accepted in its
+     * Sec-WebSocket-Extensions response header, or null if it did not accept the extension.
+     * Throws if the server responded with parameters that were not part of the offer.
+     */
+    public PerMessageDeflate accept(String extensions) {
+        if (extensions == null)
+            return null;
+        for (String extension: extensions.split(",")) {
+            Hashtable<String, String> params = parseParameters(extension);
+            if (params == null)
+                continue;
+            PerMessageDeflate ret = copySettings();
+            ret.clientNoContextTakeover = params.remove(CLIENT_NO_CONTEXT_TAKEOVER) != null;
+            ret.serverNoContextTakeover = params.remove(SERVER_NO_CONTEXT_TAKEOVER) != null;
+            if (serverNoContextTakeover && !ret.serverNoContextTakeover)
+                throw new IllegalArgumentException("server ignored " + SERVER_NO_CONTEXT_TAKEOVER);
+            if (params.containsKey(SERVER_MAX_WINDOW_BITS)) {
+                ret.serverMaxWindowBits = parseWindowBits(params.remove(SERVER_MAX_WINDOW_BITS));
+                if (ret.serverMaxWindowBits > serverMaxWindowBits)
+                    throw new IllegalArgumentException("server window too large: " + ret.serverMaxWindowBits);
+            }
+            if (params.containsKey(CLIENT_MAX_WINDOW_BITS))
+                ret.clientMaxWindowBits = parseWindowBits(params.remove(CLIENT_MAX_WINDOW_BITS));
+            if (params.size() != 0)
+                throw new IllegalArgumentException("unknown " + EXTENSION + " parameters: " + params.keySet());
+            return ret;
+        }
+        return null;
+    }
+
+    private static int parseWindowBits(String value) {
+        if (value == null)
+            throw new IllegalArgumentException("missing window bits");
+        if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2)
+            value = value.substring(1, value.length() - 1);
+        try {
+            return checkWindowBits(Integer.parseInt(value));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad window bits: " + value);
+        }
+    }
+
+    // returns the lower cased parameters of a permessage-deflate element, or null if the element is something else
+    private static Hashtable<String, String> parseParameters(String extension) {
+        String[] parts = extension.split(";");
+        if (!EXTENSION.equalsIgnoreCase(parts[0].trim()))
+            return null;
+        Hashtable<String, String> ret = new Hashtable<String, String>();
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.length() == 0)
+                continue;
+            int eq = part.indexOf('=');
+            if (eq == -1)
+                ret.put(part.toLowerCase(), "");
+            else
+                ret.put(part.substring(0, eq).trim().toLowerCase(), part.substring(eq + 1).trim());
+        }
+        return ret;
+    }
+}
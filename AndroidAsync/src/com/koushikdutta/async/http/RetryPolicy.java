@@ -0,0 +1,192 @@
+package com.koushikdutta.async.http;
+
+import com.koushikdutta.async.http.libcore.HttpDate;
+import com.koushikdutta.async.http.libcore.ResponseHeaders;
+
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.Random;
+
+/**
+ * Decides when AsyncHttpClient sends a request again. Only idempotent requests
+ * without a body are retried. The defaults retry:
+ * requests that failed on a reused keep-alive socket the server had already closed,
+ * and requests that failed to connect, on the host's next address.
+ * 503 and 429 responses are retried, after Retry-After or an exponential backoff,
+ * only with {@link #setRetryUnavailable(boolean)}.
+ * Retries to each host are limited by a budget, so a failing host doesn't get
+ * a storm of them. Subclass to change any of these.
+ */
+public class RetryPolicy {
+    int maxRetries = 3;
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    boolean retryUnavailable;
+    public boolean getRetryUnavailable() {
+        return retryUnavailable;
+    }
+
+    /**
+     * Whether to send a request again after a 503 or 429 response. Off by default,
+     * since a server answering those is already shedding load.
+     */
+    public void setRetryUnavailable(boolean retryUnavailable) {
+        this.retryUnavailable = retryUnavailable;
+    }
+
+    long baseDelay = 1000;
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * The backoff before the first retry of a 503 or 429 without Retry-After.
+     * It doubles with every retry after that.
+     */
+    public void setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    long maxDelay = 30000;
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * The longest backoff. A Retry-After asking for longer than this
+     * is given to the caller instead.
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    static class Budget {
+        double tokens;
+    }
+    Hashtable<String, Budget> budgets = new Hashtable<String, Budget>();
+
+    int maxRetryTokens = 10;
+    public int getMaxRetryTokens() {
+        return maxRetryTokens;
+    }
+
+    /**
+     * Each host starts with this many retries to spend. Every retry spends one,
+     * and every request sent earns back {@link #getRetryRatio()} of one.
+     */
+    public void setMaxRetryTokens(int maxRetryTokens) {
+        this.maxRetryTokens = maxRetryTokens;
+    }
+
+    double retryRatio = 0.1;
+    public double getRetryRatio() {
+        return retryRatio;
+    }
+
+    /**
+     * Once the budget is spent, retries to a host are limited to this
+     * fraction of the requests sent to it.
+     */
+    public void setRetryRatio(double retryRatio) {
+        this.retryRatio = retryRatio;
+    }
+
+    private Budget getBudget(String host) {
+        Budget budget = budgets.get(host);
+        if (budget == null) {
+            budget = new Budget();
+            budget.tokens = maxRetryTokens;
+            budgets.put(host, budget);
+        }
+        return budget;
+    }
+
+    void onRequest(AsyncHttpRequest request) {
+        if (request.retryCount > 0)
+            return;
+        synchronized (budgets) {
+            Budget budget = getBudget(request.getUri().getHost());
+            budget.tokens = Math.min(maxRetryTokens, budget.tokens + retryRatio);
+        }
+    }
+
+    boolean acquireRetry(AsyncHttpRequest request) {
+        synchronized (budgets) {
+            Budget budget = getBudget(request.getUri().getHost());
+            if (budget.tokens < 1)
+                return false;
+            budget.tokens--;
+            return true;
+        }
+    }
+
+    public boolean isIdempotent(AsyncHttpRequest request) {
+        if (request.getBody() != null)
+            return false;
+        String method = request.getMethod();
+        return AsyncHttpGet.METHOD.equals(method) || AsyncHttpHead.METHOD.equals(method)
+        || "PUT".equals(method) || "DELETE".equals(method) || "OPTIONS".equals(method) || "TRACE".equals(method);
+    }
+
+    /**
+     * Whether to send a request again after it failed to connect.
+     */
+    public boolean shouldRetryConnect(AsyncHttpRequest request, Exception ex, int retryCount) {
+        return retryCount < maxRetries && isIdempotent(request);
+    }
+
+    /**
+     * Whether to send a request again after its connection failed before any
+     * of the response arrived. reused is true if the connection had been used
+     * by earlier requests, so it was likely closed by the server while idle.
+     */
+    public boolean shouldRetryStale(AsyncHttpRequest request, Exception ex, boolean reused, int retryCount) {
+        return reused && retryCount < maxRetries && isIdempotent(request);
+    }
+
+    /**
+     * How long to wait before sending a request again for this response,
+     * or -1 to give the response to the caller.
+     */
+    public long getRetryDelay(AsyncHttpRequest request, ResponseHeaders headers, int retryCount) {
+        if (!retryUnavailable)
+            return -1;
+        int code = headers.getHeaders().getResponseCode();
+        if (code != 503 && code != 429)
+            return -1;
+        if (retryCount >= maxRetries || !isIdempotent(request))
+            return -1;
+
+        long retryAfter = getRetryAfter(headers);
+        if (retryAfter >= 0)
+            return retryAfter <= maxDelay ? retryAfter : -1;
+        // full jitter, so clients that failed together don't retry together
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(retryCount, 30));
+        return (long)(random.nextDouble() * backoff);
+    }
+
+    Random random = new Random();
+
+    // Retry-After is either seconds or an HTTP date
+    static long getRetryAfter(ResponseHeaders headers) {
+        String value = headers.getHeaders().get("Retry-After");
+        if (value == null)
+            return -1;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException e) {
+        }
+        Date date = HttpDate.parse(value);
+        if (date == null)
+            return -1;
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,101 @@
+package com.koushikdutta.async.http;
+
+import android.text.TextUtils;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * The destination of a connection: the origin, the proxy it goes through, and
+ * for TLS connections the SSLContext it was set up with. Routes are immutable
+ * and cache their hash, so they are cheap keys for connection pools.
+ */
+public final class Route {
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final SSLContext sslContext;
+    private final int hash;
+
+    public Route(String scheme, String host, int port) {
+        this(scheme, host, port, null, -1, null);
+    }
+
+    public Route(String scheme, String host, int port, String proxyHost, int proxyPort, SSLContext sslContext) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyHost == null ? -1 : proxyPort;
+        this.sslContext = sslContext;
+
+        int h = scheme == null ? 0 : scheme.hashCode();
+        h = 31 * h + (host == null ? 0 : host.hashCode());
+        h = 31 * h + port;
+        h = 31 * h + (proxyHost == null ? 0 : proxyHost.hashCode());
+        h = 31 * h + this.proxyPort;
+        h = 31 * h + System.identityHashCode(sslContext);
+        hash = h;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getProxyHost() {
+        return proxyHost;
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * Whether this route connects to the given origin, through any proxy.
+     */
+    public boolean isOrigin(String scheme, String host, int port) {
+        return this.port == port && TextUtils.equals(this.host, host) && TextUtils.equals(this.scheme, scheme);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof Route))
+            return false;
+        Route other = (Route)o;
+        return hash == other.hash
+        && port == other.port
+        && proxyPort == other.proxyPort
+        && sslContext == other.sslContext
+        && TextUtils.equals(host, other.host)
+        && TextUtils.equals(scheme, other.scheme)
+        && TextUtils.equals(proxyHost, other.proxyHost);
+    }
+
+    @Override
+    public String toString() {
+        String ret = scheme + "://" + host + ":" + port;
+        if (proxyHost != null)
+            ret += " via " + proxyHost + ":" + proxyPort;
+        return ret;
+    }
+}
@@ -0,0 +1,380 @@
+package com.koushikdutta.async.http;
+
+import android.os.Handler;
+import android.text.TextUtils;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.NullDataCallback;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpClient.FileCallback;
+import com.koushikdutta.async.http.callback.HttpConnectCallback;
+import com.koushikdutta.async.http.libcore.RawHeaders;
+import com.koushikdutta.async.http.libcore.ResponseHeaders;
+import com.koushikdutta.async.stream.FileChannelDataCallback;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Downloads a file over several connections, each fetching a byte range of it
+ * and writing it at its offset. The first range, requested before the length
+ * is known, shows whether the server supports ranges. A connection that
+ * finishes its range takes over the second half of the largest range left,
+ * so a slow connection doesn't hold up the download. Every range must come
+ * with the first response's ETag, so they are all of the same file.
+ */
+class SegmentedDownload {
+    // ranges smaller than twice this aren't split further
+    static final long MIN_SEGMENT = 256 * 1024;
+    static final int MAX_SEGMENT_RETRIES = 3;
+
+    class Segment {
+        long start;
+        long end;
+        long received;
+        int retries;
+        Future<AsyncHttpResponse> request;
+        AsyncHttpResponse response;
+        FileChannelDataCallback sink;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long position() {
+            return start + received;
+        }
+    }
+
+    AsyncHttpClient client;
+    AsyncHttpRequest original;
+    File file;
+    int connections;
+    FileCallback callback;
+    Handler handler;
+    SimpleFuture<File> ret;
+    URI uri;
+    String etag;
+    long length = -1;
+    long downloaded;
+    ArrayList<Segment> segments = new ArrayList<Segment>();
+    int closing;
+    boolean finished;
+
+    SegmentedDownload(AsyncHttpClient client, AsyncHttpRequest original, File file, int connections, FileCallback callback) {
+        this.client = client;
+        this.original = original;
+        this.file = file;
+        this.connections = Math.max(1, connections);
+        this.callback = callback;
+        handler = original.mHandler;
+        uri = original.getUri();
+    }
+
+    Future<File> start() {
+        ret = new SimpleFuture<File>() {
+            @Override
+            protected void cancelCleanup() {
+                client.getServer().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        fail(new CancellationException());
+                    }
+                });
+            }
+        };
+        // the ranges are written into whatever is there
+        file.delete();
+        fetch(new Segment(0, MIN_SEGMENT), true);
+        return ret;
+    }
+
+    private AsyncHttpRequest createRequest(Segment segment) {
+        AsyncHttpRequest request;
+        if (uri.equals(original.getUri())) {
+            request = new AsyncHttpRequest(uri, AsyncHttpGet.METHOD, new RawHeaders(original.getHeaders().getHeaders()));
+        }
+        else {
+            // the redirected location gets only the user agent, as redirects do
+            request = new AsyncHttpRequest(uri, AsyncHttpGet.METHOD);
+            String userAgent = original.getHeaders().getHeaders().get("User-Agent");
+            if (!TextUtils.isEmpty(userAgent))
+                request.getHeaders().getHeaders().set("User-Agent", userAgent);
+        }
+        request.setTimeout(original.getTimeout());
+        request.setConnectTimeout(original.getConnectTimeout());
+        request.setHandshakeTimeout(original.getHandshakeTimeout());
+        request.setHeaderTimeout(original.getHeaderTimeout());
+        request.setReadTimeout(original.getReadTimeout());
+        request.setPriority(original.getPriority());
+        request.setFollowRedirect(original.getFollowRedirect());
+        request.setLogging(original.getLogTag(), original.getLogLevel());
+        request.proxyHost = original.proxyHost;
+        request.proxyPort = original.proxyPort;
+
+        RawHeaders headers = request.getHeaders().getHeaders();
+        // ranges are of the encoded body, not of what's on disk
+        headers.set("Accept-Encoding", "identity");
+        headers.set("Range", "bytes=" + segment.position() + "-" + (segment.end - 1));
+        if (etag != null)
+            headers.set("If-Match", etag);
+        return request;
+    }
+
+    private void fetch(final Segment segment, final boolean probe) {
+        if (!segments.contains(segment))
+            segments.add(segment);
+        segment.request = client.execute(createRequest(segment), new HttpConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, AsyncHttpResponse response) {
+                if (finished) {
+                    if (response != null) {
+                        response.setDataCallback(new NullDataCallback());
+                        response.close();
+                    }
+                    return;
+                }
+                if (ex != null) {
+                    onSegmentFailed(segment, probe, ex);
+                    return;
+                }
+                segment.response = response;
+                if (probe)
+                    onProbe(segment, response);
+                else
+                    onSegment(segment, response);
+            }
+        });
+    }
+
+    private static String getStrongETag(ResponseHeaders headers) {
+        String etag = headers.getEtag();
+        if (etag == null || etag.startsWith("W/"))
+            return null;
+        return etag;
+    }
+
+    private void onProbe(Segment probe, AsyncHttpResponse response) {
+        ResponseHeaders headers = response.getHeaders();
+        client.invokeConnect(callback, response);
+        uri = response.getRequest().getUri();
+        int contentLength = headers.getContentLength();
+        if (headers.getHeaders().getResponseCode() != 206) {
+            // no ranges, so this response is the whole download
+            probe.end = Long.MAX_VALUE;
+            length = contentLength;
+            receive(probe, response);
+            if (contentLength > 0)
+                probe.sink.preallocate(contentLength);
+            return;
+        }
+
+        long[] range = parseContentRange(headers);
+        if (range == null || range[0] != 0) {
+            fail(new Exception("unexpected Content-Range"));
+            return;
+        }
+        length = range[2];
+        probe.end = Math.min(probe.end, length);
+        etag = getStrongETag(headers);
+        receive(probe, response);
+        probe.sink.preallocate(length);
+
+        long rest = length - probe.end;
+        if (rest <= 0)
+            return;
+        // without an ETag there's no telling the ranges are of the same file,
+        // so the rest comes over one connection, as a normal download would
+        if (etag == null || connections == 1) {
+            pending = new Segment(probe.end, length);
+            return;
+        }
+        int count = (int)Math.max(1, Math.min(connections - 1, rest / MIN_SEGMENT));
+        long start = probe.end;
+        for (int i = 0; i < count; i++) {
+            long end = i == count - 1 ? length : start + rest / count;
+            fetch(new Segment(start, end), false);
+            start = end;
+        }
+    }
+
+    // with one connection, the rest of the file waits for the probe to finish
+    Segment pending;
+
+    private void onSegment(Segment segment, AsyncHttpResponse response) {
+        ResponseHeaders headers = response.getHeaders();
+        long[] range = parseContentRange(headers);
+        if (headers.getHeaders().getResponseCode() != 206 || range == null || range[0] != segment.position()
+        || range[2] != length || (etag != null && !etag.equals(headers.getEtag()))) {
+            response.setDataCallback(new NullDataCallback());
+            response.close();
+            fail(new Exception("the file changed during the download"));
+            return;
+        }
+        receive(segment, response);
+    }
+
+    private void receive(final Segment segment, final AsyncHttpResponse response) {
+        if (segment.sink == null)
+            segment.sink = new FileChannelDataCallback(client.getServer(), file, segment.start, false);
+        response.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                long left = segment.end - segment.position();
+                if (bb.remaining() > left) {
+                    // the range was split while in flight
+                    ByteBufferList keep = new ByteBufferList();
+                    bb.get(keep, (int)left);
+                    bb.recycle();
+                    bb = keep;
+                }
+                segment.received += bb.remaining();
+                downloaded += bb.remaining();
+                segment.sink.onDataAvailable(emitter, bb);
+                client.invokeProgress(callback, response, downloaded, length);
+                if (segment.position() == segment.end && segment.end != Long.MAX_VALUE) {
+                    response.setDataCallback(new NullDataCallback());
+                    response.setEndCallback(null);
+                    response.close();
+                    onSegmentComplete(segment);
+                }
+            }
+        });
+        response.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                if (ex != null) {
+                    onSegmentFailed(segment, false, ex);
+                    return;
+                }
+                if (segment.end != Long.MAX_VALUE && segment.position() < segment.end) {
+                    onSegmentFailed(segment, false, new Exception("range ended early"));
+                    return;
+                }
+                onSegmentComplete(segment);
+            }
+        });
+    }
+
+    private void onSegmentFailed(Segment segment, boolean probe, Exception ex) {
+        if (finished)
+            return;
+        // a dropped connection loses only what it hadn't received yet
+        if (!probe && segment.end != Long.MAX_VALUE && segment.retries++ < MAX_SEGMENT_RETRIES) {
+            segment.response = null;
+            fetch(segment, false);
+            return;
+        }
+        fail(ex);
+    }
+
+    private void onSegmentComplete(Segment segment) {
+        if (finished || !segments.remove(segment))
+            return;
+        close(segment);
+
+        Segment next = pending;
+        pending = null;
+        if (next == null)
+            next = split();
+        if (next != null)
+            fetch(next, false);
+        else if (segments.isEmpty())
+            finish(null);
+    }
+
+    // takes the second half of the range with the most left
+    private Segment split() {
+        Segment largest = null;
+        for (Segment segment: segments) {
+            if (largest == null || segment.end - segment.position() > largest.end - largest.position())
+                largest = segment;
+        }
+        if (largest == null || largest.end == Long.MAX_VALUE)
+            return null;
+        long left = largest.end - largest.position();
+        if (left < MIN_SEGMENT * 2)
+            return null;
+        long middle = largest.position() + left / 2;
+        Segment second = new Segment(middle, largest.end);
+        largest.end = middle;
+        return second;
+    }
+
+    private void close(Segment segment) {
+        if (segment.sink == null)
+            return;
+        closing++;
+        segment.sink.close(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                closing--;
+                if (ex != null)
+                    fail(ex);
+                else
+                    finish(null);
+            }
+        });
+        segment.sink = null;
+    }
+
+    private void fail(Exception ex) {
+        if (finished)
+            return;
+        finished = true;
+        for (Segment segment: segments) {
+            if (segment.request != null)
+                segment.request.cancel();
+            if (segment.response != null) {
+                segment.response.setDataCallback(new NullDataCallback());
+                segment.response.setEndCallback(null);
+                segment.response.close();
+            }
+            close(segment);
+        }
+        segments.clear();
+        pending = null;
+        failure = ex;
+        finish(ex);
+    }
+
+    Exception failure;
+
+    // completes once every range is written and its file closed
+    private void finish(Exception ex) {
+        if (!segments.isEmpty() || pending != null || closing > 0)
+            return;
+        if (ex == null)
+            ex = failure;
+        if (ex != null)
+            file.delete();
+        client.invoke(handler, callback, ret, null, ex, ex == null ? file : null);
+    }
+
+    // the first byte, last byte and total length of a Content-Range
+    private static long[] parseContentRange(ResponseHeaders headers) {
+        String range = headers.getHeaders().get("Content-Range");
+        if (range == null || !range.startsWith("bytes "))
+            return null;
+        try {
+            range = range.substring(6).trim();
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            return new long[] {
+                Long.parseLong(range.substring(0, dash).trim()),
+                Long.parseLong(range.substring(dash + 1, slash).trim()),
+                Long.parseLong(range.substring(slash + 1).trim())
+            };
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.koushikdutta.async.http;
 
 import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.util.Histogram;
+
+import java.util.List;
 
 
 public interface WebSocket extends AsyncSocket {
@@ -8,11 +11,48 @@ public interface WebSocket extends AsyncSocket {
         public void onStringAvailable(String s);
     }
 
+    static public interface CharSequenceCallback {
+        /**
+         * s is backed by a reused buffer and is only valid for the duration of the call.
+         */
+        public void onCharSequenceAvailable(CharSequence s);
+    }
+
+    static public interface PongCallback {
+        /**
+         * latency is the round trip time in milliseconds of the ping this pong
+         * answers, or -1 if it was unsolicited.
+         */
+        public void onPongReceived(String s, long latency);
+    }
+
     public void send(byte[] bytes);
     public void send(String string);
+    /**
+     * Send each string as its own text message, with a single gathering write.
+     */
+    public void send(List<String> strings);
     
     public void setStringCallback(StringCallback callback);
     public StringCallback getStringCallback();
+
+    public void setCharSequenceCallback(CharSequenceCallback callback);
+    public CharSequenceCallback getCharSequenceCallback();
+
+    /**
+     * message may be at most 125 bytes once encoded as UTF-8.
+     */
+    public void ping(String message);
+    public void setPongCallback(PongCallback callback);
+    public PongCallback getPongCallback();
+
+    /**
+     * Ping the peer every interval milliseconds, and close the websocket once
+     * maxMissedPongs pings in a row go unanswered. An interval of 0 stops pinging.
+     * May be called from any thread, the change is applied on the server thread.
+     */
+    public void setKeepAlive(long interval, int maxMissedPongs);
+    public Histogram getLatencyHistogram();
     
     public boolean isBuffering();
     
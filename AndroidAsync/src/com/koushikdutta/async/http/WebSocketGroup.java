@@ -0,0 +1,233 @@
+package com.koushikdutta.async.http;
+
+import com.koushikdutta.async.ArrayDeque;
+import com.koushikdutta.async.AsyncServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * A set of server side websockets that messages can be broadcast to.
+ * Each message is framed once, and every member writes the same frame.
+ * Members that have more than the max queue depth buffered are skipped
+ * (or closed, see setCloseSlowMembers) rather than buffering without bound.
+ * Broadcast frames are never compressed.
+ *
+ * Broadcasts may be made from any thread, and go out in the order they
+ * were made. Members are only written to on the server thread.
+ */
+public class WebSocketGroup {
+    AsyncServer mServer;
+    // websockets don't override equals, so this is an identity set
+    final LinkedHashSet<WebSocketImpl> mMembers = new LinkedHashSet<WebSocketImpl>();
+
+    public WebSocketGroup(AsyncServer server) {
+        mServer = server;
+    }
+
+    int mMaxQueueDepth = 256 * 1024;
+    /**
+     * The number of bytes a member may have buffered before messages
+     * to it are dropped.
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        mMaxQueueDepth = maxQueueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    boolean mCloseSlowMembers;
+    /**
+     * Close and remove members that are over the max queue depth, instead of
+     * skipping the message for them.
+     */
+    public void setCloseSlowMembers(boolean closeSlowMembers) {
+        mCloseSlowMembers = closeSlowMembers;
+    }
+
+    public boolean getCloseSlowMembers() {
+        return mCloseSlowMembers;
+    }
+
+    public void add(WebSocket webSocket) {
+        if (!(webSocket instanceof WebSocketImpl) || !((WebSocketImpl)webSocket).canWriteShared())
+            throw new IllegalArgumentException("only server side websockets can join a group");
+        synchronized (mMembers) {
+            mMembers.add((WebSocketImpl)webSocket);
+        }
+    }
+
+    public boolean remove(WebSocket webSocket) {
+        synchronized (mMembers) {
+            return mMembers.remove(webSocket);
+        }
+    }
+
+    public int size() {
+        synchronized (mMembers) {
+            return mMembers.size();
+        }
+    }
+
+    public void broadcast(String string) {
+        broadcast(HybiParser.frameShared(string));
+    }
+
+    public void broadcast(byte[] bytes) {
+        broadcast(HybiParser.frameShared(bytes));
+    }
+
+    // frames waiting for the server thread, in the order they were broadcast
+    final ArrayDeque<ByteBuffer> mPending = new ArrayDeque<ByteBuffer>();
+    boolean mDrainPosted;
+    boolean mDraining;
+
+    private void broadcast(ByteBuffer frame) {
+        synchronized (mPending) {
+            mPending.add(frame);
+            if (mServer.getAffinity() != Thread.currentThread()) {
+                // posts aren't run in order, so a single runnable drains the queue
+                if (!mDrainPosted) {
+                    mDrainPosted = true;
+                    mServer.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            drain();
+                        }
+                    });
+                }
+                return;
+            }
+        }
+        drain();
+    }
+
+    private void drain() {
+        // a broadcast made from a write callback is picked up by the loop below,
+        // so no member sees it ahead of the frame being written
+        if (mDraining)
+            return;
+        mDraining = true;
+        try {
+            while (true) {
+                ByteBuffer frame;
+                synchronized (mPending) {
+                    frame = mPending.poll();
+                    if (frame == null) {
+                        mDrainPosted = false;
+                        return;
+                    }
+                }
+                write(frame);
+            }
+        }
+        finally {
+            mDraining = false;
+        }
+    }
+
+    private void write(ByteBuffer frame) {
+        WebSocketImpl[] members;
+        synchronized (mMembers) {
+            members = mMembers.toArray(new WebSocketImpl[mMembers.size()]);
+        }
+
+        ArrayList<WebSocketImpl> gone = null;
+        mBroadcastCount++;
+        for (WebSocketImpl member: members) {
+            if (!member.isOpen()) {
+                if (gone == null)
+                    gone = new ArrayList<WebSocketImpl>();
+                gone.add(member);
+                continue;
+            }
+            if (member.getQueueDepth() > mMaxQueueDepth) {
+                if (mCloseSlowMembers) {
+                    if (gone == null)
+                        gone = new ArrayList<WebSocketImpl>();
+                    gone.add(member);
+                    member.close();
+                    mClosedCount++;
+                }
+                else {
+                    mDroppedCount++;
+                }
+                continue;
+            }
+            if (!member.writeShared(frame)) {
+                if (gone == null)
+                    gone = new ArrayList<WebSocketImpl>();
+                gone.add(member);
+                continue;
+            }
+            mSentCount++;
+        }
+
+        if (gone == null)
+            return;
+        synchronized (mMembers) {
+            for (WebSocketImpl member: gone) {
+                mMembers.remove(member);
+            }
+        }
+    }
+
+    // only written on the server thread, read from anywhere
+    volatile long mBroadcastCount;
+    public long getBroadcastCount() {
+        return mBroadcastCount;
+    }
+
+    volatile long mSentCount;
+    /**
+     * The number of frames written to members.
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    volatile long mDroppedCount;
+    /**
+     * The number of frames skipped because a member was over the max queue depth.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    volatile long mClosedCount;
+    /**
+     * The number of members closed because they were over the max queue depth.
+     */
+    public long getClosedCount() {
+        return mClosedCount;
+    }
+
+    /**
+     * The number of bytes currently buffered, across all members.
+     */
+    public long getQueueDepth() {
+        long ret = 0;
+        synchronized (mMembers) {
+            for (WebSocketImpl member: mMembers) {
+                ret += member.getQueueDepth();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The number of bytes buffered by the member furthest behind.
+     */
+    public int getLargestQueueDepth() {
+        int ret = 0;
+        synchronized (mMembers) {
+            for (WebSocketImpl member: mMembers) {
+                ret = Math.max(ret, member.getQueueDepth());
+            }
+        }
+        return ret;
+    }
+}
@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 import java.security.MessageDigest;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
 
 import android.text.TextUtils;
@@ -20,6 +21,7 @@ import com.koushikdutta.async.callback.WritableCallback;
 import com.koushikdutta.async.http.libcore.RawHeaders;
 import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
 import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.util.Histogram;
 
 public class WebSocketImpl implements WebSocket {
     @Override
@@ -71,7 +73,9 @@ public class WebSocketImpl implements WebSocket {
             pending = null;
     }
 
-    private void setupParser(boolean masking, boolean deflate) {
+    private boolean mMasking;
+    private void setupParser(boolean masking, PerMessageDeflate deflate) {
+        mMasking = masking;
         mParser = new HybiParser(mSocket) {
             @Override
             protected void report(Exception ex) {
@@ -84,9 +88,15 @@ public class WebSocketImpl implements WebSocket {
             }
 
             @Override
-            protected void onMessage(String payload) {
+            protected void onMessage(CharSequence payload) {
+                if (WebSocketImpl.this.mCharSequenceCallback != null)
+                    WebSocketImpl.this.mCharSequenceCallback.onCharSequenceAvailable(payload);
                 if (WebSocketImpl.this.mStringCallback != null)
-                    WebSocketImpl.this.mStringCallback.onStringAvailable(payload);
+                    WebSocketImpl.this.mStringCallback.onStringAvailable(payload.toString());
+            }
+            @Override
+            protected void onPong(String payload) {
+                WebSocketImpl.this.onPong(payload);
             }
             @Override
             protected void onDisconnect(int code, String reason) {
@@ -95,12 +105,13 @@ public class WebSocketImpl implements WebSocket {
 //                    WebSocketImpl.this.mClosedCallback.onCompleted(null);
             }
             @Override
-            protected void sendFrame(byte[] frame) {
-                mSink.write(ByteBuffer.wrap(frame));
+            protected void sendFrame(ByteBufferList frame) {
+                WebSocketImpl.this.sendFrame(frame);
             }
         };
         mParser.setMasking(masking);
-        mParser.setDeflate(deflate);
+        // only clients mask
+        mParser.setDeflate(deflate, !masking);
         if (mSocket.isPaused())
             mSocket.resume();
     }
@@ -108,6 +119,10 @@ public class WebSocketImpl implements WebSocket {
     private AsyncSocket mSocket;
     BufferedDataSink mSink;
     public WebSocketImpl(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        this(request, response, null);
+    }
+
+    public WebSocketImpl(AsyncHttpServerRequest request, AsyncHttpServerResponse response, PerMessageDeflate deflate) {
         this(request.getSocket());
         
         String key = request.getHeaders().getHeaders().get("Sec-WebSocket-Key");
@@ -123,19 +138,29 @@ public class WebSocketImpl implements WebSocket {
         // match the protocol (sanity checking and enforcement is done in the caller)
         if (!TextUtils.isEmpty(protocol))
             response.getHeaders().getHeaders().set("Sec-WebSocket-Protocol", protocol);
+        PerMessageDeflate negotiated = null;
+        if (deflate != null)
+            negotiated = deflate.negotiate(request.getHeaders().getHeaders().get("Sec-WebSocket-Extensions"));
+        if (negotiated != null)
+            response.getHeaders().getHeaders().set("Sec-WebSocket-Extensions", negotiated.getResponse());
 //        if (origin != null)
 //            response.getHeaders().getHeaders().set("Access-Control-Allow-Origin", "http://" + origin);
         response.writeHead();
         
-        setupParser(false, false);
+        setupParser(false, negotiated);
     }
     
     public static void addWebSocketUpgradeHeaders(AsyncHttpRequest req, String protocol) {
+        addWebSocketUpgradeHeaders(req, protocol, null);
+    }
+
+    public static void addWebSocketUpgradeHeaders(AsyncHttpRequest req, String protocol, PerMessageDeflate deflate) {
         RawHeaders headers = req.getHeaders().getHeaders();
         final String key = Base64.encodeToString(toByteArray(UUID.randomUUID()),Base64.NO_WRAP);
         headers.set("Sec-WebSocket-Version", "13");
         headers.set("Sec-WebSocket-Key", key);
-        headers.set("Sec-WebSocket-Extensions", "x-webkit-deflate-frame");
+        if (deflate != null)
+            headers.set("Sec-WebSocket-Extensions", deflate.getOffer());
         headers.set("Connection", "Upgrade");
         headers.set("Upgrade", "websocket");
         if (protocol != null)
@@ -151,6 +176,10 @@ public class WebSocketImpl implements WebSocket {
     }
     
     public static WebSocket finishHandshake(RawHeaders requestHeaders, AsyncHttpResponse response) {
+        return finishHandshake(requestHeaders, response, null);
+    }
+
+    public static WebSocket finishHandshake(RawHeaders requestHeaders, AsyncHttpResponse response, PerMessageDeflate deflate) {
         if (response == null)
             return null;
         if (response.getHeaders().getHeaders().getResponseCode() != 101)
@@ -168,19 +197,19 @@ public class WebSocketImpl implements WebSocket {
         String expected = SHA1(concat).trim();
         if (!sha1.equalsIgnoreCase(expected))
             return null;
-        String extensions = requestHeaders.get("Sec-WebSocket-Extensions");
-        boolean deflate = false;
-        if (extensions != null) {
-            if (extensions.equals("x-webkit-deflate-frame"))
-                deflate = true;
-            // is this right? do we want to crap out here? Commenting out
-            // as I suspect this caused a regression.
-//            else
-//                return null;
+        PerMessageDeflate negotiated = null;
+        if (deflate != null && requestHeaders.get("Sec-WebSocket-Extensions") != null) {
+            try {
+                negotiated = deflate.accept(response.getHeaders().getHeaders().get("Sec-WebSocket-Extensions"));
+            }
+            catch (IllegalArgumentException e) {
+                // the server accepted the extension with parameters that were never offered
+                return null;
+            }
         }
 
         WebSocketImpl ret = new WebSocketImpl(response.detachSocket());
-        ret.setupParser(true, deflate);
+        ret.setupParser(true, negotiated);
         return ret;
     }
     
@@ -212,14 +241,165 @@ public class WebSocketImpl implements WebSocket {
         return mExceptionCallback;
     }
 
+    private void sendFrame(ByteBufferList frame) {
+        // frame is null once the parser has sent a close
+        if (frame == null)
+            return;
+        mSink.write(frame);
+    }
+
+    // server side websockets don't mask, so they can share pre-encoded frames
+    boolean canWriteShared() {
+        return !mMasking;
+    }
+
+    // returns false if the socket is closed, or the close frame was already sent
+    boolean writeShared(ByteBuffer frame) {
+        assert !mMasking;
+        if (!isOpen() || mParser.isClosed())
+            return false;
+        mSink.write(new ByteBufferList(frame.duplicate()));
+        return true;
+    }
+
+    int getQueueDepth() {
+        return mSink.remaining();
+    }
+
     @Override
     public void send(byte[] bytes) {
-        mSink.write(ByteBuffer.wrap(mParser.frame(bytes)));
+        sendFrame(mParser.frame(bytes));
     }
 
     @Override
     public void send(String string) {
-        mSink.write(ByteBuffer.wrap(mParser.frame(string)));
+        sendFrame(mParser.frame(string));
+    }
+
+    @Override
+    public void send(List<String> strings) {
+        ByteBufferList frames = new ByteBufferList();
+        for (String string: strings) {
+            ByteBufferList frame = mParser.frame(string);
+            if (frame == null)
+                break;
+            frame.get(frames);
+        }
+        if (frames.hasRemaining())
+            mSink.write(frames);
+    }
+
+    private static class PendingPing {
+        String message;
+        long sent;
+        PendingPing(String message, long sent) {
+            this.message = message;
+            this.sent = sent;
+        }
+    }
+    // the peer may answer only the latest of several pings, so keep this bounded
+    private static final int MAX_PENDING_PINGS = 16;
+    // ping may be called from any thread, while pongs arrive on the server
+    // thread. This is the only state the two share, so it has its own lock.
+    private LinkedList<PendingPing> mPendingPings = new LinkedList<PendingPing>();
+    private Histogram mLatency = new Histogram();
+
+    @Override
+    public void ping(String message) {
+        // control frames carry at most 125 bytes, see RFC 6455 5.5
+        if (HybiParser.decode(message).length > 125)
+            throw new IllegalArgumentException("ping payload is over 125 bytes");
+        synchronized (mPendingPings) {
+            if (mPendingPings.size() >= MAX_PENDING_PINGS)
+                mPendingPings.removeFirst();
+            mPendingPings.add(new PendingPing(message, System.currentTimeMillis()));
+        }
+        mParser.ping(message);
+    }
+
+    private void onPong(String message) {
+        mMissedPongs = 0;
+        long latency = -1;
+        synchronized (mPendingPings) {
+            while (mPendingPings.size() > 0) {
+                PendingPing ping = mPendingPings.removeFirst();
+                if (ping.message.equals(message)) {
+                    latency = System.currentTimeMillis() - ping.sent;
+                    break;
+                }
+            }
+        }
+        if (latency >= 0)
+            mLatency.record(latency);
+        if (mPongCallback != null)
+            mPongCallback.onPongReceived(message, latency);
+    }
+
+    private PongCallback mPongCallback;
+    @Override
+    public void setPongCallback(PongCallback callback) {
+        mPongCallback = callback;
+    }
+
+    @Override
+    public PongCallback getPongCallback() {
+        return mPongCallback;
+    }
+
+    @Override
+    public Histogram getLatencyHistogram() {
+        return mLatency;
+    }
+
+    // set from any thread, the rest of the keep alive state is only touched on the server thread
+    private volatile long mKeepAliveInterval;
+    private volatile int mMaxMissedPongs;
+    private int mMissedPongs;
+    private int mKeepAliveCount;
+    private Object mKeepAlive;
+    private Runnable mKeepAliveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mKeepAlive = null;
+            if (!isOpen() || mKeepAliveInterval <= 0)
+                return;
+            if (mMissedPongs >= mMaxMissedPongs) {
+                // the peer is gone, don't wait around for tcp to notice
+                close();
+                return;
+            }
+            mMissedPongs++;
+            ping("keepalive " + mKeepAliveCount++);
+            mKeepAlive = getServer().postDelayed(this, mKeepAliveInterval);
+        }
+    };
+
+    @Override
+    public void setKeepAlive(long interval, int maxMissedPongs) {
+        mKeepAliveInterval = interval;
+        mMaxMissedPongs = maxMissedPongs;
+        if (getServer().getAffinity() != Thread.currentThread()) {
+            // posts may run out of order, so each one applies the latest settings
+            getServer().post(new Runnable() {
+                @Override
+                public void run() {
+                    restartKeepAlive();
+                }
+            });
+            return;
+        }
+        restartKeepAlive();
+    }
+
+    private void restartKeepAlive() {
+        if (mKeepAlive != null) {
+            getServer().removeAllCallbacks(mKeepAlive);
+            mKeepAlive = null;
+        }
+        mMissedPongs = 0;
+        long interval = mKeepAliveInterval;
+        if (interval > 0)
+            mKeepAlive = getServer().postDelayed(mKeepAliveRunnable, interval);
     }
 
     private StringCallback mStringCallback;
@@ -228,6 +408,17 @@ public class WebSocketImpl implements WebSocket {
         mStringCallback = callback;
     }
 
+    private CharSequenceCallback mCharSequenceCallback;
+    @Override
+    public void setCharSequenceCallback(CharSequenceCallback callback) {
+        mCharSequenceCallback = callback;
+    }
+
+    @Override
+    public CharSequenceCallback getCharSequenceCallback() {
+        return mCharSequenceCallback;
+    }
+
     private DataCallback mDataCallback;
     @Override
     public void setDataCallback(DataCallback callback) {
@@ -256,17 +447,17 @@ public class WebSocketImpl implements WebSocket {
 
     @Override
     public void write(ByteBuffer bb) {
-        byte[] buf = new byte[bb.remaining()];
-        bb.get(buf);
-        bb.position(0);
-        bb.limit(0);
-        send(buf);
+        // the caller retains ownership of bb, so copy it into a pooled buffer
+        ByteBuffer dup = ByteBufferList.obtain(bb.remaining());
+        dup.put(bb);
+        dup.flip();
+        write(new ByteBufferList(dup));
     }
 
     @Override
     public void write(ByteBufferList bb) {
-        byte[] buf = bb.getAllByteArray();
-        send(buf);
+        // the payload buffers are handed off to the frame as is, no flattening
+        sendFrame(mParser.frame(bb));
     }
 
     @Override
@@ -1,5 +1,9 @@
 package com.koushikdutta.async.http.body;
 
+import com.koushikdutta.async.DataSink;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 
@@ -23,6 +27,21 @@ public class FilePart extends StreamPart {
         this.file = file;
     }
 
+    // the file's length now, rather than when the part was made
+    @Override
+    public int length() {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE)
+            return -1;
+        return (int)length;
+    }
+
+    @Override
+    public void write(DataSink sink, CompletedCallback callback) {
+        // sent straight from the file where the socket allows it
+        Util.pump(file, sink, callback);
+    }
+
     @Override
     protected InputStream getInputStream() throws IOException {
         return new FileInputStream(file);
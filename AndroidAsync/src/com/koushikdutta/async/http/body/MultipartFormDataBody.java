@@ -16,6 +16,7 @@ import com.koushikdutta.async.http.libcore.RawHeaders;
 import com.koushikdutta.async.http.server.BoundaryEmitter;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.UUID;
 
@@ -125,11 +126,11 @@ public class MultipartFormDataBody extends BoundaryEmitter implements AsyncHttpR
     int written;
     @Override
     public void write(AsyncHttpRequest request, final DataSink sink, final CompletedCallback completed) {
-        if (mParts == null) {
-            sink.end();
-            return;
-        }
-        
+        if (partHeaders == null)
+            length();
+        final ArrayList<byte[]> headers = partHeaders;
+        written = 0;
+
         Continuation c = new Continuation(new CompletedCallback() {
             @Override
             public void onCompleted(Exception ex) {
@@ -141,14 +142,16 @@ public class MultipartFormDataBody extends BoundaryEmitter implements AsyncHttpR
             }
         });
 
-        for (final Part part: mParts) {
+        for (int i = 0; i < mParts.size(); i++) {
+            final Part part = mParts.get(i);
+            final byte[] header = headers.get(i);
+            final boolean first = i == 0;
             c.add(new ContinuationCallback() {
                 @Override
                 public void onContinue(Continuation continuation, CompletedCallback next) throws Exception {
-                    part.getRawHeaders().setStatusLine(getBoundaryStart());
-                    byte[] bytes = part.getRawHeaders().toHeaderString().getBytes();
-                    com.koushikdutta.async.Util.writeAll(sink, bytes, next);
-                    written += bytes.length;
+                    ByteBufferList bb = encode(first ? null : CRLF, header);
+                    written += bb.remaining();
+                    com.koushikdutta.async.Util.writeAll(sink, bb, next);
                 }
             })
             .add(new ContinuationCallback() {
@@ -157,29 +160,36 @@ public class MultipartFormDataBody extends BoundaryEmitter implements AsyncHttpR
                     written += part.length();
                     part.write(sink, next);
                 }
-            })
-            .add(new ContinuationCallback() {
-                @Override
-                public void onContinue(Continuation continuation, CompletedCallback next) throws Exception {
-                    byte[] bytes = "\r\n".getBytes();
-                    com.koushikdutta.async.Util.writeAll(sink, bytes, next);
-                    written += bytes.length;
-                }
             });
         }
         c.add(new ContinuationCallback() {
             @Override
             public void onContinue(Continuation continuation, CompletedCallback next) throws Exception {
-                byte[] bytes = (getBoundaryEnd() + "\r\n").getBytes();
-                com.koushikdutta.async.Util.writeAll(sink, bytes, next);
-                written += bytes.length;
-                
-                assert written == totalToWrite;
+                ByteBufferList bb = encode(mParts.isEmpty() ? null : CRLF, (getBoundaryEnd() + "\r\n").getBytes());
+                written += bb.remaining();
+                com.koushikdutta.async.Util.writeAll(sink, bb, next);
+
+                assert totalToWrite == -1 || written == totalToWrite;
             }
         });
         c.start();
     }
 
+    private static final byte[] CRLF = "\r\n".getBytes();
+
+    // the end of the previous part goes out in the same write as what follows it
+    private static ByteBufferList encode(byte[] trailer, byte[] header) {
+        int length = header.length + (trailer == null ? 0 : trailer.length);
+        ByteBuffer b = ByteBufferList.obtain(length);
+        if (trailer != null)
+            b.put(trailer);
+        b.put(header);
+        b.flip();
+        ByteBufferList bb = new ByteBufferList();
+        bb.add(b);
+        return bb;
+    }
+
     @Override
     public String getContentType() {
         if (getBoundary() == null) {
@@ -193,22 +203,36 @@ public class MultipartFormDataBody extends BoundaryEmitter implements AsyncHttpR
         return false;
     }
 
+    // each part's boundary and headers, encoded once by length() for write()
+    ArrayList<byte[]> partHeaders;
     int totalToWrite;
+
+    /**
+     * The exact length of the body, so it can be sent with a Content-Length
+     * rather than chunked. Only if a part's length is unknown, or the body is
+     * too long for an int, is it -1.
+     */
     @Override
     public int length() {
         if (getBoundary() == null) {
             setBoundary("----------------------------" + UUID.randomUUID().toString().replace("-", ""));
         }
 
-        int length = 0;
+        partHeaders = new ArrayList<byte[]>();
+        boolean unknown = false;
+        long length = 0;
         for (final Part part: mParts) {
             part.getRawHeaders().setStatusLine(getBoundaryStart());
-            if (part.length() == -1)
-                return -1;
-            length += part.length() + part.getRawHeaders().toHeaderString().getBytes().length + "\r\n".length();
+            byte[] header = part.getRawHeaders().toHeaderString().getBytes();
+            partHeaders.add(header);
+            if (part.length() < 0)
+                unknown = true;
+            length += header.length + part.length() + CRLF.length;
         }
         length += (getBoundaryEnd() + "\r\n").getBytes().length;
-        return totalToWrite = length;
+        if (unknown || length > Integer.MAX_VALUE)
+            return totalToWrite = -1;
+        return totalToWrite = (int)length;
     }
     
     public MultipartFormDataBody() {
@@ -222,11 +246,10 @@ public class MultipartFormDataBody extends BoundaryEmitter implements AsyncHttpR
         addPart(new StringPart(name, value));
     }
     
-    private ArrayList<Part> mParts;
+    private ArrayList<Part> mParts = new ArrayList<Part>();
     public void addPart(Part part) {
-        if (mParts == null)
-            mParts = new ArrayList<Part>();
         mParts.add(part);
+        partHeaders = null;
     }
 
     @Override
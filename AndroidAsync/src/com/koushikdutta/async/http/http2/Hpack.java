@@ -0,0 +1,281 @@
+package com.koushikdutta.async.http.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK header compression, RFC 7541.
+ * Header names and values are handled as ISO-8859-1, so octets pass through unchanged.
+ */
+class Hpack {
+    static final String[][] STATIC_TABLE = new String[][] {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    static final String CHARSET = "ISO-8859-1";
+
+    static class Decoder {
+        // newest entry first
+        private ArrayList<String[]> dynamicTable = new ArrayList<String[]>();
+        private int dynamicTableSize;
+        private int maxDynamicTableSize;
+        private int maxAllowedTableSize;
+
+        private byte[] block;
+        private int pos;
+        private int end;
+
+        Decoder(int maxAllowedTableSize) {
+            this.maxAllowedTableSize = maxAllowedTableSize;
+            this.maxDynamicTableSize = maxAllowedTableSize;
+        }
+
+        List<String[]> decode(byte[] block, int offset, int length) throws Exception {
+            this.block = block;
+            pos = offset;
+            end = offset + length;
+            ArrayList<String[]> headers = new ArrayList<String[]>();
+            try {
+                while (pos < end) {
+                    int b = block[pos] & 0xff;
+                    if ((b & 0x80) != 0) {
+                        // indexed header field
+                        int index = readInt(7);
+                        if (index == 0)
+                            throw new Exception("invalid header index 0");
+                        headers.add(get(index));
+                    }
+                    else if ((b & 0x40) != 0) {
+                        // literal with incremental indexing
+                        String[] header = readLiteral(6);
+                        headers.add(header);
+                        insert(header);
+                    }
+                    else if ((b & 0x20) != 0) {
+                        // dynamic table size update
+                        int size = readInt(5);
+                        if (size > maxAllowedTableSize)
+                            throw new Exception("header table size update exceeds the limit");
+                        maxDynamicTableSize = size;
+                        evict();
+                    }
+                    else {
+                        // literal without indexing, or never indexed
+                        headers.add(readLiteral(4));
+                    }
+                }
+            }
+            finally {
+                this.block = null;
+            }
+            return headers;
+        }
+
+        private String[] get(int index) throws Exception {
+            if (index <= STATIC_TABLE.length)
+                return STATIC_TABLE[index - 1];
+            index -= STATIC_TABLE.length + 1;
+            if (index >= dynamicTable.size())
+                throw new Exception("header index out of range");
+            return dynamicTable.get(index);
+        }
+
+        private String[] readLiteral(int prefix) throws Exception {
+            int index = readInt(prefix);
+            String name;
+            if (index == 0)
+                name = readString();
+            else
+                name = get(index)[0];
+            return new String[] { name, readString() };
+        }
+
+        private void insert(String[] header) {
+            int size = header[0].length() + header[1].length() + 32;
+            if (size > maxDynamicTableSize) {
+                dynamicTable.clear();
+                dynamicTableSize = 0;
+                return;
+            }
+            dynamicTable.add(0, header);
+            dynamicTableSize += size;
+            evict();
+        }
+
+        private void evict() {
+            while (dynamicTableSize > maxDynamicTableSize) {
+                String[] evicted = dynamicTable.remove(dynamicTable.size() - 1);
+                dynamicTableSize -= evicted[0].length() + evicted[1].length() + 32;
+            }
+        }
+
+        private int readByte() throws Exception {
+            if (pos >= end)
+                throw new Exception("truncated header block");
+            return block[pos++] & 0xff;
+        }
+
+        private int readInt(int prefix) throws Exception {
+            int mask = (1 << prefix) - 1;
+            int value = readByte() & mask;
+            if (value < mask)
+                return value;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                if (shift > 21)
+                    throw new Exception("header integer overflow");
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws Exception {
+            if (pos >= end)
+                throw new Exception("truncated header block");
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos)
+                throw new Exception("truncated header block");
+            byte[] bytes;
+            if (huffman) {
+                bytes = Huffman.decode(block, pos, length);
+            }
+            else {
+                bytes = new byte[length];
+                System.arraycopy(block, pos, bytes, 0, length);
+            }
+            pos += length;
+            return new String(bytes, CHARSET);
+        }
+    }
+
+    /**
+     * Encodes without the dynamic table or Huffman coding: exact static table
+     * matches are indexed, and everything else is sent as a literal.
+     */
+    static class Encoder {
+        byte[] encode(List<String[]> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String[] header: headers) {
+                String name = header[0];
+                String value = header[1];
+                int nameIndex = 0;
+                int index = 0;
+                for (int i = 0; i < STATIC_TABLE.length; i++) {
+                    if (!STATIC_TABLE[i][0].equals(name))
+                        continue;
+                    if (nameIndex == 0)
+                        nameIndex = i + 1;
+                    if (STATIC_TABLE[i][1].equals(value)) {
+                        index = i + 1;
+                        break;
+                    }
+                }
+                if (index != 0) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                // credentials are marked as never indexed, so intermediaries don't compress them either
+                boolean sensitive = "authorization".equals(name) || "proxy-authorization".equals(name) || "cookie".equals(name);
+                writeInt(out, sensitive ? 0x10 : 0, 4, nameIndex);
+                if (nameIndex == 0)
+                    writeString(out, name);
+                writeString(out, value);
+            }
+            return out.toByteArray();
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int bits, int prefix, int value) {
+            int mask = (1 << prefix) - 1;
+            if (value < mask) {
+                out.write(bits | value);
+                return;
+            }
+            out.write(bits | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String string) {
+            byte[] bytes;
+            try {
+                bytes = string.getBytes(CHARSET);
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            writeInt(out, 0, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
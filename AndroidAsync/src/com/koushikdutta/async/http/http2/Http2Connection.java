@@ -0,0 +1,604 @@
+package com.koushikdutta.async.http.http2;
+
+import com.koushikdutta.async.ArrayDeque;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.BufferedDataSink;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.http.AsyncHttpRequest;
+import com.koushikdutta.async.http.Route;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * A single HTTP/2 connection, RFC 7540. Requests are multiplexed as streams,
+ * and both the connection and each stream are flow controlled.
+ */
+class Http2Connection {
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_PRIORITY = 0x2;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int HEADER_TABLE_SIZE = 4096;
+
+    // the windows granted to the server; data is acknowledged as it is read
+    static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+    static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    // request bodies stop being framed while this much is waiting on the socket
+    static final int MAX_BUFFERED = 64 * 1024;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+    Http2Middleware middleware;
+    Route route;
+    AsyncSocket socket;
+    // the request the socket was connected for, which holds its place against the route's connection limit
+    AsyncHttpRequest connectRequest;
+    BufferedDataSink sink;
+
+    Hashtable<Integer, Http2Stream> streams = new Hashtable<Integer, Http2Stream>();
+    // streams waiting for the server to allow more concurrent streams
+    ArrayDeque<Http2Stream> waiting = new ArrayDeque<Http2Stream>();
+    int nextStreamId = 1;
+    int activeStreams;
+
+    // the server's settings
+    int maxConcurrentStreams = Integer.MAX_VALUE;
+    int initialWindowSize = DEFAULT_WINDOW_SIZE;
+    int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    long sendWindow = DEFAULT_WINDOW_SIZE;
+
+    int unacknowledged;
+    boolean started;
+    boolean shutdown;
+    boolean closed;
+
+    Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+    Hpack.Encoder encoder = new Hpack.Encoder();
+
+    ByteBufferList input = new ByteBufferList();
+    int frameLength = -1;
+    int frameType;
+    int frameFlags;
+    int frameStreamId;
+
+    // a header block that continues in CONTINUATION frames
+    ByteArrayOutputStream headerBlock;
+    int headerStreamId;
+    boolean headerEndStream;
+
+    Http2Connection(Http2Middleware middleware, Route route, AsyncSocket socket) {
+        this.middleware = middleware;
+        this.route = route;
+        this.socket = socket;
+        sink = new BufferedDataSink(socket);
+        sink.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                onStreamsWritable();
+            }
+        });
+
+        // frames may arrive before the preface is sent, they are read once it is.
+        socket.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                bb.get(input);
+                if (started)
+                    readFrames();
+            }
+        });
+        CompletedCallback closedCallback = new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                close(ex);
+            }
+        };
+        socket.setEndCallback(closedCallback);
+        socket.setClosedCallback(closedCallback);
+    }
+
+    AsyncServer getServer() {
+        return socket.getServer();
+    }
+
+    void start() {
+        started = true;
+
+        ByteBufferList settings = new ByteBufferList();
+        settings.add(setting(SETTINGS_ENABLE_PUSH, 0));
+        settings.add(setting(SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE));
+        sink.write(new ByteBufferList(PREFACE));
+        writeFrame(TYPE_SETTINGS, 0, 0, settings);
+        writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+
+        readFrames();
+    }
+
+    /**
+     * Whether new streams can be started on this connection.
+     */
+    boolean isUsable() {
+        return !closed && !shutdown && nextStreamId > 0;
+    }
+
+    Http2Stream newStream() {
+        activeStreams++;
+        if (idleScheduled != null) {
+            getServer().removeAllCallbacks(idleScheduled);
+            idleScheduled = null;
+        }
+        return new Http2Stream(this);
+    }
+
+    /**
+     * Give the stream an id and send its headers, unless the server's
+     * concurrent stream limit has been reached, in which case the stream waits.
+     */
+    boolean openStream(Http2Stream stream) {
+        if (closed || shutdown || nextStreamId < 0) {
+            stream.onRefused(new Exception("HTTP/2 connection is shutting down"));
+            return false;
+        }
+        if (streams.size() >= maxConcurrentStreams) {
+            waiting.add(stream);
+            return false;
+        }
+        stream.id = nextStreamId;
+        nextStreamId += 2;
+        stream.sendWindow = initialWindowSize;
+        streams.put(stream.id, stream);
+        stream.onOpened();
+        return true;
+    }
+
+    private void openWaitingStreams() {
+        while (!waiting.isEmpty() && streams.size() < maxConcurrentStreams && !closed && !shutdown) {
+            Http2Stream stream = waiting.remove();
+            if (openStream(stream))
+                stream.onWritable();
+        }
+    }
+
+    void removeStream(Http2Stream stream) {
+        if (stream.id != 0)
+            streams.remove(stream.id);
+        else
+            waiting.remove(stream);
+        activeStreams--;
+        openWaitingStreams();
+
+        if (activeStreams > 0 || closed)
+            return;
+        if (shutdown) {
+            close(null);
+            return;
+        }
+        scheduleIdle();
+    }
+
+    Object idleScheduled;
+    private void scheduleIdle() {
+        if (idleScheduled != null)
+            getServer().removeAllCallbacks(idleScheduled);
+        idleScheduled = getServer().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                idleScheduled = null;
+                if (activeStreams > 0 || closed)
+                    return;
+                shutdown = true;
+                middleware.onConnectionShutdown(Http2Connection.this);
+                writeGoAway(NO_ERROR);
+                close(null);
+            }
+        }, middleware.getIdleTimeout());
+    }
+
+    /**
+     * The number of bytes the stream may send right now.
+     */
+    int getSendable(Http2Stream stream) {
+        if (closed || sink.remaining() > MAX_BUFFERED)
+            return 0;
+        long ret = Math.min(Math.min(stream.sendWindow, sendWindow), maxFrameSize);
+        return (int)Math.max(0, ret);
+    }
+
+    void writeData(Http2Stream stream, ByteBufferList data, boolean endStream) {
+        int length = data.remaining();
+        sendWindow -= length;
+        stream.sendWindow -= length;
+        writeFrame(TYPE_DATA, endStream ? FLAG_END_STREAM : 0, stream.id, data);
+    }
+
+    void writeHeaders(Http2Stream stream, List<String[]> headers, boolean endStream) {
+        byte[] block = encoder.encode(headers);
+        int offset = 0;
+        boolean first = true;
+        do {
+            int length = Math.min(maxFrameSize, block.length - offset);
+            int flags = 0;
+            if (offset + length == block.length)
+                flags |= FLAG_END_HEADERS;
+            if (first && endStream)
+                flags |= FLAG_END_STREAM;
+            writeFrame(first ? TYPE_HEADERS : TYPE_CONTINUATION, flags, stream.id, new ByteBufferList(ByteBuffer.wrap(block, offset, length)));
+            offset += length;
+            first = false;
+        }
+        while (offset < block.length);
+    }
+
+    void writeReset(int streamId, int errorCode) {
+        ByteBufferList payload = new ByteBufferList();
+        payload.add(intBuffer(errorCode));
+        writeFrame(TYPE_RST_STREAM, 0, streamId, payload);
+    }
+
+    void writeWindowUpdate(int streamId, int increment) {
+        ByteBufferList payload = new ByteBufferList();
+        payload.add(intBuffer(increment));
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+    private void writeGoAway(int errorCode) {
+        ByteBufferList payload = new ByteBufferList();
+        // no server initiated streams are ever accepted
+        payload.add(intBuffer(0));
+        payload.add(intBuffer(errorCode));
+        writeFrame(TYPE_GOAWAY, 0, 0, payload);
+    }
+
+    /**
+     * Stream data was read, so the connection window can be reopened.
+     */
+    void onDataConsumed(int length) {
+        if (closed)
+            return;
+        unacknowledged += length;
+        if (unacknowledged >= CONNECTION_WINDOW_SIZE / 2) {
+            writeWindowUpdate(0, unacknowledged);
+            unacknowledged = 0;
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, ByteBufferList payload) {
+        if (closed) {
+            if (payload != null)
+                payload.recycle();
+            return;
+        }
+        int length = payload == null ? 0 : payload.remaining();
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put((byte)(length >> 16));
+        header.put((byte)(length >> 8));
+        header.put((byte)length);
+        header.put((byte)type);
+        header.put((byte)flags);
+        header.put(intBytes(streamId));
+        header.flip();
+
+        ByteBufferList frame = new ByteBufferList();
+        frame.add(header);
+        if (payload != null)
+            payload.get(frame);
+        sink.write(frame);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] { (byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value };
+    }
+
+    private static ByteBuffer intBuffer(int value) {
+        return ByteBuffer.wrap(intBytes(value));
+    }
+
+    private static ByteBuffer setting(int id, int value) {
+        ByteBuffer ret = ByteBuffer.allocate(6);
+        ret.put((byte)(id >> 8));
+        ret.put((byte)id);
+        ret.put(intBytes(value));
+        ret.flip();
+        return ret;
+    }
+
+    private void readFrames() {
+        while (!closed) {
+            if (frameLength < 0) {
+                if (input.remaining() < 9)
+                    return;
+                frameLength = ((input.get() & 0xff) << 16) | (input.getShort() & 0xffff);
+                frameType = input.get() & 0xff;
+                frameFlags = input.get() & 0xff;
+                frameStreamId = input.getInt() & 0x7fffffff;
+                if (frameLength > DEFAULT_MAX_FRAME_SIZE) {
+                    fail(FRAME_SIZE_ERROR, new Exception("HTTP/2 frame too large: " + frameLength));
+                    return;
+                }
+            }
+            if (input.remaining() < frameLength)
+                return;
+            int length = frameLength;
+            frameLength = -1;
+            try {
+                readFrame(frameType, frameFlags, frameStreamId, length);
+            }
+            catch (Exception e) {
+                fail(PROTOCOL_ERROR, e);
+                return;
+            }
+        }
+    }
+
+    private void readFrame(int type, int flags, int streamId, int length) throws Exception {
+        if (headerBlock != null && type != TYPE_CONTINUATION)
+            throw new Exception("expected CONTINUATION frame");
+
+        switch (type) {
+            case TYPE_DATA: {
+                int dataLength = length;
+                int padding = 0;
+                if ((flags & FLAG_PADDED) != 0) {
+                    padding = input.get() & 0xff;
+                    dataLength -= 1 + padding;
+                    if (dataLength < 0)
+                        throw new Exception("invalid padding");
+                }
+                ByteBufferList data = new ByteBufferList();
+                input.get(data, dataLength);
+                skip(padding);
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    // the stream was reset, but the data still counts against the connection
+                    onDataConsumed(length);
+                    data.recycle();
+                    return;
+                }
+                // padding is flow controlled too
+                stream.onData(data, length - dataLength, (flags & FLAG_END_STREAM) != 0);
+                return;
+            }
+            case TYPE_HEADERS: {
+                byte[] payload = new byte[length];
+                input.get(payload);
+                int offset = 0;
+                int padding = 0;
+                if ((flags & FLAG_PADDED) != 0) {
+                    padding = payload[0] & 0xff;
+                    offset++;
+                }
+                if ((flags & FLAG_PRIORITY) != 0)
+                    offset += 5;
+                if (offset + padding > length)
+                    throw new Exception("invalid padding");
+                headerBlock = new ByteArrayOutputStream();
+                headerBlock.write(payload, offset, length - offset - padding);
+                headerStreamId = streamId;
+                headerEndStream = (flags & FLAG_END_STREAM) != 0;
+                if ((flags & FLAG_END_HEADERS) != 0)
+                    readHeaders();
+                return;
+            }
+            case TYPE_CONTINUATION: {
+                if (headerBlock == null || streamId != headerStreamId)
+                    throw new Exception("unexpected CONTINUATION frame");
+                byte[] payload = new byte[length];
+                input.get(payload);
+                headerBlock.write(payload, 0, length);
+                if ((flags & FLAG_END_HEADERS) != 0)
+                    readHeaders();
+                return;
+            }
+            case TYPE_RST_STREAM: {
+                int errorCode = input.getInt();
+                skip(length - 4);
+                Http2Stream stream = streams.get(streamId);
+                if (stream != null)
+                    stream.onReset(errorCode);
+                return;
+            }
+            case TYPE_SETTINGS: {
+                if ((flags & FLAG_ACK) != 0) {
+                    skip(length);
+                    return;
+                }
+                if (length % 6 != 0)
+                    throw new Exception("invalid SETTINGS frame");
+                for (int i = 0; i < length; i += 6) {
+                    int id = input.getShort() & 0xffff;
+                    int value = input.getInt();
+                    applySetting(id, value);
+                }
+                writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, null);
+                openWaitingStreams();
+                return;
+            }
+            case TYPE_PUSH_PROMISE:
+                throw new Exception("server push was disabled");
+            case TYPE_PING: {
+                ByteBufferList payload = new ByteBufferList();
+                input.get(payload, length);
+                if ((flags & FLAG_ACK) == 0)
+                    writeFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                else
+                    payload.recycle();
+                return;
+            }
+            case TYPE_GOAWAY: {
+                int lastStreamId = input.getInt() & 0x7fffffff;
+                int errorCode = input.getInt();
+                skip(length - 8);
+                onGoAway(lastStreamId, errorCode);
+                return;
+            }
+            case TYPE_WINDOW_UPDATE: {
+                int increment = input.getInt() & 0x7fffffff;
+                skip(length - 4);
+                if (streamId == 0) {
+                    sendWindow += increment;
+                    if (sendWindow > Integer.MAX_VALUE) {
+                        fail(FLOW_CONTROL_ERROR, new Exception("HTTP/2 connection window overflow"));
+                        return;
+                    }
+                    onStreamsWritable();
+                    return;
+                }
+                Http2Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    stream.onWritable();
+                }
+                return;
+            }
+            default:
+                // PRIORITY, and unknown frames, are ignored
+                skip(length);
+        }
+    }
+
+    private void skip(int length) {
+        if (length <= 0)
+            return;
+        ByteBufferList skipped = new ByteBufferList();
+        input.get(skipped, length);
+        skipped.recycle();
+    }
+
+    private void applySetting(int id, int value) throws Exception {
+        switch (id) {
+            case SETTINGS_MAX_CONCURRENT_STREAMS:
+                maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                break;
+            case SETTINGS_INITIAL_WINDOW_SIZE: {
+                if (value < 0)
+                    throw new Exception("invalid initial window size");
+                int delta = value - initialWindowSize;
+                initialWindowSize = value;
+                for (Http2Stream stream: streams.values()) {
+                    stream.sendWindow += delta;
+                }
+                if (delta > 0)
+                    onStreamsWritable();
+                break;
+            }
+            case SETTINGS_MAX_FRAME_SIZE:
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff)
+                    throw new Exception("invalid max frame size");
+                maxFrameSize = value;
+                break;
+        }
+    }
+
+    private void readHeaders() {
+        byte[] block = headerBlock.toByteArray();
+        headerBlock = null;
+        List<String[]> headers;
+        try {
+            // the block is always decoded, even for streams that are gone, to keep the table in sync
+            headers = decoder.decode(block, 0, block.length);
+        }
+        catch (Exception e) {
+            fail(COMPRESSION_ERROR, e);
+            return;
+        }
+        Http2Stream stream = streams.get(headerStreamId);
+        if (stream != null)
+            stream.onHeaders(headers, headerEndStream);
+    }
+
+    private void onGoAway(int lastStreamId, int errorCode) {
+        shutdown = true;
+        middleware.onConnectionShutdown(this);
+
+        Exception refused = new Exception("HTTP/2 connection shut down by server: " + errorCode);
+        ArrayList<Http2Stream> unprocessed = new ArrayList<Http2Stream>();
+        for (Http2Stream stream: streams.values()) {
+            if (stream.id > lastStreamId)
+                unprocessed.add(stream);
+        }
+        unprocessed.addAll(waiting);
+        for (Http2Stream stream: unprocessed) {
+            stream.onRefused(refused);
+        }
+        if (activeStreams <= 0)
+            close(null);
+    }
+
+    private void onStreamsWritable() {
+        if (closed)
+            return;
+        for (Http2Stream stream: streams.values().toArray(new Http2Stream[streams.size()])) {
+            stream.onWritable();
+        }
+    }
+
+    private void fail(int errorCode, Exception e) {
+        if (closed)
+            return;
+        writeGoAway(errorCode);
+        close(e);
+    }
+
+    void close(Exception e) {
+        if (closed)
+            return;
+        shutdown = true;
+        middleware.onConnectionShutdown(this);
+        if (idleScheduled != null)
+            getServer().removeAllCallbacks(idleScheduled);
+
+        ArrayList<Http2Stream> open = new ArrayList<Http2Stream>(streams.values());
+        open.addAll(waiting);
+        closed = true;
+        middleware.onConnectionClosed(this);
+        streams.clear();
+        waiting.clear();
+        input.recycle();
+
+        if (e == null)
+            e = new Exception("HTTP/2 connection closed");
+        for (Http2Stream stream: open) {
+            stream.onConnectionClosed(e);
+        }
+        // let anything still buffered, like a GOAWAY, go out first
+        sink.close();
+    }
+}
@@ -0,0 +1,367 @@
+package com.koushikdutta.async.http.http2;
+
+import com.koushikdutta.async.AsyncSSLSocketWrapper;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.SimpleCancellable;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpClientMiddleware;
+import com.koushikdutta.async.http.AsyncSocketMiddleware;
+import com.koushikdutta.async.http.Route;
+import com.koushikdutta.async.http.SimpleMiddleware;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+
+/**
+ * Sends requests over HTTP/2 when the server supports it, multiplexing all the
+ * requests to an origin over a single connection. https origins negotiate h2 with
+ * ALPN, and fall back to the HTTP/1.1 middleware when the server or platform
+ * doesn't support it. http origins only use HTTP/2 (h2c) with prior knowledge.
+ * Off by default, see {@link #setEnabled(boolean)}.
+ */
+public class Http2Middleware extends SimpleMiddleware {
+    private static final boolean ALPN_SUPPORTED;
+    static {
+        boolean supported;
+        try {
+            Class.forName("javax.net.ssl.SSLParameters").getMethod("setApplicationProtocols", String[].class);
+            supported = true;
+        }
+        catch (Exception e) {
+            supported = false;
+        }
+        ALPN_SUPPORTED = supported;
+    }
+
+    AsyncHttpClient mClient;
+    public Http2Middleware(AsyncHttpClient client) {
+        mClient = client;
+    }
+
+    boolean enabled;
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Try HTTP/2 for requests to https origins, and to http origins with prior knowledge.
+     * Connections are opened through the socket middleware, so its limits, address
+     * handling and keep-alive pool still apply.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean priorKnowledge;
+    public boolean getPriorKnowledge() {
+        return priorKnowledge;
+    }
+
+    /**
+     * Use HTTP/2 for http origins without negotiating it first.
+     * Only enable this if every http server the client talks to supports h2c.
+     */
+    public void setPriorKnowledge(boolean priorKnowledge) {
+        this.priorKnowledge = priorKnowledge;
+    }
+
+    long idleTimeout = 300000;
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * How long a connection with no requests in flight is kept open.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    Hashtable<Route, Http2Connection> connections = new Hashtable<Route, Http2Connection>();
+    // connections being set up, and the requests waiting on them
+    Hashtable<Route, Connecting> connecting = new Hashtable<Route, Connecting>();
+    // origins that did not negotiate h2
+    HashSet<Route> http1 = new HashSet<Route>();
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    class Connecting {
+        Route route;
+        Cancellable connect;
+        ArrayList<Waiter> waiting = new ArrayList<Waiter>();
+    }
+
+    // a request waiting on a connection, cancelling the last one cancels the connect
+    class Waiter extends SimpleCancellable {
+        Connecting connecting;
+        GetSocketData data;
+
+        @Override
+        protected void cancelCleanup() {
+            super.cancelCleanup();
+            Cancellable connect = null;
+            synchronized (Http2Middleware.this) {
+                if (!connecting.waiting.remove(this) || !connecting.waiting.isEmpty())
+                    return;
+                if (Http2Middleware.this.connecting.get(connecting.route) == connecting)
+                    Http2Middleware.this.connecting.remove(connecting.route);
+                connect = connecting.connect;
+            }
+            if (connect != null)
+                connect.cancel();
+        }
+    }
+
+    private AsyncSocketMiddleware getSocketMiddleware(Route route) {
+        if ("https".equals(route.getScheme()))
+            return mClient.getSSLSocketMiddleware();
+        return mClient.getSocketMiddleware();
+    }
+
+    private Route getRoute(GetSocketData data) {
+        URI uri = data.request.getUri();
+        String scheme = uri.getScheme();
+        AsyncSocketMiddleware socketMiddleware;
+        if ("https".equals(scheme)) {
+            if (!ALPN_SUPPORTED)
+                return null;
+            socketMiddleware = mClient.getSSLSocketMiddleware();
+        }
+        else if ("http".equals(scheme) && priorKnowledge) {
+            socketMiddleware = mClient.getSocketMiddleware();
+        }
+        else {
+            return null;
+        }
+        // proxies and upgrades stay on HTTP/1.1
+        if (data.request.getProxyHost() != null || socketMiddleware.getProxyHost() != null)
+            return null;
+        if (data.request.getHeaders().getHeaders().get("Upgrade") != null)
+            return null;
+        int port = socketMiddleware.getSchemePort(uri);
+        return new Route(scheme, uri.getHost(), port, null, -1, socketMiddleware.getSSLContext());
+    }
+
+    @Override
+    public Cancellable getSocket(final GetSocketData data) {
+        if (!enabled)
+            return null;
+        final Route route = getRoute(data);
+        if (route == null || http1.contains(route))
+            return null;
+
+        final Http2Connection connection = connections.get(route);
+        if (connection != null && connection.isUsable()) {
+            final SimpleCancellable ret = new SimpleCancellable();
+            mClient.getServer().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (ret.isCancelled())
+                        return;
+                    data.request.logd("Using HTTP/2 connection");
+                    data.connectCallback.onConnectCompleted(null, connection.newStream());
+                }
+            });
+            return ret;
+        }
+
+        Waiter waiter = new Waiter();
+        waiter.data = data;
+        synchronized (this) {
+            Connecting pending = connecting.get(route);
+            if (pending != null) {
+                waiter.connecting = pending;
+                pending.waiting.add(waiter);
+                return waiter;
+            }
+            pending = new Connecting();
+            pending.route = route;
+            pending.waiting.add(waiter);
+            connecting.put(route, pending);
+            waiter.connecting = pending;
+        }
+        connect(waiter);
+        return waiter;
+    }
+
+    /**
+     * Get a socket from the socket middleware, as any HTTP/1.1 request would, so
+     * its connection limits, address handling and keep-alive pool all apply.
+     */
+    private void connect(final Waiter waiter) {
+        final GetSocketData data = waiter.data;
+        final Connecting pending = waiter.connecting;
+        final ConnectCallback callback = data.connectCallback;
+        data.request.logd("Connecting HTTP/2 socket");
+        data.connectCallback = new ConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                data.connectCallback = callback;
+                synchronized (Http2Middleware.this) {
+                    pending.connect = null;
+                }
+                if (ex != null) {
+                    onConnectFailed(pending, ex);
+                    return;
+                }
+                if (data.isReused()) {
+                    // a keep-alive socket that already speaks HTTP/1.1
+                    onReused(pending, waiter, socket);
+                    return;
+                }
+                if (!(socket instanceof AsyncSSLSocketWrapper)) {
+                    onConnected(pending, data, socket);
+                    return;
+                }
+                negotiate(pending, data, (AsyncSSLSocketWrapper)socket);
+            }
+        };
+        Cancellable connect = getSocketMiddleware(pending.route).getSocket(data);
+        synchronized (this) {
+            // the connect may have completed already
+            if (data.connectCallback != callback)
+                pending.connect = connect;
+        }
+    }
+
+    private void negotiate(final Connecting pending, final GetSocketData data, final AsyncSSLSocketWrapper wrapper) {
+        if (!wrapper.setApplicationProtocols(new String[] { "h2", "http/1.1" })) {
+            onHttp1(pending, data, wrapper);
+            return;
+        }
+        wrapper.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                wrapper.setWriteableCallback(null);
+                wrapper.setEndCallback(null);
+                wrapper.close();
+                onConnectFailed(pending, ex != null ? ex : new Exception("connection closed during handshake"));
+            }
+        });
+        wrapper.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                if (!wrapper.isHandshakeComplete())
+                    return;
+                wrapper.setWriteableCallback(null);
+                wrapper.setEndCallback(null);
+                if ("h2".equals(wrapper.getApplicationProtocol()))
+                    onConnected(pending, data, wrapper);
+                else
+                    onHttp1(pending, data, wrapper);
+            }
+        });
+        // writing nothing starts the handshake
+        wrapper.write(ByteBufferList.EMPTY_BYTEBUFFER);
+    }
+
+    private ArrayList<Waiter> finish(Connecting pending) {
+        synchronized (this) {
+            if (connecting.get(pending.route) == pending)
+                connecting.remove(pending.route);
+            ArrayList<Waiter> ret = new ArrayList<Waiter>(pending.waiting);
+            pending.waiting.clear();
+            return ret;
+        }
+    }
+
+    private void onConnected(Connecting pending, GetSocketData data, AsyncSocket socket) {
+        final Http2Connection connection = new Http2Connection(this, pending.route, socket);
+        // the connection keeps its place against the route's connection limit until it closes
+        if (getSocketMiddleware(pending.route).detachSocket(data))
+            connection.connectRequest = data.request;
+        connections.put(pending.route, connection);
+        final ArrayList<Waiter> waiting = finish(pending);
+        // this may be in the middle of the handshake, so the preface goes out once it is done
+        mClient.getServer().post(new Runnable() {
+            @Override
+            public void run() {
+                connection.start();
+                for (Waiter waiter: waiting) {
+                    if (waiter.isCancelled())
+                        continue;
+                    waiter.data.request.logd("Using HTTP/2 connection");
+                    waiter.data.connectCallback.onConnectCompleted(null, connection.newStream());
+                }
+            }
+        });
+    }
+
+    private void onConnectFailed(Connecting pending, Exception ex) {
+        for (Waiter waiter: finish(pending)) {
+            waiter.data.connectCallback.onConnectCompleted(ex, null);
+        }
+    }
+
+    /**
+     * The request that connected got a pooled HTTP/1.1 socket, which it uses as is.
+     * The requests waiting on it try again, and connect or take a pooled socket of their own.
+     */
+    private void onReused(Connecting pending, Waiter opener, AsyncSocket socket) {
+        ArrayList<Waiter> waiting = finish(pending);
+        waiting.remove(opener);
+        opener.data.connectCallback.onConnectCompleted(null, socket);
+        for (Waiter waiter: waiting) {
+            if (waiter.isCancelled())
+                continue;
+            Cancellable connect = getSocket(waiter.data);
+            if (connect == null)
+                connect = getHttp1Socket(waiter.data);
+            waiter.setParent(connect);
+        }
+    }
+
+    /**
+     * The server didn't negotiate h2. The request that connected uses the socket
+     * for HTTP/1.1 as it is, and the other waiting requests, and all later ones,
+     * go to the HTTP/1.1 middleware.
+     */
+    private void onHttp1(Connecting pending, GetSocketData data, AsyncSocket socket) {
+        http1.add(pending.route);
+        for (Waiter waiter: finish(pending)) {
+            if (waiter.data == data)
+                data.connectCallback.onConnectCompleted(null, socket);
+            else if (!waiter.isCancelled())
+                waiter.setParent(getHttp1Socket(waiter.data));
+        }
+    }
+
+    private Cancellable getHttp1Socket(GetSocketData data) {
+        boolean after = false;
+        ArrayList<AsyncHttpClientMiddleware> middleware = mClient.getMiddleware();
+        synchronized (middleware) {
+            for (AsyncHttpClientMiddleware m: middleware) {
+                Cancellable connect;
+                if (after && (connect = m.getSocket(data)) != null)
+                    return connect;
+                after |= m == this;
+            }
+        }
+        return null;
+    }
+
+    void onConnectionShutdown(Http2Connection connection) {
+        if (connections.get(connection.route) == connection)
+            connections.remove(connection.route);
+    }
+
+    void onConnectionClosed(Http2Connection connection) {
+        if (connection.connectRequest != null)
+            getSocketMiddleware(connection.route).releaseSocket(connection.connectRequest);
+    }
+
+    @Override
+    public void onRequestComplete(OnRequestCompleteData data) {
+        if (data.socket instanceof Http2Stream)
+            ((Http2Stream)data.socket).complete(data.exception);
+    }
+}
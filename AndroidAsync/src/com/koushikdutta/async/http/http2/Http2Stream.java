@@ -0,0 +1,531 @@
+package com.koushikdutta.async.http.http2;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitterBase;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single request and response on an HTTP/2 connection, presented as a socket
+ * that speaks HTTP/1.1. The request written to it is translated into HEADERS and
+ * DATA frames, and the response frames are translated back into an HTTP/1.1
+ * response, so the rest of the client does not need to know about HTTP/2.
+ */
+class Http2Stream extends DataEmitterBase implements AsyncSocket {
+    Http2Connection connection;
+    int id;
+    long sendWindow;
+
+    boolean closed;
+    boolean finished;
+
+    Http2Stream(Http2Connection connection) {
+        this.connection = connection;
+    }
+
+    private static final int BODY_NONE = 0;
+    private static final int BODY_LENGTH = 1;
+    private static final int BODY_CHUNKED = 2;
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_DATA_END = 2;
+    private static final int CHUNK_TRAILER = 3;
+
+    // the request head, until the blank line that ends it has been written
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int headTail;
+    String method;
+    List<String[]> requestHeaders;
+    int bodyType;
+    long bodyRemaining;
+    int chunkState;
+    long chunkRemaining;
+    boolean chunkExtension;
+    int trailerLineLength;
+    boolean localClosed;
+
+    @Override
+    public void write(ByteBuffer bb) {
+        // buffers written here stay with the caller, so the frames get a copy
+        ByteBuffer copy = ByteBufferList.obtain(bb.remaining());
+        copy.put(bb.duplicate());
+        copy.flip();
+        ByteBufferList list = new ByteBufferList();
+        list.add(copy);
+        int total = list.remaining();
+        write(list);
+        bb.position(bb.position() + total - list.remaining());
+        list.recycle();
+    }
+
+    @Override
+    public void write(ByteBufferList bb) {
+        if (closed || localClosed) {
+            bb.recycle();
+            return;
+        }
+
+        while (head != null && bb.hasRemaining()) {
+            int b = bb.get() & 0xff;
+            head.write(b);
+            headTail = (headTail << 8) | b;
+            if (headTail == 0x0d0a0d0a) {
+                try {
+                    parseHead();
+                }
+                catch (Exception e) {
+                    bb.recycle();
+                    onRefused(e);
+                    return;
+                }
+                if (!connection.openStream(this))
+                    return;
+            }
+        }
+        // waiting on the rest of the head, or for the server to allow another stream
+        if (head != null || id == 0)
+            return;
+
+        while (bb.hasRemaining() && !localClosed && !closed) {
+            if (bodyType == BODY_LENGTH) {
+                int length = (int)Math.min(Math.min(bb.remaining(), bodyRemaining), connection.getSendable(this));
+                if (length == 0)
+                    return;
+                bodyRemaining -= length;
+                writeData(bb, length, bodyRemaining == 0);
+            }
+            else if (bodyType == BODY_CHUNKED) {
+                if (!writeChunked(bb))
+                    return;
+            }
+            else {
+                break;
+            }
+        }
+        // anything past the end of the body is dropped
+        if (localClosed || closed)
+            bb.recycle();
+    }
+
+    private void parseHead() throws Exception {
+        String[] lines = new String(head.toByteArray(), Hpack.CHARSET).split("\r\n");
+        head = null;
+
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2)
+            throw new Exception("invalid request line: " + lines[0]);
+        method = requestLine[0];
+        String path = requestLine[1];
+        String authority = null;
+
+        ArrayList<String[]> headers = new ArrayList<String[]>();
+        bodyType = BODY_NONE;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+            if ("host".equals(name)) {
+                authority = value;
+                continue;
+            }
+            if ("transfer-encoding".equals(name)) {
+                if ("chunked".equalsIgnoreCase(value))
+                    bodyType = BODY_CHUNKED;
+                continue;
+            }
+            // connection specific headers are not allowed in HTTP/2
+            if ("connection".equals(name) || "keep-alive".equals(name) || "proxy-connection".equals(name) || "upgrade".equals(name))
+                continue;
+            if ("te".equals(name) && !"trailers".equalsIgnoreCase(value))
+                continue;
+            if ("content-length".equals(name) && bodyType != BODY_CHUNKED) {
+                bodyType = BODY_LENGTH;
+                bodyRemaining = Long.parseLong(value);
+            }
+            headers.add(new String[] { name, value });
+        }
+        if (bodyType == BODY_LENGTH && bodyRemaining <= 0)
+            bodyType = BODY_NONE;
+
+        if (authority == null) {
+            authority = connection.route.getHost();
+            int defaultPort = "https".equals(connection.route.getScheme()) ? 443 : 80;
+            if (connection.route.getPort() != defaultPort)
+                authority += ":" + connection.route.getPort();
+        }
+
+        requestHeaders = new ArrayList<String[]>();
+        requestHeaders.add(new String[] { ":method", method });
+        requestHeaders.add(new String[] { ":scheme", connection.route.getScheme() });
+        requestHeaders.add(new String[] { ":authority", authority });
+        requestHeaders.add(new String[] { ":path", path });
+        requestHeaders.addAll(headers);
+    }
+
+    void onOpened() {
+        boolean endStream = bodyType == BODY_NONE;
+        connection.writeHeaders(this, requestHeaders, endStream);
+        requestHeaders = null;
+        if (endStream) {
+            localClosed = true;
+            maybeFinish();
+        }
+    }
+
+    private boolean writeChunked(ByteBufferList bb) {
+        switch (chunkState) {
+            case CHUNK_SIZE: {
+                int b = bb.get();
+                if (b == '\n') {
+                    chunkExtension = false;
+                    trailerLineLength = 0;
+                    chunkState = chunkRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                }
+                else if (b == ';') {
+                    chunkExtension = true;
+                }
+                else if (!chunkExtension && Character.digit(b, 16) != -1) {
+                    chunkRemaining = chunkRemaining * 16 + Character.digit(b, 16);
+                }
+                return true;
+            }
+            case CHUNK_DATA: {
+                int length = (int)Math.min(Math.min(bb.remaining(), chunkRemaining), connection.getSendable(this));
+                if (length == 0)
+                    return false;
+                chunkRemaining -= length;
+                writeData(bb, length, false);
+                if (chunkRemaining == 0)
+                    chunkState = CHUNK_DATA_END;
+                return true;
+            }
+            case CHUNK_DATA_END: {
+                if (bb.get() == '\n')
+                    chunkState = CHUNK_SIZE;
+                return true;
+            }
+            default: {
+                // trailers are not sent, only the blank line that ends the body matters
+                int b = bb.get();
+                if (b == '\n') {
+                    if (trailerLineLength == 0)
+                        writeData(bb, 0, true);
+                    trailerLineLength = 0;
+                }
+                else if (b != '\r') {
+                    trailerLineLength++;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void writeData(ByteBufferList bb, int length, boolean endStream) {
+        ByteBufferList data = new ByteBufferList();
+        bb.get(data, length);
+        connection.writeData(this, data, endStream);
+        if (endStream) {
+            localClosed = true;
+            maybeFinish();
+        }
+    }
+
+    void onWritable() {
+        if (closed || localClosed || id == 0)
+            return;
+        if (mWriteableCallback != null)
+            mWriteableCallback.onWriteable();
+    }
+
+    // the response, translated back into HTTP/1.1
+    ByteBufferList pending = new ByteBufferList();
+    boolean paused;
+    boolean responseStarted;
+    boolean chunkedResponse;
+    long contentLength = -1;
+    long received;
+    boolean remoteClosed;
+    // response data waiting to be read, which has not been acknowledged to the server
+    int buffered;
+    int unacknowledged;
+
+    void onHeaders(List<String[]> headers, boolean endStream) {
+        if (closed)
+            return;
+        if (!responseStarted) {
+            String status = null;
+            StringBuilder builder = new StringBuilder();
+            for (String[] header: headers) {
+                String name = header[0];
+                if (":status".equals(name)) {
+                    status = header[1];
+                    continue;
+                }
+                if (name.startsWith(":"))
+                    continue;
+                if ("content-length".equals(name)) {
+                    try {
+                        contentLength = Long.parseLong(header[1]);
+                    }
+                    catch (NumberFormatException e) {
+                    }
+                    // a response that ends with its headers has no body, whatever it says
+                    if (endStream && !"HEAD".equalsIgnoreCase(method))
+                        continue;
+                }
+                builder.append(name).append(": ").append(header[1]).append("\r\n");
+            }
+            if (status == null) {
+                connection.writeReset(id, Http2Connection.PROTOCOL_ERROR);
+                onReset(Http2Connection.PROTOCOL_ERROR);
+                return;
+            }
+            // informational responses, like 100 Continue, are followed by the real one
+            if (status.startsWith("1") && !endStream)
+                return;
+
+            if (endStream) {
+                if (!"HEAD".equalsIgnoreCase(method) || contentLength < 0) {
+                    contentLength = 0;
+                    builder.append("Content-Length: 0\r\n");
+                }
+            }
+            else if (contentLength < 0) {
+                chunkedResponse = true;
+                builder.append("Transfer-Encoding: chunked\r\n");
+            }
+            builder.insert(0, "HTTP/1.1 " + status + "\r\n");
+            builder.append("\r\n");
+            pending.add(ByteBuffer.wrap(getBytes(builder.toString())));
+            responseStarted = true;
+        }
+        // trailers are dropped
+
+        if (endStream)
+            onRemoteEnd();
+        deliver();
+    }
+
+    void onData(ByteBufferList data, int padding, boolean endStream) {
+        int length = data.remaining();
+        if (closed || !responseStarted) {
+            data.recycle();
+            connection.onDataConsumed(length + padding);
+            if (!closed) {
+                connection.writeReset(id, Http2Connection.PROTOCOL_ERROR);
+                onReset(Http2Connection.PROTOCOL_ERROR);
+            }
+            return;
+        }
+
+        received += length;
+        if (length > 0) {
+            // the chunked decoder only reads upper case hex
+            if (chunkedResponse)
+                pending.add(ByteBuffer.wrap(getBytes(Integer.toString(length, 16).toUpperCase() + "\r\n")));
+            data.get(pending);
+            if (chunkedResponse)
+                pending.add(ByteBuffer.wrap(getBytes("\r\n")));
+            buffered += length;
+        }
+        if (padding > 0)
+            acknowledge(padding);
+        if (endStream)
+            onRemoteEnd();
+        deliver();
+    }
+
+    private void onRemoteEnd() {
+        remoteClosed = true;
+        if (chunkedResponse)
+            pending.add(ByteBuffer.wrap(getBytes("0\r\n\r\n")));
+    }
+
+    private void deliver() {
+        if (paused || closed || getDataCallback() == null)
+            return;
+        if (pending.hasRemaining())
+            Util.emitAllData(this, pending);
+
+        // framing is added around the data, so only what is left over is known to be unread data
+        int read = buffered - Math.min(buffered, pending.remaining());
+        if (read > 0) {
+            buffered -= read;
+            acknowledge(read);
+        }
+
+        if (!remoteClosed || pending.hasRemaining())
+            return;
+        if (contentLength >= 0 && received < contentLength && !"HEAD".equalsIgnoreCase(method)) {
+            report(new Exception("HTTP/2 stream ended before the content length was received"));
+            close();
+            return;
+        }
+        maybeFinish();
+    }
+
+    private void acknowledge(int length) {
+        connection.onDataConsumed(length);
+        if (remoteClosed)
+            return;
+        unacknowledged += length;
+        if (unacknowledged >= Http2Connection.STREAM_WINDOW_SIZE / 2) {
+            connection.writeWindowUpdate(id, unacknowledged);
+            unacknowledged = 0;
+        }
+    }
+
+    private void maybeFinish() {
+        if (finished || !localClosed || !remoteClosed || pending.hasRemaining())
+            return;
+        finished = true;
+        connection.removeStream(this);
+    }
+
+    void onReset(int errorCode) {
+        if (closed)
+            return;
+        if (errorCode == Http2Connection.NO_ERROR && remoteClosed) {
+            // the response is complete, and the server doesn't want the rest of the request
+            localClosed = true;
+            maybeFinish();
+            return;
+        }
+        onRefused(new Exception("HTTP/2 stream reset: " + errorCode));
+    }
+
+    /**
+     * The stream can't continue, so it is closed without a reset.
+     */
+    void onRefused(Exception e) {
+        if (closed)
+            return;
+        localClosed = true;
+        shutdown();
+        report(e);
+    }
+
+    void onConnectionClosed(Exception e) {
+        if (closed)
+            return;
+        finished = true;
+        closed = true;
+        pending.recycle();
+        report(e);
+        if (mClosedCallback != null)
+            mClosedCallback.onCompleted(null);
+    }
+
+    /**
+     * The response has been handled. A stream that is still sending is reset,
+     * otherwise it is left to finish when the server ends it.
+     */
+    void complete(Exception e) {
+        if (e != null || !localClosed)
+            close();
+    }
+
+    private void shutdown() {
+        closed = true;
+        if (!finished) {
+            finished = true;
+            connection.removeStream(this);
+        }
+        connection.onDataConsumed(buffered);
+        buffered = 0;
+        pending.recycle();
+        if (mClosedCallback != null)
+            mClosedCallback.onCompleted(null);
+    }
+
+    private static byte[] getBytes(String string) {
+        try {
+            return string.getBytes(Hpack.CHARSET);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        if (id != 0 && !finished && (!localClosed || !remoteClosed))
+            connection.writeReset(id, Http2Connection.CANCEL);
+        shutdown();
+    }
+
+    @Override
+    public void end() {
+        if (closed || localClosed || id == 0)
+            return;
+        writeData(new ByteBufferList(), 0, true);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    WritableCallback mWriteableCallback;
+    @Override
+    public void setWriteableCallback(WritableCallback handler) {
+        mWriteableCallback = handler;
+    }
+
+    @Override
+    public WritableCallback getWriteableCallback() {
+        return mWriteableCallback;
+    }
+
+    CompletedCallback mClosedCallback;
+    @Override
+    public void setClosedCallback(CompletedCallback handler) {
+        mClosedCallback = handler;
+    }
+
+    @Override
+    public CompletedCallback getClosedCallback() {
+        return mClosedCallback;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return false;
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        deliver();
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    public AsyncServer getServer() {
+        return connection.getServer();
+    }
+}
@@ -36,7 +36,7 @@ public final class HttpDate {
             = new ThreadLocal<DateFormat>() {
         @Override protected DateFormat initialValue() {
             DateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-            rfc1123.setTimeZone(TimeZone.getTimeZone("UTC"));
+            rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
             return rfc1123;
         }
     };
@@ -18,6 +18,7 @@ import com.koushikdutta.async.http.AsyncHttpHead;
 import com.koushikdutta.async.http.AsyncHttpPost;
 import com.koushikdutta.async.http.HttpUtil;
 import com.koushikdutta.async.http.Multimap;
+import com.koushikdutta.async.http.PerMessageDeflate;
 import com.koushikdutta.async.http.WebSocket;
 import com.koushikdutta.async.http.WebSocketImpl;
 import com.koushikdutta.async.http.libcore.RawHeaders;
@@ -195,8 +196,27 @@ public class AsyncHttpServer {
         }
     };
 
-    public void listen(AsyncServer server, int port) {
+    // the server requests are handled on, and event source groups post to
+    AsyncServer mServer = AsyncServer.getDefault();
+    ArrayList<EventSourceGroup> mEventSourceGroups = new ArrayList<EventSourceGroup>();
+
+    /**
+     * Listen on the port, or on one the system picks if it is 0.
+     * @return The listening socket, or null if the port couldn't be bound.
+     */
+    public AsyncServerSocket listen(AsyncServer server, int port) {
+        synchronized (mEventSourceGroups) {
+            mServer = server;
+            for (EventSourceGroup group: mEventSourceGroups) {
+                group.mServer = server;
+            }
+        }
+        int listening = mListeners.size();
+        // AsyncServer.listen waits on the server thread, so a new listener is in by now
         server.listen(null, port, mListenCallback);
+        if (mListeners.size() == listening)
+            return null;
+        return mListeners.get(mListeners.size() - 1);
     }
 
     private void report(Exception ex) {
@@ -204,8 +224,8 @@ public class AsyncHttpServer {
             mCompletedCallback.onCompleted(ex);
     }
     
-    public void listen(int port) {
-        listen(AsyncServer.getDefault(), port);
+    public AsyncServerSocket listen(int port) {
+        return listen(AsyncServer.getDefault(), port);
     }
 
     public void listenSecure(final int port, final SSLContext sslContext) {
@@ -267,6 +287,19 @@ public class AsyncHttpServer {
         public void onConnected(WebSocket webSocket, RequestHeaders headers);
     }
 
+    PerMessageDeflate mWebSocketDeflate;
+    /**
+     * The permessage-deflate parameters accepted from websocket clients,
+     * or null to decline compression. Compression is off by default.
+     */
+    public void setWebSocketDeflate(PerMessageDeflate deflate) {
+        mWebSocketDeflate = deflate;
+    }
+
+    public PerMessageDeflate getWebSocketDeflate() {
+        return mWebSocketDeflate;
+    }
+
     public void websocket(String regex, final WebSocketRequestCallback callback) {
         websocket(regex, null, callback);
     }
@@ -297,11 +330,43 @@ public class AsyncHttpServer {
                     response.end();
                     return;
                 }
-                callback.onConnected(new WebSocketImpl(request, response), request.getHeaders());
+                callback.onConnected(new WebSocketImpl(request, response, mWebSocketDeflate), request.getHeaders());
             }
         });
     }
     
+    public static interface EventSourceCallback {
+        public void onConnected(EventSource eventSource, RequestHeaders headers);
+    }
+
+    /**
+     * Serve a text/event-stream at the given path. Every subscriber joins the
+     * returned group, which events can be broadcast to. The group runs on the
+     * AsyncServer this server listens on.
+     */
+    public EventSourceGroup eventSource(String regex, EventSourceCallback callback) {
+        EventSourceGroup group;
+        synchronized (mEventSourceGroups) {
+            group = new EventSourceGroup(mServer);
+            mEventSourceGroups.add(group);
+        }
+        eventSource(regex, group, callback);
+        return group;
+    }
+
+    public void eventSource(String regex, final EventSourceGroup group, final EventSourceCallback callback) {
+        get(regex, new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                EventSource eventSource = new EventSource(request, response);
+                if (group != null)
+                    group.add(eventSource);
+                if (callback != null)
+                    callback.onConnected(eventSource, request.getHeaders());
+            }
+        });
+    }
+
     public void get(String regex, HttpServerRequestCallback callback) {
         addAction(AsyncHttpGet.METHOD, regex, callback);
     }
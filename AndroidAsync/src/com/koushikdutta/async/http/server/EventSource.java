@@ -0,0 +1,121 @@
+package com.koushikdutta.async.http.server;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.WritableCallback;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single text/event-stream subscriber. The response is held open with
+ * chunked encoding, and events are queued here while the socket is not writable.
+ */
+public class EventSource {
+    AsyncHttpServerRequest mRequest;
+    AsyncHttpServerResponse mResponse;
+    ByteBufferList mPending = new ByteBufferList();
+    String mLastEventId;
+
+    EventSource(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        mRequest = request;
+        mResponse = response;
+        mLastEventId = request.getHeaders().getHeaders().get("Last-Event-ID");
+
+        response.responseCode(200);
+        response.setContentType("text/event-stream; charset=utf-8");
+        response.getHeaders().getHeaders().set("Cache-Control", "no-cache");
+        response.writeHead();
+        response.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                flush();
+            }
+        });
+    }
+
+    public AsyncHttpServerRequest getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * The Last-Event-ID the client reconnected with, or null.
+     */
+    public String getLastEventId() {
+        return mLastEventId;
+    }
+
+    public void send(String data) {
+        send(null, null, data);
+    }
+
+    public void send(String event, String data) {
+        send(null, event, data);
+    }
+
+    public void send(String id, String event, String data) {
+        write(encode(id, event, data));
+    }
+
+    /**
+     * Tell the client how long to wait before reconnecting.
+     */
+    public void setRetry(int milliseconds) {
+        write(encodeShared("retry: " + milliseconds + "\n\n"));
+    }
+
+    public boolean isOpen() {
+        return mResponse.isOpen();
+    }
+
+    public void close() {
+        mResponse.close();
+    }
+
+    /**
+     * The number of bytes waiting for the socket to become writable.
+     */
+    public int getQueueDepth() {
+        return mPending.remaining();
+    }
+
+    /**
+     * Write an encoded event. The buffer may be shared with other subscribers,
+     * so only a duplicate is queued.
+     */
+    void write(ByteBuffer event) {
+        mPending.add(event.duplicate());
+        flush();
+    }
+
+    void flush() {
+        if (!mPending.hasRemaining() || !mResponse.isOpen())
+            return;
+        // the chunked sink takes all of it unless it is still writing the last batch,
+        // in which case everything stays queued until the writeable callback.
+        mResponse.write(mPending);
+    }
+
+    static ByteBuffer encode(String id, String event, String data) {
+        StringBuilder builder = new StringBuilder();
+        if (id != null)
+            builder.append("id: ").append(id).append('\n');
+        if (event != null)
+            builder.append("event: ").append(event).append('\n');
+        if (data != null) {
+            for (String line: data.split("\r\n|\r|\n", -1)) {
+                builder.append("data: ").append(line).append('\n');
+            }
+        }
+        builder.append('\n');
+        return encodeShared(builder.toString());
+    }
+
+    private static ByteBuffer encodeShared(String string) {
+        try {
+            return ByteBufferList.wrapShared(string.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
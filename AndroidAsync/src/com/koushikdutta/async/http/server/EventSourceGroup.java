@@ -0,0 +1,298 @@
+package com.koushikdutta.async.http.server;
+
+import com.koushikdutta.async.ArrayDeque;
+import com.koushikdutta.async.AsyncServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * A set of event stream subscribers that events can be broadcast to.
+ * Each event is encoded once and every subscriber writes the same bytes.
+ * The most recent events are kept in a replay ring, so subscribers that
+ * reconnect with a Last-Event-ID are sent the events they missed.
+ * Subscribers that have more than the max queue depth buffered are closed,
+ * and can catch up from the replay ring when they reconnect.
+ *
+ * Events may be broadcast from any thread. Each is given its id and
+ * encoded as it is broadcast, so ids follow the order of the calls, and
+ * subscribers are written to on the server thread in that same order.
+ */
+public class EventSourceGroup {
+    AsyncServer mServer;
+    // event sources don't override equals, so this is an identity set
+    final LinkedHashSet<EventSource> mMembers = new LinkedHashSet<EventSource>();
+
+    public EventSourceGroup(AsyncServer server) {
+        mServer = server;
+    }
+
+    int mMaxQueueDepth = 256 * 1024;
+    /**
+     * The number of bytes a subscriber may have buffered before it is closed.
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        mMaxQueueDepth = maxQueueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    static class PendingEvent {
+        long id;
+        ByteBuffer encoded;
+        PendingEvent(long id, ByteBuffer encoded) {
+            this.id = id;
+            this.encoded = encoded;
+        }
+    }
+
+    // guards the ids, the replay ring and the events waiting for the server thread
+    final Object mLock = new Object();
+    long[] mReplayIds = new long[64];
+    ByteBuffer[] mReplay = new ByteBuffer[64];
+    int mReplayStart;
+    int mReplayCount;
+    long mLastId;
+    final ArrayDeque<PendingEvent> mPending = new ArrayDeque<PendingEvent>();
+    boolean mDrainPosted;
+
+    // only touched on the server thread: the id of the last event written to subscribers
+    long mDeliveredId;
+    boolean mDraining;
+
+    /**
+     * The number of recent events kept for subscribers that reconnect.
+     */
+    public void setReplaySize(int size) {
+        synchronized (mLock) {
+            long[] ids = new long[size];
+            ByteBuffer[] replay = new ByteBuffer[size];
+            int count = Math.min(size, mReplayCount);
+            for (int i = 0; i < count; i++) {
+                int index = (mReplayStart + mReplayCount - count + i) % mReplay.length;
+                ids[i] = mReplayIds[index];
+                replay[i] = mReplay[index];
+            }
+            mReplayIds = ids;
+            mReplay = replay;
+            mReplayStart = 0;
+            mReplayCount = count;
+        }
+    }
+
+    public int getReplaySize() {
+        synchronized (mLock) {
+            return mReplay.length;
+        }
+    }
+
+    /**
+     * The id of the last event broadcast.
+     */
+    public long getLastEventId() {
+        synchronized (mLock) {
+            return mLastId;
+        }
+    }
+
+    /**
+     * Add a subscriber, and send it the events after its Last-Event-ID.
+     */
+    public void add(final EventSource eventSource) {
+        if (mServer.getAffinity() != Thread.currentThread()) {
+            mServer.post(new Runnable() {
+                @Override
+                public void run() {
+                    add(eventSource);
+                }
+            });
+            return;
+        }
+
+        synchronized (mMembers) {
+            if (!mMembers.add(eventSource))
+                return;
+        }
+
+        String lastEventId = eventSource.getLastEventId();
+        if (lastEventId == null)
+            return;
+        long last;
+        try {
+            last = Long.parseLong(lastEventId.trim());
+        }
+        catch (NumberFormatException e) {
+            return;
+        }
+        ArrayList<ByteBuffer> replay = new ArrayList<ByteBuffer>();
+        synchronized (mLock) {
+            // an id from the future is from before a server restart
+            if (last >= mLastId)
+                return;
+            // events not yet written to subscribers reach this one with the rest of them
+            for (int i = 0; i < mReplayCount; i++) {
+                int index = (mReplayStart + i) % mReplay.length;
+                if (mReplayIds[index] > last && mReplayIds[index] <= mDeliveredId)
+                    replay.add(mReplay[index]);
+            }
+        }
+        for (ByteBuffer encoded: replay) {
+            eventSource.write(encoded);
+            mReplayedCount++;
+        }
+    }
+
+    public boolean remove(EventSource eventSource) {
+        synchronized (mMembers) {
+            return mMembers.remove(eventSource);
+        }
+    }
+
+    public int size() {
+        synchronized (mMembers) {
+            return mMembers.size();
+        }
+    }
+
+    public void broadcast(String data) {
+        broadcast(null, data);
+    }
+
+    public void broadcast(String event, String data) {
+        synchronized (mLock) {
+            long id = ++mLastId;
+            ByteBuffer encoded = EventSource.encode(Long.toString(id), event, data);
+            if (mReplay.length > 0) {
+                int index = (mReplayStart + mReplayCount) % mReplay.length;
+                mReplayIds[index] = id;
+                mReplay[index] = encoded;
+                if (mReplayCount < mReplay.length)
+                    mReplayCount++;
+                else
+                    mReplayStart = (mReplayStart + 1) % mReplay.length;
+            }
+            mPending.add(new PendingEvent(id, encoded));
+
+            if (mServer.getAffinity() != Thread.currentThread()) {
+                // posts aren't run in order, so a single runnable drains the queue
+                if (!mDrainPosted) {
+                    mDrainPosted = true;
+                    mServer.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            drain();
+                        }
+                    });
+                }
+                return;
+            }
+        }
+        drain();
+    }
+
+    private void drain() {
+        // an event broadcast from a write callback is picked up by the loop below
+        if (mDraining)
+            return;
+        mDraining = true;
+        try {
+            while (true) {
+                PendingEvent pending;
+                synchronized (mLock) {
+                    pending = mPending.poll();
+                    if (pending == null) {
+                        mDrainPosted = false;
+                        return;
+                    }
+                }
+                mDeliveredId = pending.id;
+                write(pending.encoded);
+            }
+        }
+        finally {
+            mDraining = false;
+        }
+    }
+
+    private void write(ByteBuffer encoded) {
+        EventSource[] members;
+        synchronized (mMembers) {
+            members = mMembers.toArray(new EventSource[mMembers.size()]);
+        }
+
+        ArrayList<EventSource> gone = null;
+        mBroadcastCount++;
+        for (EventSource member: members) {
+            if (!member.isOpen()) {
+                if (gone == null)
+                    gone = new ArrayList<EventSource>();
+                gone.add(member);
+                continue;
+            }
+            if (member.getQueueDepth() > mMaxQueueDepth) {
+                if (gone == null)
+                    gone = new ArrayList<EventSource>();
+                gone.add(member);
+                member.close();
+                mClosedCount++;
+                continue;
+            }
+            member.write(encoded);
+            mSentCount++;
+        }
+
+        if (gone == null)
+            return;
+        synchronized (mMembers) {
+            for (EventSource member: gone) {
+                mMembers.remove(member);
+            }
+        }
+    }
+
+    // only written on the server thread, read from anywhere
+    volatile long mBroadcastCount;
+    public long getBroadcastCount() {
+        return mBroadcastCount;
+    }
+
+    volatile long mSentCount;
+    /**
+     * The number of events written to subscribers.
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    volatile long mReplayedCount;
+    /**
+     * The number of events resent to subscribers that reconnected.
+     */
+    public long getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    volatile long mClosedCount;
+    /**
+     * The number of subscribers closed because they were over the max queue depth.
+     */
+    public long getClosedCount() {
+        return mClosedCount;
+    }
+
+    /**
+     * The number of bytes currently buffered, across all subscribers.
+     */
+    public long getQueueDepth() {
+        long ret = 0;
+        synchronized (mMembers) {
+            for (EventSource member: mMembers) {
+                ret += member.getQueueDepth();
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,10 @@
+package com.koushikdutta.async.http.socketio;
+
+/**
+ * An Acknowledge that also hears when the server doesn't answer within the
+ * request's ack timeout. Plain Acknowledges leave that to the client's
+ * ExceptionCallback.
+ */
+public interface AcknowledgeCallback extends Acknowledge {
+    void onTimeout(SocketIOException e);
+}
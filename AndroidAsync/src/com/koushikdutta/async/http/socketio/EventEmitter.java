@@ -19,13 +19,34 @@ public class EventEmitter {
         List<EventCallback> list = callbacks.get(event);
         if (list == null)
             return;
+        boolean removed = false;
         Iterator<EventCallback> iter = list.iterator();
         while (iter.hasNext()) {
             EventCallback cb = iter.next();
             cb.onEvent(arguments, acknowledge);
-            if (cb instanceof OnceCallback)
+            if (cb instanceof OnceCallback) {
                 iter.remove();
+                removed = true;
+            }
+        }
+        if (!removed)
+            return;
+        boolean last;
+        synchronized (callbacks) {
+            last = list.isEmpty() && callbacks.get(event) == list;
+            if (last)
+                callbacks.remove(event);
         }
+        if (last)
+            onNoListeners(event);
+    }
+
+    // told when an event gets its first handler and when it loses its last,
+    // so the connection only dispatches events to clients that handle them
+    void onFirstListener(String event) {
+    }
+
+    void onNoListeners(String event) {
     }
 
     public void addListener(String event, EventCallback callback) {
@@ -42,13 +63,24 @@ public class EventEmitter {
     }
 
     public void on(String event, EventCallback callback) {
-        callbacks.add(event, callback);
+        boolean first;
+        synchronized (callbacks) {
+            first = !callbacks.contains(event);
+            callbacks.add(event, callback);
+        }
+        if (first)
+            onFirstListener(event);
     }
 
     public void removeListener(String event, EventCallback callback) {
-        List<EventCallback> list = callbacks.get(event);
-        if (list == null)
-            return;
-        list.remove(callback);
+        boolean last;
+        synchronized (callbacks) {
+            if (!callbacks.contains(event))
+                return;
+            callbacks.removeItem(event, callback);
+            last = !callbacks.contains(event);
+        }
+        if (last)
+            onNoListeners(event);
     }
 }
@@ -105,7 +105,7 @@ public class SocketIOClient extends EventEmitter {
                 }
 
                 // remove the root client since that's not actually being used.
-                connection.clients.remove(client);
+                connection.removeClient(client);
 
                 // connect to the endpoint we want
                 client.of(request.getEndpoint(), new ConnectCallback() {
@@ -119,7 +119,7 @@ public class SocketIOClient extends EventEmitter {
             }
         };
 
-        connection.clients.add(new SocketIOClient(connection, "", wrappedCallback));
+        connection.addClient(new SocketIOClient(connection, "", wrappedCallback));
         connection.reconnect(ret);
 
         return ret;
@@ -182,6 +182,16 @@ public class SocketIOClient extends EventEmitter {
         this.connectCallback = callback;
     }
 
+    @Override
+    void onFirstListener(String event) {
+        connection.addListener(this, event);
+    }
+
+    @Override
+    void onNoListeners(String event) {
+        connection.removeListener(this, event);
+    }
+
     public boolean isConnected() {
         return connected && !disconnected && connection.isConnected();
     }
@@ -3,6 +3,7 @@ package com.koushikdutta.async.http.socketio;
 import android.os.Handler;
 import android.text.TextUtils;
 
+import com.koushikdutta.async.ArrayDeque;
 import com.koushikdutta.async.NullDataCallback;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.future.Cancellable;
@@ -12,6 +13,7 @@ import com.koushikdutta.async.future.TransformFuture;
 import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.AsyncHttpResponse;
 import com.koushikdutta.async.http.WebSocket;
+import com.koushikdutta.async.util.HashList;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -20,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Random;
 
 /**
  * Created by koush on 7/1/13.
@@ -29,6 +32,11 @@ class SocketIOConnection {
     AsyncHttpClient httpClient;
     int heartbeat;
     ArrayList<SocketIOClient> clients = new ArrayList<SocketIOClient>();
+    // clients by endpoint, so messages are dispatched without walking every client
+    Hashtable<String, ArrayList<SocketIOClient>> endpoints = new Hashtable<String, ArrayList<SocketIOClient>>();
+    // clients by endpoint and then by event, holding only the clients with a
+    // handler for that event, so an event goes straight to its listeners
+    Hashtable<String, HashList<SocketIOClient>> listeners = new Hashtable<String, HashList<SocketIOClient>>();
     WebSocket webSocket;
     SocketIORequest request;
 
@@ -42,6 +50,75 @@ class SocketIOConnection {
         return webSocket != null && webSocket.isOpen();
     }
 
+    void addClient(SocketIOClient client) {
+        if (clients.contains(client))
+            return;
+        clients.add(client);
+        String key = endpointKey(client.endpoint);
+        ArrayList<SocketIOClient> list = endpoints.get(key);
+        if (list == null) {
+            list = new ArrayList<SocketIOClient>();
+            endpoints.put(key, list);
+        }
+        list.add(client);
+        for (String event: client.callbacks.keySet()) {
+            indexListener(client, event);
+        }
+    }
+
+    void removeClient(SocketIOClient client) {
+        if (!clients.remove(client))
+            return;
+        String key = endpointKey(client.endpoint);
+        for (String event: client.callbacks.keySet()) {
+            unindexListener(client, event);
+        }
+        ArrayList<SocketIOClient> list = endpoints.get(key);
+        if (list == null)
+            return;
+        list.remove(client);
+        if (list.size() == 0)
+            endpoints.remove(key);
+    }
+
+    // called by clients as their events gain a first handler or lose the
+    // last one. clients that aren't part of the connection aren't indexed.
+    void addListener(SocketIOClient client, String event) {
+        if (clients.contains(client))
+            indexListener(client, event);
+    }
+
+    void removeListener(SocketIOClient client, String event) {
+        unindexListener(client, event);
+    }
+
+    private void indexListener(SocketIOClient client, String event) {
+        HashList<SocketIOClient> index;
+        synchronized (listeners) {
+            String key = endpointKey(client.endpoint);
+            index = listeners.get(key);
+            if (index == null) {
+                index = new HashList<SocketIOClient>();
+                listeners.put(key, index);
+            }
+        }
+        synchronized (index) {
+            ArrayList<SocketIOClient> list = index.get(event);
+            if (list == null || !list.contains(client))
+                index.add(event, client);
+        }
+    }
+
+    private void unindexListener(SocketIOClient client, String event) {
+        HashList<SocketIOClient> index = listeners.get(endpointKey(client.endpoint));
+        if (index != null)
+            index.removeItem(event, client);
+    }
+
+    private static String endpointKey(String endpoint) {
+        return endpoint == null ? "" : endpoint;
+    }
+
     Hashtable<String, Acknowledge> acknowledges = new Hashtable<String, Acknowledge>();
     int ackCount;
     public void emitRaw(int type, SocketIOClient client, String message, Acknowledge acknowledge) {
@@ -50,18 +127,187 @@ class SocketIOConnection {
             String id = "" + ackCount++;
             ack =  id + "+";
             acknowledges.put(id, acknowledge);
+            if (request.getAckTimeout() > 0)
+                expireAck(id, client.endpoint);
         }
-        webSocket.send(String.format("%d:%s:%s:%s", type, ack, client.endpoint, message));
+        sendOrQueue(String.format("%d:%s:%s:%s", type, ack, client.endpoint, message));
     }
 
+    // packets emitted while disconnected, sent once the connection is back
+    final ArrayList<String> queued = new ArrayList<String>();
+    void sendOrQueue(String packet) {
+        if (isConnected()) {
+            send(packet);
+            return;
+        }
+        synchronized (queued) {
+            if (queued.size() >= request.getMaxQueuedEmits()) {
+                request.logw("socket.io not connected, dropping packet");
+                return;
+            }
+            queued.add(packet);
+        }
+    }
+
+    private void sendQueued() {
+        ArrayList<String> packets;
+        synchronized (queued) {
+            packets = new ArrayList<String>(queued);
+            queued.clear();
+        }
+        for (String packet: packets) {
+            send(packet);
+        }
+    }
+
+    // every ack shares the same timeout, so deadlines expire in the order
+    // they were added and a queue with a single timer covers all of them.
+    static class AckDeadline {
+        String id;
+        String endpoint;
+        long deadline;
+    }
+    final ArrayDeque<AckDeadline> ackDeadlines = new ArrayDeque<AckDeadline>();
+    boolean ackTimerScheduled;
+
+    private void expireAck(String id, String endpoint) {
+        AckDeadline deadline = new AckDeadline();
+        deadline.id = id;
+        deadline.endpoint = endpoint;
+        deadline.deadline = System.currentTimeMillis() + request.getAckTimeout();
+        synchronized (ackDeadlines) {
+            ackDeadlines.addLast(deadline);
+            if (ackTimerScheduled)
+                return;
+            ackTimerScheduled = true;
+        }
+        httpClient.getServer().postDelayed(ackTimer, request.getAckTimeout());
+    }
+
+    Runnable ackTimer = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            long next;
+            while (true) {
+                AckDeadline deadline;
+                synchronized (ackDeadlines) {
+                    deadline = ackDeadlines.peekFirst();
+                    if (deadline == null) {
+                        ackTimerScheduled = false;
+                        return;
+                    }
+                    if (deadline.deadline > now) {
+                        next = deadline.deadline - now;
+                        break;
+                    }
+                    ackDeadlines.removeFirst();
+                }
+                // already acknowledged
+                Acknowledge acknowledge = acknowledges.remove(deadline.id);
+                if (acknowledge == null)
+                    continue;
+                final SocketIOException e = new SocketIOException("acknowledgement " + deadline.id + " timed out");
+                if (acknowledge instanceof AcknowledgeCallback) {
+                    ((AcknowledgeCallback)acknowledge).onTimeout(e);
+                    continue;
+                }
+                select(deadline.endpoint, new SelectCallback() {
+                    @Override
+                    public void onSelect(SocketIOClient client) {
+                        ExceptionCallback callback = client.exceptionCallback;
+                        if (callback != null)
+                            callback.onException(e);
+                    }
+                });
+            }
+            httpClient.getServer().postDelayed(this, next);
+        }
+    };
+
     public void connect(SocketIOClient client) {
-        if (!clients.contains(client))
-            clients.add(client);
-        webSocket.send(String.format("1::%s", client.endpoint));
+        addClient(client);
+        send(String.format("1::%s", client.endpoint));
+    }
+
+    // websocket transports take a single packet per message, so batches are
+    // sent as a run of frames in one gathering write.
+    final ArrayList<String> pending = new ArrayList<String>();
+    int pendingLength;
+    boolean flushScheduled;
+    Runnable flushRunner = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    void send(String packet) {
+        WebSocket webSocket = this.webSocket;
+        int batchLimit = request.getBatchLimit();
+        if (batchLimit <= 0) {
+            webSocket.send(packet);
+            return;
+        }
+
+        boolean flushNow;
+        synchronized (pending) {
+            pending.add(packet);
+            pendingLength += utf8Length(packet);
+            flushNow = pendingLength >= batchLimit;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                webSocket.getServer().post(flushRunner);
+            }
+        }
+        if (flushNow)
+            flush();
+    }
+
+    // the number of bytes the packet is on the wire, without encoding it
+    static int utf8Length(String string) {
+        int ret = 0;
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                ret++;
+            }
+            else if (c < 0x800) {
+                ret += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                ret += 4;
+                i++;
+            }
+            else {
+                ret += 3;
+            }
+        }
+        return ret;
+    }
+
+    void flush() {
+        ArrayList<String> packets;
+        synchronized (pending) {
+            flushScheduled = false;
+            if (pending.size() == 0)
+                return;
+            packets = new ArrayList<String>(pending);
+            pending.clear();
+            pendingLength = 0;
+        }
+        WebSocket webSocket = this.webSocket;
+        if (webSocket == null)
+            return;
+        if (packets.size() == 1)
+            webSocket.send(packets.get(0));
+        else
+            webSocket.send(packets);
     }
 
     public void disconnect(SocketIOClient client) {
-        clients.remove(client);
+        removeClient(client);
 
         // see if we can leave this endpoint completely
         boolean needsEndpointDisconnect = true;
@@ -76,12 +322,14 @@ class SocketIOConnection {
         }
 
         if (needsEndpointDisconnect && webSocket != null)
-            webSocket.send(String.format("0::%s", client.endpoint));
+            send(String.format("0::%s", client.endpoint));
 
         // and see if we can disconnect the socket completely
         if (clients.size() > 0 || webSocket == null)
             return;
 
+        flush();
+
         webSocket.setStringCallback(null);
         webSocket.setClosedCallback(null);
         webSocket.close();
@@ -136,7 +384,7 @@ class SocketIOConnection {
                     return;
                 }
 
-                reconnectDelay = 1000L;
+                reconnectAttempts = 0;
                 SocketIOConnection.this.webSocket = result;
                 attach();
             }
@@ -153,7 +401,7 @@ class SocketIOConnection {
             public void run() {
                 if (heartbeat <= 0 || ws != webSocket || ws == null || !ws.isOpen())
                     return;
-                webSocket.send("2:::");
+                send("2:::");
                 webSocket.getServer().postDelayed(this, heartbeat);
             }
         };
@@ -165,10 +413,16 @@ class SocketIOConnection {
     }
 
     private void select(String endpoint, SelectCallback callback) {
-        for (SocketIOClient client: clients) {
-            if (endpoint == null || TextUtils.equals(client.endpoint, endpoint)) {
-                callback.onSelect(client);
-            }
+        ArrayList<SocketIOClient> selected;
+        if (endpoint == null)
+            selected = clients;
+        else
+            selected = endpoints.get(endpoint);
+        if (selected == null)
+            return;
+        // callbacks may add or remove clients
+        for (SocketIOClient client: selected.toArray(new SocketIOClient[selected.size()])) {
+            callback.onSelect(client);
         }
     }
 
@@ -189,16 +443,31 @@ class SocketIOConnection {
         if (!disconnected)
             return;
 
+        int maxAttempts = request.getReconnectMaxAttempts();
+        if (maxAttempts > 0 && reconnectAttempts >= maxAttempts) {
+            request.logi("socket.io giving up after " + reconnectAttempts + " reconnect attempts");
+            synchronized (queued) {
+                queued.clear();
+            }
+            return;
+        }
+
+        long delay = Math.min(request.getReconnectMaxDelay(), request.getReconnectDelay() << Math.min(reconnectAttempts, 30));
+        // full jitter
+        if (request.getReconnectJitter())
+            delay = (long)(random.nextDouble() * delay);
+        reconnectAttempts++;
+
         httpClient.getServer().postDelayed(new Runnable() {
             @Override
             public void run() {
                 reconnect(null);
             }
-        }, reconnectDelay);
-        reconnectDelay *= 2;
+        }, delay);
     }
 
-    long reconnectDelay = 1000L;
+    static final Random random = new Random();
+    int reconnectAttempts;
     private void reportDisconnect(final Exception ex) {
         if (ex != null) {
             request.loge("socket.io disconnected", ex);
@@ -277,13 +546,21 @@ class SocketIOConnection {
         });
     }
 
-    private void reportEvent(String endpoint, final String event, final JSONArray arguments, final Acknowledge acknowledge) {
-        select(endpoint, new SelectCallback() {
-            @Override
-            public void onSelect(SocketIOClient client) {
-                client.onEvent(event, arguments, acknowledge);
-            }
-        });
+    private void reportEvent(String endpoint, String event, JSONArray arguments, Acknowledge acknowledge) {
+        HashList<SocketIOClient> index = listeners.get(endpointKey(endpoint));
+        if (index == null)
+            return;
+        SocketIOClient[] selected;
+        synchronized (index) {
+            ArrayList<SocketIOClient> list = index.get(event);
+            if (list == null)
+                return;
+            // handlers may add or remove listeners
+            selected = list.toArray(new SocketIOClient[list.size()]);
+        }
+        for (SocketIOClient client: selected) {
+            client.onEvent(event, arguments, acknowledge);
+        }
     }
 
     private void reportError(String endpoint, final String error) {
@@ -322,7 +599,7 @@ class SocketIOConnection {
                     });
                     return;
                 }
-                webSocket.send(String.format("6:::%s%s", messageId, data));
+                send(String.format("6:::%s%s", messageId, data));
             }
         };
     }
@@ -358,7 +635,7 @@ class SocketIOConnection {
                             break;
                         case 2:
                             // heartbeat
-                            webSocket.send("2::");
+                            send("2::");
                             break;
                         case 3: {
                             // message
@@ -421,5 +698,7 @@ class SocketIOConnection {
                 connect(client);
             }
         });
+
+        sendQueued();
     }
 }
@@ -20,6 +20,101 @@ public class SocketIORequest extends AsyncHttpPost {
         return query;
     }
 
+    int batchLimit;
+    /**
+     * Collect the packets emitted during one pass of the event loop and send
+     * them with a single write, flushing early once this many bytes of UTF-8
+     * encoded packets are pending. 0 sends every packet as it is emitted.
+     */
+    public SocketIORequest setBatchLimit(int batchLimit) {
+        this.batchLimit = batchLimit;
+        return this;
+    }
+
+    public int getBatchLimit() {
+        return batchLimit;
+    }
+
+    long reconnectDelay = 1000;
+    /**
+     * The base delay before reconnecting, which doubles with every failed attempt.
+     */
+    public SocketIORequest setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+        return this;
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    long reconnectMaxDelay = 60000;
+    public SocketIORequest setReconnectMaxDelay(long reconnectMaxDelay) {
+        this.reconnectMaxDelay = reconnectMaxDelay;
+        return this;
+    }
+
+    public long getReconnectMaxDelay() {
+        return reconnectMaxDelay;
+    }
+
+    int reconnectMaxAttempts;
+    /**
+     * Stop reconnecting after this many attempts in a row fail. 0 retries forever.
+     */
+    public SocketIORequest setReconnectMaxAttempts(int reconnectMaxAttempts) {
+        this.reconnectMaxAttempts = reconnectMaxAttempts;
+        return this;
+    }
+
+    public int getReconnectMaxAttempts() {
+        return reconnectMaxAttempts;
+    }
+
+    boolean reconnectJitter = true;
+    /**
+     * Pick each reconnect delay at random between 0 and the backoff delay, so
+     * clients dropped at the same time don't all reconnect at the same time.
+     */
+    public SocketIORequest setReconnectJitter(boolean reconnectJitter) {
+        this.reconnectJitter = reconnectJitter;
+        return this;
+    }
+
+    public boolean getReconnectJitter() {
+        return reconnectJitter;
+    }
+
+    int maxQueuedEmits = 100;
+    /**
+     * The number of emits held while disconnected, to be sent after reconnecting.
+     * Emits past this are dropped.
+     */
+    public SocketIORequest setMaxQueuedEmits(int maxQueuedEmits) {
+        this.maxQueuedEmits = maxQueuedEmits;
+        return this;
+    }
+
+    public int getMaxQueuedEmits() {
+        return maxQueuedEmits;
+    }
+
+    long ackTimeout;
+    /**
+     * How long to wait for the server to acknowledge an emit. Once it passes, the
+     * acknowledgement is dropped and, if it is an AcknowledgeCallback, its onTimeout
+     * is invoked; otherwise the client's ExceptionCallback is. Either way the
+     * exception names the ack id. 0 waits forever.
+     */
+    public SocketIORequest setAckTimeout(long ackTimeout) {
+        this.ackTimeout = ackTimeout;
+        return this;
+    }
+
+    public long getAckTimeout() {
+        return ackTimeout;
+    }
+
     public SocketIORequest(String uri, String endpoint) {
         this(uri, endpoint, null);
     }
@@ -7,19 +7,57 @@ import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.TransformFuture;
 
 import org.json.JSONArray;
-import org.json.JSONObject;
+import org.json.JSONException;
 
 /**
  * Created by koush on 5/27/13.
  */
 public class JSONArrayParser implements AsyncParser<JSONArray> {
+    static public interface ElementCallback {
+        public void onElement(Object element) throws JSONException;
+    }
+
+    ElementCallback elementCallback;
+
+    public JSONArrayParser() {
+    }
+
+    /**
+     * Hands each element of the array to the callback as soon as it has been
+     * read, rather than collecting them, so arrays of any size can be processed
+     * one element at a time. The parsed array is then empty.
+     */
+    public JSONArrayParser(ElementCallback callback) {
+        elementCallback = callback;
+    }
+
     @Override
     public Future<JSONArray> parse(DataEmitter emitter) {
-        return new StringParser().parse(emitter)
-        .then(new TransformFuture<JSONArray, String>() {
+        final ElementCallback callback = elementCallback;
+        final JSONTreeBuilder builder = new JSONTreeBuilder() {
+            @Override
+            protected boolean onElement(int depth, String key, Object value) throws JSONException {
+                if (callback == null || depth != 1)
+                    return false;
+                callback.onElement(value);
+                return true;
+            }
+
+            @Override
+            public void onStartObject() throws JSONException {
+                if (containers.isEmpty())
+                    throw new JSONException("Value is not a JSONArray");
+                super.onStartObject();
+            }
+        };
+        return new JSONTokenizer(builder).parse(emitter)
+        .then(new TransformFuture<JSONArray, JSONHandler>() {
             @Override
-            protected void transform(String result) throws Exception {
-                setComplete(new JSONArray(result));
+            protected void transform(JSONHandler result) throws Exception {
+                Object root = builder.getRoot();
+                if (!(root instanceof JSONArray))
+                    throw new JSONException("Value is not a JSONArray");
+                setComplete((JSONArray)root);
             }
         });
     }
@@ -0,0 +1,17 @@
+package com.koushikdutta.async.parser;
+
+import org.json.JSONException;
+
+/**
+ * Receives the events of a {@link JSONTokenizer} as a document is read.
+ * Values are a String, Integer, Long, Double, Boolean or JSONObject.NULL.
+ * Throwing stops the tokenizer and fails the parse.
+ */
+public interface JSONHandler {
+    public void onStartObject() throws JSONException;
+    public void onEndObject() throws JSONException;
+    public void onStartArray() throws JSONException;
+    public void onEndArray() throws JSONException;
+    public void onKey(String key) throws JSONException;
+    public void onValue(Object value) throws JSONException;
+}
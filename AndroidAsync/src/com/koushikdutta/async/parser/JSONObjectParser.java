@@ -5,6 +5,7 @@ import com.koushikdutta.async.DataSink;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.TransformFuture;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -13,11 +14,15 @@ import org.json.JSONObject;
 public class JSONObjectParser implements AsyncParser<JSONObject> {
     @Override
     public Future<JSONObject> parse(DataEmitter emitter) {
-        return new StringParser().parse(emitter)
-        .then(new TransformFuture<JSONObject, String>() {
+        final JSONTreeBuilder builder = new JSONTreeBuilder();
+        return new JSONTokenizer(builder).parse(emitter)
+        .then(new TransformFuture<JSONObject, JSONHandler>() {
             @Override
-            protected void transform(String result) throws Exception {
-                setComplete(new JSONObject(result));
+            protected void transform(JSONHandler result) throws Exception {
+                Object root = builder.getRoot();
+                if (!(root instanceof JSONObject))
+                    throw new JSONException("Value is not a JSONObject");
+                setComplete((JSONObject)root);
             }
         });
     }
@@ -0,0 +1,453 @@
+package com.koushikdutta.async.parser;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.NullDataCallback;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpResponse;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads a UTF-8 JSON document incrementally. Write the document to it as it
+ * arrives, and it reports everything it has read to a {@link JSONHandler}.
+ * Only the token being read is buffered, so a document never has to be held
+ * in memory as bytes or as a String. {@link #parse(DataEmitter)} converts
+ * responses in another charset, as named by their Content-Type, to UTF-8.
+ */
+public class JSONTokenizer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // what may come next
+    private static final int EXPECT_VALUE = 0;
+    private static final int EXPECT_VALUE_OR_END = 1;
+    private static final int EXPECT_KEY_OR_END = 2;
+    private static final int EXPECT_KEY = 3;
+    private static final int EXPECT_COLON = 4;
+    private static final int EXPECT_COMMA_OR_END = 5;
+    private static final int EXPECT_NOTHING = 6;
+
+    // the token being read
+    private static final int TOKEN_NONE = 0;
+    private static final int TOKEN_STRING = 1;
+    private static final int TOKEN_ESCAPE = 2;
+    private static final int TOKEN_UNICODE = 3;
+    private static final int TOKEN_NUMBER = 4;
+    private static final int TOKEN_LITERAL = 5;
+
+    JSONHandler handler;
+    int expect = EXPECT_VALUE;
+    int token = TOKEN_NONE;
+    boolean key;
+    // the containers being read, '{' or '['
+    byte[] stack = new byte[32];
+    int depth;
+    long offset;
+    long tokenOffset;
+    JSONException error;
+
+    // the string being read: the raw UTF-8 since the last escape,
+    // and everything decoded before that
+    byte[] raw = new byte[256];
+    int rawLength;
+    StringBuilder chars = new StringBuilder();
+    int unicode;
+    int unicodeDigits;
+
+    public JSONTokenizer(JSONHandler handler) {
+        this.handler = handler;
+    }
+
+    public JSONHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * The number of objects and arrays the tokenizer is currently inside.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Reads all of bb. Once this has thrown, the tokenizer can't be used further.
+     */
+    public void write(ByteBufferList bb) throws JSONException {
+        if (error != null)
+            throw error;
+        try {
+            while (bb.size() > 0) {
+                ByteBuffer b = bb.remove();
+                while (b.hasRemaining()) {
+                    if (token == TOKEN_STRING)
+                        readString(b);
+                    if (b.hasRemaining())
+                        read(b.get() & 0xff);
+                }
+                ByteBufferList.reclaim(b);
+            }
+        }
+        catch (JSONException e) {
+            error = e;
+            bb.recycle();
+            throw e;
+        }
+    }
+
+    /**
+     * Call once the whole document has been written. Throws if the document was incomplete.
+     */
+    public void end() throws JSONException {
+        if (error != null)
+            throw error;
+        try {
+            if (token == TOKEN_NUMBER)
+                endNumber();
+            else if (token == TOKEN_LITERAL)
+                endLiteral();
+            if (token != TOKEN_NONE || expect != EXPECT_NOTHING)
+                throw new JSONException("Unexpected end of input at offset " + offset);
+        }
+        catch (JSONException e) {
+            error = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Reads everything the emitter produces. The future completes with the
+     * handler once the document has been read, or with the first error from
+     * the emitter, the document or the handler.
+     */
+    public Future<JSONHandler> parse(final DataEmitter emitter) {
+        Charset charset = null;
+        if (emitter instanceof AsyncHttpResponse)
+            charset = StringParser.getCharset(((AsyncHttpResponse)emitter).getHeaders());
+        final StringParser.Decoder transcoder;
+        if (charset == null || charset.equals(UTF8))
+            transcoder = null;
+        else
+            transcoder = new StringParser.Decoder(charset, raw.length);
+
+        final SimpleFuture<JSONHandler> ret = new SimpleFuture<JSONHandler>() {
+            @Override
+            protected void cancelCleanup() {
+                emitter.close();
+            }
+        };
+        emitter.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                try {
+                    if (transcoder != null)
+                        bb = transcode(transcoder, bb);
+                    write(bb);
+                }
+                catch (Exception e) {
+                    bb.recycle();
+                    emitter.setDataCallback(new NullDataCallback());
+                    ret.setComplete(e);
+                    emitter.close();
+                }
+            }
+        });
+
+        emitter.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                if (ex == null) {
+                    try {
+                        if (transcoder != null)
+                            write(new ByteBufferList(transcoder.finish().getBytes(UTF8)));
+                        end();
+                    }
+                    catch (Exception e) {
+                        ex = e;
+                    }
+                }
+                if (ex != null) {
+                    ret.setComplete(ex);
+                    return;
+                }
+                ret.setComplete(handler);
+            }
+        });
+
+        return ret;
+    }
+
+    private static ByteBufferList transcode(StringParser.Decoder transcoder, ByteBufferList bb) {
+        while (bb.size() > 0) {
+            ByteBuffer b = bb.remove();
+            transcoder.decode(b);
+            ByteBufferList.reclaim(b);
+        }
+        return new ByteBufferList(transcoder.drain().getBytes(UTF8));
+    }
+
+    // copies the run of plain string bytes at the head of b
+    private void readString(ByteBuffer b) {
+        int start = b.position();
+        int end = start;
+        int limit = b.limit();
+        while (end < limit) {
+            int c = b.get(end) & 0xff;
+            if (c == '"' || c == '\\' || c < 0x20)
+                break;
+            end++;
+        }
+        int length = end - start;
+        if (length == 0)
+            return;
+        if (rawLength + length > raw.length)
+            raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + length));
+        b.get(raw, rawLength, length);
+        rawLength += length;
+        offset += length;
+    }
+
+    private void read(int c) throws JSONException {
+        offset++;
+        switch (token) {
+            case TOKEN_STRING:
+                if (c == '"') {
+                    endString();
+                    return;
+                }
+                if (c == '\\') {
+                    flushRaw();
+                    token = TOKEN_ESCAPE;
+                    return;
+                }
+                if (c < 0x20)
+                    throw unexpected(c);
+                if (rawLength == raw.length)
+                    raw = Arrays.copyOf(raw, raw.length * 2);
+                raw[rawLength++] = (byte)c;
+                return;
+            case TOKEN_ESCAPE:
+                token = TOKEN_STRING;
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        chars.append((char)c);
+                        return;
+                    case 'b':
+                        chars.append('\b');
+                        return;
+                    case 'f':
+                        chars.append('\f');
+                        return;
+                    case 'n':
+                        chars.append('\n');
+                        return;
+                    case 'r':
+                        chars.append('\r');
+                        return;
+                    case 't':
+                        chars.append('\t');
+                        return;
+                    case 'u':
+                        token = TOKEN_UNICODE;
+                        unicode = 0;
+                        unicodeDigits = 0;
+                        return;
+                }
+                throw unexpected(c);
+            case TOKEN_UNICODE:
+                int digit = Character.digit(c, 16);
+                if (digit < 0)
+                    throw unexpected(c);
+                unicode = (unicode << 4) | digit;
+                if (++unicodeDigits == 4) {
+                    chars.append((char)unicode);
+                    token = TOKEN_STRING;
+                }
+                return;
+            case TOKEN_NUMBER:
+                if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                    chars.append((char)c);
+                    return;
+                }
+                endNumber();
+                break;
+            case TOKEN_LITERAL:
+                if (c >= 'a' && c <= 'z') {
+                    chars.append((char)c);
+                    return;
+                }
+                endLiteral();
+                break;
+        }
+
+        switch (c) {
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\r':
+                return;
+            case '{':
+                beginValue(c);
+                push('{');
+                expect = EXPECT_KEY_OR_END;
+                handler.onStartObject();
+                return;
+            case '[':
+                beginValue(c);
+                push('[');
+                expect = EXPECT_VALUE_OR_END;
+                handler.onStartArray();
+                return;
+            case '}':
+                if ((expect != EXPECT_KEY_OR_END && expect != EXPECT_COMMA_OR_END) || stack[depth - 1] != '{')
+                    throw unexpected(c);
+                depth--;
+                endValue();
+                handler.onEndObject();
+                return;
+            case ']':
+                if ((expect != EXPECT_VALUE_OR_END && expect != EXPECT_COMMA_OR_END) || stack[depth - 1] != '[')
+                    throw unexpected(c);
+                depth--;
+                endValue();
+                handler.onEndArray();
+                return;
+            case ',':
+                if (expect != EXPECT_COMMA_OR_END)
+                    throw unexpected(c);
+                expect = stack[depth - 1] == '{' ? EXPECT_KEY : EXPECT_VALUE;
+                return;
+            case ':':
+                if (expect != EXPECT_COLON)
+                    throw unexpected(c);
+                expect = EXPECT_VALUE;
+                return;
+            case '"':
+                key = expect == EXPECT_KEY || expect == EXPECT_KEY_OR_END;
+                if (!key)
+                    beginValue(c);
+                token = TOKEN_STRING;
+                rawLength = 0;
+                chars.setLength(0);
+                return;
+        }
+
+        if (c == '-' || (c >= '0' && c <= '9')) {
+            beginValue(c);
+            token = TOKEN_NUMBER;
+        }
+        else if (c >= 'a' && c <= 'z') {
+            beginValue(c);
+            token = TOKEN_LITERAL;
+        }
+        else {
+            throw unexpected(c);
+        }
+        tokenOffset = offset - 1;
+        chars.setLength(0);
+        chars.append((char)c);
+    }
+
+    private void push(int c) {
+        if (depth == stack.length)
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[depth++] = (byte)c;
+    }
+
+    private void beginValue(int c) throws JSONException {
+        if (expect != EXPECT_VALUE && expect != EXPECT_VALUE_OR_END)
+            throw unexpected(c);
+    }
+
+    private void endValue() {
+        expect = depth == 0 ? EXPECT_NOTHING : EXPECT_COMMA_OR_END;
+    }
+
+    private void flushRaw() {
+        if (rawLength == 0)
+            return;
+        chars.append(new String(raw, 0, rawLength, UTF8));
+        rawLength = 0;
+    }
+
+    private void endString() throws JSONException {
+        token = TOKEN_NONE;
+        String value;
+        if (chars.length() == 0) {
+            value = new String(raw, 0, rawLength, UTF8);
+        }
+        else {
+            flushRaw();
+            value = chars.toString();
+        }
+        if (key) {
+            expect = EXPECT_COLON;
+            handler.onKey(value);
+            return;
+        }
+        endValue();
+        handler.onValue(value);
+    }
+
+    private void endNumber() throws JSONException {
+        token = TOKEN_NONE;
+        String value = chars.toString();
+        Object number = null;
+        try {
+            if (value.indexOf('.') < 0 && value.indexOf('e') < 0 && value.indexOf('E') < 0) {
+                long l = Long.parseLong(value);
+                if (l == (int)l)
+                    number = Integer.valueOf((int)l);
+                else
+                    number = Long.valueOf(l);
+            }
+        }
+        catch (NumberFormatException e) {
+            // too big for a long
+        }
+        if (number == null) {
+            try {
+                number = Double.valueOf(value);
+            }
+            catch (NumberFormatException e) {
+                throw new JSONException("Invalid number " + value + " at offset " + tokenOffset);
+            }
+        }
+        endValue();
+        handler.onValue(number);
+    }
+
+    private void endLiteral() throws JSONException {
+        token = TOKEN_NONE;
+        String value = chars.toString();
+        Object literal;
+        if ("true".equals(value))
+            literal = Boolean.TRUE;
+        else if ("false".equals(value))
+            literal = Boolean.FALSE;
+        else if ("null".equals(value))
+            literal = JSONObject.NULL;
+        else
+            throw new JSONException("Invalid literal " + value + " at offset " + tokenOffset);
+        endValue();
+        handler.onValue(literal);
+    }
+
+    private JSONException unexpected(int c) {
+        String found;
+        if (c < 0x20 || c >= 0x7f)
+            found = String.format("byte 0x%02x", c);
+        else
+            found = "character '" + (char)c + "'";
+        return new JSONException("Unexpected " + found + " at offset " + (offset - 1));
+    }
+}
@@ -0,0 +1,96 @@
+package com.koushikdutta.async.parser;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+/**
+ * Builds JSONObjects and JSONArrays from the events of a {@link JSONTokenizer}.
+ * An object with the same key twice is an error.
+ * Override {@link #onElement(int, String, Object)} to handle values as soon as
+ * they have been read, rather than once the whole document has been.
+ */
+public class JSONTreeBuilder implements JSONHandler {
+    ArrayList<Object> containers = new ArrayList<Object>();
+    // the key of the member being read in each container, null in arrays
+    ArrayList<String> keys = new ArrayList<String>();
+    Object root;
+
+    /**
+     * The document, once it has been read.
+     */
+    public Object getRoot() {
+        return root;
+    }
+
+    /**
+     * Called with each value once it has been read, before it is added to its
+     * container. depth is 1 for the members of the document's object or array,
+     * and key is null for array elements. Return true to drop the value rather
+     * than add it, so large documents needn't be held in memory.
+     */
+    protected boolean onElement(int depth, String key, Object value) throws JSONException {
+        return false;
+    }
+
+    @Override
+    public void onStartObject() throws JSONException {
+        containers.add(new JSONObject());
+        keys.add(null);
+    }
+
+    @Override
+    public void onEndObject() throws JSONException {
+        end();
+    }
+
+    @Override
+    public void onStartArray() throws JSONException {
+        containers.add(new JSONArray());
+        keys.add(null);
+    }
+
+    @Override
+    public void onEndArray() throws JSONException {
+        end();
+    }
+
+    @Override
+    public void onKey(String key) throws JSONException {
+        keys.set(keys.size() - 1, key);
+    }
+
+    @Override
+    public void onValue(Object value) throws JSONException {
+        add(value);
+    }
+
+    private void end() throws JSONException {
+        int last = containers.size() - 1;
+        keys.remove(last);
+        add(containers.remove(last));
+    }
+
+    private void add(Object value) throws JSONException {
+        int depth = containers.size();
+        if (depth == 0) {
+            if (!onElement(0, null, value))
+                root = value;
+            return;
+        }
+        String key = keys.get(depth - 1);
+        if (onElement(depth, key, value))
+            return;
+        Object container = containers.get(depth - 1);
+        if (container instanceof JSONObject) {
+            // which one was meant is anyone's guess
+            if (((JSONObject)container).has(key))
+                throw new JSONException("Duplicate key \"" + key + "\"");
+            ((JSONObject)container).put(key, value);
+        }
+        else
+            ((JSONArray)container).put(value);
+    }
+}
@@ -4,26 +4,173 @@ import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.DataSink;
 import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.TransformFuture;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpResponse;
+import com.koushikdutta.async.http.Multimap;
+import com.koushikdutta.async.http.libcore.Charsets;
+import com.koushikdutta.async.http.libcore.ResponseHeaders;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Created by koush on 5/27/13.
  */
 public class StringParser implements AsyncParser<String> {
+    // initial size of the decoded text when there's no Content-Length
+    private static final int DEFAULT_SIZE = 1024;
+    // don't trust a Content-Length beyond this for the initial allocation
+    private static final int MAX_PRESIZE = 4 * 1024 * 1024;
+
+    Charset charset;
+
+    public StringParser() {
+    }
+
+    /**
+     * Decodes with charset, rather than the charset of the response's
+     * Content-Type, or UTF-8 if it has none.
+     */
+    public StringParser(Charset charset) {
+        this.charset = charset;
+    }
+
+    static Charset getCharset(ResponseHeaders headers) {
+        String contentType = headers.getHeaders().get("Content-Type");
+        if (contentType == null)
+            return null;
+        String name = Multimap.parseHeader(contentType).getString("charset");
+        if (name == null)
+            return null;
+        try {
+            return Charset.forName(name.trim());
+        }
+        catch (Exception e) {
+            // unknown or malformed charset name
+            return null;
+        }
+    }
+
     @Override
-    public Future<String> parse(DataEmitter emitter) {
-        return new ByteBufferListParser().parse(emitter)
-        .then(new TransformFuture<String, ByteBufferList>() {
+    public Future<String> parse(final DataEmitter emitter) {
+        Charset charset = this.charset;
+        int size = DEFAULT_SIZE;
+        if (emitter instanceof AsyncHttpResponse) {
+            ResponseHeaders headers = ((AsyncHttpResponse)emitter).getHeaders();
+            if (charset == null)
+                charset = getCharset(headers);
+            // only a hint: the length may be of the encoded body
+            int contentLength = headers.getContentLength();
+            if (contentLength >= 0)
+                size = contentLength;
+        }
+        if (charset == null)
+            charset = Charsets.UTF_8;
+
+        final Decoder decoder = new Decoder(charset, size);
+        final SimpleFuture<String> ret = new SimpleFuture<String>() {
             @Override
-            protected void transform(ByteBufferList result) throws Exception {
-                setComplete(result.readString());
+            protected void cancelCleanup() {
+                emitter.close();
+            }
+        };
+        emitter.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList data) {
+                while (data.size() > 0) {
+                    ByteBuffer b = data.remove();
+                    decoder.decode(b);
+                    ByteBufferList.reclaim(b);
+                }
             }
         });
+
+        emitter.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                if (ex != null) {
+                    ret.setComplete(ex);
+                    return;
+                }
+                ret.setComplete(decoder.finish());
+            }
+        });
+
+        return ret;
+    }
+
+    // decodes straight into one buffer as the data arrives, so the bytes
+    // are never gathered and the text is only copied once more, into the String
+    static class Decoder {
+        CharsetDecoder decoder;
+        CharBuffer text;
+        // a character that straddles buffers
+        ByteBuffer carry = ByteBuffer.allocate(16);
+
+        Decoder(Charset charset, int size) {
+            decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            size = (int)Math.ceil(Math.min(size, MAX_PRESIZE) * decoder.averageCharsPerByte());
+            text = CharBuffer.allocate(Math.max(size, 16));
+        }
+
+        void decode(ByteBuffer in) {
+            // finish the straddling character a byte at a time
+            while (carry.position() > 0 && in.hasRemaining()) {
+                carry.put(in.get());
+                carry.flip();
+                decode(carry, false);
+                carry.compact();
+            }
+            decode(in, false);
+            if (in.hasRemaining())
+                carry.put(in);
+        }
+
+        // the text decoded so far, which is then let go of
+        String drain() {
+            text.flip();
+            String ret = text.toString();
+            text.clear();
+            return ret;
+        }
+
+        String finish() {
+            carry.flip();
+            decode(carry, true);
+            while (decoder.flush(text).isOverflow())
+                grow();
+            text.flip();
+            return text.toString();
+        }
+
+        private void decode(ByteBuffer in, boolean last) {
+            while (true) {
+                CoderResult result = decoder.decode(in, text, last);
+                if (!result.isOverflow())
+                    return;
+                grow();
+            }
+        }
+
+        private void grow() {
+            CharBuffer bigger = CharBuffer.allocate(text.capacity() * 2);
+            text.flip();
+            bigger.put(text);
+            text = bigger;
+        }
     }
 
     @Override
     public void write(DataSink sink, String value, CompletedCallback completed) {
-        new ByteBufferListParser().write(sink, new ByteBufferList(value.getBytes()), completed);
+        byte[] bytes = charset == null ? value.getBytes() : value.getBytes(charset);
+        new ByteBufferListParser().write(sink, new ByteBufferList(bytes), completed);
     }
 }
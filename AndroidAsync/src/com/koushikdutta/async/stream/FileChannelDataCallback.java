@@ -0,0 +1,276 @@
+package com.koushikdutta.async.stream;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the data it receives to a file on a background thread, so the
+ * server thread never waits on the disk. Queued buffers are written together
+ * with a gathering write, and the emitter is paused while more than
+ * {@link #getMaxQueued()} bytes are waiting. Different files are written in
+ * parallel.
+ */
+public class FileChannelDataCallback implements DataCallback {
+    // shared by every file, each of which runs its tasks on it one at a time
+    static final ThreadPoolExecutor writers =
+    new ThreadPoolExecutor(4, 4, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        writers.allowCoreThreadTimeOut(true);
+    }
+
+    // this file's writes, and its open and close, in order
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    boolean running;
+
+    AsyncServer server;
+    File file;
+    FileChannel channel;
+    // where the next write goes, only touched by the tasks
+    long position;
+    boolean truncate;
+
+    ArrayList<ByteBuffer> queue = new ArrayList<ByteBuffer>();
+    int queued;
+    boolean draining;
+    DataEmitter paused;
+    Exception error;
+    CompletedCallback errorCallback;
+
+    /**
+     * Writes to file starting at position. Anything in the file past position
+     * is discarded, so 0 replaces the file and its length resumes it.
+     */
+    public FileChannelDataCallback(AsyncServer server, File file, long position) {
+        this(server, file, position, true);
+    }
+
+    /**
+     * Without truncate, the file is left at its length and only the bytes
+     * written are changed, so that several callbacks can each fill their own
+     * region of one file.
+     */
+    public FileChannelDataCallback(AsyncServer server, File file, final long position, final boolean truncate) {
+        this.server = server;
+        this.file = file;
+        this.position = position;
+        this.truncate = truncate;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel = new RandomAccessFile(FileChannelDataCallback.this.file, "rw").getChannel();
+                    if (truncate)
+                        channel.truncate(position);
+                    channel.position(position);
+                }
+                catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running)
+                return;
+            running = true;
+        }
+        writers.execute(runTask);
+    }
+
+    // one task per turn on the pool, so a busy file doesn't hold up the others
+    Runnable runTask = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.remove();
+            }
+            task.run();
+            synchronized (tasks) {
+                if (tasks.isEmpty()) {
+                    running = false;
+                    return;
+                }
+            }
+            writers.execute(runTask);
+        }
+    };
+
+    public File getFile() {
+        return file;
+    }
+
+    int maxQueued = 1024 * 1024;
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * The emitter is paused while this many bytes are waiting to be written,
+     * and resumed once half of them have been.
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Called on the server thread if a write fails. Anything received after
+     * that is discarded.
+     */
+    public void setErrorCallback(CompletedCallback callback) {
+        errorCallback = callback;
+    }
+
+    /**
+     * Extends the file to hold length more bytes, so a download of known size
+     * gets its space up front where the filesystem allows. When truncating,
+     * whatever isn't written is truncated on close.
+     */
+    public void preallocate(final long length) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // a positional write leaves the channel's position alone
+                    if (channel != null && length > 0 && channel.size() < position + length)
+                        channel.write(ByteBuffer.allocate(1), position + length - 1);
+                }
+                catch (IOException e) {
+                    // only an optimization
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+        synchronized (this) {
+            if (error != null) {
+                bb.recycle();
+                return;
+            }
+            queued += bb.remaining();
+            for (ByteBuffer b: bb.getAllArray()) {
+                queue.add(b);
+            }
+            if (queued >= maxQueued) {
+                paused = emitter;
+                emitter.pause();
+            }
+            if (!draining) {
+                draining = true;
+                execute(drain);
+            }
+        }
+    }
+
+    Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                ByteBuffer[] buffers;
+                int length;
+                synchronized (FileChannelDataCallback.this) {
+                    if (queue.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    buffers = queue.toArray(new ByteBuffer[queue.size()]);
+                    queue.clear();
+                    length = queued;
+                }
+
+                if (error == null && channel != null) {
+                    try {
+                        long remaining = length;
+                        while (remaining > 0) {
+                            remaining -= channel.write(buffers);
+                        }
+                        position += length;
+                    }
+                    catch (IOException e) {
+                        fail(e);
+                    }
+                }
+                for (ByteBuffer b: buffers) {
+                    ByteBufferList.reclaim(b);
+                }
+
+                synchronized (FileChannelDataCallback.this) {
+                    queued -= length;
+                    if (paused != null && (queued < maxQueued / 2 || error != null)) {
+                        final DataEmitter emitter = paused;
+                        paused = null;
+                        server.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                emitter.resume();
+                            }
+                        });
+                    }
+                }
+            }
+        }
+    };
+
+    private void fail(Exception e) {
+        synchronized (this) {
+            if (error != null)
+                return;
+            error = e;
+        }
+        if (errorCallback != null)
+            server.post(errorCallback, e);
+    }
+
+    /**
+     * Finishes writing what has been received, truncates the file to it if
+     * truncating, and closes it. callback is called on the server thread, with the first
+     * error writing the file, if any.
+     */
+    public void close(final CompletedCallback callback) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Exception ex = error;
+                if (channel != null) {
+                    try {
+                        if (truncate)
+                            channel.truncate(position);
+                    }
+                    catch (IOException e) {
+                        if (ex == null)
+                            ex = e;
+                    }
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException e) {
+                        if (ex == null)
+                            ex = e;
+                    }
+                    channel = null;
+                }
+                if (callback != null)
+                    server.post(callback, ex);
+            }
+        });
+    }
+}
@@ -1,7 +1,9 @@
 package com.koushikdutta.async.util;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Set;
 
 /**
  * Created by koush on 5/27/13.
@@ -35,6 +37,10 @@ public class HashList<T> {
         return internal.remove(key);
     }
 
+    public synchronized Set<String> keySet() {
+        return new HashSet<String>(internal.keySet());
+    }
+
     public synchronized int size() {
         return internal.size();
     }
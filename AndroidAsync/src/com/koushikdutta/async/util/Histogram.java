@@ -0,0 +1,79 @@
+package com.koushikdutta.async.util;
+
+/**
+ * A fixed size histogram with power of two buckets. Bucket 0 holds
+ * values of 0, and bucket n holds values in [2^(n-1), 2^n).
+ * Recording a value is O(1) and allocation free.
+ */
+public class Histogram {
+    private static final int BUCKETS = 32;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    private static int bucket(long value) {
+        if (value <= 0)
+            return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    public synchronized void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * An upper bound for the given percentile (0-100), at bucket resolution.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+        long target = (long)Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target && seen > 0)
+                return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+        }
+        return max;
+    }
+
+    /**
+     * A copy of the bucket counts.
+     */
+    public synchronized long[] getBuckets() {
+        return counts.clone();
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = 0;
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+}
@@ -0,0 +1,10 @@
+package com.koushikdutta.async.wrapper;
+
+import com.koushikdutta.async.DataSink;
+
+/**
+ * A sink that passes what is written to it on to another sink unchanged.
+ */
+public interface DataSinkWrapper extends DataSink {
+    public DataSink getDataSink();
+}
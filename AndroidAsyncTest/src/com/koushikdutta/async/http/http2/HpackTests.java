@@ -0,0 +1,176 @@
+package com.koushikdutta.async.http.http2;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK against the examples in RFC 7541 Appendix C.
+ */
+public class HpackTests extends TestCase {
+    private static byte[] hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] ret = new byte[hex.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return ret;
+    }
+
+    private static List<String[]> decode(Hpack.Decoder decoder, String hex) throws Exception {
+        byte[] block = hex(hex);
+        return decoder.decode(block, 0, block.length);
+    }
+
+    private static void assertHeaders(List<String[]> headers, String... expected) {
+        assertEquals(headers.size(), expected.length / 2);
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(headers.get(i)[0], expected[i * 2]);
+            assertEquals(headers.get(i)[1], expected[i * 2 + 1]);
+        }
+    }
+
+    public void testHuffman() throws Exception {
+        byte[] encoded = hex("f1e3 c2e5 f23a 6ba0 ab90 f4ff");
+        assertEquals(new String(Huffman.decode(encoded, 0, encoded.length), "ISO-8859-1"), "www.example.com");
+        encoded = hex("a8eb 1064 9cbf");
+        assertEquals(new String(Huffman.decode(encoded, 0, encoded.length), "ISO-8859-1"), "no-cache");
+    }
+
+    public void testHuffmanPadding() throws Exception {
+        // '0' is 00000, the padding has to be ones
+        try {
+            Huffman.decode(new byte[] { 0x00 }, 0, 1);
+            fail();
+        }
+        catch (Exception e) {
+        }
+        assertEquals(new String(Huffman.decode(new byte[] { 0x07 }, 0, 1), "ISO-8859-1"), "0");
+
+        // more than 7 bits of padding
+        try {
+            Huffman.decode(new byte[] { 0x07, (byte)0xff }, 0, 2);
+            fail();
+        }
+        catch (Exception e) {
+        }
+    }
+
+    // C.4, requests with Huffman coding, sharing one dynamic table
+    public void testRequests() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertHeaders(decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"),
+        ":method", "GET",
+        ":scheme", "http",
+        ":path", "/",
+        ":authority", "www.example.com");
+
+        assertHeaders(decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"),
+        ":method", "GET",
+        ":scheme", "http",
+        ":path", "/",
+        ":authority", "www.example.com",
+        "cache-control", "no-cache");
+
+        assertHeaders(decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"),
+        ":method", "GET",
+        ":scheme", "https",
+        ":path", "/index.html",
+        ":authority", "www.example.com",
+        "custom-key", "custom-value");
+    }
+
+    // C.6, responses with Huffman coding and a 256 byte table, so entries are evicted
+    public void testResponsesEviction() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertHeaders(decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"),
+        ":status", "302",
+        "cache-control", "private",
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+        "location", "https://www.example.com");
+
+        // :status 302 is evicted to make room for :status 307
+        assertHeaders(decode(decoder, "4883 640e ffc1 c0bf"),
+        ":status", "307",
+        "cache-control", "private",
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+        "location", "https://www.example.com");
+
+        assertHeaders(decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106 3d50 07"),
+        ":status", "200",
+        "cache-control", "private",
+        "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+        "location", "https://www.example.com",
+        "content-encoding", "gzip",
+        "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+
+        // only the three newest entries are left
+        assertHeaders(decode(decoder, "be"), "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+        assertHeaders(decode(decoder, "c0"), "date", "Mon, 21 Oct 2013 20:13:22 GMT");
+        try {
+            decode(decoder, "c1");
+            fail();
+        }
+        catch (Exception e) {
+        }
+    }
+
+    public void testTableSizeUpdate() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572");
+        assertHeaders(decode(decoder, "be"), "custom-key", "custom-header");
+
+        // shrinking the table to nothing evicts everything
+        assertHeaders(decode(decoder, "20"));
+        try {
+            decode(decoder, "be");
+            fail();
+        }
+        catch (Exception e) {
+        }
+
+        // past what the decoder allows
+        try {
+            decode(decoder, "3fe2 1f");
+            fail();
+        }
+        catch (Exception e) {
+        }
+    }
+
+    public void testTruncated() throws Exception {
+        try {
+            decode(new Hpack.Decoder(4096), "4088 25a8 49e9");
+            fail();
+        }
+        catch (Exception e) {
+        }
+    }
+
+    public void testEncoder() throws Exception {
+        ArrayList<String[]> headers = new ArrayList<String[]>();
+        headers.add(new String[] { ":method", "GET" });
+        headers.add(new String[] { ":path", "/some/path" });
+        headers.add(new String[] { "user-agent", "test" });
+        headers.add(new String[] { "x-custom", "été" });
+        headers.add(new String[] { "authorization", "secret" });
+        byte[] block = new Hpack.Encoder().encode(headers);
+
+        // an exact static table match is a single byte
+        assertEquals(block[0] & 0xff, 0x82);
+
+        List<String[]> decoded = new Hpack.Decoder(4096).decode(block, 0, block.length);
+        assertEquals(decoded.size(), headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(decoded.get(i)[0], headers.get(i)[0]);
+            assertEquals(decoded.get(i)[1], headers.get(i)[1]);
+        }
+
+        // credentials are never indexed
+        headers.clear();
+        headers.add(new String[] { "authorization", "secret" });
+        block = new Hpack.Encoder().encode(headers);
+        assertEquals(block[0] & 0xf0, 0x10);
+    }
+}
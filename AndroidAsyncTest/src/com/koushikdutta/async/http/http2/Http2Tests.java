@@ -0,0 +1,562 @@
+package com.koushikdutta.async.http.http2;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.AsyncHttpPost;
+import com.koushikdutta.async.http.body.StringBody;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/2 framing, flow control and connection handling, against a blocking h2c
+ * server that each test scripts frame by frame.
+ */
+public class Http2Tests extends TestCase {
+    private static final long TIMEOUT = 10000L;
+    private static final int PORT = 5003;
+
+    interface Script {
+        void run(Connection connection) throws Exception;
+    }
+
+    static class Frame {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+
+        int getInt(int offset) {
+            return ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16) | ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+        }
+    }
+
+    static class Request {
+        int streamId;
+        List<String[]> headers;
+        boolean endStream;
+
+        String getHeader(String name) {
+            for (String[] header: headers) {
+                if (header[0].equals(name))
+                    return header[1];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The server side of a connection.
+     */
+    static class Connection {
+        Socket socket;
+        DataInputStream in;
+        OutputStream out;
+        Hpack.Decoder decoder = new Hpack.Decoder(Http2Connection.HEADER_TABLE_SIZE);
+        boolean settingsAcked;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout((int)TIMEOUT);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Read the client preface, and send the server's settings.
+         */
+        void handshake(int... settings) throws Exception {
+            byte[] preface = new byte[24];
+            in.readFully(preface);
+            assertEquals(new String(preface, "US-ASCII"), "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            for (int i = 0; i < settings.length; i += 2) {
+                payload.write(settings[i] >> 8);
+                payload.write(settings[i]);
+                payload.write(intBytes(settings[i + 1]));
+            }
+            write(Http2Connection.TYPE_SETTINGS, 0, 0, payload.toByteArray());
+        }
+
+        Frame read() throws IOException {
+            Frame frame = new Frame();
+            int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            frame.type = in.readUnsignedByte();
+            frame.flags = in.readUnsignedByte();
+            frame.streamId = in.readInt() & 0x7fffffff;
+            frame.payload = new byte[length];
+            in.readFully(frame.payload);
+            if (frame.type == Http2Connection.TYPE_SETTINGS && (frame.flags & Http2Connection.FLAG_ACK) != 0)
+                settingsAcked = true;
+            return frame;
+        }
+
+        Frame read(int type) throws IOException {
+            Frame frame;
+            do {
+                frame = read();
+            }
+            while (frame.type != type);
+            return frame;
+        }
+
+        Request readRequest() throws Exception {
+            Frame frame = read(Http2Connection.TYPE_HEADERS);
+            assertTrue((frame.flags & Http2Connection.FLAG_END_HEADERS) != 0);
+            Request ret = new Request();
+            ret.streamId = frame.streamId;
+            ret.headers = decoder.decode(frame.payload, 0, frame.payload.length);
+            ret.endStream = (frame.flags & Http2Connection.FLAG_END_STREAM) != 0;
+            return ret;
+        }
+
+        void write(int type, int flags, int streamId, byte[] payload) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(payload.length >> 16);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+            frame.write(type);
+            frame.write(flags);
+            frame.write(intBytes(streamId));
+            frame.write(payload);
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+
+        byte[] headers(String... headers) {
+            ArrayList<String[]> list = new ArrayList<String[]>();
+            for (int i = 0; i < headers.length; i += 2) {
+                list.add(new String[] { headers[i], headers[i + 1] });
+            }
+            return new Hpack.Encoder().encode(list);
+        }
+
+        void respond(int streamId, String body) throws IOException {
+            write(Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS, streamId, headers(":status", "200"));
+            write(Http2Connection.TYPE_DATA, Http2Connection.FLAG_END_STREAM, streamId, body.getBytes("US-ASCII"));
+        }
+
+        void goAway(int lastStreamId, int errorCode) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(intBytes(lastStreamId));
+            payload.write(intBytes(errorCode));
+            write(Http2Connection.TYPE_GOAWAY, 0, 0, payload.toByteArray());
+        }
+
+        void windowUpdate(int streamId, int increment) throws IOException {
+            write(Http2Connection.TYPE_WINDOW_UPDATE, 0, streamId, intBytes(increment));
+        }
+    }
+
+    static byte[] intBytes(int value) {
+        return new byte[] { (byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value };
+    }
+
+    ServerSocket serverSocket;
+    AsyncServer clientServer;
+    AsyncHttpClient client;
+    final AtomicInteger accepted = new AtomicInteger();
+    // holds up connects, so requests can be cancelled while they wait on one
+    long lookupDelay;
+    // failures on the server threads, reported on the test thread
+    final LinkedBlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clientServer = new AsyncServer() {
+            @Override
+            public Future<InetAddress[]> getAllByName(String host) {
+                Future<InetAddress[]> lookup = super.getAllByName(host);
+                if (lookupDelay <= 0)
+                    return lookup;
+                final SimpleFuture<InetAddress[]> ret = new SimpleFuture<InetAddress[]>();
+                lookup.setCallback(new FutureCallback<InetAddress[]>() {
+                    @Override
+                    public void onCompleted(final Exception e, final InetAddress[] result) {
+                        postDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                ret.setComplete(e, result);
+                            }
+                        }, lookupDelay);
+                    }
+                });
+                return ret;
+            }
+        };
+        client = new AsyncHttpClient(clientServer);
+        client.getHttp2Middleware().setEnabled(true);
+        client.getHttp2Middleware().setPriorKnowledge(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        clientServer.stop();
+        if (serverSocket != null)
+            serverSocket.close();
+        Throwable error = errors.poll();
+        if (error != null)
+            throw new Exception(error);
+    }
+
+    /**
+     * Serve each connection with the next script.
+     */
+    private void listen(final Script... scripts) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress("localhost", PORT));
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (final Script script: scripts) {
+                        final Socket socket = serverSocket.accept();
+                        accepted.incrementAndGet();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    script.run(new Connection(socket));
+                                }
+                                catch (Throwable e) {
+                                    errors.add(e);
+                                }
+                                finally {
+                                    try {
+                                        socket.close();
+                                    }
+                                    catch (IOException e) {
+                                    }
+                                }
+                            }
+                        }.start();
+                    }
+                }
+                catch (IOException e) {
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private String get(String path) throws Exception {
+        return client.executeString(new AsyncHttpGet("http://localhost:" + PORT + path)).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    // answer every request with its path, until the client hangs up
+    private static final Script ECHO = new Script() {
+        @Override
+        public void run(Connection connection) throws Exception {
+            connection.handshake();
+            while (true) {
+                Request request;
+                try {
+                    request = connection.readRequest();
+                }
+                catch (IOException e) {
+                    return;
+                }
+                connection.respond(request.streamId, request.getHeader(":path"));
+            }
+        }
+    };
+
+    public void testOptIn() throws Exception {
+        assertFalse(new AsyncHttpClient(clientServer).getHttp2Middleware().getEnabled());
+    }
+
+    public void testRequest() throws Exception {
+        final LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+        final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        listen(new Script() {
+            @Override
+            public void run(Connection connection) throws Exception {
+                connection.handshake();
+                frames.add(connection.read(Http2Connection.TYPE_WINDOW_UPDATE));
+                Request request = connection.readRequest();
+                requests.add(request);
+                connection.respond(request.streamId, "hello");
+                frames.add(connection.read(Http2Connection.TYPE_GOAWAY));
+            }
+        });
+        client.getHttp2Middleware().setIdleTimeout(200);
+        assertEquals(get("/hello"), "hello");
+        assertEquals(client.getHttp2Middleware().getConnectionCount(), 1);
+
+        Request request = requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(request.streamId, 1);
+        assertTrue(request.endStream);
+        assertEquals(request.getHeader(":method"), "GET");
+        assertEquals(request.getHeader(":scheme"), "http");
+        assertEquals(request.getHeader(":path"), "/hello");
+        assertEquals(request.getHeader(":authority"), "localhost:" + PORT);
+        // connection specific headers don't exist in HTTP/2
+        assertNull(request.getHeader("connection"));
+        assertNull(request.getHeader("host"));
+
+        // the client opens up the connection window right away
+        Frame update = frames.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(update.streamId, 0);
+        assertEquals(update.getInt(0), Http2Connection.CONNECTION_WINDOW_SIZE - Http2Connection.DEFAULT_WINDOW_SIZE);
+
+        // and says goodbye once the connection is idle
+        Frame goAway = frames.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(goAway.getInt(4), Http2Connection.NO_ERROR);
+        assertEquals(client.getHttp2Middleware().getConnectionCount(), 0);
+    }
+
+    public void testFrames() throws Exception {
+        final LinkedBlockingQueue<Frame> pings = new LinkedBlockingQueue<Frame>();
+        listen(new Script() {
+            @Override
+            public void run(Connection connection) throws Exception {
+                connection.handshake();
+                Request request = connection.readRequest();
+
+                connection.write(Http2Connection.TYPE_PING, 0, 0, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+                // unknown frame types are ignored
+                connection.write(0xfa, 0, 0, new byte[] { 1, 2, 3 });
+
+                // headers split across a CONTINUATION
+                byte[] block = connection.headers(":status", "200", "x-first", "one", "x-second", "two");
+                byte[] first = new byte[4];
+                byte[] rest = new byte[block.length - first.length];
+                System.arraycopy(block, 0, first, 0, first.length);
+                System.arraycopy(block, first.length, rest, 0, rest.length);
+                connection.write(Http2Connection.TYPE_HEADERS, 0, request.streamId, first);
+                connection.write(Http2Connection.TYPE_CONTINUATION, Http2Connection.FLAG_END_HEADERS, request.streamId, rest);
+
+                // padded data, then the rest in a second frame
+                byte[] padded = new byte[] { 3, 'h', 'e', 'l', 'l', 'o', ' ', 0, 0, 0 };
+                connection.write(Http2Connection.TYPE_DATA, Http2Connection.FLAG_PADDED, request.streamId, padded);
+                connection.write(Http2Connection.TYPE_DATA, Http2Connection.FLAG_END_STREAM, request.streamId, "world".getBytes("US-ASCII"));
+
+                pings.add(connection.read(Http2Connection.TYPE_PING));
+            }
+        });
+        assertEquals(get("/frames"), "hello world");
+
+        Frame ping = pings.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(ping.flags, Http2Connection.FLAG_ACK);
+        assertEquals(ping.getInt(0), 0x01020304);
+        assertEquals(ping.getInt(4), 0x05060708);
+    }
+
+    public void testFlowControl() throws Exception {
+        final LinkedBlockingQueue<Integer> received = new LinkedBlockingQueue<Integer>();
+        listen(new Script() {
+            @Override
+            public void run(Connection connection) throws Exception {
+                connection.handshake(Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE, 16);
+                // the client has the settings once it acknowledges them
+                Request request = connection.readRequest();
+                while (!connection.settingsAcked)
+                    connection.read();
+                connection.respond(request.streamId, "warm");
+
+                request = connection.readRequest();
+                assertFalse(request.endStream);
+                // only the stream window is sent
+                int total = 0;
+                while (total < 16) {
+                    total += connection.read(Http2Connection.TYPE_DATA).payload.length;
+                }
+                received.add(total);
+                connection.socket.setSoTimeout(300);
+                try {
+                    Frame frame = connection.read();
+                    received.add(frame.type == Http2Connection.TYPE_DATA ? -1 : 0);
+                }
+                catch (SocketTimeoutException e) {
+                    received.add(0);
+                }
+                connection.socket.setSoTimeout((int)TIMEOUT);
+
+                // and the rest once the window is opened
+                connection.windowUpdate(request.streamId, 100);
+                boolean end = false;
+                while (!end) {
+                    Frame frame = connection.read(Http2Connection.TYPE_DATA);
+                    total += frame.payload.length;
+                    end = (frame.flags & Http2Connection.FLAG_END_STREAM) != 0;
+                }
+                received.add(total);
+                connection.respond(request.streamId, "done");
+            }
+        });
+        assertEquals(get("/warm"), "warm");
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            body.append('x');
+        AsyncHttpPost post = new AsyncHttpPost("http://localhost:" + PORT + "/post");
+        post.setBody(new StringBody(body.toString()));
+        Future<String> response = client.executeString(post);
+
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(16));
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(0));
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(100));
+        assertEquals(response.get(TIMEOUT, TimeUnit.MILLISECONDS), "done");
+    }
+
+    public void testWindowOverflow() throws Exception {
+        final LinkedBlockingQueue<Frame> goAways = new LinkedBlockingQueue<Frame>();
+        listen(new Script() {
+            @Override
+            public void run(Connection connection) throws Exception {
+                connection.handshake();
+                connection.readRequest();
+                connection.windowUpdate(0, 0x7fffffff);
+                goAways.add(connection.read(Http2Connection.TYPE_GOAWAY));
+            }
+        });
+        try {
+            get("/overflow");
+            fail();
+        }
+        catch (ExecutionException e) {
+        }
+        Frame goAway = goAways.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(goAway.getInt(4), Http2Connection.FLOW_CONTROL_ERROR);
+    }
+
+    public void testGoAway() throws Exception {
+        listen(new Script() {
+            @Override
+            public void run(Connection connection) throws Exception {
+                connection.handshake();
+                Request request = connection.readRequest();
+                connection.respond(request.streamId, "warm");
+
+                Request first = connection.readRequest();
+                connection.readRequest();
+                // the second request is refused, the first is still answered
+                connection.goAway(first.streamId, Http2Connection.NO_ERROR);
+                connection.respond(first.streamId, first.getHeader(":path"));
+                try {
+                    while (true)
+                        connection.read();
+                }
+                catch (IOException e) {
+                }
+            }
+        }, ECHO);
+        assertEquals(get("/warm"), "warm");
+
+        Future<String> first = client.executeString(new AsyncHttpGet("http://localhost:" + PORT + "/first"));
+        Future<String> second = client.executeString(new AsyncHttpGet("http://localhost:" + PORT + "/second"));
+        assertEquals(first.get(TIMEOUT, TimeUnit.MILLISECONDS), "/first");
+        try {
+            second.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+        }
+        assertEquals(client.getHttp2Middleware().getConnectionCount(), 0);
+
+        // later requests get a new connection
+        assertEquals(get("/third"), "/third");
+        assertEquals(accepted.get(), 2);
+    }
+
+    public void testConnectionLimit() throws Exception {
+        listen(ECHO, ECHO);
+        client.getSocketMiddleware().setMaxConnectionCount(1);
+        client.getHttp2Middleware().setIdleTimeout(200);
+
+        // every request shares the one connection the limit allows
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 5; i++)
+            futures.add(client.executeString(new AsyncHttpGet("http://localhost:" + PORT + "/" + i)));
+        for (int i = 0; i < 5; i++)
+            assertEquals(futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS), "/" + i);
+        assertEquals(accepted.get(), 1);
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", PORT), 1);
+
+        // it holds its place until it is closed
+        Thread.sleep(600);
+        assertEquals(client.getHttp2Middleware().getConnectionCount(), 0);
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", PORT), 0);
+        assertEquals(get("/again"), "/again");
+        assertEquals(accepted.get(), 2);
+    }
+
+    private void flushClient() throws Exception {
+        final LinkedBlockingQueue<Boolean> flushed = new LinkedBlockingQueue<Boolean>();
+        clientServer.post(new Runnable() {
+            @Override
+            public void run() {
+                flushed.add(true);
+            }
+        });
+        assertNotNull(flushed.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    public void testCancelWaiting() throws Exception {
+        final LinkedBlockingQueue<String> paths = new LinkedBlockingQueue<String>();
+        listen(new Script() {
+            @Override
+            public void run(Connection connection) throws Exception {
+                connection.handshake();
+                for (int i = 0; i < 2; i++) {
+                    Request request = connection.readRequest();
+                    paths.add(request.getHeader(":path"));
+                    connection.respond(request.streamId, request.getHeader(":path"));
+                }
+            }
+        });
+        lookupDelay = 300;
+
+        // all three wait on the same connect
+        Future<String> first = client.executeString(new AsyncHttpGet("http://localhost:" + PORT + "/first"));
+        Future<String> cancelled = client.executeString(new AsyncHttpGet("http://localhost:" + PORT + "/cancelled"));
+        Future<String> last = client.executeString(new AsyncHttpGet("http://localhost:" + PORT + "/last"));
+        flushClient();
+        assertTrue(cancelled.cancel());
+        assertEquals(first.get(TIMEOUT, TimeUnit.MILLISECONDS), "/first");
+        assertEquals(last.get(TIMEOUT, TimeUnit.MILLISECONDS), "/last");
+        assertEquals(paths.poll(), "/first");
+        assertEquals(paths.poll(), "/last");
+        assertEquals(accepted.get(), 1);
+    }
+
+    public void testCancelConnect() throws Exception {
+        listen(ECHO);
+        lookupDelay = 300;
+
+        // the only request waiting on the connect takes it down with it
+        Future<String> cancelled = client.executeString(new AsyncHttpGet("http://localhost:" + PORT + "/cancelled"));
+        flushClient();
+        assertTrue(cancelled.cancel());
+        Thread.sleep(600);
+        assertEquals(accepted.get(), 0);
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", PORT), 0);
+
+        // and the next request connects again
+        assertEquals(get("/next"), "/next");
+        assertEquals(accepted.get(), 1);
+    }
+}
@@ -9,6 +9,8 @@ import com.koushikdutta.async.Util;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by koush on 5/17/13.
  */
@@ -35,4 +37,18 @@ public class ByteUtilTests extends TestCase {
         Util.emitAllData(mock, new ByteBufferList(bytes));
         assertEquals(valRead, 0x0A050505);
     }
+
+    public void testSharedNotReclaimed() {
+        byte[] bytes = new byte[16384];
+        ByteBuffer shared = ByteBufferList.wrapShared(bytes);
+        assertTrue(shared.isReadOnly());
+        ByteBufferList.reclaim(shared.duplicate());
+        ByteBufferList.reclaim(shared);
+        for (int i = 0; i < 16; i++)
+            assertNotSame(ByteBufferList.obtain(bytes.length).array(), bytes);
+
+        // a list of shared buffers can still be read
+        ByteBufferList list = new ByteBufferList(shared.duplicate());
+        assertEquals(list.getAllByteArray().length, bytes.length);
+    }
 }
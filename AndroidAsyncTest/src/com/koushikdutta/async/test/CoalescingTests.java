@@ -0,0 +1,186 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.CoalescingMiddleware;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Identical GETs attached to one upstream request by CoalescingMiddleware.
+ * The server counts the requests that actually reach it.
+ */
+public class CoalescingTests extends TestCase {
+    private static final long TIMEOUT = 10000L;
+
+    AsyncHttpServer httpServer;
+    int port;
+    AsyncServer clientServer;
+    AsyncHttpClient client;
+    CoalescingMiddleware coalescing;
+    final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        httpServer = new AsyncHttpServer();
+        // holds the response for a bit, so requests overlap
+        httpServer.get("/slow", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                requests.incrementAndGet();
+                AsyncServer.getDefault().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        response.send("slow");
+                    }
+                }, 300);
+            }
+        });
+
+        // sends the headers and the start of the body right away, the rest later
+        httpServer.get("/stream", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                requests.incrementAndGet();
+                response.responseCode(200);
+                response.writeHead();
+                response.write(new ByteBufferList("one".getBytes()));
+                AsyncServer.getDefault().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        response.write(new ByteBufferList("two".getBytes()));
+                        response.end();
+                    }
+                }, 500);
+            }
+        });
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
+
+        clientServer = new AsyncServer();
+        client = new AsyncHttpClient(clientServer);
+        coalescing = CoalescingMiddleware.addCoalescing(client);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        httpServer.stop();
+        clientServer.stop();
+    }
+
+    private ArrayList<Future<String>> getAll(String uri, int count) {
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < count; i++)
+            futures.add(client.executeString(new AsyncHttpGet(uri)));
+        return futures;
+    }
+
+    // cancel on the client's thread, once the requests have reached the middleware
+    private void cancel(final Future<?>... futures) throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        clientServer.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Future<?> future: futures)
+                    future.cancel();
+                semaphore.release();
+            }
+        });
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    public void testCoalescing() throws Exception {
+        for (Future<String> future: getAll("http://localhost:" + port + "/slow", 4))
+            assertEquals(future.get(TIMEOUT, TimeUnit.MILLISECONDS), "slow");
+        assertEquals(requests.get(), 1);
+        assertEquals(coalescing.getUpstreamCount(), 1);
+        assertEquals(coalescing.getCoalescedCount(), 3);
+
+        // once the exchange is over, the next request goes to the network
+        assertEquals(client.executeString(new AsyncHttpGet("http://localhost:" + port + "/slow")).get(TIMEOUT, TimeUnit.MILLISECONDS), "slow");
+        assertEquals(requests.get(), 2);
+    }
+
+    public void testNotCoalesced() throws Exception {
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        futures.add(client.executeString(new AsyncHttpGet("http://localhost:" + port + "/slow")));
+
+        // different request headers
+        AsyncHttpGet other = new AsyncHttpGet("http://localhost:" + port + "/slow");
+        other.addHeader("X-Other", "1");
+        futures.add(client.executeString(other));
+
+        // the caller doesn't want a shared answer
+        AsyncHttpGet noCache = new AsyncHttpGet("http://localhost:" + port + "/slow");
+        noCache.addHeader("Cache-Control", "no-cache");
+        futures.add(client.executeString(noCache));
+
+        for (Future<String> future: futures)
+            assertEquals(future.get(TIMEOUT, TimeUnit.MILLISECONDS), "slow");
+        assertEquals(requests.get(), 3);
+        assertEquals(coalescing.getCoalescedCount(), 0);
+
+        coalescing.setCoalescing(false);
+        for (Future<String> future: getAll("http://localhost:" + port + "/slow", 2))
+            assertEquals(future.get(TIMEOUT, TimeUnit.MILLISECONDS), "slow");
+        assertEquals(requests.get(), 5);
+    }
+
+    public void testJoinLate() throws Exception {
+        Future<String> first = client.executeString(new AsyncHttpGet("http://localhost:" + port + "/stream"));
+        // the headers and "one" have arrived by now
+        Thread.sleep(250);
+        Future<String> late = client.executeString(new AsyncHttpGet("http://localhost:" + port + "/stream"));
+        assertEquals(first.get(TIMEOUT, TimeUnit.MILLISECONDS), "onetwo");
+        // the late request gets the part of the body it missed
+        assertEquals(late.get(TIMEOUT, TimeUnit.MILLISECONDS), "onetwo");
+        assertEquals(requests.get(), 1);
+        assertEquals(coalescing.getCoalescedCount(), 1);
+    }
+
+    public void testJoinPastMaxBuffer() throws Exception {
+        coalescing.setMaxBuffer(2);
+        Future<String> first = client.executeString(new AsyncHttpGet("http://localhost:" + port + "/stream"));
+        Thread.sleep(250);
+        // "one" was too much to hold on to, so this one is sent on its own
+        Future<String> late = client.executeString(new AsyncHttpGet("http://localhost:" + port + "/stream"));
+        assertEquals(first.get(TIMEOUT, TimeUnit.MILLISECONDS), "onetwo");
+        assertEquals(late.get(TIMEOUT, TimeUnit.MILLISECONDS), "onetwo");
+        assertEquals(requests.get(), 2);
+    }
+
+    public void testCancelWaiter() throws Exception {
+        ArrayList<Future<String>> futures = getAll("http://localhost:" + port + "/slow", 3);
+        cancel(futures.get(1));
+
+        // the others still get the response
+        assertEquals(futures.get(0).get(TIMEOUT, TimeUnit.MILLISECONDS), "slow");
+        assertEquals(futures.get(2).get(TIMEOUT, TimeUnit.MILLISECONDS), "slow");
+        assertTrue(futures.get(1).isCancelled());
+        assertEquals(requests.get(), 1);
+    }
+
+    public void testCancelAll() throws Exception {
+        ArrayList<Future<String>> futures = getAll("http://localhost:" + port + "/slow", 2);
+        cancel(futures.get(0), futures.get(1));
+
+        // nobody was waiting, so the upstream request was dropped and isn't joined
+        assertEquals(client.executeString(new AsyncHttpGet("http://localhost:" + port + "/slow")).get(TIMEOUT, TimeUnit.MILLISECONDS), "slow");
+        assertEquals(coalescing.getUpstreamCount(), 2);
+        assertEquals(coalescing.getCoalescedCount(), 1);
+    }
+}
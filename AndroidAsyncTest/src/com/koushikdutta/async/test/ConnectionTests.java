@@ -0,0 +1,714 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleCancellable;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.Route;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import junit.framework.TestCase;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Connection management in AsyncSocketMiddleware. The server counts the
+ * connections it accepts, and the client's AsyncServer counts the lookups.
+ */
+public class ConnectionTests extends TestCase {
+    private static final long TIMEOUT = 10000L;
+
+    AsyncHttpServer httpServer;
+    AsyncServer clientServer;
+    AsyncHttpClient client;
+    PipelineServer pipelineServer;
+    int port;
+    final AtomicInteger accepted = new AtomicInteger();
+    final AtomicInteger lookups = new AtomicInteger();
+    final AtomicInteger concurrent = new AtomicInteger();
+    final AtomicInteger maxConcurrent = new AtomicInteger();
+    // what the client's lookups return instead, if set
+    InetAddress[] addresses;
+    final List<InetAddress> attempts = Collections.synchronizedList(new ArrayList<InetAddress>());
+    final AtomicInteger cancelledAttempts = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        httpServer = new AsyncHttpServer();
+        httpServer.get("/hello", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send("hello");
+            }
+        });
+
+        // holds the response for a bit, so requests overlap
+        httpServer.get("/slow", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                // the server handles every request on its one thread
+                maxConcurrent.set(Math.max(maxConcurrent.get(), concurrent.incrementAndGet()));
+                AsyncServer.getDefault().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        concurrent.decrementAndGet();
+                        response.send("slow");
+                    }
+                }, 200);
+            }
+        });
+
+        // requests sent to the server as a proxy have an absolute uri
+        httpServer.get("http://.*", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send("proxied " + request.getPath());
+            }
+        });
+
+        final ListenCallback listenCallback = httpServer.getListenCallback();
+        port = EphemeralPort.listen(AsyncServer.getDefault(), new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                accepted.incrementAndGet();
+                listenCallback.onAccepted(socket);
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+                listenCallback.onListening(socket);
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+                listenCallback.onCompleted(ex);
+            }
+        });
+
+        clientServer = new AsyncServer() {
+            @Override
+            public Future<InetAddress[]> getAllByName(String host) {
+                lookups.incrementAndGet();
+                if (addresses == null)
+                    return super.getAllByName(host);
+                SimpleFuture<InetAddress[]> ret = new SimpleFuture<InetAddress[]>();
+                ret.setComplete(addresses);
+                return ret;
+            }
+
+            // addresses made up by the test behave as their name says
+            @Override
+            public Cancellable connectSocket(InetSocketAddress remote, final ConnectCallback callback) {
+                InetAddress address = remote.getAddress();
+                if (address == null)
+                    return super.connectSocket(remote, callback);
+                attempts.add(address);
+                String name = address.getHostName();
+                if ("blackhole".equals(name)) {
+                    return new SimpleCancellable() {
+                        @Override
+                        protected void cancelCleanup() {
+                            super.cancelCleanup();
+                            cancelledAttempts.incrementAndGet();
+                        }
+                    };
+                }
+                if ("refused".equals(name)) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onConnectCompleted(new ConnectException("refused"), null);
+                        }
+                    });
+                    return new SimpleCancellable();
+                }
+                if ("late".equals(name)) {
+                    // connects right away, but the callback comes after the other attempts
+                    return super.connectSocket(new InetSocketAddress("127.0.0.1", remote.getPort()), new ConnectCallback() {
+                        @Override
+                        public void onConnectCompleted(final Exception ex, final AsyncSocket socket) {
+                            postDelayed(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onConnectCompleted(ex, socket);
+                                }
+                            }, 300);
+                        }
+                    });
+                }
+                return super.connectSocket(remote, callback);
+            }
+        };
+        client = new AsyncHttpClient(clientServer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        httpServer.stop();
+        clientServer.stop();
+        if (pipelineServer != null)
+            pipelineServer.close();
+    }
+
+    private String get(String uri) throws Exception {
+        return client.executeString(new AsyncHttpGet(uri)).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public void testAddressCacheOffByDefault() throws Exception {
+        assertEquals(client.getSocketMiddleware().getAddressCacheTimeout(), 0);
+        client.getSocketMiddleware().setMaxIdleConnectionsPerRoute(0);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(accepted.get(), 2);
+        assertEquals(lookups.get(), 2);
+    }
+
+    public void testAddressCacheExpiry() throws Exception {
+        client.getSocketMiddleware().setAddressCacheTimeout(500);
+        client.getSocketMiddleware().setMaxIdleConnectionsPerRoute(0);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(accepted.get(), 2);
+        assertEquals(lookups.get(), 1);
+
+        Thread.sleep(1000);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(lookups.get(), 2);
+    }
+
+    public void testAddressCacheConnectFailure() throws Exception {
+        client.setRetryPolicy(null);
+        client.getSocketMiddleware().setAddressCacheTimeout(60000);
+        client.getSocketMiddleware().setMaxIdleConnectionsPerRoute(0);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(lookups.get(), 1);
+
+        // nothing listens here, the connect fails on the cached addresses
+        try {
+            get("http://localhost:5999/hello");
+            fail();
+        }
+        catch (ExecutionException e) {
+        }
+        assertEquals(lookups.get(), 1);
+
+        // and they were forgotten
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(lookups.get(), 2);
+    }
+
+    private void getAll(String uri, int count) throws Exception {
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < count; i++)
+            futures.add(client.executeString(new AsyncHttpGet(uri)));
+        for (Future<String> future: futures)
+            assertNotNull(future.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    // wait for everything posted to the client so far, like recycling sockets
+    private void flushClient() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        clientServer.post(new Runnable() {
+            @Override
+            public void run() {
+                semaphore.release();
+            }
+        });
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    public void testKeepAliveReuse() throws Exception {
+        for (int i = 0; i < 3; i++)
+            assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        flushClient();
+        assertEquals(accepted.get(), 1);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 1);
+    }
+
+    public void testIdleEviction() throws Exception {
+        client.getSocketMiddleware().setIdleTimeout(300);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 1);
+
+        Thread.sleep(800);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 0);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(accepted.get(), 2);
+    }
+
+    public void testMaxIdleConnectionsPerRoute() throws Exception {
+        client.getSocketMiddleware().setMaxIdleConnectionsPerRoute(2);
+        getAll("http://localhost:" + port + "/slow", 4);
+        flushClient();
+        assertEquals(accepted.get(), 4);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 2);
+    }
+
+    public void testMaxIdleConnections() throws Exception {
+        // localhost and 127.0.0.1 are separate routes to the same server
+        client.getSocketMiddleware().setMaxIdleConnections(1);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(get("http://127.0.0.1:" + port + "/hello"), "hello");
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 1);
+
+        // the oldest was closed, the newest is reused
+        assertEquals(get("http://127.0.0.1:" + port + "/hello"), "hello");
+        assertEquals(accepted.get(), 2);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(accepted.get(), 3);
+    }
+
+    public void testMaxConnectionCount() throws Exception {
+        // requests past the limit wait for a connection to free up, and reuse it
+        client.getSocketMiddleware().setMaxConnectionCount(2);
+        getAll("http://localhost:" + port + "/slow", 6);
+        assertEquals(maxConcurrent.get(), 2);
+        assertEquals(accepted.get(), 2);
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", port), 0);
+    }
+
+    public void testRouteKeys() throws Exception {
+        Route direct = new Route("http", "example.com", 80);
+        // the proxy port means nothing without a proxy host
+        assertEquals(direct, new Route("http", "example.com", 80, null, 8080, null));
+        assertEquals(direct.hashCode(), new Route("http", "example.com", 80, null, 8080, null).hashCode());
+        assertFalse(direct.equals(new Route("https", "example.com", 80)));
+        assertFalse(direct.equals(new Route("http", "example.com", 8080)));
+        assertFalse(direct.equals(new Route("http", "example.org", 80)));
+
+        Route proxied = new Route("http", "example.com", 80, "proxy", 8080, null);
+        assertFalse(direct.equals(proxied));
+        assertFalse(proxied.equals(new Route("http", "example.com", 80, "proxy", 3128, null)));
+        assertEquals(proxied, new Route("http", "example.com", 80, "proxy", 8080, null));
+        assertTrue(proxied.isOrigin("http", "example.com", 80));
+        assertFalse(proxied.isOrigin("https", "example.com", 80));
+
+        // TLS connections set up with different contexts are never shared
+        SSLContext context = SSLContext.getInstance("TLS");
+        Route secure = new Route("https", "example.com", 443, null, -1, context);
+        assertEquals(secure, new Route("https", "example.com", 443, null, -1, context));
+        assertFalse(secure.equals(new Route("https", "example.com", 443, null, -1, SSLContext.getInstance("TLS"))));
+    }
+
+    private String getProxied(String uri) throws Exception {
+        AsyncHttpGet get = new AsyncHttpGet(uri);
+        get.enableProxy("localhost", port);
+        return client.executeString(get).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public void testProxiedRoute() throws Exception {
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(accepted.get(), 1);
+
+        // the same socket address, but a different route
+        assertEquals(getProxied("http://example.invalid/hello"), "proxied http://example.invalid/hello");
+        assertEquals(accepted.get(), 2);
+        assertEquals(getProxied("http://example.invalid/hello"), "proxied http://example.invalid/hello");
+        assertEquals(accepted.get(), 2);
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertEquals(accepted.get(), 2);
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 2);
+
+        // a client wide proxy is the same route as a request proxy to the same place
+        client.getSocketMiddleware().enableProxy("localhost", port);
+        assertEquals(get("http://example.invalid/hello"), "proxied http://example.invalid/hello");
+        assertEquals(accepted.get(), 2);
+        client.getSocketMiddleware().disableProxy();
+    }
+
+    // the responses arrive in the order the requests were sent, as there's one connection
+    private Future<String> queue(String uri, int priority, final List<String> order) {
+        AsyncHttpGet get = new AsyncHttpGet(uri);
+        get.setPriority(priority);
+        return client.executeString(get).setCallback(new FutureCallback<String>() {
+            @Override
+            public void onCompleted(Exception e, String result) {
+                if (e == null)
+                    order.add(result);
+            }
+        });
+    }
+
+    // the callbacks may run after get() returns
+    private String awaitOrder(List<String> order, int count) throws Exception {
+        long start = System.currentTimeMillis();
+        while (order.size() < count && System.currentTimeMillis() - start < TIMEOUT)
+            Thread.sleep(10);
+        return order.toString();
+    }
+
+    private void startQueue() throws Exception {
+        pipelineServer = new PipelineServer(5002);
+        client.getSocketMiddleware().setMaxConnectionCount(1);
+    }
+
+    public void testPriorityOrder() throws Exception {
+        startQueue();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue("http://localhost:5002/delay/300", 0, order);
+        queue("http://localhost:5002/low", 0, order);
+        queue("http://localhost:5002/high", 10, order);
+        Future<String> last = queue("http://localhost:5002/mid", 5, order);
+        queue("http://localhost:5002/high2", 10, order);
+        assertEquals(last.get(TIMEOUT, TimeUnit.MILLISECONDS), "/mid");
+        // highest first, and in arrival order within a priority
+        assertEquals(awaitOrder(order, 5), "[/delay/300, /high, /high2, /mid, /low]");
+        assertEquals(pipelineServer.accepted.get(), 1);
+    }
+
+    public void testPriorityAging() throws Exception {
+        startQueue();
+        client.getSocketMiddleware().setPriorityAging(100);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue("http://localhost:5002/delay/800", 0, order);
+        queue("http://localhost:5002/old", 0, order);
+        // the old request has waited long enough to be worth more than 2 priorities
+        Thread.sleep(400);
+        Future<String> last = queue("http://localhost:5002/new", 2, order);
+        queue("http://localhost:5002/newer", 6, order);
+        assertEquals(last.get(TIMEOUT, TimeUnit.MILLISECONDS), "/new");
+        assertEquals(awaitOrder(order, 4), "[/delay/800, /newer, /old, /new]");
+    }
+
+    public void testReprioritize() throws Exception {
+        startQueue();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue("http://localhost:5002/delay/300", 0, order);
+        queue("http://localhost:5002/one", 0, order);
+        AsyncHttpGet two = new AsyncHttpGet("http://localhost:5002/two");
+        Future<String> last = client.executeString(two).setCallback(new FutureCallback<String>() {
+            @Override
+            public void onCompleted(Exception e, String result) {
+                order.add(result);
+            }
+        });
+        // once it's waiting in line, moving it up
+        flushClient();
+        two.setPriority(1);
+        assertEquals(last.get(TIMEOUT, TimeUnit.MILLISECONDS), "/two");
+        assertEquals(awaitOrder(order, 3), "[/delay/300, /two, /one]");
+    }
+
+    public void testCancelQueued() throws Exception {
+        startQueue();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        queue("http://localhost:5002/delay/300", 0, order);
+        final Future<String> cancelled = queue("http://localhost:5002/one", 0, order);
+        Future<String> last = queue("http://localhost:5002/two", 0, order);
+        flushClient();
+        clientServer.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.cancel();
+            }
+        });
+        assertEquals(last.get(TIMEOUT, TimeUnit.MILLISECONDS), "/two");
+        assertTrue(cancelled.isCancelled());
+        assertEquals(awaitOrder(order, 2), "[/delay/300, /two]");
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", 5002), 0);
+    }
+
+    private int preconnect(String uri, int count) throws Exception {
+        return client.preconnect(URI.create(uri), count).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public void testPreconnect() throws Exception {
+        assertEquals(preconnect("http://localhost:" + port + "/", 2), 2);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 2);
+        assertEquals(client.getSocketMiddleware().getPreconnectCount(), 2);
+
+        // requests use the preconnected sockets rather than opening their own
+        getAll("http://localhost:" + port + "/slow", 2);
+        assertEquals(accepted.get(), 2);
+        assertEquals(client.getSocketMiddleware().getPreconnectHitCount(), 2);
+    }
+
+    public void testPreconnectTopsUp() throws Exception {
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        flushClient();
+        // only the sockets the pool is missing are opened
+        assertEquals(preconnect("http://localhost:" + port + "/", 2), 1);
+        assertEquals(preconnect("http://localhost:" + port + "/", 2), 0);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 2);
+    }
+
+    public void testPreconnectLimits() throws Exception {
+        client.getSocketMiddleware().setMaxIdleConnectionsPerRoute(3);
+        assertEquals(preconnect("http://localhost:" + port + "/", 5), 3);
+
+        // unused preconnected sockets count against every route
+        client.getSocketMiddleware().setMaxPreconnections(4);
+        assertEquals(preconnect("http://127.0.0.1:" + port + "/", 3), 1);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 4);
+
+        // a used one doesn't
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        flushClient();
+        assertEquals(preconnect("http://127.0.0.1:" + port + "/", 3), 1);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 5);
+    }
+
+    public void testPreconnectFailure() throws Exception {
+        try {
+            preconnect("http://localhost:5999/", 2);
+            fail();
+        }
+        catch (ExecutionException e) {
+        }
+        assertEquals(client.getSocketMiddleware().getPreconnectCount(), 0);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 0);
+
+        // the failed attempts gave their share of the limit back
+        client.getSocketMiddleware().setMaxPreconnections(2);
+        assertEquals(preconnect("http://localhost:" + port + "/", 2), 2);
+    }
+
+    public void testPreconnectProxied() throws Exception {
+        client.getSocketMiddleware().enableProxy("localhost", port);
+        assertEquals(preconnect("http://example.invalid/", 2), 0);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 0);
+        client.getSocketMiddleware().disableProxy();
+    }
+
+    public void testPreconnectInFlight() throws Exception {
+        // connects take a while, so the first call's sockets are still dialing
+        race(50, address("late", "192.0.2.1"));
+        client.getSocketMiddleware().setMaxPreconnections(3);
+        Future<Integer> first = client.preconnect(URI.create("http://localhost:" + port + "/"), 2);
+        Future<Integer> second = client.preconnect(URI.create("http://localhost:" + port + "/"), 2);
+        Future<Integer> other = client.preconnect(URI.create("http://127.0.0.1:" + port + "/"), 2);
+        // they count against the route and against every route
+        assertEquals(first.get(TIMEOUT, TimeUnit.MILLISECONDS).intValue(), 2);
+        assertEquals(second.get(TIMEOUT, TimeUnit.MILLISECONDS).intValue(), 0);
+        assertEquals(other.get(TIMEOUT, TimeUnit.MILLISECONDS).intValue(), 1);
+        assertEquals(client.getSocketMiddleware().getPreconnectCount(), 3);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 3);
+    }
+
+    public void testPreconnectRace() throws Exception {
+        // preconnects race the addresses like requests do
+        race(100, address("blackhole", "192.0.2.1"), address("localhost", "127.0.0.1"));
+        assertEquals(preconnect("http://localhost:" + port + "/", 1), 1);
+        assertEquals(attempts.size(), 2);
+        assertEquals(cancelledAttempts.get(), 1);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 1);
+    }
+
+    private ArrayList<Future<String>> executeAll(String... uris) {
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for (String uri: uris)
+            futures.add(client.executeString(new AsyncHttpGet(uri)));
+        return futures;
+    }
+
+    private void startPipeline() throws Exception {
+        pipelineServer = new PipelineServer(5002);
+        client.getSocketMiddleware().setPipelining(true);
+        // only connections that have completed a keep-alive response are pipelined
+        assertEquals(get("http://localhost:5002/hello"), "/hello");
+        flushClient();
+    }
+
+    public void testPipelineOrdering() throws Exception {
+        startPipeline();
+        ArrayList<Future<String>> futures = executeAll(
+        "http://localhost:5002/delay/200",
+        "http://localhost:5002/delay/100",
+        "http://localhost:5002/delay/0",
+        "http://localhost:5002/one");
+        // every response went to the request it answers
+        assertEquals(futures.get(0).get(TIMEOUT, TimeUnit.MILLISECONDS), "/delay/200");
+        assertEquals(futures.get(1).get(TIMEOUT, TimeUnit.MILLISECONDS), "/delay/100");
+        assertEquals(futures.get(2).get(TIMEOUT, TimeUnit.MILLISECONDS), "/delay/0");
+        assertEquals(futures.get(3).get(TIMEOUT, TimeUnit.MILLISECONDS), "/one");
+        assertEquals(pipelineServer.accepted.get(), 1);
+        assertTrue(pipelineServer.pipelined.get() > 0);
+
+        // and the connection is still good afterwards
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 1);
+        assertEquals(get("http://localhost:5002/two"), "/two");
+        assertEquals(pipelineServer.accepted.get(), 1);
+    }
+
+    public void testPipelineDepth() throws Exception {
+        client.getSocketMiddleware().setMaxPipelineDepth(2);
+        startPipeline();
+        ArrayList<Future<String>> futures = executeAll(
+        "http://localhost:5002/delay/100",
+        "http://localhost:5002/one",
+        "http://localhost:5002/two");
+        assertEquals(futures.get(0).get(TIMEOUT, TimeUnit.MILLISECONDS), "/delay/100");
+        assertEquals(futures.get(1).get(TIMEOUT, TimeUnit.MILLISECONDS), "/one");
+        assertEquals(futures.get(2).get(TIMEOUT, TimeUnit.MILLISECONDS), "/two");
+        assertEquals(pipelineServer.accepted.get(), 2);
+    }
+
+    public void testPipelineNotKeepAlive() throws Exception {
+        startPipeline();
+        // the requests queued behind the last response go out again on new connections
+        ArrayList<Future<String>> futures = executeAll(
+        "http://localhost:5002/close",
+        "http://localhost:5002/one",
+        "http://localhost:5002/two");
+        assertEquals(futures.get(0).get(TIMEOUT, TimeUnit.MILLISECONDS), "/close");
+        assertEquals(futures.get(1).get(TIMEOUT, TimeUnit.MILLISECONDS), "/one");
+        assertEquals(futures.get(2).get(TIMEOUT, TimeUnit.MILLISECONDS), "/two");
+        assertTrue(pipelineServer.accepted.get() > 1);
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", 5002), 0);
+    }
+
+    public void testPipelineClosed() throws Exception {
+        client.setRetryPolicy(null);
+        startPipeline();
+        // the connection closes before any of these responses start
+        ArrayList<Future<String>> futures = executeAll(
+        "http://localhost:5002/drop",
+        "http://localhost:5002/one",
+        "http://localhost:5002/two");
+        assertEquals(futures.get(1).get(TIMEOUT, TimeUnit.MILLISECONDS), "/one");
+        assertEquals(futures.get(2).get(TIMEOUT, TimeUnit.MILLISECONDS), "/two");
+
+        // the request that broke it fails again on a connection of its own, and is the only one to fail
+        try {
+            futures.get(0).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+        }
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", 5002), 0);
+    }
+
+    public void testPipelineTimeout() throws Exception {
+        client.setRetryPolicy(null);
+        startPipeline();
+        // the first response takes too long, the ones behind it go out again
+        AsyncHttpGet slow = new AsyncHttpGet("http://localhost:5002/delay/2000");
+        slow.setTimeout(500);
+        Future<String> timedOut = client.executeString(slow);
+        ArrayList<Future<String>> futures = executeAll(
+        "http://localhost:5002/one",
+        "http://localhost:5002/two");
+        assertEquals(futures.get(0).get(TIMEOUT, TimeUnit.MILLISECONDS), "/one");
+        assertEquals(futures.get(1).get(TIMEOUT, TimeUnit.MILLISECONDS), "/two");
+        try {
+            timedOut.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", 5002), 0);
+    }
+
+    private static InetAddress address(String name, String ip) throws Exception {
+        return InetAddress.getByAddress(name, InetAddress.getByName(ip).getAddress());
+    }
+
+    private void race(long attemptDelay, InetAddress... addresses) {
+        this.addresses = addresses;
+        client.getSocketMiddleware().setConnectAllAddresses(true);
+        client.getSocketMiddleware().setConnectionAttemptDelay(attemptDelay);
+    }
+
+    public void testRaceOrder() throws Exception {
+        race(50,
+        address("blackhole", "2001:db8::1"),
+        address("blackhole", "2001:db8::2"),
+        address("blackhole", "192.0.2.1"),
+        address("localhost", "127.0.0.1"));
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+
+        // the families alternate, starting with the one listed first
+        assertEquals(attempts.size(), 4);
+        assertEquals(attempts.get(0).getHostAddress(), InetAddress.getByName("2001:db8::1").getHostAddress());
+        assertEquals(attempts.get(1).getHostAddress(), "192.0.2.1");
+        assertEquals(attempts.get(2).getHostAddress(), InetAddress.getByName("2001:db8::2").getHostAddress());
+        assertEquals(attempts.get(3).getHostAddress(), "127.0.0.1");
+        // and the winner cancelled the rest
+        assertEquals(cancelledAttempts.get(), 3);
+    }
+
+    public void testRaceBlackhole() throws Exception {
+        // the first address never answers, the next is tried after the attempt delay
+        race(100, address("blackhole", "192.0.2.1"), address("localhost", "127.0.0.1"));
+        long start = System.currentTimeMillis();
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(cancelledAttempts.get(), 1);
+        assertEquals(accepted.get(), 1);
+    }
+
+    public void testRaceFailFast() throws Exception {
+        // a failed attempt doesn't wait out the delay
+        race(5000, address("refused", "192.0.2.1"), address("localhost", "127.0.0.1"));
+        long start = System.currentTimeMillis();
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(attempts.size(), 2);
+    }
+
+    public void testRaceAllFail() throws Exception {
+        client.setRetryPolicy(null);
+        race(50, address("refused", "192.0.2.1"), address("refused", "192.0.2.2"));
+        try {
+            get("http://localhost:" + port + "/hello");
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+        assertEquals(attempts.size(), 2);
+        flushClient();
+        assertEquals(client.getSocketMiddleware().getOpenConnectionCount("http", "localhost", port), 0);
+    }
+
+    public void testRaceLoserPooled() throws Exception {
+        // the first attempt connects after the second has already won
+        race(50, address("late", "192.0.2.1"), address("localhost", "127.0.0.1"));
+        assertEquals(get("http://localhost:" + port + "/hello"), "hello");
+        Thread.sleep(500);
+        flushClient();
+        assertEquals(accepted.get(), 2);
+        assertEquals(client.getSocketMiddleware().getConnectionPoolCount(), 2);
+
+        // and both get used
+        addresses = null;
+        getAll("http://localhost:" + port + "/slow", 2);
+        assertEquals(accepted.get(), 2);
+    }
+}
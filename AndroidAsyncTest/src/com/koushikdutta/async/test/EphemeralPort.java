@@ -0,0 +1,47 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+
+import junit.framework.Assert;
+
+/**
+ * Listens on a port picked by the system. A closed listener only lets go
+ * of its port once the selector has gone around again, so a test that
+ * listens on the same fixed port as the last one can fail to bind.
+ */
+public class EphemeralPort {
+    // through AsyncHttpServer.listen, so the server's event sources run on the same AsyncServer
+    public static int listen(AsyncServer server, AsyncHttpServer httpServer) {
+        AsyncServerSocket socket = httpServer.listen(server, 0);
+        Assert.assertNotNull(socket);
+        return socket.getLocalPort();
+    }
+
+    // AsyncServer.listen runs on the server thread and waits for it, so
+    // the port is known when this returns
+    public static int listen(AsyncServer server, final ListenCallback callback) {
+        final int[] port = new int[1];
+        server.listen(null, 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                callback.onAccepted(socket);
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+                port[0] = socket.getLocalPort();
+                callback.onListening(socket);
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+                callback.onCompleted(ex);
+            }
+        });
+        return port[0];
+    }
+}
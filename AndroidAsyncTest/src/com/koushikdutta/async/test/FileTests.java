@@ -1,15 +1,40 @@
 package com.koushikdutta.async.test;
 
+import com.koushikdutta.async.AsyncDatagramSocket;
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.FileDataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.AsyncHttpResponse;
+import com.koushikdutta.async.http.libcore.HttpDate;
+import com.koushikdutta.async.http.libcore.RawHeaders;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 import com.koushikdutta.async.parser.StringParser;
 import com.koushikdutta.async.util.StreamUtility;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -36,4 +61,341 @@ public class FileTests extends TestCase {
         assertTrue("timeout", semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
         assertEquals("hello world", stringBody.get());
     }
+
+    private static final long DOWNLOAD_TIMEOUT = 10000L;
+    String url;
+    private static final File FILE = new File("/sdcard/resume.bin");
+
+    AsyncHttpServer httpServer;
+    AsyncServer clientServer;
+    AsyncHttpClient client;
+    byte[] payload = new byte[100000];
+    Date lastModified = new Date(1000000000000L);
+    // the Range and If-Range of the last request
+    String range;
+    String ifRange;
+    // answer a range with one that starts somewhere else
+    boolean wrongRange;
+    // answer everything with this, if it isn't 0
+    int errorCode;
+
+    String segmentedUrl;
+    byte[] large = new byte[1024 * 1024];
+    // the Range of every request for it
+    final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    String etag = "\"v1\"";
+    // answer with the whole file, as a server without ranges does
+    boolean noRanges;
+    // a new version of the file once the first range has gone out
+    boolean changeETag;
+    // hold back the answers to all but the first range, so that one finishes first
+    boolean delayRanges;
+    // hang up partway through the first answer for the range starting here
+    int dropAt = -1;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte)(i * 31);
+        for (int i = 0; i < large.length; i++)
+            large[i] = (byte)(i * 17 + i / 1000);
+        FILE.delete();
+
+        // a range is only honoured if If-Range still matches, like a real server
+        httpServer = new AsyncHttpServer();
+        httpServer.get("/file", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                RawHeaders headers = request.getHeaders().getHeaders();
+                range = headers.get("Range");
+                ifRange = headers.get("If-Range");
+                RawHeaders responseHeaders = response.getHeaders().getHeaders();
+                responseHeaders.set("Last-Modified", HttpDate.format(lastModified));
+                if (errorCode != 0) {
+                    response.responseCode(errorCode);
+                    response.send("text/plain", "error");
+                    return;
+                }
+
+                int start = 0;
+                if (range != null && (ifRange == null || ifRange.equals(HttpDate.format(lastModified)))) {
+                    start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                    if (start >= payload.length) {
+                        response.responseCode(416);
+                        responseHeaders.set("Content-Range", "bytes */" + payload.length);
+                        response.send("text/plain", "");
+                        return;
+                    }
+                    response.responseCode(206);
+                    int claimed = wrongRange ? start + 1 : start;
+                    responseHeaders.set("Content-Range", "bytes " + claimed + "-" + (payload.length - 1) + "/" + payload.length);
+                }
+                else {
+                    response.responseCode(200);
+                }
+                responseHeaders.set("Content-Length", Integer.toString(payload.length - start));
+                response.writeHead();
+                response.write(new ByteBufferList(Arrays.copyOfRange(payload, start, payload.length)));
+                response.end();
+            }
+        });
+
+        // the If-Match isn't checked, so a changed file shows in the ETag
+        httpServer.get("/segmented", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                String range = request.getHeaders().getHeaders().get("Range");
+                ranges.add(range);
+                RawHeaders responseHeaders = response.getHeaders().getHeaders();
+                responseHeaders.set("ETag", etag);
+                if (range == null || noRanges) {
+                    response.responseCode(200);
+                    responseHeaders.set("Content-Length", Integer.toString(large.length));
+                    response.writeHead();
+                    response.write(new ByteBufferList(large.clone()));
+                    response.end();
+                    return;
+                }
+
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                final int start = Integer.parseInt(bounds[0]);
+                final int end = Integer.parseInt(bounds[1]) + 1;
+                response.responseCode(206);
+                responseHeaders.set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + large.length);
+                responseHeaders.set("Content-Length", Integer.toString(end - start));
+                if (start == 0 && changeETag)
+                    etag = "\"v2\"";
+
+                if (start == dropAt) {
+                    dropAt = -1;
+                    response.writeHead();
+                    response.write(new ByteBufferList(Arrays.copyOfRange(large, start, start + 100000)));
+                    AsyncServer.getDefault().postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            response.getSocket().close();
+                        }
+                    }, 200);
+                    return;
+                }
+
+                Runnable send = new Runnable() {
+                    @Override
+                    public void run() {
+                        response.writeHead();
+                        response.write(new ByteBufferList(Arrays.copyOfRange(large, start, end)));
+                        response.end();
+                    }
+                };
+                if (start != 0 && delayRanges)
+                    AsyncServer.getDefault().postDelayed(send, 300);
+                else
+                    send.run();
+            }
+        });
+        int port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
+        url = "http://localhost:" + port + "/file";
+        segmentedUrl = "http://localhost:" + port + "/segmented";
+
+        clientServer = new AsyncServer();
+        client = new AsyncHttpClient(clientServer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        httpServer.stop();
+        clientServer.stop();
+        FILE.delete();
+    }
+
+    // what an interrupted download would have left behind
+    private void writePartial(byte[] content, Date modified) throws Exception {
+        FileOutputStream out = new FileOutputStream(FILE);
+        out.write(content);
+        out.close();
+        FILE.setLastModified(modified.getTime());
+    }
+
+    private static byte[] read(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return StreamUtility.readToEndAsArray(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private File resume() throws Exception {
+        return client.executeFile(new AsyncHttpGet(url), FILE.getAbsolutePath(), true, null).get(DOWNLOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void assertResumeFails(String message) throws Exception {
+        try {
+            resume();
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertEquals(e.getCause().getMessage(), message);
+        }
+    }
+
+    public void testResume() throws Exception {
+        writePartial(Arrays.copyOf(payload, 30000), lastModified);
+        assertTrue(Arrays.equals(read(resume()), payload));
+        assertEquals(range, "bytes=30000-");
+        assertEquals(ifRange, HttpDate.format(lastModified));
+        // the server's version is remembered for the next resume
+        assertEquals(FILE.lastModified(), lastModified.getTime());
+    }
+
+    public void testResumeNothing() throws Exception {
+        // no file yet, so the whole thing is asked for
+        assertTrue(Arrays.equals(read(resume()), payload));
+        assertNull(range);
+        assertNull(ifRange);
+    }
+
+    public void testIfRange() throws Exception {
+        // the file on the server has changed since, so it is sent again from the start
+        writePartial(new byte[30000], new Date(lastModified.getTime() - 60000));
+        assertTrue(Arrays.equals(read(resume()), payload));
+        assertEquals(range, "bytes=30000-");
+    }
+
+    public void testContentRangeMismatch() throws Exception {
+        wrongRange = true;
+        writePartial(Arrays.copyOf(payload, 30000), lastModified);
+        assertResumeFails("unexpected Content-Range");
+        // the partial file is left as it was
+        assertTrue(Arrays.equals(read(FILE), Arrays.copyOf(payload, 30000)));
+    }
+
+    public void testAlreadyComplete() throws Exception {
+        writePartial(payload, lastModified);
+        assertTrue(Arrays.equals(read(resume()), payload));
+        assertEquals(range, "bytes=" + payload.length + "-");
+
+        // longer than what the server has
+        writePartial(Arrays.copyOf(payload, payload.length + 1), lastModified);
+        assertResumeFails("requested range not satisfiable");
+        assertEquals(FILE.length(), payload.length + 1);
+    }
+
+    public void testResumeError() throws Exception {
+        errorCode = 500;
+        writePartial(Arrays.copyOf(payload, 30000), lastModified);
+        assertResumeFails("unexpected response code 500");
+        // the error page doesn't replace what was already downloaded
+        assertTrue(Arrays.equals(read(FILE), Arrays.copyOf(payload, 30000)));
+
+        errorCode = 0;
+        assertTrue(Arrays.equals(read(resume()), payload));
+    }
+
+    private File download(int connections, AsyncHttpClient.FileCallback callback) throws Exception {
+        return client.executeSegmentedFile(new AsyncHttpGet(segmentedUrl), FILE.getAbsolutePath(), connections, callback).get(DOWNLOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public void testSegmented() throws Exception {
+        assertTrue(Arrays.equals(read(download(3, null)), large));
+        // the first 256k, then the rest over the other two connections
+        assertEquals(ranges.size(), 3);
+        assertTrue(ranges.contains("bytes=0-262143"));
+        assertTrue(ranges.contains("bytes=262144-655359"));
+        assertTrue(ranges.contains("bytes=655360-1048575"));
+    }
+
+    public void testSegmentedWithoutRanges() throws Exception {
+        noRanges = true;
+        final long[] progress = new long[2];
+        File file = download(3, new AsyncHttpClient.FileCallback() {
+            @Override
+            public void onProgress(AsyncHttpResponse response, int downloaded, int total) {
+                progress[0] = downloaded;
+                progress[1] = total;
+            }
+
+            @Override
+            public void onCompleted(Exception e, AsyncHttpResponse source, File result) {
+            }
+        });
+        // the first response was the whole file
+        assertTrue(Arrays.equals(read(file), large));
+        assertEquals(ranges.size(), 1);
+        assertEquals(progress[0], large.length);
+        assertEquals(progress[1], large.length);
+    }
+
+    public void testSegmentedSplit() throws Exception {
+        large = new byte[4 * 1024 * 1024];
+        for (int i = 0; i < large.length; i++)
+            large[i] = (byte)(i * 13);
+        delayRanges = true;
+        // the first range is done while the other hasn't started, so it takes the second half of it
+        assertTrue(Arrays.equals(read(download(2, null)), large));
+        assertEquals(ranges.get(1), "bytes=262144-4194303");
+        assertTrue(ranges.contains("bytes=2228224-4194303"));
+    }
+
+    public void testSegmentedETagChanged() throws Exception {
+        changeETag = true;
+        try {
+            download(3, null);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertEquals(e.getCause().getMessage(), "the file changed during the download");
+        }
+        // none of the mixed up file is left behind
+        assertFalse(FILE.exists());
+    }
+
+    public void testSegmentRetry() throws Exception {
+        dropAt = 655360;
+        assertTrue(Arrays.equals(read(download(3, null)), large));
+        // only what hadn't arrived is asked for again
+        assertTrue(ranges.contains("bytes=755360-1048575"));
+        assertEquals(ranges.size(), 4);
+    }
+
+    public void testPumpFileToDatagram() throws Exception {
+        // there's no transferTo for UDP, so the file goes through the heap
+        File file = new File("/sdcard/datagram.bin");
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)(i * 31);
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(data);
+        fout.close();
+
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        try {
+            receiver.setSoTimeout(10000);
+            AsyncDatagramSocket socket = AsyncServer.getDefault().connectDatagram(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()));
+            final Semaphore semaphore = new Semaphore(0);
+            final Exception[] error = new Exception[1];
+            Util.pump(file, socket, new CompletedCallback() {
+                @Override
+                public void onCompleted(Exception ex) {
+                    error[0] = ex;
+                    semaphore.release();
+                }
+            });
+            assertTrue(semaphore.tryAcquire(10000, TimeUnit.MILLISECONDS));
+            assertNull(error[0]);
+
+            DatagramPacket packet = new DatagramPacket(new byte[2000], 2000);
+            receiver.receive(packet);
+            assertEquals(packet.getLength(), data.length);
+            assertTrue(Arrays.equals(Arrays.copyOf(packet.getData(), data.length), data));
+            socket.close();
+        }
+        finally {
+            receiver.close();
+            file.delete();
+        }
+    }
 }
@@ -8,9 +8,12 @@ import com.koushikdutta.async.http.body.JSONObjectBody;
 import com.koushikdutta.async.http.body.MultipartFormDataBody;
 import com.koushikdutta.async.http.body.StringBody;
 import com.koushikdutta.async.http.body.UrlEncodedFormBody;
+import com.koushikdutta.async.http.libcore.RequestHeaders;
 import com.koushikdutta.async.http.server.AsyncHttpServer;
 import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
 import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.EventSource;
+import com.koushikdutta.async.http.server.EventSourceGroup;
 import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 import com.koushikdutta.async.util.StreamUtility;
 
@@ -24,14 +27,22 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONObject;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class HttpServerTests extends TestCase {
     AsyncHttpServer httpServer;
+    int port;
 
     @Override
     protected void setUp() throws Exception {
@@ -44,7 +55,7 @@ public class HttpServerTests extends TestCase {
                 fail();
             }
         });
-        httpServer.listen(AsyncServer.getDefault(), 5000);
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
         
         httpServer.get("/hello", new HttpServerRequestCallback() {
             @Override
@@ -91,7 +102,7 @@ public class HttpServerTests extends TestCase {
         JSONObject json = new JSONObject();
         json.put("foo", "bar");
         JSONObjectBody body = new JSONObjectBody(json);
-        AsyncHttpPost post = new AsyncHttpPost("http://localhost:5000/echo");
+        AsyncHttpPost post = new AsyncHttpPost("http://localhost:" + port + "/echo");
         post.setBody(body);
         json = AsyncHttpClient.getDefaultInstance().executeJSONObject(post).get();
         assertEquals(json.getString("foo"), "bar");
@@ -99,7 +110,7 @@ public class HttpServerTests extends TestCase {
 
     public void testString() throws Exception {
         StringBody body = new StringBody("bar");
-        AsyncHttpPost post = new AsyncHttpPost("http://localhost:5000/echo");
+        AsyncHttpPost post = new AsyncHttpPost("http://localhost:" + port + "/echo");
         post.setBody(body);
         JSONObject json = AsyncHttpClient.getDefaultInstance().executeJSONObject(post).get();
         assertEquals(json.getString("foo"), "bar");
@@ -108,7 +119,7 @@ public class HttpServerTests extends TestCase {
     public void testUrlEncodedFormBody() throws Exception {
         List<NameValuePair> params = new ArrayList<NameValuePair>();
         params.add(new BasicNameValuePair("foo", "bar"));
-        HttpPost post = new HttpPost("http://localhost:5000/echo");
+        HttpPost post = new HttpPost("http://localhost:" + port + "/echo");
         post.setEntity(new UrlEncodedFormEntity(params));
 
         HttpResponse response = new DefaultHttpClient().execute(post);
@@ -118,7 +129,7 @@ public class HttpServerTests extends TestCase {
     }
     
     public void testServerHello() throws Exception {
-        URL url = new URL("http://localhost:5000/hello");
+        URL url = new URL("http://localhost:" + port + "/hello");
         URLConnection conn = url.openConnection();
         
         InputStream is = conn.getInputStream();
@@ -129,7 +140,7 @@ public class HttpServerTests extends TestCase {
     }
     
     public void testServerHelloAgain() throws Exception {
-        URL url = new URL("http://localhost:5000/hello");
+        URL url = new URL("http://localhost:" + port + "/hello");
         URLConnection conn = url.openConnection();
         
         InputStream is = conn.getInputStream();
@@ -139,11 +150,177 @@ public class HttpServerTests extends TestCase {
         assertEquals(contents, "hello");
     }
     
+    /**
+     * A blocking text/event-stream reader, which undoes the chunked encoding.
+     */
+    static class EventStream {
+        Socket socket;
+        DataInputStream in;
+        String headers;
+        StringBuilder pending = new StringBuilder();
+
+        EventStream(int port, String path, String lastEventId, int receiveBufferSize) throws Exception {
+            socket = new Socket();
+            if (receiveBufferSize > 0)
+                socket.setReceiveBufferSize(receiveBufferSize);
+            socket.connect(new InetSocketAddress("localhost", port));
+            socket.setSoTimeout(10000);
+            in = new DataInputStream(socket.getInputStream());
+            String request = "GET " + path + " HTTP/1.1\r\nHost: localhost:" + port + "\r\n";
+            if (lastEventId != null)
+                request += "Last-Event-ID: " + lastEventId + "\r\n";
+            socket.getOutputStream().write((request + "\r\n").getBytes("US-ASCII"));
+            headers = readUntil("\r\n\r\n");
+        }
+
+        private String readUntil(String terminator) throws Exception {
+            StringBuilder ret = new StringBuilder();
+            while (!ret.toString().endsWith(terminator)) {
+                int b = in.read();
+                if (b == -1)
+                    throw new EOFException();
+                ret.append((char)b);
+            }
+            return ret.toString();
+        }
+
+        String readEvent() throws Exception {
+            int end;
+            while ((end = pending.indexOf("\n\n")) == -1) {
+                int length = Integer.parseInt(readUntil("\r\n").trim(), 16);
+                byte[] chunk = new byte[length];
+                in.readFully(chunk);
+                readUntil("\r\n");
+                pending.append(new String(chunk, "UTF-8"));
+            }
+            String ret = pending.substring(0, end + 1);
+            pending.delete(0, end + 2);
+            return ret;
+        }
+
+        void close() throws Exception {
+            socket.close();
+        }
+    }
+
+    AsyncServer eventServer;
+    AsyncHttpServer eventHttpServer;
+    EventSourceGroup eventGroup;
+    int eventPort;
+    int sizeOnConnect;
+
+    // the event source runs on its own AsyncServer, which the group must follow
+    private void listenEventSource() {
+        eventServer = new AsyncServer();
+        eventHttpServer = new AsyncHttpServer();
+        eventGroup = eventHttpServer.eventSource("/events", new AsyncHttpServer.EventSourceCallback() {
+            @Override
+            public void onConnected(EventSource eventSource, RequestHeaders headers) {
+                // joining the group is immediate on the group's own thread
+                sizeOnConnect = eventGroup.size();
+            }
+        });
+        eventPort = EphemeralPort.listen(eventServer, eventHttpServer);
+    }
+
+    // wait for everything posted to the event server so far
+    private void flushEventServer() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        eventServer.post(new Runnable() {
+            @Override
+            public void run() {
+                semaphore.release();
+            }
+        });
+        assertTrue(semaphore.tryAcquire(10000, TimeUnit.MILLISECONDS));
+    }
+
+    public void testEventSourceFraming() throws Exception {
+        listenEventSource();
+        EventStream stream = new EventStream(eventPort, "/events", null, 0);
+        assertTrue(stream.headers.contains("text/event-stream"));
+        flushEventServer();
+        assertEquals(eventGroup.size(), 1);
+        assertEquals(sizeOnConnect, 1);
+
+        eventGroup.broadcast("update", "line1\nline2\r\nline3");
+        eventGroup.broadcast("plain");
+        eventGroup.broadcast("");
+        assertEquals(stream.readEvent(), "id: 1\nevent: update\ndata: line1\ndata: line2\ndata: line3\n");
+        assertEquals(stream.readEvent(), "id: 2\ndata: plain\n");
+        assertEquals(stream.readEvent(), "id: 3\ndata: \n");
+        stream.close();
+    }
+
+    public void testEventSourceReplay() throws Exception {
+        listenEventSource();
+        // nobody is listening, but the last 64 are kept
+        for (int i = 1; i <= 70; i++)
+            eventGroup.broadcast("event " + i);
+        // ids are handed out as events are broadcast, not when they're written
+        assertEquals(eventGroup.getLastEventId(), 70);
+
+        EventStream stream = new EventStream(eventPort, "/events", "60", 0);
+        for (int i = 61; i <= 70; i++)
+            assertEquals(stream.readEvent(), "id: " + i + "\ndata: event " + i + "\n");
+        stream.close();
+        assertEquals(eventGroup.getReplayedCount(), 10);
+
+        // events that fell out of the ring are gone, the rest are replayed
+        stream = new EventStream(eventPort, "/events", "1", 0);
+        for (int i = 7; i <= 70; i++)
+            assertEquals(stream.readEvent(), "id: " + i + "\ndata: event " + i + "\n");
+        // and new events follow the replay
+        eventGroup.broadcast("event 71");
+        assertEquals(stream.readEvent(), "id: 71\ndata: event 71\n");
+        stream.close();
+
+        // an id from before a server restart replays nothing
+        stream = new EventStream(eventPort, "/events", "1000", 0);
+        eventGroup.broadcast("event 72");
+        assertEquals(stream.readEvent(), "id: 72\ndata: event 72\n");
+        stream.close();
+    }
+
+    public void testEventSourceSlowSubscriber() throws Exception {
+        listenEventSource();
+        eventGroup.setMaxQueueDepth(64 * 1024);
+        eventGroup.setReplaySize(0);
+        EventStream stream = new EventStream(eventPort, "/events", null, 4096);
+        flushEventServer();
+        assertEquals(eventGroup.size(), 1);
+
+        // never read, until the socket buffers fill up and the server gives up
+        char[] filler = new char[64 * 1024];
+        Arrays.fill(filler, 'x');
+        String data = new String(filler);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (eventGroup.getClosedCount() == 0 && System.currentTimeMillis() < deadline) {
+            eventGroup.broadcast(data);
+            flushEventServer();
+        }
+        assertEquals(eventGroup.getClosedCount(), 1);
+        assertEquals(eventGroup.size(), 0);
+
+        // what was written before the close is still readable, then the stream ends
+        try {
+            while (true)
+                stream.readEvent();
+        }
+        catch (EOFException e) {
+        }
+        stream.close();
+    }
+
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
         
         httpServer.stop();
         AsyncServer.getDefault().stop();
+        if (eventHttpServer != null)
+            eventHttpServer.stop();
+        if (eventServer != null)
+            eventServer.stop();
     }
 }
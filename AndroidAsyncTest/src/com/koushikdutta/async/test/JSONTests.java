@@ -0,0 +1,277 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+import com.koushikdutta.async.parser.JSONArrayParser;
+import com.koushikdutta.async.parser.JSONTokenizer;
+import com.koushikdutta.async.parser.JSONTreeBuilder;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSONTokenizer and the tree it builds. Documents are written a few bytes at
+ * a time, so every token gets split across buffers somewhere.
+ */
+public class JSONTests extends TestCase {
+    private static final long TIMEOUT = 10000L;
+
+    private static Object parse(String json, int chunk) throws Exception {
+        JSONTreeBuilder builder = new JSONTreeBuilder();
+        JSONTokenizer tokenizer = new JSONTokenizer(builder);
+        byte[] bytes = json.getBytes("UTF-8");
+        for (int i = 0; i < bytes.length; i += chunk) {
+            byte[] part = new byte[Math.min(chunk, bytes.length - i)];
+            System.arraycopy(bytes, i, part, 0, part.length);
+            tokenizer.write(new ByteBufferList(part));
+        }
+        tokenizer.end();
+        return builder.getRoot();
+    }
+
+    // the same result however the document is split up
+    private static Object parse(String json) throws Exception {
+        Object ret = parse(json, Integer.MAX_VALUE);
+        for (int chunk = 1; chunk < 8; chunk++)
+            assertEquals(parse(json, chunk).toString(), ret.toString());
+        return ret;
+    }
+
+    private static void assertMalformed(String json) throws Exception {
+        for (int chunk = 1; chunk < 4; chunk++) {
+            try {
+                parse(json, chunk);
+                fail(json);
+            }
+            catch (JSONException e) {
+            }
+        }
+    }
+
+    public void testNumbers() throws Exception {
+        JSONArray array = (JSONArray)parse("[0, -1, 123, 2147483648, -9223372036854775808, 99999999999999999999, 1.5, -0.25, 1e3, 2E-2, 1.5e+2]");
+        assertEquals(array.get(0), 0);
+        assertEquals(array.get(1), -1);
+        assertEquals(array.get(2), 123);
+        // too big for an int
+        assertEquals(array.get(3), 2147483648L);
+        assertEquals(array.get(4), Long.MIN_VALUE);
+        // too big for a long
+        assertEquals(array.get(5), 1e20);
+        assertEquals(array.get(6), 1.5);
+        assertEquals(array.get(7), -0.25);
+        assertEquals(array.get(8), 1000.0);
+        assertEquals(array.get(9), 0.02);
+        assertEquals(array.get(10), 150.0);
+
+        // a number at the top level only ends with the document
+        assertEquals(parse("42"), 42);
+
+        assertMalformed("[1.2.3]");
+        assertMalformed("[-]");
+        assertMalformed("[1e]");
+        assertMalformed("[--1]");
+        assertMalformed("[1-2]");
+    }
+
+    public void testLiterals() throws Exception {
+        JSONArray array = (JSONArray)parse("[true,false,null]");
+        assertEquals(array.get(0), Boolean.TRUE);
+        assertEquals(array.get(1), Boolean.FALSE);
+        assertEquals(array.get(2), JSONObject.NULL);
+
+        assertMalformed("[tru]");
+        assertMalformed("[nulls]");
+        assertMalformed("[True]");
+    }
+
+    public void testEscapes() throws Exception {
+        JSONArray array = (JSONArray)parse("[\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\\u00e9\\u0041\", \"\", \"\\u0000\"]");
+        assertEquals(array.get(0), "a\"b\\c/d\b\f\n\r\t\u00e9A");
+        assertEquals(array.get(1), "");
+        assertEquals(array.get(2), "\u0000");
+
+        assertMalformed("[\"\\x\"]");
+        assertMalformed("[\"\\u12g4\"]");
+        // control characters have to be escaped
+        assertMalformed("[\"a\nb\"]");
+    }
+
+    public void testMultiByte() throws Exception {
+        // raw UTF-8, and escaped surrogate pairs, split a byte at a time
+        String grin = new String(Character.toChars(0x1f600));
+        JSONObject object = (JSONObject)parse("{\"\u00e9t\u00e9\": \"\\ud83d\\ude00 " + grin + " \u65e5\u672c\"}");
+        assertEquals(object.getString("\u00e9t\u00e9"), grin + " " + grin + " \u65e5\u672c");
+    }
+
+    public void testNesting() throws Exception {
+        // deeper than the tokenizer starts out with
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            json.append("{\"a\":[");
+        json.append("1");
+        for (int i = 0; i < 100; i++)
+            json.append("]}");
+
+        Object value = parse(json.toString());
+        for (int i = 0; i < 100; i++)
+            value = ((JSONObject)value).getJSONArray("a").get(0);
+        assertEquals(value, 1);
+
+        JSONObject object = (JSONObject)parse("{\"a\": {\"b\": [1, [2, {}], []]}, \"c\": {}}");
+        assertEquals(object.getJSONObject("a").getJSONArray("b").getJSONArray(1).get(0), 2);
+        assertEquals(object.getJSONObject("c").length(), 0);
+    }
+
+    public void testMalformed() throws Exception {
+        assertMalformed("");
+        assertMalformed("{");
+        assertMalformed("[1,]");
+        assertMalformed("{\"a\" 1}");
+        assertMalformed("{\"a\":1,}");
+        assertMalformed("{1:2}");
+        assertMalformed("[1 2]");
+        assertMalformed("[1]]");
+        assertMalformed("{]");
+        assertMalformed("[1] 2");
+        assertMalformed("\"abc");
+        assertMalformed("[1,,2]");
+        assertMalformed("[1]x");
+
+        // and it stays broken
+        JSONTokenizer tokenizer = new JSONTokenizer(new JSONTreeBuilder());
+        try {
+            tokenizer.write(new ByteBufferList("[1,]".getBytes()));
+            fail();
+        }
+        catch (JSONException e) {
+        }
+        try {
+            tokenizer.write(new ByteBufferList("2".getBytes()));
+            fail();
+        }
+        catch (JSONException e) {
+        }
+    }
+
+    public void testDuplicateKey() throws Exception {
+        assertMalformed("{\"a\":1,\"a\":2}");
+        assertMalformed("{\"a\":{\"b\":1,\"b\":{}}}");
+        // the same key in different objects is fine
+        parse("{\"a\":{\"a\":1},\"b\":{\"a\":2}}");
+    }
+
+    AsyncHttpServer httpServer;
+    int port;
+    AsyncHttpServerResponse pending;
+    AsyncServer clientServer;
+    AsyncHttpClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clientServer = new AsyncServer();
+        client = new AsyncHttpClient(clientServer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        if (httpServer != null)
+            httpServer.stop();
+        clientServer.stop();
+    }
+
+    private static void send(AsyncHttpServerResponse response, String contentType, byte[] body) {
+        response.responseCode(200);
+        response.getHeaders().getHeaders().set("Content-Type", contentType);
+        response.getHeaders().getHeaders().set("Content-Length", Integer.toString(body.length));
+        response.writeHead();
+        response.write(new ByteBufferList(body));
+        response.end();
+    }
+
+    public void testCharset() throws Exception {
+        httpServer = new AsyncHttpServer();
+        httpServer.get("/latin1", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                try {
+                    send(response, "application/json; charset=ISO-8859-1", "{\"caf\u00e9\": \"cr\u00e8me br\u00fbl\u00e9e\"}".getBytes("ISO-8859-1"));
+                }
+                catch (Exception e) {
+                }
+            }
+        });
+        httpServer.get("/utf16", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                try {
+                    send(response, "application/json; charset=UTF-16BE", "[\"\u65e5\u672c\"]".getBytes("UTF-16BE"));
+                }
+                catch (Exception e) {
+                }
+            }
+        });
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
+
+        JSONObject object = client.getJSONObject("http://localhost:" + port + "/latin1").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(object.getString("caf\u00e9"), "cr\u00e8me br\u00fbl\u00e9e");
+        JSONArray array = client.getJSONArray("http://localhost:" + port + "/utf16").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(array.getString(0), "\u65e5\u672c");
+    }
+
+    public void testElementCallback() throws Exception {
+        // the end of the array is held back until the test asks for it
+        httpServer = new AsyncHttpServer();
+        httpServer.get("/elements", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.responseCode(200);
+                response.writeHead();
+                response.write(new ByteBufferList("[1, {\"a\": [2]}, \"thr".getBytes()));
+                pending = response;
+            }
+        });
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
+
+        final LinkedBlockingQueue<Object> elements = new LinkedBlockingQueue<Object>();
+        Future<JSONArray> future = client.executeJSONArray(new AsyncHttpGet("http://localhost:" + port + "/elements"), new JSONArrayParser.ElementCallback() {
+            @Override
+            public void onElement(Object element) throws JSONException {
+                elements.add(element);
+            }
+        }, null);
+
+        // handed over before the rest of the array has been sent
+        assertEquals(elements.poll(TIMEOUT, TimeUnit.MILLISECONDS), 1);
+        assertEquals(elements.poll(TIMEOUT, TimeUnit.MILLISECONDS).toString(), "{\"a\":[2]}");
+        assertFalse(future.isDone());
+
+        AsyncServer.getDefault().post(new Runnable() {
+            @Override
+            public void run() {
+                pending.write(new ByteBufferList("ee\", 4]".getBytes()));
+                pending.end();
+            }
+        });
+        // and the array itself stays empty
+        assertEquals(future.get(TIMEOUT, TimeUnit.MILLISECONDS).length(), 0);
+        assertEquals(elements.poll(), "three");
+        assertEquals(elements.poll(), 4);
+        assertNull(elements.poll());
+    }
+}
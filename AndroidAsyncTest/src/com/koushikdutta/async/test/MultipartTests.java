@@ -22,12 +22,20 @@ import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 
 import junit.framework.TestCase;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 public class MultipartTests extends TestCase {
     AsyncHttpServer httpServer;
+    int port;
 
     @Override
     protected void setUp() throws Exception {
@@ -40,7 +48,7 @@ public class MultipartTests extends TestCase {
                 fail();
             }
         });
-        httpServer.listen(AsyncServer.getDefault(), 5000);
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
         
         httpServer.post("/", new HttpServerRequestCallback() {
             int gotten = 0;
@@ -92,7 +100,7 @@ public class MultipartTests extends TestCase {
         fout.close();
 //        StreamUtility.writeFile(dummy, DUMMY_VAL);
         
-        AsyncHttpPost post = new AsyncHttpPost("http://localhost:5000");
+        AsyncHttpPost post = new AsyncHttpPost("http://localhost:" + port);
         MultipartFormDataBody body = new MultipartFormDataBody();
         body.addStringPart("foo", FIELD_VAL);
         body.addFilePart("my-file", dummy);
@@ -108,4 +116,116 @@ public class MultipartTests extends TestCase {
         String data = ret.get(10000, TimeUnit.MILLISECONDS);
         assertEquals(data, FIELD_VAL + (zeroes.length * 10) + FIELD_VAL);
     }
+
+    // the Content-Length of the last request read off a plain socket, and the body it said there was
+    long sentLength;
+    byte[] sent;
+    // whether anything came after that
+    boolean extra;
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new IOException("unexpected end of request");
+            if (b != '\r')
+                line.append((char)b);
+        }
+        return line.toString();
+    }
+
+    // the server only answers once it has read Content-Length bytes, so a
+    // length that is too long times out, and one that is too short leaves extra
+    private void postRaw(MultipartFormDataBody body) throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        socket.setSoTimeout(5000);
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        sentLength = -1;
+                        String header;
+                        while ((header = readLine(in)).length() > 0) {
+                            if (header.toLowerCase().startsWith("content-length:"))
+                                sentLength = Long.parseLong(header.substring("content-length:".length()).trim());
+                        }
+                        if (sentLength < 0)
+                            return;
+                        sent = new byte[(int)sentLength];
+                        in.readFully(sent);
+                        socket.setSoTimeout(300);
+                        try {
+                            extra = in.read() != -1;
+                        }
+                        catch (SocketTimeoutException e) {
+                        }
+                        socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok".getBytes());
+                    }
+                    finally {
+                        socket.close();
+                    }
+                }
+                catch (Exception e) {
+                }
+            }
+        };
+        thread.start();
+        try {
+            AsyncHttpPost post = new AsyncHttpPost("http://localhost:" + serverSocket.getLocalPort());
+            post.setBody(body);
+            assertEquals(AsyncHttpClient.getDefaultInstance().executeString(post).get(10000, TimeUnit.MILLISECONDS), "ok");
+        }
+        finally {
+            serverSocket.close();
+            thread.join(10000);
+        }
+        assertEquals(sent.length, sentLength);
+        assertFalse(extra);
+        // and it was all there, down to the closing boundary
+        String boundary = body.getContentType().split("boundary=")[1];
+        assertTrue(new String(sent).trim().endsWith("--" + boundary + "--"));
+    }
+
+    public void testContentLengthStrings() throws Exception {
+        MultipartFormDataBody body = new MultipartFormDataBody();
+        body.addStringPart("foo", "bar");
+        body.addStringPart("empty", "");
+        // more bytes than characters
+        body.addStringPart("caf\u00e9", "cr\u00e8me br\u00fbl\u00e9e \u65e5\u672c");
+        postRaw(body);
+        assertEquals(sentLength, body.length());
+    }
+
+    public void testContentLengthFile() throws Exception {
+        File file = new File(Environment.getExternalStorageDirectory(), "AndroidAsync/length.bin");
+        file.getParentFile().mkdirs();
+        byte[] data = new byte[300000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)i;
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(data);
+        fout.close();
+
+        MultipartFormDataBody body = new MultipartFormDataBody();
+        body.addStringPart("foo", "bar");
+        body.addFilePart("my-file", file);
+        body.addFilePart("again", file);
+        body.addStringPart("baz", "bar");
+        postRaw(body);
+        assertTrue(sentLength > data.length * 2);
+        // the file went out as it is
+        String text = new String(sent, "ISO-8859-1");
+        int start = text.indexOf("\r\n\r\n", text.indexOf("my-file")) + 4;
+        assertTrue(Arrays.equals(Arrays.copyOfRange(sent, start, start + data.length), data));
+        file.delete();
+    }
+
+    public void testContentLengthEmpty() throws Exception {
+        // just the closing boundary
+        postRaw(new MultipartFormDataBody());
+    }
 }
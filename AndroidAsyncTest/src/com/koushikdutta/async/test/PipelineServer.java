@@ -0,0 +1,114 @@
+package com.koushikdutta.async.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A blocking HTTP/1.1 server that reads requests as they come in, so pipelined
+ * requests are answered one after the other on the same connection. The
+ * response body is the request path.
+ *
+ * /delay/n waits n milliseconds before answering, /close answers with
+ * Connection: close, and /drop hangs up without answering.
+ */
+public class PipelineServer extends Thread {
+    ServerSocket serverSocket;
+    public final AtomicInteger accepted = new AtomicInteger();
+    // requests that were already waiting on the connection when one was answered
+    public final AtomicInteger pipelined = new AtomicInteger();
+
+    public PipelineServer(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress("localhost", port));
+        setDaemon(true);
+        start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                accepted.incrementAndGet();
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        }
+                        catch (Exception e) {
+                        }
+                        finally {
+                            try {
+                                socket.close();
+                            }
+                            catch (IOException e) {
+                            }
+                        }
+                    }
+                }.start();
+            }
+        }
+        catch (IOException e) {
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                return null;
+            if (b != '\r')
+                line.append((char)b);
+        }
+        return line.toString();
+    }
+
+    private void serve(Socket socket) throws Exception {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        String requestLine;
+        while ((requestLine = readLine(in)) != null) {
+            String header;
+            do {
+                header = readLine(in);
+                if (header == null)
+                    return;
+            }
+            while (header.length() > 0);
+
+            String path = requestLine.split(" ")[1];
+            if (path.startsWith("/delay/"))
+                Thread.sleep(Integer.parseInt(path.substring("/delay/".length())));
+            if (in.available() > 0)
+                pipelined.incrementAndGet();
+            if (path.equals("/drop"))
+                return;
+
+            boolean close = path.equals("/close");
+            byte[] body = path.getBytes("US-ASCII");
+            String response = "HTTP/1.1 200 OK\r\n"
+            + "Content-Length: " + body.length + "\r\n"
+            + (close ? "Connection: close\r\n" : "")
+            + "\r\n";
+            out.write(response.getBytes("US-ASCII"));
+            out.write(body);
+            out.flush();
+            if (close)
+                return;
+        }
+    }
+
+    public void close() throws Exception {
+        serverSocket.close();
+        // the port is only let go once the accept call returns
+        join(10000);
+    }
+}
@@ -0,0 +1,136 @@
+package com.koushikdutta.async.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A blocking websocket client that speaks just enough of RFC 6455 to put
+ * arbitrary frames on the wire, and to look at the frames that come back.
+ */
+public class RawWebSocket {
+    public static final int FIN = 0x80;
+    public static final int RSV1 = 0x40;
+    public static final int OP_CONTINUATION = 0;
+    public static final int OP_TEXT = 1;
+    public static final int OP_BINARY = 2;
+    public static final int OP_CLOSE = 8;
+
+    Socket socket;
+    DataInputStream in;
+    OutputStream out;
+    Random random = new Random();
+    String responseHeaders;
+
+    // the first byte of the last frame read, FIN, RSV and opcode
+    public int flags;
+
+    public RawWebSocket(int port, String path, String extensions) throws IOException {
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(10000);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+
+        String request = "GET " + path + " HTTP/1.1\r\n"
+        + "Host: localhost:" + port + "\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+        + "Sec-WebSocket-Version: 13\r\n";
+        if (extensions != null)
+            request += "Sec-WebSocket-Extensions: " + extensions + "\r\n";
+        out.write((request + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1)
+                throw new IOException("connection closed during handshake");
+            headers.append((char)b);
+        }
+        responseHeaders = headers.toString();
+        if (!responseHeaders.startsWith("HTTP/1.1 101"))
+            throw new IOException("handshake failed: " + responseHeaders);
+    }
+
+    public String getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    /**
+     * Write a single masked frame, the first byte is given as is.
+     */
+    public void write(int flags, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(flags);
+        if (payload.length <= 125) {
+            frame.write(0x80 | payload.length);
+        }
+        else if (payload.length <= 65535) {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        }
+        else {
+            frame.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--)
+                frame.write(i >= 4 ? 0 : payload.length >> (i * 8));
+        }
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        frame.write(mask);
+        for (int i = 0; i < payload.length; i++)
+            frame.write(payload[i] ^ mask[i % 4]);
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Read the payload of the next frame, server frames are never masked.
+     */
+    public byte[] read() throws IOException {
+        flags = in.readUnsignedByte();
+        int length = in.readUnsignedByte();
+        if ((length & 0x80) != 0)
+            throw new IOException("masked server frame");
+        if (length == 126)
+            length = in.readUnsignedShort();
+        else if (length == 127)
+            length = (int)in.readLong();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public int getOpcode() {
+        return flags & 0x0f;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Inflate a permessage-deflate payload, appending the stripped sync flush trailer.
+     */
+    public static byte[] inflate(Inflater inflater, byte[] payload) throws DataFormatException {
+        byte[] input = new byte[payload.length + 4];
+        System.arraycopy(payload, 0, input, 0, payload.length);
+        input[payload.length + 2] = (byte)0xff;
+        input[payload.length + 3] = (byte)0xff;
+        inflater.setInput(input);
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!inflater.needsInput()) {
+            int read = inflater.inflate(buffer);
+            ret.write(buffer, 0, read);
+        }
+        return ret.toByteArray();
+    }
+}
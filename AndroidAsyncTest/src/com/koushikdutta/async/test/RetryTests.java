@@ -0,0 +1,190 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.AsyncHttpPost;
+import com.koushikdutta.async.http.AsyncHttpRequest;
+import com.koushikdutta.async.http.RetryPolicy;
+import com.koushikdutta.async.http.body.StringBody;
+import com.koushikdutta.async.http.libcore.HttpDate;
+import com.koushikdutta.async.http.libcore.RawHeaders;
+import com.koushikdutta.async.http.libcore.ResponseHeaders;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import junit.framework.TestCase;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RetryPolicy, against a server that is unavailable for a number of requests.
+ */
+public class RetryTests extends TestCase {
+    private static final long TIMEOUT = 10000L;
+
+    AsyncHttpServer httpServer;
+    AsyncServer clientServer;
+    AsyncHttpClient client;
+    final AtomicInteger hits = new AtomicInteger();
+    // how many requests get a 503 before the server comes back
+    int failures;
+    String retryAfter = "0";
+    int port;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        httpServer = new AsyncHttpServer();
+        HttpServerRequestCallback unavailable = new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                if (hits.incrementAndGet() > failures) {
+                    response.send("ok");
+                    return;
+                }
+                response.responseCode(503);
+                if (retryAfter != null)
+                    response.getHeaders().getHeaders().set("Retry-After", retryAfter);
+                response.send("text/plain", "unavailable");
+            }
+        };
+        httpServer.get("/unavailable", unavailable);
+        httpServer.post("/unavailable", unavailable);
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
+
+        clientServer = new AsyncServer();
+        client = new AsyncHttpClient(clientServer);
+        client.getRetryPolicy().setRetryUnavailable(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        httpServer.stop();
+        clientServer.stop();
+    }
+
+    private String get() throws Exception {
+        return client.executeString(new AsyncHttpGet("http://localhost:" + port + "/unavailable")).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public void testUnavailableNotRetriedByDefault() throws Exception {
+        failures = 1;
+        client.setRetryPolicy(new RetryPolicy());
+        assertEquals(get(), "unavailable");
+        assertEquals(hits.get(), 1);
+    }
+
+    public void testRetryUnavailable() throws Exception {
+        failures = 2;
+        assertEquals(get(), "ok");
+        assertEquals(hits.get(), 3);
+    }
+
+    public void testMaxRetries() throws Exception {
+        failures = 10;
+        client.getRetryPolicy().setMaxRetries(2);
+        // the last response is given to the caller
+        assertEquals(get(), "unavailable");
+        assertEquals(hits.get(), 3);
+    }
+
+    public void testRetryAfterTooLong() throws Exception {
+        failures = 1;
+        retryAfter = "120";
+        assertEquals(get(), "unavailable");
+        assertEquals(hits.get(), 1);
+    }
+
+    public void testBackoff() throws Exception {
+        failures = 2;
+        retryAfter = null;
+        client.getRetryPolicy().setBaseDelay(100);
+        assertEquals(get(), "ok");
+        assertEquals(hits.get(), 3);
+    }
+
+    public void testNotIdempotent() throws Exception {
+        failures = 1;
+        AsyncHttpPost post = new AsyncHttpPost("http://localhost:" + port + "/unavailable");
+        post.setBody(new StringBody("body"));
+        assertEquals(client.executeString(post).get(TIMEOUT, TimeUnit.MILLISECONDS), "unavailable");
+        assertEquals(hits.get(), 1);
+    }
+
+    public void testBudget() throws Exception {
+        failures = 10;
+        client.getRetryPolicy().setMaxRetryTokens(1);
+        client.getRetryPolicy().setRetryRatio(0);
+        // one retry to spend, and none earned back
+        assertEquals(get(), "unavailable");
+        assertEquals(hits.get(), 2);
+        assertEquals(get(), "unavailable");
+        assertEquals(hits.get(), 3);
+    }
+
+    public void testRetryConnect() throws Exception {
+        final AtomicInteger connectFailures = new AtomicInteger();
+        client.setRetryPolicy(new RetryPolicy() {
+            @Override
+            public boolean shouldRetryConnect(AsyncHttpRequest request, Exception ex, int retryCount) {
+                connectFailures.incrementAndGet();
+                return super.shouldRetryConnect(request, ex, retryCount);
+            }
+        });
+        // nothing listens here
+        try {
+            client.executeString(new AsyncHttpGet("http://localhost:5999/")).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+        assertEquals(connectFailures.get(), 4);
+    }
+
+    private static ResponseHeaders headers(int code, String retryAfter) {
+        RawHeaders raw = new RawHeaders();
+        raw.setStatusLine("HTTP/1.1 " + code + " Status");
+        if (retryAfter != null)
+            raw.set("Retry-After", retryAfter);
+        return new ResponseHeaders(URI.create("http://example.com/"), raw);
+    }
+
+    public void testRetryDelay() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        AsyncHttpRequest get = new AsyncHttpGet("http://example.com/");
+        assertEquals(policy.getRetryDelay(get, headers(503, "5"), 0), -1);
+        policy.setRetryUnavailable(true);
+        assertEquals(policy.getRetryDelay(get, headers(200, null), 0), -1);
+        assertEquals(policy.getRetryDelay(get, headers(500, null), 0), -1);
+        assertEquals(policy.getRetryDelay(get, headers(503, "5"), 0), 5000);
+        assertEquals(policy.getRetryDelay(get, headers(429, "5"), 0), 5000);
+        assertEquals(policy.getRetryDelay(get, headers(503, "60"), 0), -1);
+        assertEquals(policy.getRetryDelay(get, headers(503, "5"), policy.getMaxRetries()), -1);
+
+        long delay = policy.getRetryDelay(get, headers(503, HttpDate.format(new Date(System.currentTimeMillis() + 10000))), 0);
+        assertTrue(delay > 5000 && delay <= 10000);
+
+        // jittered, and doubling up to the max delay
+        for (int i = 0; i < 20; i++) {
+            delay = policy.getRetryDelay(get, headers(503, null), 2);
+            assertTrue(delay >= 0 && delay < 4000);
+        }
+        policy.setMaxDelay(1500);
+        policy.setMaxRetries(100);
+        for (int i = 0; i < 20; i++) {
+            delay = policy.getRetryDelay(get, headers(503, null), 40);
+            assertTrue(delay >= 0 && delay < 1500);
+        }
+    }
+}
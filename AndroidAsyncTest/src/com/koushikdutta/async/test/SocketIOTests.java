@@ -5,13 +5,22 @@ import android.util.Log;
 import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.future.SimpleFuture;
 import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.WebSocket;
+import com.koushikdutta.async.http.libcore.RequestHeaders;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 import com.koushikdutta.async.http.socketio.Acknowledge;
+import com.koushikdutta.async.http.socketio.AcknowledgeCallback;
 import com.koushikdutta.async.http.socketio.ConnectCallback;
 import com.koushikdutta.async.http.socketio.DisconnectCallback;
 import com.koushikdutta.async.http.socketio.EventCallback;
+import com.koushikdutta.async.http.socketio.ExceptionCallback;
 import com.koushikdutta.async.http.socketio.JSONCallback;
 import com.koushikdutta.async.http.socketio.ReconnectCallback;
 import com.koushikdutta.async.http.socketio.SocketIOClient;
+import com.koushikdutta.async.http.socketio.SocketIOException;
 import com.koushikdutta.async.http.socketio.SocketIORequest;
 import com.koushikdutta.async.http.socketio.StringCallback;
 
@@ -21,6 +30,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class SocketIOTests extends TestCase {
@@ -30,6 +41,350 @@ public class SocketIOTests extends TestCase {
     protected void tearDown() throws Exception {
         super.tearDown();
         AsyncServer.getDefault().stop();
+        if (httpServer != null)
+            httpServer.stop();
+        if (server != null)
+            server.stop();
+        if (clientServer != null)
+            clientServer.stop();
+    }
+
+    // a local socket.io server, with the client on an AsyncServer of its own,
+    // so a test can hold up the client's event loop
+    AsyncServer server;
+    AsyncHttpServer httpServer;
+    AsyncServer clientServer;
+    AsyncHttpClient httpClient;
+    // the packets the server received, heartbeats left out
+    final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+    // when each handshake came in
+    final LinkedBlockingQueue<Long> handshakes = new LinkedBlockingQueue<Long>();
+    // handshakes fail while this is set
+    volatile boolean refuseHandshakes;
+    WebSocket serverSocket;
+
+    private String listen() {
+        server = new AsyncServer();
+        httpServer = new AsyncHttpServer();
+        httpServer.post("/socket.io/1/", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                handshakes.add(System.currentTimeMillis());
+                if (refuseHandshakes) {
+                    response.send("session::60:xhr-polling");
+                    return;
+                }
+                // no heartbeat timeout, so the client doesn't send any
+                response.send("session::60:websocket");
+            }
+        });
+        httpServer.websocket("/socket.io/1/websocket/.*", new AsyncHttpServer.WebSocketRequestCallback() {
+            @Override
+            public void onConnected(final WebSocket webSocket, RequestHeaders headers) {
+                serverSocket = webSocket;
+                webSocket.setStringCallback(new WebSocket.StringCallback() {
+                    @Override
+                    public void onStringAvailable(String s) {
+                        if (s.startsWith("2:"))
+                            return;
+                        // endpoint connects are accepted as they come
+                        if (s.startsWith("1::"))
+                            webSocket.send(s);
+                        received.add(s);
+                    }
+                });
+                webSocket.send("1::");
+            }
+        });
+        int port = EphemeralPort.listen(server, httpServer);
+        clientServer = new AsyncServer();
+        httpClient = new AsyncHttpClient(clientServer);
+        return "http://localhost:" + port + "/";
+    }
+
+    // drop the client, and wait for it to notice
+    private void dropConnection(SocketIOClient client) throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        client.setDisconnectCallback(new DisconnectCallback() {
+            @Override
+            public void onDisconnect(Exception e) {
+                semaphore.release();
+            }
+        });
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                serverSocket.close();
+            }
+        });
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        client.setDisconnectCallback(null);
+    }
+
+    public void testReconnectBackoff() throws Exception {
+        SocketIORequest request = new SocketIORequest(listen());
+        request.setReconnectDelay(50);
+        request.setReconnectMaxDelay(200);
+        request.setReconnectJitter(false);
+        request.setReconnectMaxAttempts(5);
+        SocketIOClient client = SocketIOClient.connect(httpClient, request, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(handshakes.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        refuseHandshakes = true;
+        long last = System.currentTimeMillis();
+        dropConnection(client);
+        // doubling from 50ms, up to 200ms
+        long[] delays = new long[] { 50, 100, 200, 200, 200 };
+        for (long delay: delays) {
+            Long time = handshakes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(time);
+            assertTrue(time - last >= delay);
+            assertTrue(time - last < delay + 400);
+            last = time;
+        }
+        // and gives up after the fifth attempt
+        assertNull(handshakes.poll(1000, TimeUnit.MILLISECONDS));
+        assertFalse(client.isConnected());
+    }
+
+    public void testReconnectJitter() throws Exception {
+        SocketIORequest request = new SocketIORequest(listen());
+        request.setReconnectDelay(200);
+        request.setReconnectMaxDelay(200);
+        request.setReconnectMaxAttempts(10);
+        SocketIOClient client = SocketIOClient.connect(httpClient, request, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(handshakes.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        refuseHandshakes = true;
+        dropConnection(client);
+        Long last = handshakes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(last);
+        // each delay is somewhere between 0 and 200ms, so they can't all be near the top
+        long shortest = Long.MAX_VALUE;
+        for (int i = 0; i < 9; i++) {
+            Long time = handshakes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(time);
+            assertTrue(time - last < 200 + 150);
+            shortest = Math.min(shortest, time - last);
+            last = time;
+        }
+        assertTrue(shortest < 150);
+        assertNull(handshakes.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    public void testQueuedEmits() throws Exception {
+        SocketIORequest request = new SocketIORequest(listen());
+        request.setReconnectDelay(50);
+        request.setReconnectJitter(false);
+        request.setMaxQueuedEmits(3);
+        final SocketIOClient client = SocketIOClient.connect(httpClient, request, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        refuseHandshakes = true;
+        dropConnection(client);
+        // held while disconnected, and the ones past the limit are dropped
+        for (int i = 0; i < 5; i++)
+            client.emit("queued " + i);
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+        final Semaphore semaphore = new Semaphore(0);
+        client.setReconnectCallback(new ReconnectCallback() {
+            @Override
+            public void onReconnect() {
+                semaphore.release();
+            }
+        });
+        refuseHandshakes = false;
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 3; i++)
+            assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), "3:::queued " + i);
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+        // once connected, emits go straight out
+        client.emit("live");
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), "3:::live");
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            builder.append(s);
+        return builder.toString();
+    }
+
+    public void testBatchedEmits() throws Exception {
+        SocketIORequest request = new SocketIORequest(listen());
+        request.setBatchLimit(64 * 1024);
+        final SocketIOClient client = SocketIOClient.connect(httpClient, request, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        final Semaphore semaphore = new Semaphore(0);
+        final boolean[] heldBack = new boolean[1];
+        clientServer.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 5; i++)
+                    client.emit("message " + i);
+                // nothing is written until this pass of the event loop is over
+                try {
+                    heldBack[0] = received.poll(200, TimeUnit.MILLISECONDS) == null;
+                }
+                catch (InterruptedException e) {
+                }
+                semaphore.release();
+            }
+        });
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(heldBack[0]);
+        for (int i = 0; i < 5; i++)
+            assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), "3:::message " + i);
+    }
+
+    public void testBatchLimit() throws Exception {
+        SocketIORequest request = new SocketIORequest(listen());
+        request.setBatchLimit(200);
+        final SocketIOClient client = SocketIOClient.connect(httpClient, request, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        // 64 characters, but 124 bytes once encoded, so two of them are over the limit
+        final String message = repeat("\u00e9", 60);
+        final Semaphore semaphore = new Semaphore(0);
+        final boolean[] flushed = new boolean[1];
+        final boolean[] heldBack = new boolean[1];
+        clientServer.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.emit(message);
+                    client.emit(message);
+                    // the full batch goes out right away
+                    flushed[0] = ("3:::" + message).equals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS))
+                        && ("3:::" + message).equals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+                    // and the next one waits for the end of this pass
+                    client.emit("last");
+                    heldBack[0] = received.poll(200, TimeUnit.MILLISECONDS) == null;
+                }
+                catch (InterruptedException e) {
+                }
+                semaphore.release();
+            }
+        });
+        assertTrue(semaphore.tryAcquire(TIMEOUT * 3, TimeUnit.MILLISECONDS));
+        assertTrue(flushed[0]);
+        assertTrue(heldBack[0]);
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), "3:::last");
+    }
+
+    // send a packet from the server to the client
+    private void sendFromServer(final String packet) {
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                serverSocket.send(packet);
+            }
+        });
+    }
+
+    private EventCallback recordEvents(final LinkedBlockingQueue<String> events, final String tag) {
+        return new EventCallback() {
+            @Override
+            public void onEvent(JSONArray argument, Acknowledge acknowledge) {
+                events.add(tag + argument);
+            }
+        };
+    }
+
+    public void testEventDispatch() throws Exception {
+        SocketIORequest request = new SocketIORequest(listen());
+        final SocketIOClient client = SocketIOClient.connect(httpClient, request, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        final LinkedBlockingQueue<SocketIOClient> connected = new LinkedBlockingQueue<SocketIOClient>();
+        client.of("/chat", new ConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, SocketIOClient client) {
+                assertNull(ex);
+                connected.add(client);
+            }
+        });
+        SocketIOClient chat = connected.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(chat);
+
+        final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        EventCallback rootNews = recordEvents(events, "root news ");
+        client.on("news", rootNews);
+        chat.on("news", recordEvents(events, "chat news "));
+        chat.once("alert", recordEvents(events, "chat alert "));
+
+        // events only go to the endpoint they were sent on
+        sendFromServer("5:::{\"name\":\"news\",\"args\":[1]}");
+        sendFromServer("5::/chat:{\"name\":\"news\",\"args\":[2]}");
+        assertEquals(events.poll(TIMEOUT, TimeUnit.MILLISECONDS), "root news [1]");
+        assertEquals(events.poll(TIMEOUT, TimeUnit.MILLISECONDS), "chat news [2]");
+
+        // once handlers are gone after the first event, as are removed ones
+        client.removeListener("news", rootNews);
+        sendFromServer("5::/chat:{\"name\":\"alert\",\"args\":[3]}");
+        sendFromServer("5::/chat:{\"name\":\"alert\",\"args\":[4]}");
+        sendFromServer("5:::{\"name\":\"news\",\"args\":[5]}");
+        sendFromServer("5::/chat:{\"name\":\"news\",\"args\":[6]}");
+        assertEquals(events.poll(TIMEOUT, TimeUnit.MILLISECONDS), "chat alert [3]");
+        assertEquals(events.poll(TIMEOUT, TimeUnit.MILLISECONDS), "chat news [6]");
+
+        // and handlers added later are picked up
+        client.on("news", rootNews);
+        sendFromServer("5:::{\"name\":\"news\",\"args\":[7]}");
+        assertEquals(events.poll(TIMEOUT, TimeUnit.MILLISECONDS), "root news [7]");
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    public void testAckTimeout() throws Exception {
+        SocketIORequest request = new SocketIORequest(listen());
+        request.setAckTimeout(300);
+        final SocketIOClient client = SocketIOClient.connect(httpClient, request, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        final LinkedBlockingQueue<String> results = new LinkedBlockingQueue<String>();
+        client.setExceptionCallback(new ExceptionCallback() {
+            @Override
+            public void onException(Exception e) {
+                results.add("exception " + e.getMessage());
+            }
+        });
+        class RecordingAcknowledge implements AcknowledgeCallback {
+            String name;
+            RecordingAcknowledge(String name) {
+                this.name = name;
+            }
+
+            @Override
+            public void acknowledge(JSONArray arguments) {
+                results.add(name + " acknowledged " + arguments);
+            }
+
+            @Override
+            public void onTimeout(SocketIOException e) {
+                results.add(name + " " + e.getMessage());
+            }
+        }
+
+        // answered in time
+        client.emit("answered", new RecordingAcknowledge("answered"));
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), "3:0+::answered");
+        sendFromServer("6:::0+[\"ok\"]");
+        assertEquals(results.poll(TIMEOUT, TimeUnit.MILLISECONDS), "answered acknowledged [\"ok\"]");
+
+        // the timeout goes to the acknowledgement that timed out
+        client.emit("ignored", new RecordingAcknowledge("ignored"));
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), "3:1+::ignored");
+        assertEquals(results.poll(TIMEOUT, TimeUnit.MILLISECONDS), "ignored acknowledgement 1 timed out");
+
+        // plain acknowledgements leave it to the ExceptionCallback
+        client.emit("plain", new Acknowledge() {
+            @Override
+            public void acknowledge(JSONArray arguments) {
+                results.add("plain acknowledged");
+            }
+        });
+        assertEquals(received.poll(TIMEOUT, TimeUnit.MILLISECONDS), "3:2+::plain");
+        assertEquals(results.poll(TIMEOUT, TimeUnit.MILLISECONDS), "exception acknowledgement 2 timed out");
+
+        // a late answer is dropped
+        sendFromServer("6:::1+[\"late\"]");
+        assertNull(results.poll(500, TimeUnit.MILLISECONDS));
     }
 
     class TriggerFuture extends SimpleFuture<Boolean> {
@@ -0,0 +1,134 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.FilteredDataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+import com.koushikdutta.async.parser.StringParser;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StringParser, with the body handed over in pieces that split characters.
+ */
+public class StringParserTests extends TestCase {
+    private static final long TIMEOUT = 10000L;
+
+    // the bytes are cut at each of the offsets in turn
+    private static String parse(StringParser parser, byte[] bytes, int... cuts) throws Exception {
+        FilteredDataEmitter mock = new FilteredDataEmitter() {
+            @Override
+            public boolean isPaused() {
+                return false;
+            }
+        };
+        Future<String> ret = parser.parse(mock);
+        int start = 0;
+        for (int i = 0; i <= cuts.length; i++) {
+            int end = i < cuts.length ? cuts[i] : bytes.length;
+            byte[] part = new byte[end - start];
+            System.arraycopy(bytes, start, part, 0, part.length);
+            Util.emitAllData(mock, new ByteBufferList(part));
+            start = end;
+        }
+        mock.getEndCallback().onCompleted(null);
+        return ret.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public void testStraddle() throws Exception {
+        // two, three and four byte characters, cut everywhere in between
+        String text = "\u00e9\u65e5" + new String(Character.toChars(0x1f600)) + "a";
+        byte[] bytes = text.getBytes("UTF-8");
+        for (int cut = 0; cut <= bytes.length; cut++)
+            assertEquals(parse(new StringParser(), bytes, cut), text);
+        for (int cut = 1; cut < bytes.length; cut++)
+            assertEquals(parse(new StringParser(), bytes, cut - 1, cut), text);
+
+        // a byte at a time
+        int[] cuts = new int[bytes.length - 1];
+        for (int i = 0; i < cuts.length; i++)
+            cuts[i] = i + 1;
+        assertEquals(parse(new StringParser(), bytes, cuts), text);
+    }
+
+    public void testStraddleUTF16() throws Exception {
+        // the surrogate pair, and each of its halves, split down the middle
+        String text = "a" + new String(Character.toChars(0x1f600));
+        byte[] bytes = text.getBytes("UTF-16BE");
+        StringParser parser = new StringParser(Charset.forName("UTF-16BE"));
+        for (int cut = 0; cut <= bytes.length; cut++)
+            assertEquals(parse(parser, bytes, cut), text);
+    }
+
+    public void testTruncated() throws Exception {
+        // the body ends partway into a character
+        byte[] bytes = "a\u65e5".getBytes("UTF-8");
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertEquals(parse(new StringParser(), truncated, 2), "a\ufffd");
+    }
+
+    AsyncHttpServer httpServer;
+    int port;
+    AsyncServer clientServer;
+    AsyncHttpClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clientServer = new AsyncServer();
+        client = new AsyncHttpClient(clientServer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        if (httpServer != null)
+            httpServer.stop();
+        clientServer.stop();
+    }
+
+    // the body goes out a byte at a time, in the given charset
+    private void serve(final String path, final String contentType, final byte[] body) {
+        httpServer.get(path, new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.responseCode(200);
+                if (contentType != null)
+                    response.getHeaders().getHeaders().set("Content-Type", contentType);
+                response.getHeaders().getHeaders().set("Content-Length", Integer.toString(body.length));
+                response.writeHead();
+                for (byte b: body)
+                    response.write(new ByteBufferList(new byte[] { b }));
+                response.end();
+            }
+        });
+    }
+
+    public void testCharset() throws Exception {
+        String japanese = "\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8";
+        httpServer = new AsyncHttpServer();
+        serve("/sjis", "text/plain; charset=Shift_JIS", japanese.getBytes("Shift_JIS"));
+        serve("/latin1", "text/plain; charset=\"ISO-8859-1\"", "cr\u00e8me br\u00fbl\u00e9e".getBytes("ISO-8859-1"));
+        serve("/utf16", "text/plain;charset=UTF-16", japanese.getBytes("UTF-16"));
+        // no charset, or one nobody has heard of, is taken as UTF-8
+        serve("/none", "text/plain", japanese.getBytes("UTF-8"));
+        serve("/unknown", "text/plain; charset=x-no-such-charset", japanese.getBytes("UTF-8"));
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
+
+        assertEquals(client.getString("http://localhost:" + port + "/sjis").get(TIMEOUT, TimeUnit.MILLISECONDS), japanese);
+        assertEquals(client.getString("http://localhost:" + port + "/latin1").get(TIMEOUT, TimeUnit.MILLISECONDS), "cr\u00e8me br\u00fbl\u00e9e");
+        assertEquals(client.getString("http://localhost:" + port + "/utf16").get(TIMEOUT, TimeUnit.MILLISECONDS), japanese);
+        assertEquals(client.getString("http://localhost:" + port + "/none").get(TIMEOUT, TimeUnit.MILLISECONDS), japanese);
+        assertEquals(client.getString("http://localhost:" + port + "/unknown").get(TIMEOUT, TimeUnit.MILLISECONDS), japanese);
+    }
+}
@@ -3,10 +3,17 @@ package com.koushikdutta.async.test;
 import android.util.Log;
 
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataSink;
 import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.NullDataCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.AsyncHttpRequest;
+import com.koushikdutta.async.http.HttpTimeoutException;
 import com.koushikdutta.async.http.body.StringBody;
 import com.koushikdutta.async.http.server.AsyncHttpServer;
 import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
@@ -16,6 +23,9 @@ import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 import junit.framework.TestCase;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -43,24 +53,67 @@ public class TimeoutTests extends TestCase {
                 response.send(body.get());
             }
         });
+
+        // the start of the body, then nothing for a while
+        server.get("/stall", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                response.responseCode(200);
+                response.writeHead();
+                response.write(new ByteBufferList("a".getBytes()));
+                AsyncServer.getDefault().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        response.end();
+                    }
+                }, 2000);
+            }
+        });
+
+        // a little of the body every 100ms, for two seconds
+        server.get("/trickle", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                response.responseCode(200);
+                response.writeHead();
+                AsyncServer.getDefault().post(new Runnable() {
+                    int count;
+                    @Override
+                    public void run() {
+                        if (!response.getSocket().isOpen())
+                            return;
+                        if (count++ == 20) {
+                            response.end();
+                            return;
+                        }
+                        response.write(new ByteBufferList("a".getBytes()));
+                        AsyncServer.getDefault().postDelayed(this, 100);
+                    }
+                });
+            }
+        });
     }
     AsyncHttpServer server = new AsyncHttpServer();
+    AsyncServerSocket silentServer;
+    int port;
 
     @Override
     protected void setUp() throws Exception {
         super.setUp();
-        server.listen(AsyncServer.getDefault(), 5000);
+        port = EphemeralPort.listen(AsyncServer.getDefault(), server);
     }
 
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
         server.stop();
+        if (silentServer != null)
+            silentServer.stop();
         AsyncServer.getDefault().stop();
     }
 
     public void testTimeout() throws Exception {
-        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:5000/3"), "GET");
+        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/3"), "GET");
         req.setTimeout(1000);
         try {
             AsyncHttpClient.getDefaultInstance().executeString(req).get();
@@ -71,18 +124,18 @@ public class TimeoutTests extends TestCase {
             assertTrue(e.getCause() instanceof TimeoutException);
         }
 
-        req = new AsyncHttpRequest(URI.create("http://localhost:5000/3"), "GET");
+        req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/3"), "GET");
         assertEquals("3", AsyncHttpClient.getDefaultInstance().executeString(req).get());
     }
 
     public void testSlowBody() throws Exception {
-        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:5000/now"), "POST");
+        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/now"), "POST");
         req.setTimeout(1000);
         req.setLogging("slowbody", Log.VERBOSE);
         req.setBody(new DelayedStringBody("foo"));
         assertEquals("foo", AsyncHttpClient.getDefaultInstance().executeString(req).get());
 
-        req = new AsyncHttpRequest(URI.create("http://localhost:5000/3"), "GET");
+        req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/3"), "GET");
         req.setLogging("slowbody", Log.VERBOSE);
         req.setTimeout(100);
         req.setBody(new DelayedStringBody("foo"));
@@ -110,4 +163,79 @@ public class TimeoutTests extends TestCase {
             }, 1000);
         }
     }
+
+    private void assertTimeout(Future<String> future, Class<? extends HttpTimeoutException> phase) throws Exception {
+        try {
+            future.get(10000, TimeUnit.MILLISECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertEquals(e.getCause().getClass(), phase);
+        }
+    }
+
+    public void testConnectTimeout() throws Exception {
+        // waiting on a free connection counts as connecting
+        AsyncHttpClient client = new AsyncHttpClient(AsyncServer.getDefault());
+        client.getSocketMiddleware().setMaxConnectionCount(1);
+        Future<String> first = client.executeString(new AsyncHttpRequest(URI.create("http://localhost:" + port + "/3"), "GET"));
+
+        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/3"), "GET");
+        req.setConnectTimeout(200);
+        assertTimeout(client.executeString(req), HttpTimeoutException.ConnectTimeoutException.class);
+        assertEquals(first.get(), "3");
+    }
+
+    public void testHandshakeTimeout() throws Exception {
+        // accepts connections, and ignores what the client says
+        final ArrayList<AsyncSocket> sockets = new ArrayList<AsyncSocket>();
+        int silentPort = EphemeralPort.listen(AsyncServer.getDefault(), new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                socket.setDataCallback(new NullDataCallback());
+                sockets.add(socket);
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+                silentServer = socket;
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+            }
+        });
+
+        AsyncHttpClient client = new AsyncHttpClient(AsyncServer.getDefault());
+        client.setRetryPolicy(null);
+        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("https://localhost:" + silentPort + "/"), "GET");
+        req.setHandshakeTimeout(200);
+        assertTimeout(client.executeString(req), HttpTimeoutException.HandshakeTimeoutException.class);
+        assertEquals(sockets.size(), 1);
+    }
+
+    public void testHeaderTimeout() throws Exception {
+        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/3"), "GET");
+        req.setHeaderTimeout(200);
+        assertTimeout(AsyncHttpClient.getDefaultInstance().executeString(req), HttpTimeoutException.HeaderTimeoutException.class);
+    }
+
+    public void testReadTimeout() throws Exception {
+        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/stall"), "GET");
+        req.setReadTimeout(300);
+        assertTimeout(AsyncHttpClient.getDefaultInstance().executeString(req), HttpTimeoutException.ReadTimeoutException.class);
+
+        // data that keeps coming keeps the read timeout away
+        req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/trickle"), "GET");
+        req.setReadTimeout(300);
+        assertEquals(AsyncHttpClient.getDefaultInstance().executeString(req).get(10000, TimeUnit.MILLISECONDS), "aaaaaaaaaaaaaaaaaaaa");
+    }
+
+    public void testTotalTimeout() throws Exception {
+        // no single wait is long, but the whole thing is
+        AsyncHttpRequest req = new AsyncHttpRequest(URI.create("http://localhost:" + port + "/trickle"), "GET");
+        req.setReadTimeout(300);
+        req.setTotalTimeout(500);
+        assertTimeout(AsyncHttpClient.getDefaultInstance().executeString(req), HttpTimeoutException.TotalTimeoutException.class);
+    }
 }
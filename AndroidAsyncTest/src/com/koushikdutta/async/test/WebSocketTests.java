@@ -1,22 +1,36 @@
 package com.koushikdutta.async.test;
 
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.AsyncHttpClient.WebSocketConnectCallback;
+import com.koushikdutta.async.http.PerMessageDeflate;
 import com.koushikdutta.async.http.WebSocket;
+import com.koushikdutta.async.http.WebSocket.PongCallback;
 import com.koushikdutta.async.http.WebSocket.StringCallback;
+import com.koushikdutta.async.http.WebSocketGroup;
 import com.koushikdutta.async.http.libcore.RequestHeaders;
 import com.koushikdutta.async.http.server.AsyncHttpServer;
 import com.koushikdutta.async.http.server.AsyncHttpServer.WebSocketRequestCallback;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class WebSocketTests extends TestCase {
     AsyncHttpServer httpServer;
+    int port;
+    WebSocketGroup group;
 
     @Override
     protected void setUp() throws Exception {
@@ -29,7 +43,7 @@ public class WebSocketTests extends TestCase {
                 fail();
             }
         });
-        httpServer.listen(AsyncServer.getDefault(), 5000);
+        port = EphemeralPort.listen(AsyncServer.getDefault(), httpServer);
         
     
         httpServer.websocket("/ws", new WebSocketRequestCallback() {
@@ -41,6 +55,21 @@ public class WebSocketTests extends TestCase {
                         webSocket.send(s);
                     }
                 });
+                webSocket.setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        webSocket.send(bb.getAllByteArray());
+                    }
+                });
+            }
+        });
+
+        group = new WebSocketGroup(AsyncServer.getDefault());
+        httpServer.websocket("/group", new WebSocketRequestCallback() {
+            @Override
+            public void onConnected(final WebSocket webSocket, RequestHeaders headers) {
+                group.add(webSocket);
+                group.broadcast("hello group");
             }
         });
     }
@@ -49,7 +78,7 @@ public class WebSocketTests extends TestCase {
     public void testWebSocket() throws Exception {
         final Semaphore semaphore = new Semaphore(0);
 
-        AsyncHttpClient.getDefaultInstance().websocket("http://localhost:5000/ws", null, new WebSocketConnectCallback() {
+        AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/ws", null, new WebSocketConnectCallback() {
             @Override
             public void onCompleted(Exception ex, WebSocket webSocket) {
                 webSocket.send("hello");
@@ -66,6 +95,412 @@ public class WebSocketTests extends TestCase {
         assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
     }
 
+    public void testBinaryNotReclaimed() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        // client frames are masked into a copy, and the caller's array must
+        // never end up in the buffer pool
+        final byte[] data = new byte[16384];
+        new Random(39201).nextBytes(data);
+        final byte[] expected = data.clone();
+        // without permessage-deflate, so the payload goes straight into the masked copy
+
+        AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/ws", null, new WebSocketConnectCallback() {
+            @Override
+            public void onCompleted(Exception ex, WebSocket webSocket) {
+                webSocket.setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        assertTrue(Arrays.equals(bb.getAllByteArray(), expected));
+                        semaphore.release();
+                    }
+                });
+                webSocket.send(data);
+            }
+        });
+
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(Arrays.equals(data, expected));
+
+        // scribble over whatever the pool hands out next
+        for (int i = 0; i < 16; i++) {
+            ByteBuffer b = ByteBufferList.obtain(data.length);
+            assertNotSame(b.array(), data);
+            Arrays.fill(b.array(), (byte)0);
+        }
+        assertTrue(Arrays.equals(data, expected));
+    }
+
+    public void testBroadcast() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+
+        AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/group", null, new WebSocketConnectCallback() {
+            @Override
+            public void onCompleted(Exception ex, WebSocket webSocket) {
+                webSocket.setStringCallback(new StringCallback() {
+                    @Override
+                    public void onStringAvailable(String s) {
+                        assertEquals(s, "hello group");
+                        semaphore.release();
+                    }
+                });
+            }
+        });
+
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(group.size(), 1);
+        assertEquals(group.getDroppedCount(), 0);
+    }
+
+    public void testBroadcastAfterClose() throws Exception {
+        RawWebSocket raw = new RawWebSocket(port, "/group", null);
+        assertEquals(new String(raw.read(), "UTF-8"), "hello group");
+        assertEquals(group.size(), 1);
+
+        // invalid utf-8 makes the server send a close frame, the socket stays
+        // open until the peer answers, but no more messages may follow the close
+        raw.write(RawWebSocket.FIN | RawWebSocket.OP_TEXT, new byte[] { (byte)0xc3, (byte)0x28 });
+        raw.read();
+        assertEquals(raw.getOpcode(), RawWebSocket.OP_CLOSE);
+
+        group.broadcast("after close");
+        final Semaphore semaphore = new Semaphore(0);
+        AsyncServer.getDefault().post(new Runnable() {
+            @Override
+            public void run() {
+                semaphore.release();
+            }
+        });
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(group.size(), 0);
+        assertEquals(group.getSentCount(), 1);
+        raw.close();
+    }
+
+    public void testBroadcastOrder() throws Exception {
+        RawWebSocket raw = new RawWebSocket(port, "/group", null);
+        assertEquals(new String(raw.read(), "UTF-8"), "hello group");
+
+        // broadcasts off the server thread go out in the order they were made
+        for (int i = 0; i < 500; i++)
+            group.broadcast("message " + i);
+        for (int i = 0; i < 500; i++)
+            assertEquals(new String(raw.read(), "UTF-8"), "message " + i);
+        assertEquals(group.getSentCount(), 501);
+        raw.close();
+    }
+
+    public void testTextSplitAcrossFragments() throws Exception {
+        // 2, 3 and 4 byte sequences
+        String message = "h\u00e9llo \u20ac \ud834\udd1e!";
+        byte[] bytes = message.getBytes("UTF-8");
+        int euro = message.indexOf('\u20ac') + 1;
+        int clef = euro + 3 + 1;
+
+        RawWebSocket raw = new RawWebSocket(port, "/ws", null);
+        // split inside the euro sign, and inside the surrogate pair
+        raw.write(RawWebSocket.OP_TEXT, Arrays.copyOfRange(bytes, 0, euro + 1));
+        raw.write(RawWebSocket.OP_CONTINUATION, Arrays.copyOfRange(bytes, euro + 1, clef + 2));
+        raw.write(RawWebSocket.FIN | RawWebSocket.OP_CONTINUATION, Arrays.copyOfRange(bytes, clef + 2, bytes.length));
+        assertEquals(new String(raw.read(), "UTF-8"), message);
+
+        // and one byte per fragment
+        for (int i = 0; i < bytes.length; i++) {
+            int flags = (i == 0 ? RawWebSocket.OP_TEXT : RawWebSocket.OP_CONTINUATION) | (i == bytes.length - 1 ? RawWebSocket.FIN : 0);
+            raw.write(flags, new byte[] { bytes[i] });
+        }
+        assertEquals(new String(raw.read(), "UTF-8"), message);
+        raw.close();
+    }
+
+    private static int readCloseCode(RawWebSocket raw) throws Exception {
+        byte[] payload = raw.read();
+        assertEquals(raw.getOpcode(), RawWebSocket.OP_CLOSE);
+        return ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+    }
+
+    public void testInvalidUtf8() throws Exception {
+        // a lone continuation byte
+        RawWebSocket raw = new RawWebSocket(port, "/ws", null);
+        raw.write(RawWebSocket.FIN | RawWebSocket.OP_TEXT, new byte[] { 'a', (byte)0x80, 'b' });
+        assertEquals(readCloseCode(raw), 1007);
+        raw.close();
+
+        // a sequence cut short by the end of the message, only detectable at the final fragment
+        raw = new RawWebSocket(port, "/ws", null);
+        raw.write(RawWebSocket.OP_TEXT, new byte[] { 'a', (byte)0xe2 });
+        raw.write(RawWebSocket.FIN | RawWebSocket.OP_CONTINUATION, new byte[] { (byte)0x82 });
+        assertEquals(readCloseCode(raw), 1007);
+        raw.close();
+
+        // an encoded surrogate
+        raw = new RawWebSocket(port, "/ws", null);
+        raw.write(RawWebSocket.FIN | RawWebSocket.OP_TEXT, new byte[] { (byte)0xed, (byte)0xa0, (byte)0x80 });
+        assertEquals(readCloseCode(raw), 1007);
+        raw.close();
+    }
+
+    public void testPing() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+
+        AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/ws", null, new WebSocketConnectCallback() {
+            @Override
+            public void onCompleted(Exception ex, final WebSocket webSocket) {
+                webSocket.setPongCallback(new PongCallback() {
+                    @Override
+                    public void onPongReceived(String s, long latency) {
+                        assertEquals(s, "ping");
+                        assertTrue(latency >= 0);
+                        assertEquals(webSocket.getLatencyHistogram().getCount(), 1);
+                        semaphore.release();
+                    }
+                });
+                webSocket.ping("ping");
+            }
+        });
+
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            builder.append(s);
+        return builder.toString();
+    }
+
+    public void testPingTooLong() throws Exception {
+        WebSocket webSocket = AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/ws", null, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        final Semaphore semaphore = new Semaphore(0);
+        final ArrayList<String> pongs = new ArrayList<String>();
+        webSocket.setPongCallback(new PongCallback() {
+            @Override
+            public void onPongReceived(String s, long latency) {
+                pongs.add(s);
+                semaphore.release();
+            }
+        });
+
+        // control frames are limited to 125 bytes of payload, counted once encoded
+        try {
+            webSocket.ping(repeat("a", 126));
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+        try {
+            webSocket.ping(repeat("\u00e9", 63));
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+
+        webSocket.ping(repeat("a", 125));
+        assertTrue(semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(pongs.size(), 1);
+        assertEquals(pongs.get(0), repeat("a", 125));
+        webSocket.close();
+    }
+
+    public void testKeepAlive() throws Exception {
+        WebSocket webSocket = AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/ws", null, null).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        final Semaphore semaphore = new Semaphore(0);
+        webSocket.setPongCallback(new PongCallback() {
+            @Override
+            public void onPongReceived(String s, long latency) {
+                assertTrue(s.startsWith("keepalive "));
+                assertTrue(latency >= 0);
+                semaphore.release();
+            }
+        });
+
+        // set from off the server thread, without waiting on it
+        webSocket.setKeepAlive(20, 3);
+        assertTrue(semaphore.tryAcquire(3, TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the last setting wins, however the posts are run
+        webSocket.setKeepAlive(20, 3);
+        webSocket.setKeepAlive(0, 0);
+        Thread.sleep(100);
+        semaphore.drainPermits();
+        Thread.sleep(200);
+        assertEquals(semaphore.availablePermits(), 0);
+        assertTrue(webSocket.isOpen());
+        webSocket.close();
+    }
+
+    // compressible, but not trivially so, and long enough to be deflated
+    private static String compressibleMessage() {
+        Random random = new Random(1234);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            builder.append((char)('a' + random.nextInt(16)));
+        return builder.toString();
+    }
+
+    private void enableDeflate() {
+        httpServer.setWebSocketDeflate(new PerMessageDeflate());
+        AsyncHttpClient.getDefaultInstance().setWebSocketDeflate(new PerMessageDeflate());
+    }
+
+    public void testDeflateNegotiation() throws Exception {
+        PerMessageDeflate server = new PerMessageDeflate();
+        PerMessageDeflate negotiated = server.negotiate("x-webkit-deflate-frame, permessage-deflate; client_max_window_bits");
+        assertNotNull(negotiated);
+        assertEquals(negotiated.getResponse(), "permessage-deflate");
+        negotiated = server.negotiate("permessage-deflate; server_no_context_takeover; server_max_window_bits=10");
+        assertTrue(negotiated.getServerNoContextTakeover());
+        assertEquals(negotiated.getResponse(), "permessage-deflate; server_no_context_takeover; server_max_window_bits=10");
+        // unknown parameters decline the offer
+        assertNull(server.negotiate("permessage-deflate; foo=1"));
+        assertNull(server.negotiate("x-webkit-deflate-frame"));
+        assertNull(server.negotiate(null));
+
+        PerMessageDeflate client = new PerMessageDeflate();
+        assertEquals(client.getOffer(), "permessage-deflate");
+        assertNull(client.accept(null));
+        assertTrue(client.accept("permessage-deflate; client_no_context_takeover").getClientNoContextTakeover());
+        try {
+            client.accept("permessage-deflate; foo=1");
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+
+        enableDeflate();
+        RawWebSocket raw = new RawWebSocket(port, "/ws", "permessage-deflate; client_max_window_bits");
+        assertTrue(raw.getResponseHeaders().contains("Sec-WebSocket-Extensions: permessage-deflate"));
+        raw.close();
+    }
+
+    public void testDeflateDeclined() throws Exception {
+        // compression is off until it's asked for
+        assertNull(httpServer.getWebSocketDeflate());
+        assertNull(new AsyncHttpClient(AsyncServer.getDefault()).getWebSocketDeflate());
+        AsyncHttpClient.getDefaultInstance().setWebSocketDeflate(new PerMessageDeflate());
+        String message = compressibleMessage();
+
+        RawWebSocket raw = new RawWebSocket(port, "/ws", "permessage-deflate");
+        assertFalse(raw.getResponseHeaders().contains("Sec-WebSocket-Extensions"));
+        raw.write(RawWebSocket.FIN | RawWebSocket.OP_TEXT, message.getBytes("UTF-8"));
+        byte[] payload = raw.read();
+        assertEquals(raw.flags, RawWebSocket.FIN | RawWebSocket.OP_TEXT);
+        assertEquals(new String(payload, "UTF-8"), message);
+        raw.close();
+
+        // the client offers the extension, and falls back to plain frames
+        assertEquals(echo(message, 1).get(0), message);
+    }
+
+    private ArrayList<String> echo(final String message, final int count) throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        final ArrayList<String> received = new ArrayList<String>();
+        AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/ws", null, new WebSocketConnectCallback() {
+            @Override
+            public void onCompleted(Exception ex, WebSocket webSocket) {
+                webSocket.setStringCallback(new StringCallback() {
+                    @Override
+                    public void onStringAvailable(String s) {
+                        received.add(s);
+                        semaphore.release();
+                    }
+                });
+                for (int i = 0; i < count; i++)
+                    webSocket.send(message);
+            }
+        });
+        assertTrue(semaphore.tryAcquire(count, TIMEOUT, TimeUnit.MILLISECONDS));
+        return received;
+    }
+
+    public void testDeflateRoundTrip() throws Exception {
+        // the same message over and over is compressed against the previous
+        // ones in both directions
+        enableDeflate();
+        String message = compressibleMessage();
+        for (String s: echo(message, 5))
+            assertEquals(s, message);
+
+        final Semaphore semaphore = new Semaphore(0);
+        // large enough for the pool
+        final byte[] data = (message + message + message + message + message + message + message + message + message).getBytes("UTF-8");
+        final byte[] expected = data.clone();
+        AsyncHttpClient.getDefaultInstance().websocket("http://localhost:" + port + "/ws", null, new WebSocketConnectCallback() {
+            @Override
+            public void onCompleted(Exception ex, WebSocket webSocket) {
+                webSocket.setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        assertTrue(Arrays.equals(bb.getAllByteArray(), expected));
+                        semaphore.release();
+                    }
+                });
+                webSocket.send(data);
+                webSocket.send(data);
+            }
+        });
+        assertTrue(semaphore.tryAcquire(2, TIMEOUT, TimeUnit.MILLISECONDS));
+        // deflating the caller's array must not hand it to the buffer pool
+        for (int i = 0; i < 16; i++)
+            assertNotSame(ByteBufferList.obtain(data.length).array(), data);
+        assertTrue(Arrays.equals(data, expected));
+    }
+
+    private int[] deflatedLengths(String extensions, String message) throws Exception {
+        RawWebSocket raw = new RawWebSocket(port, "/ws", extensions);
+        Inflater inflater = new Inflater(true);
+        int[] ret = new int[2];
+        for (int i = 0; i < ret.length; i++) {
+            raw.write(RawWebSocket.FIN | RawWebSocket.OP_TEXT, message.getBytes("UTF-8"));
+            byte[] payload = raw.read();
+            assertEquals(raw.flags, RawWebSocket.FIN | RawWebSocket.RSV1 | RawWebSocket.OP_TEXT);
+            if (extensions.contains("server_no_context_takeover"))
+                inflater.reset();
+            assertEquals(new String(RawWebSocket.inflate(inflater, payload), "UTF-8"), message);
+            ret[i] = payload.length;
+        }
+        raw.close();
+        return ret;
+    }
+
+    public void testDeflateContextTakeover() throws Exception {
+        enableDeflate();
+        String message = compressibleMessage();
+
+        // the second message is a back reference into the first
+        int[] lengths = deflatedLengths("permessage-deflate", message);
+        assertTrue(lengths[1] < lengths[0] / 10);
+
+        // without context takeover, every message is compressed on its own
+        lengths = deflatedLengths("permessage-deflate; server_no_context_takeover", message);
+        assertEquals(lengths[1], lengths[0]);
+    }
+
+    public void testDeflateSyncFlushTrailer() throws Exception {
+        enableDeflate();
+        String message = compressibleMessage();
+        RawWebSocket raw = new RawWebSocket(port, "/ws", "permessage-deflate");
+        raw.write(RawWebSocket.FIN | RawWebSocket.OP_TEXT, message.getBytes("UTF-8"));
+        byte[] payload = raw.read();
+        raw.close();
+
+        // the 00 00 ff ff of the sync flush is stripped, see RFC 7692 7.2.1
+        assertTrue(payload.length > 4);
+        byte[] tail = Arrays.copyOfRange(payload, payload.length - 4, payload.length);
+        assertFalse(Arrays.equals(tail, new byte[] { 0, 0, (byte)0xff, (byte)0xff }));
+        assertEquals(new String(RawWebSocket.inflate(new Inflater(true), payload), "UTF-8"), message);
+
+        // a compressed message from the client, with the trailer stripped the same way
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(message.getBytes("UTF-8"));
+        byte[] buffer = new byte[8192];
+        int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        assertTrue(length < buffer.length);
+        raw = new RawWebSocket(port, "/ws", "permessage-deflate");
+        raw.write(RawWebSocket.FIN | RawWebSocket.RSV1 | RawWebSocket.OP_TEXT, Arrays.copyOf(buffer, length - 4));
+        assertEquals(new String(RawWebSocket.inflate(new Inflater(true), raw.read()), "UTF-8"), message);
+        raw.close();
+    }
+
 //    public void testDisconnect() throws Exception {
 //        final Semaphore semaphore = new Semaphore(0);
 //
@@ -89,5 +524,6 @@ public class WebSocketTests extends TestCase {
         super.tearDown();
         
         httpServer.stop();
+        AsyncHttpClient.getDefaultInstance().setWebSocketDeflate(null);
     }
 }